@@ -36,6 +36,14 @@ typedef struct x264_context {
     int fps;
     int gop;
     char preset[16];
+    // threading and rate control, a negative lookahead keeps the one of the preset
+    int threads;
+    bool sliced_threads;
+    int sync_lookahead;
+    int rc_lookahead;
+    int vbv_maxrate;
+    int vbv_bufsize;
+    bool zero_latency;
     // output
     int64_t pts;
     int dts;
@@ -44,9 +52,9 @@ typedef struct x264_context {
 
 static JavaVM *jvm;
 static JNIEnv *jenv;
+static jmethodID on_soft_encoded_data;
 
 static struct x264_context x264_ctx;
-static uint8_t h264_es[1024 * 1024];
 
 static const int SRC_COLOR_FMT = FOURCC_RGBA;
 static const int DST_COLOR_FMT = FOURCC_NV12;
@@ -55,8 +63,10 @@ static struct YuvFrame i420_rotated_frame;
 static struct YuvFrame i420_scaled_frame;
 static struct YuvFrame nv12_frame;
 
+// Rotates the frame to I420 and scales it into scaled_frame, at the size of scaled_frame.
 static bool convert_to_i420(uint8_t *src_frame, jint src_width, jint src_height,
-                            jboolean need_flip, jint rotate_degree, int format) {
+                            jboolean need_flip, jint rotate_degree, int format,
+                            struct YuvFrame *scaled_frame) {
     int y_size = src_width * src_height;
 
     if (rotate_degree % 180 == 0) {
@@ -99,10 +109,10 @@ static bool convert_to_i420(uint8_t *src_frame, jint src_width, jint src_height,
                     i420_rotated_frame.v, i420_rotated_frame.width / 2,
                     need_flip ? -i420_rotated_frame.width : i420_rotated_frame.width,
                     i420_rotated_frame.height,
-                    i420_scaled_frame.y, i420_scaled_frame.width,
-                    i420_scaled_frame.u, i420_scaled_frame.width / 2,
-                    i420_scaled_frame.v, i420_scaled_frame.width / 2,
-                    i420_scaled_frame.width, i420_scaled_frame.height,
+                    scaled_frame->y, scaled_frame->width,
+                    scaled_frame->u, scaled_frame->width / 2,
+                    scaled_frame->v, scaled_frame->width / 2,
+                    scaled_frame->width, scaled_frame->height,
                     kFilterNone);
 
     if (ret < 0) {
@@ -116,7 +126,8 @@ static bool convert_to_i420(uint8_t *src_frame, jint src_width, jint src_height,
 static bool convert_to_i420_with_crop_scale(uint8_t *src_frame, jint src_width, jint src_height,
                                             jint crop_x, jint crop_y, jint crop_width,
                                             jint crop_height,
-                                            jboolean need_flip, jint rotate_degree, int format) {
+                                            jboolean need_flip, jint rotate_degree, int format,
+                                            struct YuvFrame *scaled_frame) {
     int y_size = src_width * src_height;
 
     if (rotate_degree % 180 == 0) {
@@ -161,10 +172,10 @@ static bool convert_to_i420_with_crop_scale(uint8_t *src_frame, jint src_width,
                     i420_rotated_frame.u, i420_rotated_frame.width / 2,
                     i420_rotated_frame.v, i420_rotated_frame.width / 2,
                     i420_rotated_frame.width, i420_rotated_frame.height,
-                    i420_scaled_frame.y, i420_scaled_frame.width,
-                    i420_scaled_frame.u, i420_scaled_frame.width / 2,
-                    i420_scaled_frame.v, i420_scaled_frame.width / 2,
-                    i420_scaled_frame.width, i420_scaled_frame.height,
+                    scaled_frame->y, scaled_frame->width,
+                    scaled_frame->u, scaled_frame->width / 2,
+                    scaled_frame->v, scaled_frame->width / 2,
+                    scaled_frame->width, scaled_frame->height,
                     kFilterNone);
 
     if (ret < 0) {
@@ -177,6 +188,29 @@ static bool convert_to_i420_with_crop_scale(uint8_t *src_frame, jint src_width,
 
 static void libenc_setEncoderBitrate(JNIEnv *env, jobject thiz, jint bitrate) {
     x264_ctx.bitrate = bitrate / 1024;  // kbps
+
+    // retarget the running encoder, ABR takes the new bitrate from the next frame. x264 only
+    // takes the bitrate of a reconfig with the VBV on, which is scaled along, the buffer
+    // keeping its duration, @see x264_encoder_try_reconfig.
+    if (x264_ctx.encoder != NULL) {
+        x264_param_t *params = &x264_ctx.params;
+        if (params->rc.i_vbv_max_bitrate <= 0 || params->rc.i_vbv_buffer_size <= 0) {
+            LIBENC_LOGE("Fail to reconfig x264 bitrate to %dkbps, opened without VBV", x264_ctx.bitrate);
+            return;
+        }
+        int old_bitrate = params->rc.i_bitrate > 0 ? params->rc.i_bitrate : 1;
+        int maxrate = (int) ((int64_t) params->rc.i_vbv_max_bitrate * x264_ctx.bitrate / old_bitrate);
+        int bufsize = (int) ((int64_t) params->rc.i_vbv_buffer_size * x264_ctx.bitrate / old_bitrate);
+        params->rc.i_vbv_max_bitrate = maxrate > 0 ? maxrate : 1;
+        params->rc.i_vbv_buffer_size = bufsize > 0 ? bufsize : 1;
+        params->rc.i_bitrate = x264_ctx.bitrate;
+        if (x264_encoder_reconfig(x264_ctx.encoder, params) < 0) {
+            LIBENC_LOGE("Fail to reconfig x264 bitrate to %dkbps, vbv=%d/%d", x264_ctx.bitrate,
+                        params->rc.i_vbv_max_bitrate, params->rc.i_vbv_buffer_size);
+        }
+        // the parameters actually used, unchanged when the reconfig failed.
+        x264_encoder_parameters(x264_ctx.encoder, params);
+    }
 }
 
 static void libenc_setEncoderFps(JNIEnv *env, jobject thiz, jint fps) {
@@ -193,6 +227,27 @@ static void libenc_setEncoderPreset(JNIEnv *env, jobject thiz, jstring preset) {
     env->ReleaseStringUTFChars(preset, enc_preset);
 }
 
+static void libenc_setEncoderThreads(JNIEnv *env, jobject thiz, jint threads,
+                                     jboolean sliced_threads) {
+    x264_ctx.threads = threads;
+    x264_ctx.sliced_threads = sliced_threads;
+}
+
+static void libenc_setEncoderLookahead(JNIEnv *env, jobject thiz, jint sync_lookahead,
+                                       jint rc_lookahead) {
+    x264_ctx.sync_lookahead = sync_lookahead;
+    x264_ctx.rc_lookahead = rc_lookahead;
+}
+
+static void libenc_setEncoderVbv(JNIEnv *env, jobject thiz, jint maxrate, jint bufsize) {
+    x264_ctx.vbv_maxrate = maxrate / 1024;  // kbps
+    x264_ctx.vbv_bufsize = bufsize / 1024;  // kbit
+}
+
+static void libenc_setEncoderZeroLatency(JNIEnv *env, jobject thiz, jboolean zero_latency) {
+    x264_ctx.zero_latency = zero_latency;
+}
+
 static void
 libenc_setEncoderResolution(JNIEnv *env, jobject thiz, jint out_width, jint out_height) {
     int y_size = out_width * out_height;
@@ -221,91 +276,163 @@ libenc_setEncoderResolution(JNIEnv *env, jobject thiz, jint out_width, jint out_
     x264_ctx.height = out_height;
 }
 
-// For COLOR_FormatYUV420Planar
-static jbyteArray libenc_RGBAToI420(JNIEnv *env, jobject thiz, jbyteArray frame, jint src_width,
-                                    jint src_height, jboolean need_flip, jint rotate_degree) {
-    jbyte *rgba_frame = env->GetByteArrayElements(frame, NULL);
-
-    if (!convert_to_i420((uint8_t *) rgba_frame, src_width, src_height, need_flip, rotate_degree,
-                         FOURCC_RGBA)) {
-        return NULL;
+// Pins the source frame without copying it, converts it to I420 into scaled_frame and unpins it.
+// No JNI function may be called while the frame is pinned.
+static bool convert_pinned(JNIEnv *env, jarray frame, jint src_width, jint src_height,
+                           jboolean need_flip, jint rotate_degree, int format, bool crop,
+                           jint crop_x, jint crop_y, jint crop_width, jint crop_height,
+                           struct YuvFrame *scaled_frame) {
+    uint8_t *src_frame = (uint8_t *) env->GetPrimitiveArrayCritical(frame, NULL);
+    if (src_frame == NULL) {
+        LIBENC_LOGE("GetPrimitiveArrayCritical failure");
+        return false;
     }
 
-    int y_size = i420_scaled_frame.width * i420_scaled_frame.height;
-    jbyteArray i420Frame = env->NewByteArray(y_size * 3 / 2);
-    env->SetByteArrayRegion(i420Frame, 0, y_size * 3 / 2, (jbyte *) i420_scaled_frame.data);
+    bool ok = crop ?
+              convert_to_i420_with_crop_scale(src_frame, src_width, src_height,
+                                              crop_x, crop_y, crop_width, crop_height,
+                                              need_flip, rotate_degree, format, scaled_frame) :
+              convert_to_i420(src_frame, src_width, src_height, need_flip, rotate_degree, format,
+                              scaled_frame);
 
-    env->ReleaseByteArrayElements(frame, rgba_frame, JNI_ABORT);
-    return i420Frame;
+    env->ReleasePrimitiveArrayCritical(frame, src_frame, JNI_ABORT);
+    return ok;
 }
 
-static jbyteArray
-libenc_NV21ToNV12Scaled(JNIEnv *env, jobject thiz, jbyteArray frame, jint src_width,
-                        jint src_height, jboolean need_flip, jint rotate_degree,
-                        jint crop_x, jint crop_y, jint crop_width, jint crop_height) {
-    jbyte *rgba_frame = env->GetByteArrayElements(frame, NULL);
-
-    if (!convert_to_i420_with_crop_scale((uint8_t *) rgba_frame, src_width, src_height,
-                                         crop_x, crop_y, crop_width, crop_height,
-                                         need_flip, rotate_degree, FOURCC_NV21)) {
-        return NULL;
-    }
-
+// Interleaves the scaled I420 frame into the NV12 frame at data.
+static bool i420_scaled_to_nv12(uint8_t *data) {
     int ret = ConvertFromI420(i420_scaled_frame.y, i420_scaled_frame.width,
                               i420_scaled_frame.u, i420_scaled_frame.width / 2,
                               i420_scaled_frame.v, i420_scaled_frame.width / 2,
-                              nv12_frame.data, nv12_frame.width,
-                              nv12_frame.width, nv12_frame.height,
-                              FOURCC_NV12);
+                              data, i420_scaled_frame.width,
+                              i420_scaled_frame.width, i420_scaled_frame.height,
+                              DST_COLOR_FMT);
     if (ret < 0) {
         LIBENC_LOGE("ConvertFromI420 failure");
+        return false;
+    }
+    return true;
+}
+
+// Converts the frame into a new array, in I420 or NV12.
+static jbyteArray convert_to_array(JNIEnv *env, jarray frame, jint src_width, jint src_height,
+                                   jboolean need_flip, jint rotate_degree, int format, bool crop,
+                                   jint crop_x, jint crop_y, jint crop_width, jint crop_height,
+                                   bool nv12) {
+    if (!convert_pinned(env, frame, src_width, src_height, need_flip, rotate_degree, format,
+                        crop, crop_x, crop_y, crop_width, crop_height, &i420_scaled_frame)) {
         return NULL;
     }
 
-    int y_size = nv12_frame.width * nv12_frame.height;
-    jbyteArray nv12Frame = env->NewByteArray(y_size * 3 / 2);
-    env->SetByteArrayRegion(nv12Frame, 0, y_size * 3 / 2, (jbyte *) nv12_frame.data);
+    uint8_t *data = i420_scaled_frame.data;
+    if (nv12) {
+        if (!i420_scaled_to_nv12(nv12_frame.data)) {
+            return NULL;
+        }
+        data = nv12_frame.data;
+    }
+
+    int y_size = i420_scaled_frame.width * i420_scaled_frame.height;
+    jbyteArray yuvFrame = env->NewByteArray(y_size * 3 / 2);
+    env->SetByteArrayRegion(yuvFrame, 0, y_size * 3 / 2, (jbyte *) data);
+    return yuvFrame;
+}
+
+// Converts the frame into the direct buffer, from its first byte, in I420 or NV12. The I420
+// frame is scaled straight into the buffer, so the only copy is the conversion itself.
+// Returns the size of the converted frame, or -1.
+static jint convert_to_buffer(JNIEnv *env, jarray frame, jint src_width, jint src_height,
+                              jboolean need_flip, jint rotate_degree, int format, bool crop,
+                              jint crop_x, jint crop_y, jint crop_width, jint crop_height,
+                              bool nv12, jobject buffer) {
+    int y_size = i420_scaled_frame.width * i420_scaled_frame.height;
+    uint8_t *data = (uint8_t *) env->GetDirectBufferAddress(buffer);
+    if (data == NULL || env->GetDirectBufferCapacity(buffer) < y_size * 3 / 2) {
+        LIBENC_LOGE("Output buffer is not direct or smaller than %d bytes", y_size * 3 / 2);
+        return -1;
+    }
+
+    struct YuvFrame out_frame;
+    out_frame.width = i420_scaled_frame.width;
+    out_frame.height = i420_scaled_frame.height;
+    out_frame.data = data;
+    out_frame.y = data;
+    out_frame.u = out_frame.y + y_size;
+    out_frame.v = out_frame.u + y_size / 4;
+
+    if (!convert_pinned(env, frame, src_width, src_height, need_flip, rotate_degree, format,
+                        crop, crop_x, crop_y, crop_width, crop_height,
+                        nv12 ? &i420_scaled_frame : &out_frame)) {
+        return -1;
+    }
+    if (nv12 && !i420_scaled_to_nv12(data)) {
+        return -1;
+    }
+    return y_size * 3 / 2;
+}
+
+// For COLOR_FormatYUV420Planar
+static jbyteArray libenc_RGBAToI420(JNIEnv *env, jobject thiz, jbyteArray frame, jint src_width,
+                                    jint src_height, jboolean need_flip, jint rotate_degree) {
+    return convert_to_array(env, frame, src_width, src_height, need_flip, rotate_degree,
+                            FOURCC_RGBA, false, 0, 0, 0, 0, false);
+}
 
-    env->ReleaseByteArrayElements(frame, rgba_frame, JNI_ABORT);
-    return nv12Frame;
+static jint libenc_RGBAToI420Buffer(JNIEnv *env, jobject thiz, jbyteArray frame, jint src_width,
+                                    jint src_height, jboolean need_flip, jint rotate_degree,
+                                    jobject buffer) {
+    return convert_to_buffer(env, frame, src_width, src_height, need_flip, rotate_degree,
+                             FOURCC_RGBA, false, 0, 0, 0, 0, false, buffer);
 }
 
 static jbyteArray
-libenc_NV21ToI420Scaled(JNIEnv *env, jobject thiz, jbyteArray frame, jint src_width,
+libenc_NV21ToNV12Scaled(JNIEnv *env, jobject thiz, jbyteArray frame, jint src_width,
                         jint src_height, jboolean need_flip, jint rotate_degree,
                         jint crop_x, jint crop_y, jint crop_width, jint crop_height) {
-    jbyte *argb_frame = env->GetByteArrayElements(frame, NULL);
+    return convert_to_array(env, frame, src_width, src_height, need_flip, rotate_degree,
+                            FOURCC_NV21, true, crop_x, crop_y, crop_width, crop_height, true);
+}
 
-    if (!convert_to_i420_with_crop_scale((uint8_t *) argb_frame, src_width, src_height,
-                                         crop_x, crop_y, crop_width, crop_height,
-                                         need_flip, rotate_degree, FOURCC_NV21)) {
-        return NULL;
-    }
+static jint
+libenc_NV21ToNV12ScaledBuffer(JNIEnv *env, jobject thiz, jbyteArray frame, jint src_width,
+                              jint src_height, jboolean need_flip, jint rotate_degree,
+                              jint crop_x, jint crop_y, jint crop_width, jint crop_height,
+                              jobject buffer) {
+    return convert_to_buffer(env, frame, src_width, src_height, need_flip, rotate_degree,
+                             FOURCC_NV21, true, crop_x, crop_y, crop_width, crop_height, true,
+                             buffer);
+}
 
-    int y_size = i420_scaled_frame.width * i420_scaled_frame.height;
-    jbyteArray i420Frame = env->NewByteArray(y_size * 3 / 2);
-    env->SetByteArrayRegion(i420Frame, 0, y_size * 3 / 2, (jbyte *) i420_scaled_frame.data);
+static jbyteArray
+libenc_NV21ToI420Scaled(JNIEnv *env, jobject thiz, jbyteArray frame, jint src_width,
+                        jint src_height, jboolean need_flip, jint rotate_degree,
+                        jint crop_x, jint crop_y, jint crop_width, jint crop_height) {
+    return convert_to_array(env, frame, src_width, src_height, need_flip, rotate_degree,
+                            FOURCC_NV21, true, crop_x, crop_y, crop_width, crop_height, false);
+}
 
-    env->ReleaseByteArrayElements(frame, argb_frame, JNI_ABORT);
-    return i420Frame;
+static jint
+libenc_NV21ToI420ScaledBuffer(JNIEnv *env, jobject thiz, jbyteArray frame, jint src_width,
+                              jint src_height, jboolean need_flip, jint rotate_degree,
+                              jint crop_x, jint crop_y, jint crop_width, jint crop_height,
+                              jobject buffer) {
+    return convert_to_buffer(env, frame, src_width, src_height, need_flip, rotate_degree,
+                             FOURCC_NV21, true, crop_x, crop_y, crop_width, crop_height, false,
+                             buffer);
 }
 
 // For Bitmap.getPixels() ARGB_8888
 static jbyteArray libenc_ARGBToI420(JNIEnv *env, jobject thiz, jintArray frame, jint src_width,
                                     jint src_height, jboolean need_flip, jint rotate_degree) {
-    jint *argb_frame = env->GetIntArrayElements(frame, NULL);
-
-    if (!convert_to_i420((uint8_t *) argb_frame, src_width, src_height, need_flip, rotate_degree,
-                         FOURCC_ARGB)) {
-        return NULL;
-    }
-
-    int y_size = i420_scaled_frame.width * i420_scaled_frame.height;
-    jbyteArray i420Frame = env->NewByteArray(y_size * 3 / 2);
-    env->SetByteArrayRegion(i420Frame, 0, y_size * 3 / 2, (jbyte *) i420_scaled_frame.data);
+    return convert_to_array(env, frame, src_width, src_height, need_flip, rotate_degree,
+                            FOURCC_ARGB, false, 0, 0, 0, 0, false);
+}
 
-    env->ReleaseIntArrayElements(frame, argb_frame, JNI_ABORT);
-    return i420Frame;
+static jint libenc_ARGBToI420Buffer(JNIEnv *env, jobject thiz, jintArray frame, jint src_width,
+                                    jint src_height, jboolean need_flip, jint rotate_degree,
+                                    jobject buffer) {
+    return convert_to_buffer(env, frame, src_width, src_height, need_flip, rotate_degree,
+                             FOURCC_ARGB, false, 0, 0, 0, 0, false, buffer);
 }
 
 // For Bitmap.getPixels() ARGB_8888
@@ -313,78 +440,46 @@ static jbyteArray
 libenc_ARGBToI420Scaled(JNIEnv *env, jobject thiz, jintArray frame, jint src_width,
                         jint src_height, jboolean need_flip, jint rotate_degree,
                         jint crop_x, jint crop_y, jint crop_width, jint crop_height) {
-    jint *argb_frame = env->GetIntArrayElements(frame, NULL);
-
-    if (!convert_to_i420_with_crop_scale((uint8_t *) argb_frame, src_width, src_height,
-                                         crop_x, crop_y, crop_width, crop_height,
-                                         need_flip, rotate_degree, FOURCC_ARGB)) {
-        return NULL;
-    }
-
-    int y_size = i420_scaled_frame.width * i420_scaled_frame.height;
-    jbyteArray i420Frame = env->NewByteArray(y_size * 3 / 2);
-    env->SetByteArrayRegion(i420Frame, 0, y_size * 3 / 2, (jbyte *) i420_scaled_frame.data);
+    return convert_to_array(env, frame, src_width, src_height, need_flip, rotate_degree,
+                            FOURCC_ARGB, true, crop_x, crop_y, crop_width, crop_height, false);
+}
 
-    env->ReleaseIntArrayElements(frame, argb_frame, JNI_ABORT);
-    return i420Frame;
+static jint
+libenc_ARGBToI420ScaledBuffer(JNIEnv *env, jobject thiz, jintArray frame, jint src_width,
+                              jint src_height, jboolean need_flip, jint rotate_degree,
+                              jint crop_x, jint crop_y, jint crop_width, jint crop_height,
+                              jobject buffer) {
+    return convert_to_buffer(env, frame, src_width, src_height, need_flip, rotate_degree,
+                             FOURCC_ARGB, true, crop_x, crop_y, crop_width, crop_height, false,
+                             buffer);
 }
 
 // For COLOR_FormatYUV420SemiPlanar
 static jbyteArray libenc_RGBAToNV12(JNIEnv *env, jobject thiz, jbyteArray frame, jint src_width,
                                     jint src_height, jboolean need_flip, jint rotate_degree) {
-    jbyte *rgba_frame = env->GetByteArrayElements(frame, NULL);
-
-    if (!convert_to_i420((uint8_t *) rgba_frame, src_width, src_height, need_flip, rotate_degree,
-                         FOURCC_RGBA)) {
-        return NULL;
-    }
-
-    int ret = ConvertFromI420(i420_scaled_frame.y, i420_scaled_frame.width,
-                              i420_scaled_frame.u, i420_scaled_frame.width / 2,
-                              i420_scaled_frame.v, i420_scaled_frame.width / 2,
-                              nv12_frame.data, nv12_frame.width,
-                              nv12_frame.width, nv12_frame.height,
-                              DST_COLOR_FMT);
-    if (ret < 0) {
-        LIBENC_LOGE("ConvertFromI420 failure");
-        return NULL;
-    }
-
-    int y_size = nv12_frame.width * nv12_frame.height;
-    jbyteArray nv12Frame = env->NewByteArray(y_size * 3 / 2);
-    env->SetByteArrayRegion(nv12Frame, 0, y_size * 3 / 2, (jbyte *) nv12_frame.data);
+    return convert_to_array(env, frame, src_width, src_height, need_flip, rotate_degree,
+                            FOURCC_RGBA, false, 0, 0, 0, 0, true);
+}
 
-    env->ReleaseByteArrayElements(frame, rgba_frame, JNI_ABORT);
-    return nv12Frame;
+static jint libenc_RGBAToNV12Buffer(JNIEnv *env, jobject thiz, jbyteArray frame, jint src_width,
+                                    jint src_height, jboolean need_flip, jint rotate_degree,
+                                    jobject buffer) {
+    return convert_to_buffer(env, frame, src_width, src_height, need_flip, rotate_degree,
+                             FOURCC_RGBA, false, 0, 0, 0, 0, true, buffer);
 }
 
 // For Bitmap.getPixels() ARGB_8888
 static jbyteArray libenc_ARGBToNV12(JNIEnv *env, jobject thiz, jintArray frame, jint src_width,
                                     jint src_height, jboolean need_flip, jint rotate_degree) {
-    jint *argb_frame = env->GetIntArrayElements(frame, NULL);
-
-    if (!convert_to_i420((uint8_t *) argb_frame, src_width, src_height, need_flip, rotate_degree,
-                         FOURCC_ARGB)) {
-        return NULL;
-    }
-
-    int ret = ConvertFromI420(i420_scaled_frame.y, i420_scaled_frame.width,
-                              i420_scaled_frame.u, i420_scaled_frame.width / 2,
-                              i420_scaled_frame.v, i420_scaled_frame.width / 2,
-                              nv12_frame.data, nv12_frame.width,
-                              nv12_frame.width, nv12_frame.height,
-                              DST_COLOR_FMT);
-    if (ret < 0) {
-        LIBENC_LOGE("ConvertFromI420 failure");
-        return NULL;
-    }
-
-    int y_size = nv12_frame.width * nv12_frame.height;
-    jbyteArray nv12Frame = env->NewByteArray(y_size * 3 / 2);
-    env->SetByteArrayRegion(nv12Frame, 0, y_size * 3 / 2, (jbyte *) nv12_frame.data);
+    return convert_to_array(env, frame, src_width, src_height, need_flip, rotate_degree,
+                            FOURCC_ARGB, false, 0, 0, 0, 0, true);
+}
 
-    env->ReleaseIntArrayElements(frame, argb_frame, JNI_ABORT);
-    return nv12Frame;
+static jint libenc_ARGBToNV12Buffer(JNIEnv *env, jobject thiz, jintArray frame, jint src_width,
+                                    jint src_height, jboolean need_flip, jint rotate_degree,
+                                    jobject buffer) {
+    return convert_to_buffer(env, frame, src_width, src_height, need_flip, rotate_degree,
+                             FOURCC_ARGB, false, 0, 0, 0, 0, true, buffer);
 }
 
 // For Bitmap.getPixels() ARGB_8888
@@ -392,108 +487,105 @@ static jbyteArray
 libenc_ARGBToNV12Scaled(JNIEnv *env, jobject thiz, jintArray frame, jint src_width,
                         jint src_height, jboolean need_flip, jint rotate_degree,
                         jint crop_x, jint crop_y, jint crop_width, jint crop_height) {
-    jint *argb_frame = env->GetIntArrayElements(frame, NULL);
-
-    if (!convert_to_i420_with_crop_scale((uint8_t *) argb_frame, src_width, src_height,
-                                         crop_x, crop_y, crop_width, crop_height,
-                                         need_flip, rotate_degree, FOURCC_ARGB)) {
-        return NULL;
-    }
-
-    int ret = ConvertFromI420(i420_scaled_frame.y, i420_scaled_frame.width,
-                              i420_scaled_frame.u, i420_scaled_frame.width / 2,
-                              i420_scaled_frame.v, i420_scaled_frame.width / 2,
-                              nv12_frame.data, nv12_frame.width,
-                              nv12_frame.width, nv12_frame.height,
-                              DST_COLOR_FMT);
-    if (ret < 0) {
-        LIBENC_LOGE("ConvertFromI420 failure");
-        return NULL;
-    }
-
-    int y_size = nv12_frame.width * nv12_frame.height;
-    jbyteArray nv12Frame = env->NewByteArray(y_size * 3 / 2);
-    env->SetByteArrayRegion(nv12Frame, 0, y_size * 3 / 2, (jbyte *) nv12_frame.data);
+    return convert_to_array(env, frame, src_width, src_height, need_flip, rotate_degree,
+                            FOURCC_ARGB, true, crop_x, crop_y, crop_width, crop_height, true);
+}
 
-    env->ReleaseIntArrayElements(frame, argb_frame, JNI_ABORT);
-    return nv12Frame;
+static jint
+libenc_ARGBToNV12ScaledBuffer(JNIEnv *env, jobject thiz, jintArray frame, jint src_width,
+                              jint src_height, jboolean need_flip, jint rotate_degree,
+                              jint crop_x, jint crop_y, jint crop_width, jint crop_height,
+                              jobject buffer) {
+    return convert_to_buffer(env, frame, src_width, src_height, need_flip, rotate_degree,
+                             FOURCC_ARGB, true, crop_x, crop_y, crop_width, crop_height, true,
+                             buffer);
 }
 
-static int encode_nals(const x264_nal_t *nals, int nnal) {
-    int i;
-    uint8_t *p = h264_es;
+// Copies the nals into the direct buffer es and hands them to SrsEncoder.onSoftEncodedData.
+static bool deliver_nals(JNIEnv *env, jobject thiz, jobject es, const x264_nal_t *nals, int nnal,
+                         int64_t pts, bool is_key_frame) {
+    uint8_t *data = (uint8_t *) env->GetDirectBufferAddress(es);
+    jlong capacity = env->GetDirectBufferCapacity(es);
+    int size = 0;
+    for (int i = 0; i < nnal; i++) {
+        size += nals[i].i_payload;
+    }
+    if (data == NULL || capacity < size) {
+        LIBENC_LOGE("Output buffer is not direct or smaller than %d bytes", size);
+        return false;
+    }
+    if (size == 0) {
+        return true;
+    }
 
-    for (i = 0; i < nnal; i++) {
+    uint8_t *p = data;
+    for (int i = 0; i < nnal; i++) {
         memcpy(p, nals[i].p_payload, nals[i].i_payload);
         p += nals[i].i_payload;
     }
-
-    return p - h264_es;
+    env->CallVoidMethod(thiz, on_soft_encoded_data, es, size, (jlong) pts,
+                        (jboolean) is_key_frame);
+    return !env->ExceptionCheck();
 }
 
-static int encode_global_nal_header() {
+static bool encode_global_nal_header(JNIEnv *env, jobject thiz, jobject es, int64_t pts) {
     int nnal;
     x264_nal_t *nals;
 
     x264_ctx.global_nal_header = false;
-    x264_encoder_headers(x264_ctx.encoder, &nals, &nnal);
-    return encode_nals(nals, nnal);
+    if (x264_encoder_headers(x264_ctx.encoder, &nals, &nnal) < 0) {
+        LIBENC_LOGE("Fail to get x264 headers");
+        return false;
+    }
+    return deliver_nals(env, thiz, es, nals, nnal, pts, false);
 }
 
-static int x264_encode(struct YuvFrame *i420_frame, int64_t pts) {
-    int out_len, nnal;
-    x264_nal_t *nal;
+// Encodes the I420 frame in the direct buffer and delivers the frame output by x264 if any,
+// which is an earlier one with frame threads. The frame is copied by x264, so the buffer can
+// be reused at once.
+static jint libenc_I420SoftEncode(JNIEnv *env, jobject thiz, jobject frame, jlong pts,
+                                  jobject es) {
+    int width = x264_ctx.params.i_width;
+    int height = x264_ctx.params.i_height;
+    int y_size = width * height;
+    uint8_t *i420 = (uint8_t *) env->GetDirectBufferAddress(frame);
+    if (x264_ctx.encoder == NULL || i420 == NULL ||
+        env->GetDirectBufferCapacity(frame) < y_size * 3 / 2) {
+        LIBENC_LOGE("Soft encoder not opened or frame buffer smaller than %d bytes", y_size * 3 / 2);
+        return JNI_ERR;
+    }
+
+    if (x264_ctx.global_nal_header && !encode_global_nal_header(env, thiz, es, pts)) {
+        return JNI_ERR;
+    }
+
+    int nnal;
+    x264_nal_t *nals;
     x264_picture_t pic_out;
-    int y_size = i420_frame->width * i420_frame->height;
 
     x264_ctx.picture.img.i_csp = X264_CSP_I420;
     x264_ctx.picture.img.i_plane = 3;
-    x264_ctx.picture.img.plane[0] = i420_frame->y;
-    x264_ctx.picture.img.i_stride[0] = i420_frame->width;
-    x264_ctx.picture.img.plane[1] = i420_frame->u;
-    x264_ctx.picture.img.i_stride[1] = i420_frame->width / 2;
-    x264_ctx.picture.img.plane[2] = i420_frame->v;
-    x264_ctx.picture.img.i_stride[2] = i420_frame->width / 2;
+    x264_ctx.picture.img.plane[0] = i420;
+    x264_ctx.picture.img.i_stride[0] = width;
+    x264_ctx.picture.img.plane[1] = i420 + y_size;
+    x264_ctx.picture.img.i_stride[1] = width / 2;
+    x264_ctx.picture.img.plane[2] = i420 + y_size * 5 / 4;
+    x264_ctx.picture.img.i_stride[2] = width / 2;
     x264_ctx.picture.i_pts = pts;
     x264_ctx.picture.i_type = X264_TYPE_AUTO;
 
-    if (x264_encoder_encode(x264_ctx.encoder, &nal, &nnal, &x264_ctx.picture, &pic_out) < 0) {
+    if (x264_encoder_encode(x264_ctx.encoder, &nals, &nnal, &x264_ctx.picture, &pic_out) < 0) {
         LIBENC_LOGE("Fail to encode in x264");
-        return -1;
+        return JNI_ERR;
     }
 
     x264_ctx.pts = pic_out.i_pts;
     x264_ctx.dts = pic_out.i_dts;
     x264_ctx.is_key_frame = pic_out.i_type == X264_TYPE_IDR;
 
-    return encode_nals(nal, nnal);
-}
-
-static jint libenc_RGBASoftEncode(JNIEnv *env, jobject thiz, jbyteArray frame, jint src_width,
-                                  jint src_height, jboolean need_flip, jint rotate_degree,
-                                  jlong pts) {
-    jbyte *rgba_frame = env->GetByteArrayElements(frame, NULL);
-
-    if (!convert_to_i420((uint8_t *) rgba_frame, src_width, src_height, need_flip, rotate_degree,
-                         FOURCC_RGBA)) {
-        return JNI_ERR;
-    }
-
-    int es_len = x264_ctx.global_nal_header ? encode_global_nal_header() : x264_encode(
-            &i420_scaled_frame, pts);
-    if (es_len <= 0) {
-        LIBENC_LOGE("Fail to encode nalu");
+    if (!deliver_nals(env, thiz, es, nals, nnal, x264_ctx.pts, x264_ctx.is_key_frame)) {
         return JNI_ERR;
     }
-
-    jbyteArray outputFrame = env->NewByteArray(es_len);
-    env->SetByteArrayRegion(outputFrame, 0, es_len, (jbyte *) h264_es);
-
-    jclass clz = env->GetObjectClass(thiz);
-    jmethodID mid = env->GetMethodID(clz, "onSoftEncodedData", "([BJZ)V");
-    env->CallVoidMethod(thiz, mid, outputFrame, x264_ctx.pts, x264_ctx.is_key_frame);
-
-    env->ReleaseByteArrayElements(frame, rgba_frame, JNI_ABORT);
     return JNI_OK;
 }
 
@@ -513,13 +605,24 @@ static void libenc_closeSoftEncoder(JNIEnv *env, jobject thiz) {
 
 static jboolean libenc_openSoftEncoder(JNIEnv *env, jobject thiz) {
     // presetting
-    x264_param_default_preset(&x264_ctx.params, x264_ctx.preset, "zerolatency");
+    x264_param_default_preset(&x264_ctx.params, x264_ctx.preset,
+                              x264_ctx.zero_latency ? "zerolatency" : NULL);
 
     x264_ctx.params.b_repeat_headers = 0;
-    // for iOS HW decoding
-    x264_ctx.params.b_sliced_threads = 0;
     x264_ctx.global_nal_header = true;
 
+    // threading, the sliced threads add no latency but split each frame in slices, which some
+    // decoders like the iOS HW one play badly, the frame threads delay the output by a frame
+    // per thread.
+    x264_ctx.params.i_threads = x264_ctx.threads;
+    x264_ctx.params.b_sliced_threads = x264_ctx.sliced_threads;
+    if (x264_ctx.sync_lookahead >= 0) {
+        x264_ctx.params.i_sync_lookahead = x264_ctx.sync_lookahead;
+    }
+    if (x264_ctx.rc_lookahead >= 0) {
+        x264_ctx.params.rc.i_lookahead = x264_ctx.rc_lookahead;
+    }
+
     // resolution
     x264_ctx.params.i_width = x264_ctx.width;
     x264_ctx.params.i_height = x264_ctx.height;
@@ -527,6 +630,11 @@ static jboolean libenc_openSoftEncoder(JNIEnv *env, jobject thiz) {
     // bitrate
     x264_ctx.params.rc.i_bitrate = x264_ctx.bitrate;  // kbps
     x264_ctx.params.rc.i_rc_method = X264_RC_ABR;
+    if (x264_ctx.vbv_maxrate > 0) {
+        x264_ctx.params.rc.i_vbv_max_bitrate = x264_ctx.vbv_maxrate;
+        x264_ctx.params.rc.i_vbv_buffer_size = x264_ctx.vbv_bufsize > 0 ?
+                                               x264_ctx.vbv_bufsize : x264_ctx.vbv_maxrate;
+    }
 
     // fps
     x264_ctx.params.i_fps_num = x264_ctx.fps;
@@ -546,6 +654,13 @@ static jboolean libenc_openSoftEncoder(JNIEnv *env, jobject thiz) {
         return JNI_FALSE;
     }
 
+    // the parameters actually used, the auto threads resolved.
+    x264_encoder_parameters(x264_ctx.encoder, &x264_ctx.params);
+    LIBENC_LOGI("x264 opened, threads=%d sliced=%d sync-lookahead=%d rc-lookahead=%d vbv=%d/%d",
+                x264_ctx.params.i_threads, x264_ctx.params.b_sliced_threads,
+                x264_ctx.params.i_sync_lookahead, x264_ctx.params.rc.i_lookahead,
+                x264_ctx.params.rc.i_vbv_max_bitrate, x264_ctx.params.rc.i_vbv_buffer_size);
+
     return JNI_TRUE;
 }
 
@@ -555,6 +670,10 @@ static JNINativeMethod libenc_methods[] = {
         {"setEncoderGop",        "(I)V",                  (void *) libenc_setEncoderGop},
         {"setEncoderBitrate",    "(I)V",                  (void *) libenc_setEncoderBitrate},
         {"setEncoderPreset",     "(Ljava/lang/String;)V", (void *) libenc_setEncoderPreset},
+        {"setEncoderThreads",    "(IZ)V",                 (void *) libenc_setEncoderThreads},
+        {"setEncoderLookahead",  "(II)V",                 (void *) libenc_setEncoderLookahead},
+        {"setEncoderVbv",        "(II)V",                 (void *) libenc_setEncoderVbv},
+        {"setEncoderZeroLatency", "(Z)V",                 (void *) libenc_setEncoderZeroLatency},
         {"RGBAToI420",           "([BIIZI)[B",            (void *) libenc_RGBAToI420},
         {"RGBAToNV12",           "([BIIZI)[B",            (void *) libenc_RGBAToNV12},
         {"ARGBToI420Scaled",     "([IIIZIIIII)[B",        (void *) libenc_ARGBToI420Scaled},
@@ -563,9 +682,17 @@ static JNINativeMethod libenc_methods[] = {
         {"ARGBToNV12",           "([IIIZI)[B",            (void *) libenc_ARGBToNV12},
         {"NV21ToNV12Scaled",     "([BIIZIIIII)[B",        (void *) libenc_NV21ToNV12Scaled},
         {"NV21ToI420Scaled",     "([BIIZIIIII)[B",        (void *) libenc_NV21ToI420Scaled},
+        {"RGBAToI420",           "([BIIZILjava/nio/ByteBuffer;)I",       (void *) libenc_RGBAToI420Buffer},
+        {"RGBAToNV12",           "([BIIZILjava/nio/ByteBuffer;)I",       (void *) libenc_RGBAToNV12Buffer},
+        {"ARGBToI420Scaled",     "([IIIZIIIIILjava/nio/ByteBuffer;)I",   (void *) libenc_ARGBToI420ScaledBuffer},
+        {"ARGBToNV12Scaled",     "([IIIZIIIIILjava/nio/ByteBuffer;)I",   (void *) libenc_ARGBToNV12ScaledBuffer},
+        {"ARGBToI420",           "([IIIZILjava/nio/ByteBuffer;)I",       (void *) libenc_ARGBToI420Buffer},
+        {"ARGBToNV12",           "([IIIZILjava/nio/ByteBuffer;)I",       (void *) libenc_ARGBToNV12Buffer},
+        {"NV21ToNV12Scaled",     "([BIIZIIIIILjava/nio/ByteBuffer;)I",   (void *) libenc_NV21ToNV12ScaledBuffer},
+        {"NV21ToI420Scaled",     "([BIIZIIIIILjava/nio/ByteBuffer;)I",   (void *) libenc_NV21ToI420ScaledBuffer},
         {"openSoftEncoder",      "()Z",                   (void *) libenc_openSoftEncoder},
         {"closeSoftEncoder",     "()V",                   (void *) libenc_closeSoftEncoder},
-        {"RGBASoftEncode",       "([BIIZIJ)I",            (void *) libenc_RGBASoftEncode},
+        {"I420SoftEncode",       "(Ljava/nio/ByteBuffer;JLjava/nio/ByteBuffer;)I", (void *) libenc_I420SoftEncode},
 };
 
 jint JNI_OnLoad(JavaVM *vm, void *reserved) {
@@ -587,5 +714,16 @@ jint JNI_OnLoad(JavaVM *vm, void *reserved) {
         return JNI_ERR;
     }
 
+    on_soft_encoded_data = jenv->GetMethodID(clz, "onSoftEncodedData", "(Ljava/nio/ByteBuffer;IJZ)V");
+    if (on_soft_encoded_data == NULL) {
+        LIBENC_LOGE("onSoftEncodedData not found");
+        return JNI_ERR;
+    }
+
+    x264_ctx.threads = X264_THREADS_AUTO;
+    x264_ctx.sync_lookahead = -1;
+    x264_ctx.rc_lookahead = -1;
+    x264_ctx.zero_latency = true;
+
     return JNI_VERSION_1_6;
 }
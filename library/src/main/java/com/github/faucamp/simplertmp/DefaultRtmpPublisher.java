@@ -14,7 +14,15 @@ public class DefaultRtmpPublisher implements RtmpPublisher {
     private RtmpConnection rtmpConnection;
 
     public DefaultRtmpPublisher(RtmpHandler handler) {
-        rtmpConnection = new RtmpConnection(handler);
+        this(handler, false);
+    }
+
+    /**
+     * @param nonBlocking true for the selector driven non-blocking transport, false for the
+     *                    blocking socket.
+     */
+    public DefaultRtmpPublisher(RtmpHandler handler, boolean nonBlocking) {
+        rtmpConnection = new RtmpConnection(handler, nonBlocking);
     }
 
     @Override
@@ -42,6 +50,46 @@ public class DefaultRtmpPublisher implements RtmpPublisher {
         rtmpConnection.publishAudioData(data, size, dts);
     }
 
+    @Override
+    public void flush() {
+        rtmpConnection.flush();
+    }
+
+    @Override
+    public void setWriteBatching(int maxLatencyMs, int maxBytes) {
+        rtmpConnection.setWriteBatching(maxLatencyMs, maxBytes);
+    }
+
+    @Override
+    public double getPacketsPerFlush() {
+        return rtmpConnection.getPacketsPerFlush();
+    }
+
+    @Override
+    public double getFlushRate() {
+        return rtmpConnection.getFlushRate();
+    }
+
+    @Override
+    public double getVideoBitrate() {
+        return rtmpConnection.getVideoBitrate();
+    }
+
+    @Override
+    public long getWriteBlockingNanos() {
+        return rtmpConnection.getWriteBlockingNanos();
+    }
+
+    @Override
+    public boolean awaitWritable(long timeoutMs) {
+        return rtmpConnection.awaitWritable(timeoutMs);
+    }
+
+    @Override
+    public boolean isConnectionLost() {
+        return rtmpConnection.isConnectionLost();
+    }
+
     @Override
     public AtomicInteger getVideoFrameCacheNumber() {
         return rtmpConnection.getVideoFrameCacheNumber();
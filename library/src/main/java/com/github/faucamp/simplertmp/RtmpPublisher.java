@@ -51,6 +51,57 @@ public interface RtmpPublisher {
      */
     void publishAudioData(byte[] data, int size, int dts);
 
+    /**
+     * write out the AV packets which are still waiting in the write batch
+     */
+    void flush();
+
+    /**
+     * set the write batching policy for AV packets. A packet may wait for later packets
+     * until the batch is older than maxLatencyMs or bigger than maxBytes, or until
+     * {@link #flush()} is called. A latency of 0 writes every packet immediately.
+     *
+     * @param maxLatencyMs the longest time a packet may wait in the batch, in ms
+     * @param maxBytes the batch size which forces a write, 0 for no limit
+     */
+    void setWriteBatching(int maxLatencyMs, int maxBytes);
+
+    /**
+     * obtain the average number of AV packets written per flush
+     */
+    double getPacketsPerFlush();
+
+    /**
+     * obtain the number of socket write calls per second over the last 48 video frames
+     */
+    double getFlushRate();
+
+    /**
+     * obtain the video bitrate sent over the last 48 frames, in bps
+     */
+    double getVideoBitrate();
+
+    /**
+     * obtain the total time spent in socket writes for AV packets, in ns. It never blocks,
+     * even while a write is in progress.
+     */
+    long getWriteBlockingNanos();
+
+    /**
+     * wait until the connection can take more AV packets without growing its send queue.
+     * A blocking connection is always writable, its writes block instead.
+     *
+     * @param timeoutMs the longest time to wait, in ms
+     * @return false if the timeout elapsed first
+     */
+    boolean awaitWritable(long timeoutMs);
+
+    /**
+     * check whether the socket failed after the connection was established, the publisher
+     * must then be closed and connected again.
+     */
+    boolean isConnectionLost();
+
     /**
      * obtain video frame number cached in publisher
      */
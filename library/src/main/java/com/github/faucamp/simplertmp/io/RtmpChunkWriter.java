@@ -0,0 +1,160 @@
+package com.github.faucamp.simplertmp.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import com.github.faucamp.simplertmp.packets.ContentData;
+import com.github.faucamp.simplertmp.packets.RtmpHeader;
+
+/**
+ * Chunked writer for the RTMP packets.
+ *
+ * The type 0 header, the type 3 continuation headers and the payload slices of a packet
+ * are laid out in one reusable direct buffer and handed to the channel in a single write.
+ * Heap payloads would be copied into a temporary direct buffer by the channel anyway, so
+ * this is the only copy of the payload, and nothing is allocated once the buffer has grown
+ * to the size of the largest packet.
+ *
+ * Several packets may be appended before a {@link #flush()}, so that small audio packets
+ * share a TCP segment with the frames around them.
+ *
+ * All packets, including the commands, go through the channel, never through the stream of
+ * the socket, whose reads and writes are serialized by the same lock in a blocked read.
+ *
+ * @author leoma
+ */
+public class RtmpChunkWriter {
+
+    // Basic header (1) + message header (11) + extended timestamp (4)
+    private static final int MAX_TYPE_0_HEADER_SIZE = 16;
+    // Basic header (1) + extended timestamp (4)
+    private static final int MAX_TYPE_3_HEADER_SIZE = 5;
+
+    private final WritableByteChannel channel;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+    private int pendingPackets;
+    private long pendingSinceNanos;
+    private long bytesWritten;
+    private long flushCount;
+    private long flushedPackets;
+    private long writeCount;
+    // Read by other threads without the connection lock.
+    private volatile long writeNanos;
+    private volatile long writeStartNanos;
+
+    public RtmpChunkWriter(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    /** @return the total number of bytes written to the channel by this writer */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /** @return the number of flushes that actually wrote something */
+    public long getFlushCount() {
+        return flushCount;
+    }
+
+    /** @return the number of packets written by all flushes */
+    public long getFlushedPackets() {
+        return flushedPackets;
+    }
+
+    /** @return the number of write calls issued to the channel */
+    public long getWriteCount() {
+        return writeCount;
+    }
+
+    /** @return the total time spent in channel writes, including the write in progress */
+    public long getWriteBlockingNanos() {
+        long start = writeStartNanos;
+        return writeNanos + (start != 0 ? System.nanoTime() - start : 0);
+    }
+
+    /** @return the number of bytes appended but not flushed yet */
+    public int getPendingBytes() {
+        return buffer.position();
+    }
+
+    /** @return the time in nanoseconds of the oldest packet not flushed yet */
+    public long getPendingSinceNanos() {
+        return pendingSinceNanos;
+    }
+
+    public boolean hasPending() {
+        return pendingPackets > 0;
+    }
+
+    public void write(ContentData packet, final int chunkSize, final ChunkStreamInfo chunkStreamInfo) throws IOException {
+        append(packet, chunkSize, chunkStreamInfo);
+        flush();
+    }
+
+    /**
+     * Lays out the chunks of the packet after the ones already pending, without writing them.
+     */
+    public void append(ContentData packet, final int chunkSize, final ChunkStreamInfo chunkStreamInfo) throws IOException {
+        append(packet.getHeader(), packet.getData(), packet.size(), chunkSize, chunkStreamInfo);
+    }
+
+    /**
+     * Lays out the chunks of an encoded packet body after the ones already pending, without
+     * writing them.
+     */
+    public void append(RtmpHeader header, byte[] body, int length, final int chunkSize, final ChunkStreamInfo chunkStreamInfo) throws IOException {
+        header.setPacketLength(length);
+
+        int chunks = length == 0 ? 1 : (length + chunkSize - 1) / chunkSize;
+        int capacity = MAX_TYPE_0_HEADER_SIZE + (chunks - 1) * MAX_TYPE_3_HEADER_SIZE + length;
+        if (buffer.remaining() < capacity) {
+            flush();
+            if (buffer.capacity() < capacity) {
+                buffer = ByteBuffer.allocateDirect(Math.max(capacity, buffer.capacity() * 2));
+            }
+        }
+
+        if (pendingPackets++ == 0) {
+            pendingSinceNanos = System.nanoTime();
+        }
+        // Write header for first chunk
+        header.writeTo(buffer, RtmpHeader.ChunkType.TYPE_0_FULL, chunkStreamInfo);
+        int pos = 0;
+        while (length > chunkSize) {
+            // Write packet for chunk
+            buffer.put(body, pos, chunkSize);
+            length -= chunkSize;
+            pos += chunkSize;
+            // Write header for remain chunk
+            header.writeTo(buffer, RtmpHeader.ChunkType.TYPE_3_RELATIVE_SINGLE_BYTE, chunkStreamInfo);
+        }
+        buffer.put(body, pos, length);
+    }
+
+    /**
+     * Writes all pending packets to the channel.
+     */
+    public void flush() throws IOException {
+        if (pendingPackets == 0) {
+            return;
+        }
+
+        buffer.flip();
+        long start = System.nanoTime();
+        writeStartNanos = start;
+        try {
+            while (buffer.hasRemaining()) {
+                bytesWritten += channel.write(buffer);
+                writeCount++;
+            }
+            flushCount++;
+            flushedPackets += pendingPackets;
+        } finally {
+            writeNanos += System.nanoTime() - start;
+            writeStartNanos = 0;
+            buffer.clear();
+            pendingPackets = 0;
+        }
+    }
+}
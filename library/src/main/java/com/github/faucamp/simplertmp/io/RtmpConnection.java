@@ -12,6 +12,7 @@ import com.github.faucamp.simplertmp.amf.AmfString;
 import com.github.faucamp.simplertmp.packets.Abort;
 import com.github.faucamp.simplertmp.packets.Audio;
 import com.github.faucamp.simplertmp.packets.Command;
+import com.github.faucamp.simplertmp.packets.ContentData;
 import com.github.faucamp.simplertmp.packets.Data;
 import com.github.faucamp.simplertmp.packets.Handshake;
 import com.github.faucamp.simplertmp.packets.RtmpPacket;
@@ -30,6 +31,7 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketException;
+import java.nio.channels.SocketChannel;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -61,12 +63,17 @@ public class RtmpConnection implements RtmpPublisher {
     private RtmpSessionInfo rtmpSessionInfo;
     private RtmpDecoder rtmpDecoder;
     private BufferedInputStream inputStream;
-    private BufferedOutputStream outputStream;
+    private volatile RtmpChunkWriter chunkWriter;
+    private final boolean nonBlocking;
+    private volatile RtmpNioTransport nioTransport;
     private Thread rxPacketHandler;
     private volatile boolean connected = false;
     private volatile boolean publishPermitted = false;
+    // Set when the socket failed, until the connection is closed.
+    private volatile boolean connectionLost = false;
     private final Object connectingLock = new Object();
     private final Object publishLock = new Object();
+    private final Object txLock = new Object();
     private AtomicInteger videoFrameCacheNumber = new AtomicInteger(0);
     private int currentStreamId = 0;
     private int transactionIdCounter = 0;
@@ -81,9 +88,23 @@ public class RtmpConnection implements RtmpPublisher {
     private int audioDataLength;
     private long videoLastTimeMillis;
     private long audioLastTimeMillis;
+    private volatile int writeBatchLatencyMs = 0;
+    private volatile int writeBatchBytes = 0;
+    private long videoLastWriteCount;
+    private volatile double videoBitrate;
+    private volatile double flushRate;
 
     public RtmpConnection(RtmpHandler handler) {
+        this(handler, false);
+    }
+
+    /**
+     * @param nonBlocking true to write through a selector driven non-blocking socket, the
+     *                    writes then never block the publishing thread.
+     */
+    public RtmpConnection(RtmpHandler handler, boolean nonBlocking) {
         mHandler = handler;
+        this.nonBlocking = nonBlocking;
     }
 
     private void handshake(InputStream in, OutputStream out) throws IOException {
@@ -127,17 +148,45 @@ public class RtmpConnection implements RtmpPublisher {
         Log.d(TAG, "connect() called. Host: " + host + ", port: " + port + ", appName: " + appName + ", publishPath: " + streamName);
         rtmpSessionInfo = new RtmpSessionInfo();
         rtmpDecoder = new RtmpDecoder(rtmpSessionInfo);
-        socket = new Socket();
         SocketAddress socketAddress = new InetSocketAddress(host, port);
+        OutputStream handshakeOut;
         try {
-            socket.connect(socketAddress, 3000);
-            inputStream = new BufferedInputStream(socket.getInputStream());
-            outputStream = new BufferedOutputStream(socket.getOutputStream());
+            if (nonBlocking) {
+                RtmpNioTransport transport = new RtmpNioTransport();
+                nioTransport = transport;
+                socket = transport.socket();
+                transport.connect(socketAddress, 3000);
+                inputStream = new BufferedInputStream(transport.getInputStream());
+                handshakeOut = transport.getOutputStream();
+                chunkWriter = new RtmpChunkWriter(transport.getWritableChannel());
+            } else {
+                // Open the socket through a channel so that AV packets can be written with gathering writes.
+                SocketChannel socketChannel = SocketChannel.open();
+                socket = socketChannel.socket();
+                socket.connect(socketAddress, 3000);
+                inputStream = new BufferedInputStream(socket.getInputStream());
+                // Only the handshake is written to the stream, before the rx loop starts to read.
+                handshakeOut = socket.getOutputStream();
+                chunkWriter = new RtmpChunkWriter(socketChannel);
+            }
             Log.d(TAG, "connect(): socket connection established, doing handhake...");
-            handshake(inputStream, outputStream);
+            handshake(inputStream, new BufferedOutputStream(handshakeOut));
             Log.d(TAG, "connect(): handshake done");
         } catch (IOException e) {
             e.printStackTrace();
+            if (nioTransport != null) {
+                nioTransport.close();
+                nioTransport = null;
+            }
+            if (socket != null) {
+                // Don't leak the socket when connecting again.
+                try {
+                    socket.close();
+                } catch (IOException ex) {
+                    Log.e(TAG, "connect(): failed to close socket", ex);
+                }
+                socket = null;
+            }
             mHandler.notifyRtmpIOException(e);
             return false;
         }
@@ -342,13 +391,26 @@ public class RtmpConnection implements RtmpPublisher {
 
     private void shutdown() {
         if (socket != null) {
-            try {
-                // It will raise EOFException in handleRxPacketThread
-                socket.shutdownInput();
-                // It will raise SocketException in sendRtmpPacket
-                socket.shutdownOutput();
-            } catch (IOException ioe) {
-                ioe.printStackTrace();
+            // A failed or closed channel has nothing left to shut down.
+            SocketChannel channel = socket.getChannel();
+            if (!socket.isClosed() && (channel == null || channel.isOpen())) {
+                try {
+                    // It will raise EOFException in handleRxPacketThread
+                    if (!socket.isInputShutdown()) {
+                        socket.shutdownInput();
+                    }
+                    // It will raise SocketException in sendRtmpPacket
+                    if (!socket.isOutputShutdown()) {
+                        socket.shutdownOutput();
+                    }
+                } catch (IOException ioe) {
+                    ioe.printStackTrace();
+                }
+            }
+
+            // Stop the selector thread, the rx stream then reaches its end.
+            if (nioTransport != null) {
+                nioTransport.close();
             }
 
             // shutdown rxPacketHandler
@@ -379,6 +441,7 @@ public class RtmpConnection implements RtmpPublisher {
     private void reset() {
         connected = false;
         publishPermitted = false;
+        connectionLost = false;
         tcUrl = null;
         swfUrl = null;
         pageUrl = null;
@@ -387,12 +450,12 @@ public class RtmpConnection implements RtmpPublisher {
         publishType = null;
         currentStreamId = 0;
         transactionIdCounter = 0;
-        videoFrameCacheNumber.set(0);
         socketExceptionCause = "";
         serverIpAddr = null;
         serverPid = null;
         serverId = null;
         socket = null;
+        nioTransport = null;
         rtmpSessionInfo = null;
         rtmpDecoder = null;
     }
@@ -426,6 +489,8 @@ public class RtmpConnection implements RtmpPublisher {
 
     @Override
     public void publishVideoData(byte[] data, int size, int dts) {
+        // The frame leaves the cache whether it can be sent or not.
+        videoFrameCacheNumber.decrementAndGet();
         if (data == null || data.length == 0 || dts < 0) {
             mHandler.notifyRtmpIllegalArgumentException(new IllegalArgumentException("Invalid Video Data"));
             return;
@@ -447,7 +512,6 @@ public class RtmpConnection implements RtmpPublisher {
         video.getHeader().setAbsoluteTimestamp(dts);
         video.getHeader().setMessageStreamId(currentStreamId);
         sendRtmpPacket(video);
-        videoFrameCacheNumber.decrementAndGet();
         calcVideoFpsAndBitrate(video.getHeader().getPacketLength());
         mHandler.notifyRtmpVideoStreaming();
     }
@@ -456,18 +520,31 @@ public class RtmpConnection implements RtmpPublisher {
         videoDataLength += length;
         if (videoFrameCount == 0) {
             videoLastTimeMillis = System.nanoTime() / 1000000;
+            videoLastWriteCount = getWriteCount();
             videoFrameCount++;
         } else {
             if (++videoFrameCount >= 48) {
                 long diffTimeMillis = System.nanoTime() / 1000000 - videoLastTimeMillis;
+                videoBitrate = (double) videoDataLength * 8 * 1000 / diffTimeMillis;
+                long writeCount = getWriteCount();
+                // The count restarts with the writer of a new connection.
+                if (writeCount >= videoLastWriteCount) {
+                    flushRate = (double) (writeCount - videoLastWriteCount) * 1000 / diffTimeMillis;
+                }
                 mHandler.notifyRtmpVideoFpsChanged((double) videoFrameCount * 1000 / diffTimeMillis);
-                mHandler.notifyRtmpVideoBitrateChanged((double) videoDataLength * 8 * 1000 / diffTimeMillis);
+                mHandler.notifyRtmpVideoBitrateChanged(videoBitrate);
                 videoFrameCount = 0;
                 videoDataLength = 0;
             }
         }
     }
 
+    private long getWriteCount() {
+        synchronized (txLock) {
+            return chunkWriter == null ? 0 : chunkWriter.getWriteCount();
+        }
+    }
+
     private void calcAudioBitrate(int length) {
         audioDataLength += length;
         if (audioFrameCount == 0) {
@@ -484,19 +561,51 @@ public class RtmpConnection implements RtmpPublisher {
     }
 
     private void sendRtmpPacket(RtmpPacket rtmpPacket) {
+        // Packets are sent from both the publishing thread and rxPacketHandler, their chunks must not interleave.
+        synchronized (txLock) {
+            sendRtmpPacketLocked(rtmpPacket);
+        }
+    }
+
+    private void sendRtmpPacketLocked(RtmpPacket rtmpPacket) {
         try {
             ChunkStreamInfo chunkStreamInfo = rtmpSessionInfo.getChunkStreamInfo(rtmpPacket.getHeader().getChunkStreamId());
             chunkStreamInfo.setPrevHeaderTx(rtmpPacket.getHeader());
             if (!(rtmpPacket instanceof Video || rtmpPacket instanceof Audio)) {
                 rtmpPacket.getHeader().setAbsoluteTimestamp((int) chunkStreamInfo.markAbsoluteTimestampTx());
             }
-            rtmpPacket.writeTo(outputStream, rtmpSessionInfo.getTxChunkSize(), chunkStreamInfo);
+            // The commands go behind the AV chunks which are still pending, and are written to
+            // the channel as well: the socket stream would wait for the blocked read of the rx loop.
+            rtmpPacket.writeTo(chunkWriter, rtmpSessionInfo.getTxChunkSize(), chunkStreamInfo);
+            if (!(rtmpPacket instanceof ContentData) || !isWriteBatchPending()) {
+                chunkWriter.flush();
+            }
 //            Log.d(TAG, "wrote packet: " + rtmpPacket + ", size: " + rtmpPacket.getHeader().getPacketLength());
             if (rtmpPacket instanceof Command) {
                 rtmpSessionInfo.addInvokedCommand(((Command) rtmpPacket).getTransactionId(), ((Command) rtmpPacket).getCommandName());
             }
-            outputStream.flush();
-        } catch (SocketException se) {
+        } catch (IOException ioe) {
+            onTxException(ioe);
+        }
+    }
+
+    /** @return true if the AV chunks appended so far may wait for the next flush */
+    private boolean isWriteBatchPending() {
+        int latencyMs = writeBatchLatencyMs;
+        if (latencyMs <= 0) {
+            return false;
+        }
+        int maxBytes = writeBatchBytes;
+        if (maxBytes > 0 && chunkWriter.getPendingBytes() >= maxBytes) {
+            return false;
+        }
+        return System.nanoTime() - chunkWriter.getPendingSinceNanos() < latencyMs * 1000000L;
+    }
+
+    private void onTxException(IOException ioe) {
+        connectionLost = true;
+        if (ioe instanceof SocketException) {
+            SocketException se = (SocketException) ioe;
             // Since there are still remaining AV frame in the cache, we set a flag to guarantee the
             // socket exception only issue one time.
             if (!socketExceptionCause.contentEquals(se.getMessage())) {
@@ -504,12 +613,75 @@ public class RtmpConnection implements RtmpPublisher {
                 Log.e(TAG, "Caught SocketException during write loop, shutting down: " + se.getMessage());
                 mHandler.notifyRtmpSocketException(se);
             }
-        } catch (IOException ioe) {
+        } else {
             Log.e(TAG, "Caught IOException during write loop, shutting down: " + ioe.getMessage());
             mHandler.notifyRtmpIOException(ioe);
         }
     }
 
+    @Override
+    public void flush() {
+        synchronized (txLock) {
+            if (chunkWriter == null) {
+                return;
+            }
+            try {
+                chunkWriter.flush();
+            } catch (IOException ioe) {
+                onTxException(ioe);
+            }
+        }
+    }
+
+    @Override
+    public void setWriteBatching(int maxLatencyMs, int maxBytes) {
+        writeBatchLatencyMs = maxLatencyMs;
+        writeBatchBytes = maxBytes;
+    }
+
+    @Override
+    public double getPacketsPerFlush() {
+        synchronized (txLock) {
+            if (chunkWriter == null || chunkWriter.getFlushCount() == 0) {
+                return 0;
+            }
+            return (double) chunkWriter.getFlushedPackets() / chunkWriter.getFlushCount();
+        }
+    }
+
+    @Override
+    public double getFlushRate() {
+        return flushRate;
+    }
+
+    @Override
+    public double getVideoBitrate() {
+        return videoBitrate;
+    }
+
+    @Override
+    public long getWriteBlockingNanos() {
+        // Without txLock, the caller must not wait for a blocked write.
+        RtmpNioTransport transport = nioTransport;
+        if (transport != null) {
+            return transport.getWriteBlockingNanos();
+        }
+        RtmpChunkWriter writer = chunkWriter;
+        return writer == null ? 0 : writer.getWriteBlockingNanos();
+    }
+
+    @Override
+    public boolean isConnectionLost() {
+        return connectionLost;
+    }
+
+    @Override
+    public boolean awaitWritable(long timeoutMs) {
+        // The blocking socket takes the packets in the write itself.
+        RtmpNioTransport transport = nioTransport;
+        return transport == null || transport.awaitWritable(timeoutMs);
+    }
+
     private void handleRxPacketLoop() throws IOException {
         // Handle all queued received RTMP packets
         while (!Thread.interrupted()) {
@@ -569,12 +741,17 @@ public class RtmpConnection implements RtmpPublisher {
                     }
                 }
             } catch (EOFException eof) {
+                connectionLost = true;
                 Thread.currentThread().interrupt();
             } catch (SocketException se) {
                 Log.e(TAG, "Caught SocketException while reading/decoding packet, shutting down: " + se.getMessage());
+                connectionLost = true;
+                Thread.currentThread().interrupt();
                 mHandler.notifyRtmpSocketException(se);
             } catch (IOException ioe) {
                 Log.e(TAG, "Caught exception while reading/decoding packet, shutting down: " + ioe.getMessage());
+                connectionLost = true;
+                Thread.currentThread().interrupt();
                 mHandler.notifyRtmpIOException(ioe);
             }
         }
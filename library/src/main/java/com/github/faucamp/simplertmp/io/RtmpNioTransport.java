@@ -0,0 +1,412 @@
+package com.github.faucamp.simplertmp.io;
+
+import android.util.Log;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+
+/**
+ * Non-blocking socket transport driven by a selector thread.
+ *
+ * Writes never block the caller: the bytes the socket does not take right away are queued
+ * and drained by the selector thread when the socket becomes writable. If the queue makes no
+ * progress for longer than the write timeout, the connection fails with a
+ * {@link SocketTimeoutException}. Received bytes are buffered by the selector thread and read
+ * through a blocking {@link InputStream}, for the RTMP decoder.
+ *
+ * @author leoma
+ */
+public class RtmpNioTransport {
+
+    private static final String TAG = "RtmpNioTransport";
+
+    private static final int TX_BUFFER_SIZE = 32 * 1024;
+    private static final int RX_BUFFER_SIZE = 64 * 1024;
+    // The queue size under which the transport takes more AV packets.
+    private static final int TX_HIGH_WATERMARK = 128 * 1024;
+    // The longest time the selector sleeps, the write deadline is checked as often.
+    private static final int SELECT_TIMEOUT_MS = 100;
+
+    private final SocketChannel channel;
+    private final Selector selector;
+    private Thread selectorThread;
+    private volatile boolean closed;
+    private volatile IOException failure;
+    private volatile int writeTimeoutMs = 10000;
+
+    // Guards the tx queue, it is held while writing to the non-blocking channel only.
+    private final Object txLock = new Object();
+    private final ArrayDeque<ByteBuffer> txQueue = new ArrayDeque<>();
+    private final ArrayDeque<ByteBuffer> txFreeBuffers = new ArrayDeque<>();
+    private volatile int txPendingBytes;
+    private volatile long txPendingSinceNanos;
+    private volatile long txBlockedNanos;
+    private long txProgressNanos;
+
+    // Guards the rx ring.
+    private final Object rxLock = new Object();
+    private final byte[] rxRing = new byte[RX_BUFFER_SIZE];
+    private int rxHead;
+    private int rxCount;
+    private boolean rxEof;
+    private final ByteBuffer rxBuffer = ByteBuffer.allocateDirect(16 * 1024);
+
+    private final InputStream inputStream = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return rxRead(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            synchronized (rxLock) {
+                return rxCount;
+            }
+        }
+    };
+
+    private final OutputStream outputStream = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            txWrite(ByteBuffer.wrap(b, off, len));
+        }
+    };
+
+    private final WritableByteChannel writableChannel = new WritableByteChannel() {
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return txWrite(src);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !closed;
+        }
+
+        @Override
+        public void close() throws IOException {
+            RtmpNioTransport.this.close();
+        }
+    };
+
+    public RtmpNioTransport() throws IOException {
+        channel = SocketChannel.open();
+        selector = Selector.open();
+    }
+
+    /**
+     * Connects in blocking mode, then switches the channel to non-blocking mode and starts the
+     * selector thread.
+     */
+    public void connect(SocketAddress address, int timeoutMs) throws IOException {
+        channel.socket().connect(address, timeoutMs);
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ);
+        selectorThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                selectLoop();
+            }
+        }, TAG);
+        selectorThread.start();
+    }
+
+    public Socket socket() {
+        return channel.socket();
+    }
+
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    public WritableByteChannel getWritableChannel() {
+        return writableChannel;
+    }
+
+    /**
+     * Sets the longest time the queued bytes may wait for the socket to take any of them.
+     */
+    public void setWriteTimeout(int writeTimeoutMs) {
+        this.writeTimeoutMs = writeTimeoutMs;
+    }
+
+    /** @return the number of bytes waiting for the socket */
+    public int getPendingBytes() {
+        return txPendingBytes;
+    }
+
+    /** @return the total time bytes waited for the socket, including the current wait */
+    public long getWriteBlockingNanos() {
+        long since = txPendingSinceNanos;
+        return txBlockedNanos + (since != 0 ? System.nanoTime() - since : 0);
+    }
+
+    /**
+     * Waits until the queue is under its high watermark, or the transport failed.
+     * @return false if the timeout elapsed first.
+     */
+    public boolean awaitWritable(long timeoutMs) {
+        long deadline = System.nanoTime() + timeoutMs * 1000000L;
+        synchronized (txLock) {
+            while (txPendingBytes >= TX_HIGH_WATERMARK && failure == null && !closed) {
+                long waitMs = (deadline - System.nanoTime()) / 1000000;
+                if (waitMs <= 0) {
+                    return false;
+                }
+                try {
+                    txLock.wait(waitMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        selector.wakeup();
+        if (selectorThread != null && selectorThread != Thread.currentThread()) {
+            try {
+                selectorThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        closeChannel();
+    }
+
+    private void closeChannel() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close(): failed to close channel", e);
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close(): failed to close selector", e);
+        }
+        synchronized (rxLock) {
+            rxEof = true;
+            rxLock.notifyAll();
+        }
+        synchronized (txLock) {
+            txLock.notifyAll();
+        }
+    }
+
+    private void fail(IOException e) {
+        if (failure == null) {
+            failure = e;
+        }
+        closed = true;
+    }
+
+    private void checkWritable() throws IOException {
+        IOException e = failure;
+        if (e != null) {
+            throw e;
+        }
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    private int txWrite(ByteBuffer src) throws IOException {
+        int length = src.remaining();
+        boolean wakeup = false;
+        synchronized (txLock) {
+            checkWritable();
+            // Nothing queued, the socket may take it right away.
+            if (txQueue.isEmpty()) {
+                channel.write(src);
+                if (!src.hasRemaining()) {
+                    return length;
+                }
+                txPendingSinceNanos = System.nanoTime();
+                txProgressNanos = txPendingSinceNanos;
+                wakeup = true;
+            }
+
+            while (src.hasRemaining()) {
+                ByteBuffer tail = txQueue.peekLast();
+                if (tail == null || tail.limit() == tail.capacity()) {
+                    tail = txFreeBuffers.isEmpty() ? ByteBuffer.allocateDirect(TX_BUFFER_SIZE) : txFreeBuffers.poll();
+                    tail.position(0).limit(0);
+                    txQueue.add(tail);
+                }
+                // The buffer is read from position to limit, append after the limit.
+                int pos = tail.position();
+                int lim = tail.limit();
+                int n = Math.min(src.remaining(), tail.capacity() - lim);
+                int srcLimit = src.limit();
+                src.limit(src.position() + n);
+                tail.limit(lim + n).position(lim);
+                tail.put(src);
+                tail.position(pos);
+                src.limit(srcLimit);
+                txPendingBytes += n;
+            }
+        }
+        if (wakeup) {
+            // Let the selector thread wait for OP_WRITE.
+            selector.wakeup();
+        }
+        return length;
+    }
+
+    // Selector thread only, holding txLock.
+    private void txDrain() throws IOException {
+        ByteBuffer head;
+        while ((head = txQueue.peek()) != null) {
+            int n = channel.write(head);
+            if (n > 0) {
+                txPendingBytes -= n;
+                txProgressNanos = System.nanoTime();
+            }
+            if (head.hasRemaining()) {
+                break;
+            }
+            txFreeBuffers.add(txQueue.poll());
+        }
+
+        if (txQueue.isEmpty() && txPendingSinceNanos != 0) {
+            txBlockedNanos += System.nanoTime() - txPendingSinceNanos;
+            txPendingSinceNanos = 0;
+        }
+        if (txPendingBytes < TX_HIGH_WATERMARK) {
+            txLock.notifyAll();
+        }
+    }
+
+    private int rxRead(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        synchronized (rxLock) {
+            while (rxCount == 0) {
+                if (rxEof) {
+                    IOException e = failure;
+                    if (e != null) {
+                        throw e;
+                    }
+                    return -1;
+                }
+                try {
+                    rxLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new EOFException("interrupted");
+                }
+            }
+
+            boolean wasFull = rxCount == rxRing.length;
+            int n = Math.min(len, rxCount);
+            int first = Math.min(n, rxRing.length - rxHead);
+            System.arraycopy(rxRing, rxHead, b, off, first);
+            System.arraycopy(rxRing, 0, b, off + first, n - first);
+            rxHead = (rxHead + n) % rxRing.length;
+            rxCount -= n;
+            if (wasFull) {
+                // The selector thread stopped reading, let it resume.
+                selector.wakeup();
+            }
+            return n;
+        }
+    }
+
+    // Selector thread only.
+    private void rxFill() throws IOException {
+        rxBuffer.clear();
+        synchronized (rxLock) {
+            rxBuffer.limit(Math.min(rxBuffer.capacity(), rxRing.length - rxCount));
+        }
+        int n = channel.read(rxBuffer);
+        synchronized (rxLock) {
+            if (n < 0) {
+                rxEof = true;
+            } else if (n > 0) {
+                rxBuffer.flip();
+                int tail = (rxHead + rxCount) % rxRing.length;
+                int first = Math.min(n, rxRing.length - tail);
+                rxBuffer.get(rxRing, tail, first);
+                rxBuffer.get(rxRing, 0, n - first);
+                rxCount += n;
+            }
+            rxLock.notifyAll();
+        }
+    }
+
+    private void selectLoop() {
+        SelectionKey key = channel.keyFor(selector);
+        try {
+            while (!closed) {
+                int ops = 0;
+                synchronized (rxLock) {
+                    if (!rxEof && rxCount < rxRing.length) {
+                        ops |= SelectionKey.OP_READ;
+                    }
+                }
+                if (txPendingBytes > 0) {
+                    ops |= SelectionKey.OP_WRITE;
+                }
+                key.interestOps(ops);
+
+                int selected = selector.select(SELECT_TIMEOUT_MS);
+                selector.selectedKeys().clear();
+
+                if (selected > 0 && key.isReadable()) {
+                    rxFill();
+                }
+                synchronized (txLock) {
+                    if (!txQueue.isEmpty()) {
+                        txDrain();
+                    }
+                    if (!txQueue.isEmpty() && System.nanoTime() - txProgressNanos > writeTimeoutMs * 1000000L) {
+                        throw new SocketTimeoutException("No write progress in " + writeTimeoutMs + "ms");
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "selectLoop(): " + e.getMessage());
+            fail(e);
+        } catch (RuntimeException e) {
+            // CancelledKeyException and the like when the channel is closed underneath.
+            Log.e(TAG, "selectLoop(): " + e);
+            fail(new IOException(e.getMessage()));
+        }
+        closeChannel();
+    }
+}
@@ -7,7 +7,7 @@ package com.github.faucamp.simplertmp.packets;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -302,47 +302,54 @@ public class RtmpHeader {
         }
     }
 
-    public void writeTo(OutputStream out, ChunkType chunkType, final ChunkStreamInfo chunkStreamInfo) throws IOException {
+    /**
+     * Puts the chunk header into the given buffer, so that the chunks of a packet are laid out
+     * ahead of a single write to the socket.
+     */
+    public void writeTo(ByteBuffer out, ChunkType chunkType, final ChunkStreamInfo chunkStreamInfo) throws IOException {
         // Write basic header byte
-        out.write(((byte) (chunkType.getValue() << 6) | chunkStreamId));
+        out.put((byte) ((chunkType.getValue() << 6) | chunkStreamId));
         switch (chunkType) {
             case TYPE_0_FULL: { //  b00 = 12 byte header (full header)
                 chunkStreamInfo.markDeltaTimestampTx();
-                Util.writeUnsignedInt24(out, (absoluteTimestamp >= 0xffffff) ? 0xffffff : absoluteTimestamp);
-                Util.writeUnsignedInt24(out, packetLength);
-                out.write(messageType.getValue());
-                Util.writeUnsignedInt32LittleEndian(out, messageStreamId);
+                putUnsignedInt24(out, (absoluteTimestamp >= 0xffffff) ? 0xffffff : absoluteTimestamp);
+                putUnsignedInt24(out, packetLength);
+                out.put(messageType.getValue());
+                out.put((byte) messageStreamId);
+                out.put((byte) (messageStreamId >>> 8));
+                out.put((byte) (messageStreamId >>> 16));
+                out.put((byte) (messageStreamId >>> 24));
                 if (absoluteTimestamp >= 0xffffff) {
                     extendedTimestamp = absoluteTimestamp;
-                    Util.writeUnsignedInt32(out, extendedTimestamp);
+                    out.putInt(extendedTimestamp);
                 }
                 break;
             }
             case TYPE_1_RELATIVE_LARGE: { // b01 = 8 bytes - like type 0. not including message ID (4 last bytes)
                 timestampDelta = (int) chunkStreamInfo.markDeltaTimestampTx();
                 absoluteTimestamp = chunkStreamInfo.getPrevHeaderTx().getAbsoluteTimestamp() + timestampDelta;
-                Util.writeUnsignedInt24(out, (absoluteTimestamp >= 0xffffff) ? 0xffffff : timestampDelta);
-                Util.writeUnsignedInt24(out, packetLength);
-                out.write(messageType.getValue());
+                putUnsignedInt24(out, (absoluteTimestamp >= 0xffffff) ? 0xffffff : timestampDelta);
+                putUnsignedInt24(out, packetLength);
+                out.put(messageType.getValue());
                 if (absoluteTimestamp >= 0xffffff) {
                     extendedTimestamp = absoluteTimestamp;
-                    Util.writeUnsignedInt32(out, absoluteTimestamp);
+                    out.putInt(absoluteTimestamp);
                 }
                 break;
             }
             case TYPE_2_RELATIVE_TIMESTAMP_ONLY: { // b10 = 4 bytes - Basic Header and timestamp (3 bytes) are included
                 timestampDelta = (int) chunkStreamInfo.markDeltaTimestampTx();
                 absoluteTimestamp = chunkStreamInfo.getPrevHeaderTx().getAbsoluteTimestamp() + timestampDelta;
-                Util.writeUnsignedInt24(out, (absoluteTimestamp >= 0xffffff) ? 0xffffff : timestampDelta);
+                putUnsignedInt24(out, (absoluteTimestamp >= 0xffffff) ? 0xffffff : timestampDelta);
                 if (absoluteTimestamp >= 0xffffff) {
                     extendedTimestamp = absoluteTimestamp;
-                    Util.writeUnsignedInt32(out, extendedTimestamp);
+                    out.putInt(extendedTimestamp);
                 }
                 break;
             }
             case TYPE_3_RELATIVE_SINGLE_BYTE: { // b11 = 1 byte: basic header only
                 if (extendedTimestamp > 0) {
-                    Util.writeUnsignedInt32(out, extendedTimestamp);
+                    out.putInt(extendedTimestamp);
                 }
                 break;
             }
@@ -351,6 +358,12 @@ public class RtmpHeader {
         }
     }
 
+    private static void putUnsignedInt24(ByteBuffer out, int value) {
+        out.put((byte) (value >>> 16));
+        out.put((byte) (value >>> 8));
+        out.put((byte) value);
+    }
+
     private void parseBasicHeader(byte basicHeaderByte) {
         chunkType = ChunkType.valueOf((byte) ((0xff & basicHeaderByte) >>> 6)); // 2 most significant bits define the chunk type
         chunkStreamId = basicHeaderByte & 0x3F; // 6 least significant bits define chunk stream ID
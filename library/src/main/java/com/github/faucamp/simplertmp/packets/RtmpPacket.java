@@ -8,6 +8,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 
 import com.github.faucamp.simplertmp.io.ChunkStreamInfo;
+import com.github.faucamp.simplertmp.io.RtmpChunkWriter;
 
 /**
  *
@@ -33,23 +34,21 @@ public abstract class RtmpPacket {
 
     protected abstract int size();
 
-    public void writeTo(OutputStream out, final int chunkSize, final ChunkStreamInfo chunkStreamInfo) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        writeBody(baos);
-        byte[] body = this instanceof ContentData ? array() : baos.toByteArray();
-        int length = this instanceof ContentData ? size() : body.length;
-        header.setPacketLength(length);
-        // Write header for first chunk
-        header.writeTo(out, RtmpHeader.ChunkType.TYPE_0_FULL, chunkStreamInfo);
-        int pos = 0;
-        while (length > chunkSize) {
-            // Write packet for chunk
-            out.write(body, pos, chunkSize);
-            length -= chunkSize;
-            pos += chunkSize;
-            // Write header for remain chunk
-            header.writeTo(out, RtmpHeader.ChunkType.TYPE_3_RELATIVE_SINGLE_BYTE, chunkStreamInfo);
+    /**
+     * Lays out the chunks of this packet in the writer, after the packets already pending.
+     */
+    public void writeTo(RtmpChunkWriter writer, final int chunkSize, final ChunkStreamInfo chunkStreamInfo) throws IOException {
+        byte[] body;
+        int length;
+        if (this instanceof ContentData) {
+            body = array();
+            length = size();
+        } else {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            writeBody(baos);
+            body = baos.toByteArray();
+            length = body.length;
         }
-        out.write(body, pos, length);
+        writer.append(header, body, length, chunkSize, chunkStreamInfo);
     }
 }
@@ -117,6 +117,10 @@ public class GPUImageFilter {
     int[] mGLFboId;
     int[] mGLFboTexId;
     IntBuffer mGLFboBuffer;
+    // Whether the drawn frame is read back into mGLFboBuffer.
+    boolean mReadPixelsEnabled = true;
+    // Reads the frames back asynchronously for readPixels, null on GLES 2.0.
+    GPUImagePboReader mPboReader;
 
     public GPUImageFilter() {
         this(MagicFilterType.NONE);
@@ -251,9 +255,17 @@ public class GPUImageFilter {
         GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, mGLFboTexId[0], 0);
         GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
         GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+
+        if (GPUImagePboReader.isSupported()) {
+            mPboReader = new GPUImagePboReader(width, height);
+        }
     }
 
     private void destroyFboTexture() {
+        if (mPboReader != null) {
+            mPboReader.release();
+            mPboReader = null;
+        }
         if (mGLFboTexId != null) {
             GLES20.glDeleteTextures(1, mGLFboTexId, 0);
             mGLFboTexId = null;
@@ -328,7 +340,9 @@ public class GPUImageFilter {
         GLES20.glViewport(0, 0, mInputWidth, mInputHeight);
         GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mGLFboId[0]);
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
-        GLES20.glReadPixels(0, 0, mInputWidth, mInputHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, mGLFboBuffer);
+        if (mReadPixelsEnabled) {
+            GLES20.glReadPixels(0, 0, mInputWidth, mInputHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, mGLFboBuffer);
+        }
         GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
         GLES20.glViewport(0, 0, mOutputWidth, mOutputHeight);
 
@@ -364,6 +378,61 @@ public class GPUImageFilter {
         return mGLFboBuffer;
     }
 
+    /**
+     * @return the texture the frame is drawn into at the input size, for the consumers which
+     *         read it on the GPU.
+     */
+    public int getGLFboTexture() {
+        return mGLFboTexId != null ? mGLFboTexId[0] : OpenGLUtils.NO_TEXTURE;
+    }
+
+    /**
+     * Reads the drawn frames back into dst, for a consumer which needs all of them, call after
+     * each onDrawFrame.
+     *
+     * On GLES 3.0, the read goes through pixel buffer objects and returns the frame drawn two
+     * frames before, so the pipeline never stalls. On GLES 2.0, it returns the frame just drawn.
+     *
+     * @param dst the pixels as read by glReadPixels into {@link #getGLFboBuffer()}, or null to
+     *            drop this frame.
+     * @return false when dst was not filled, while the first frames are being read.
+     */
+    public boolean readPixels(IntBuffer dst) {
+        if (mGLFboId == null) {
+            return false;
+        }
+
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mGLFboId[0]);
+        boolean read = false;
+        if (mPboReader != null) {
+            read = mPboReader.read(dst);
+        } else if (dst != null) {
+            dst.clear();
+            GLES20.glReadPixels(0, 0, mInputWidth, mInputHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, dst);
+            read = true;
+        }
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        return read;
+    }
+
+    /**
+     * Drops the frames being read by readPixels, when the next frame drawn is not the one after
+     * the frame read last.
+     */
+    public void resetReadPixels() {
+        if (mPboReader != null) {
+            mPboReader.reset();
+        }
+    }
+
+    /**
+     * Reads the drawn frame back into the buffer of {@link #getGLFboBuffer()}, on by default.
+     * The read stalls the pipeline, so it is disabled when no one reads the buffer.
+     */
+    public void setReadPixelsEnabled(boolean enabled) {
+        mReadPixelsEnabled = enabled;
+    }
+
     protected Context getContext() {
         if (mContext != null) {
             return mContext.get();
@@ -0,0 +1,107 @@
+package com.seu.magicfilter.base.gpuimage;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * Reads the frames back asynchronously through a ring of pixel buffer objects, on GLES 3.0.
+ *
+ * The pixels of a frame are copied into a PBO by the GPU, while the CPU goes on, and mapped
+ * two frames later, when the copy is long done, so the GL thread never waits for the GPU to
+ * drain its pipeline as with a glReadPixels into the client memory. All the methods must be
+ * called on the GL thread.
+ */
+class GPUImagePboReader {
+
+    // The PBO of frame N is mapped at frame N + PBO_COUNT - 1.
+    private static final int PBO_COUNT = 3;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mSize;
+    private int[] mPboIds;
+    // The PBO the next frame is read into.
+    private int mNext;
+    // The PBOs read into and not mapped yet.
+    private int mPending;
+
+    /**
+     * @return whether the context current on the thread runs GLES 3.0 or later.
+     */
+    static boolean isSupported() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            return false;
+        }
+        String version = GLES20.glGetString(GLES20.GL_VERSION);
+        // "OpenGL ES <major>.<minor> <vendor specific>"
+        return version != null && version.startsWith("OpenGL ES ") && version.length() > 10
+            && version.charAt(10) >= '3' && version.charAt(10) <= '9';
+    }
+
+    GPUImagePboReader(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        mSize = width * height * 4;
+        mPboIds = new int[PBO_COUNT];
+        GLES20.glGenBuffers(PBO_COUNT, mPboIds, 0);
+        for (int id : mPboIds) {
+            GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, id);
+            GLES20.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, mSize, null, GLES30.GL_STREAM_READ);
+        }
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+    }
+
+    /**
+     * Starts the read of the frame of the bound framebuffer, and gets the one read
+     * PBO_COUNT - 1 frames before if any.
+     *
+     * @param dst the int of each RGBA pixel in the native order, as read by glReadPixels, or
+     *            null to drop the frame while keeping the pipeline full.
+     * @return true if the frame was copied into dst.
+     */
+    boolean read(IntBuffer dst) {
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPboIds[mNext]);
+        GLES30.glReadPixels(0, 0, mWidth, mHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, 0);
+        mNext = (mNext + 1) % PBO_COUNT;
+        if (mPending < PBO_COUNT - 1) {
+            mPending++;
+            GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+            return false;
+        }
+
+        // The oldest PBO is the next one to read into.
+        boolean copied = false;
+        if (dst != null) {
+            GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPboIds[mNext]);
+            ByteBuffer pixels = (ByteBuffer) GLES30.glMapBufferRange(GLES30.GL_PIXEL_PACK_BUFFER, 0, mSize,
+                GLES30.GL_MAP_READ_BIT);
+            if (pixels != null) {
+                dst.clear();
+                pixels.order(ByteOrder.nativeOrder()).asIntBuffer().get(dst.array(), dst.arrayOffset(), mWidth * mHeight);
+                GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+                copied = true;
+            }
+        }
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        return copied;
+    }
+
+    /**
+     * Drops the frames being read, when the next frame does not follow the last read one.
+     */
+    void reset() {
+        mPending = 0;
+    }
+
+    void release() {
+        if (mPboIds != null) {
+            GLES20.glDeleteBuffers(PBO_COUNT, mPboIds, 0);
+            mPboIds = null;
+        }
+    }
+}
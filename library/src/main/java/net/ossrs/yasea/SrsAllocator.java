@@ -1,19 +1,64 @@
 package net.ossrs.yasea;
 
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Pool of byte arrays for the muxed tags.
+ *
+ * Allocations are rounded up to power-of-two size classes, and each class keeps its own
+ * free list, so that a released allocation is handed out again to any request which fits
+ * in its capacity. A class only keeps as many free allocations as were in use at its peak
+ * during the last {@link #TRIM_INTERVAL} allocations, the rest is left to the GC.
+ *
+ * An allocation may be shared by several owners, each of which takes a reference with
+ * {@link Allocation#retain()} and gives it back with {@link #release(Allocation)}. The
+ * allocation returns to the pool with its last reference, so its bytes must not be modified
+ * once it is shared.
+ */
 public final class SrsAllocator {
 
+    // Number of allocations of a class after which its free list is trimmed to the peak.
+    private static final int TRIM_INTERVAL = 1024;
+
     public class Allocation {
 
         private byte[] data;
         private int size;
+        // A buffer over data, created on the first use.
+        private ByteBuffer buffer;
+        // The allocator holds no reference, the one returned by allocate() is the first.
+        private final AtomicInteger refs = new AtomicInteger(1);
 
         public Allocation(int size) {
             this.data = new byte[size];
             this.size = 0;
         }
 
+        public int capacity() {
+            return data.length;
+        }
+
+        /**
+         * Takes one more reference, each one is given back by {@link #release(Allocation)}.
+         *
+         * @throws IllegalStateException if the allocation was already released.
+         */
+        public void retain() {
+            if (refs.getAndIncrement() <= 0) {
+                refs.decrementAndGet();
+                throw new IllegalStateException("retain of a released allocation");
+            }
+        }
+
         public byte[] array() {
             return data;
         }
@@ -22,6 +67,19 @@ public final class SrsAllocator {
             return size;
         }
 
+        /**
+         * @return a buffer over the bytes of the allocation, from 0 to its size. The buffer is
+         *         reused by the next call, for a single owner.
+         */
+        public ByteBuffer byteBuffer() {
+            if (buffer == null) {
+                buffer = ByteBuffer.wrap(data);
+            }
+            buffer.clear();
+            buffer.limit(size);
+            return buffer;
+        }
+
         public void appendOffset(int offset) {
             size += offset;
         }
@@ -57,9 +115,52 @@ public final class SrsAllocator {
         }
     }
 
+    private static final class FreeList {
+        private Allocation[] allocations = new Allocation[8];
+        private int count;
+        private int outstanding;
+        private int peakOutstanding;
+        private int allocationsSinceTrim;
+
+        void push(Allocation allocation) {
+            if (count == allocations.length) {
+                allocations = Arrays.copyOf(allocations, allocations.length * 2);
+            }
+            allocations[count++] = allocation;
+        }
+
+        Allocation pop() {
+            if (count == 0) {
+                return null;
+            }
+            Allocation ret = allocations[--count];
+            allocations[count] = null;
+            return ret;
+        }
+
+        // Keep the free allocations which were needed at the peak, drop the others.
+        long trim() {
+            int keep = Math.max(peakOutstanding - outstanding, 0);
+            long dropped = 0;
+            while (count > keep) {
+                dropped += allocations[--count].capacity();
+                allocations[count] = null;
+            }
+            peakOutstanding = outstanding;
+            allocationsSinceTrim = 0;
+            return dropped;
+        }
+    }
+
     private final int individualAllocationSize;
-    private volatile int availableSentinel;
-    private Allocation[] availableAllocations;
+    // Indexed by log2 of the class size.
+    private final FreeList[] freeLists = new FreeList[32];
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong bytesOutstanding = new AtomicLong(0);
+    private final AtomicLong bytesPooled = new AtomicLong(0);
+    // Where the allocations not released yet were allocated, null unless leak detection is on.
+    private volatile Map<Allocation, Throwable> allocationSites;
 
     /**
      * Constructs an instance without creating any {@link Allocation}s up front.
@@ -78,39 +179,154 @@ public final class SrsAllocator {
      * @param initialAllocationCount The number of allocations to create up front.
      */
     public SrsAllocator(int individualAllocationSize, int initialAllocationCount) {
-        this.individualAllocationSize = individualAllocationSize;
-        this.availableSentinel = initialAllocationCount + 10;
-        this.availableAllocations = new Allocation[availableSentinel];
-        for (int i = 0; i < availableSentinel; i++) {
-            availableAllocations[i] = new Allocation(individualAllocationSize);
+        this.individualAllocationSize = classSize(individualAllocationSize);
+        for (int i = 0; i < freeLists.length; i++) {
+            freeLists[i] = new FreeList();
+        }
+
+        FreeList freeList = freeLists[classIndex(this.individualAllocationSize)];
+        for (int i = 0; i < initialAllocationCount; i++) {
+            freeList.push(new Allocation(this.individualAllocationSize));
         }
+        freeList.peakOutstanding = initialAllocationCount;
+        bytesPooled.addAndGet((long) initialAllocationCount * this.individualAllocationSize);
     }
 
-    public synchronized Allocation allocate(int size) {
-        for (int i = 0; i < availableSentinel; i++) {
-            if (availableAllocations[i].size() >= size) {
-                Allocation ret = availableAllocations[i];
-                availableAllocations[i] = null;
-                return ret;
+    private int classSize(int size) {
+        int min = Math.max(size, individualAllocationSize);
+        return min <= 1 ? 1 : Integer.highestOneBit(min - 1) << 1;
+    }
+
+    // The class of an array is the largest class size it can serve.
+    private static int classIndex(int capacity) {
+        return 31 - Integer.numberOfLeadingZeros(capacity);
+    }
+
+    public Allocation allocate(int size) {
+        int capacity = classSize(size);
+        FreeList freeList = freeLists[classIndex(capacity)];
+        Allocation ret;
+        synchronized (freeList) {
+            ret = freeList.pop();
+            freeList.outstanding++;
+            if (freeList.outstanding > freeList.peakOutstanding) {
+                freeList.peakOutstanding = freeList.outstanding;
+            }
+            if (++freeList.allocationsSinceTrim >= TRIM_INTERVAL) {
+                bytesPooled.addAndGet(-freeList.trim());
             }
         }
 
-        return new Allocation(size > individualAllocationSize ? size : individualAllocationSize);
+        if (ret != null) {
+            ret.refs.set(1);
+            hits.incrementAndGet();
+            bytesPooled.addAndGet(-ret.capacity());
+        } else {
+            misses.incrementAndGet();
+            ret = new Allocation(capacity);
+        }
+        bytesOutstanding.addAndGet(ret.capacity());
+
+        Map<Allocation, Throwable> sites = allocationSites;
+        if (sites != null) {
+            sites.put(ret, new Throwable("allocated " + ret.capacity() + " bytes"));
+        }
+        return ret;
     }
 
-    public synchronized void release(Allocation allocation) {
+    /**
+     * Gives back a reference, the allocation returns to the pool with the last one.
+     *
+     * @throws IllegalStateException if the allocation was already released.
+     */
+    public void release(Allocation allocation) {
+        int refs;
+        do {
+            refs = allocation.refs.get();
+            if (refs <= 0) {
+                // Pushing it again would hand the same array out to two owners.
+                throw new IllegalStateException("release of an allocation already released");
+            }
+        } while (!allocation.refs.compareAndSet(refs, refs - 1));
+        if (refs > 1) {
+            // Still used by another owner.
+            return;
+        }
         allocation.clear();
 
-        for (int i = 0; i < availableSentinel; i++) {
-            if (availableAllocations[i].size() == 0) {
-                availableAllocations[i] = allocation;
-                return;
+        Map<Allocation, Throwable> sites = allocationSites;
+        if (sites != null) {
+            sites.remove(allocation);
+        }
+
+        int capacity = allocation.capacity();
+        FreeList freeList = freeLists[classIndex(capacity)];
+        synchronized (freeList) {
+            freeList.outstanding--;
+            freeList.push(allocation);
+        }
+        bytesOutstanding.addAndGet(-capacity);
+        bytesPooled.addAndGet(capacity);
+    }
+
+    /**
+     * Drops the free allocations which were not needed since the last trim.
+     */
+    public void trim() {
+        for (FreeList freeList : freeLists) {
+            long dropped;
+            synchronized (freeList) {
+                dropped = freeList.trim();
             }
+            bytesPooled.addAndGet(-dropped);
         }
+    }
 
-        if (availableSentinel + 1 > availableAllocations.length) {
-            availableAllocations = Arrays.copyOf(availableAllocations, availableAllocations.length * 2);
+    /**
+     * Records where each allocation is made until it is released, for debugging only.
+     */
+    public void setLeakDetection(boolean enabled) {
+        allocationSites = enabled ? Collections.synchronizedMap(new IdentityHashMap<Allocation, Throwable>()) : null;
+    }
+
+    /**
+     * Logs the allocations which are not released yet with the stack where they were made.
+     *
+     * @return the number of allocations not released, 0 when leak detection is off.
+     */
+    public int reportLeaks(String tag) {
+        Map<Allocation, Throwable> sites = allocationSites;
+        if (sites == null) {
+            return 0;
         }
-        availableAllocations[availableSentinel++] = allocation;
+
+        ArrayList<Throwable> leaks;
+        synchronized (sites) {
+            leaks = new ArrayList<>(sites.values());
+        }
+        for (Throwable site : leaks) {
+            Log.w(tag, "allocation never released", site);
+        }
+        return leaks.size();
+    }
+
+    /** @return the number of allocations served from the pool */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /** @return the number of allocations which had to create a new array */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /** @return the capacity in bytes of the allocations not released yet */
+    public long getBytesOutstanding() {
+        return bytesOutstanding.get();
+    }
+
+    /** @return the capacity in bytes of the free allocations kept by the pool */
+    public long getBytesPooled() {
+        return bytesPooled.get();
     }
 }
@@ -0,0 +1,366 @@
+package net.ossrs.yasea;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encoder driven by the asynchronous MediaCodec callbacks, requires API 23.
+ *
+ * The callbacks of the codec are delivered on a dedicated handler thread. The frames submitted
+ * by the capture thread wait in a bounded queue until the codec has an input buffer for them,
+ * so a submit never waits for the codec: when the queue is full, its oldest frame is dropped.
+ * The encoded buffers are handed to the listener on the handler thread as soon as the codec
+ * outputs them, and released right after.
+ *
+ * A frame is submitted either as an array, copied into a slot of the queue, or as a buffer,
+ * queued by reference and handed back to the listener once copied into the codec or dropped.
+ * A frame may also be written straight into an input buffer of the codec which is waiting,
+ * see {@link #acquireInput()}.
+ */
+public class SrsAsyncCodec extends MediaCodec.Callback {
+
+    public interface Listener {
+        /**
+         * Called on the handler thread for each encoded buffer, the buffer is released after.
+         */
+        void onEncodedFrame(ByteBuffer bb, MediaCodec.BufferInfo bi);
+
+        void onEncodeError(Exception e);
+
+        /**
+         * Called when a frame submitted as a buffer is not referenced anymore, on any thread.
+         */
+        void onFrameReleased(ByteBuffer frame);
+    }
+
+    private final String name;
+    private final MediaCodec codec;
+    private final Listener listener;
+    private final HandlerThread thread;
+    private final Handler handler;
+
+    // Guards the queues and the running state, held by the capture and the handler threads.
+    private final Object lock = new Object();
+    private boolean running;
+    // The frames waiting for an input buffer, a ring of slots. A slot holds its own copy of a
+    // submitted array, or the submitted buffer.
+    private final ByteBuffer[] frames;
+    private final ByteBuffer[] copies;
+    private final long[] framePts;
+    private int frameHead;
+    private int frameCount;
+    // The input buffers waiting for a frame, a ring of indices.
+    private int[] freeInputs = new int[8];
+    private int freeHead;
+    private int freeCount;
+    // The input buffer dequeued last by a submit.
+    private int inputIndex;
+    private volatile long droppedFrames;
+
+    /**
+     * Sets the callback of the codec, so it must not be configured yet.
+     *
+     * @param queueSize the number of frames waiting for an input buffer at most.
+     */
+    public SrsAsyncCodec(String name, MediaCodec codec, int queueSize, Listener listener) {
+        this.name = name;
+        this.codec = codec;
+        this.listener = listener;
+        frames = new ByteBuffer[queueSize];
+        copies = new ByteBuffer[queueSize];
+        framePts = new long[queueSize];
+
+        thread = new HandlerThread(name);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        attach();
+    }
+
+    /**
+     * Sets the callback again, after a reset of the codec.
+     */
+    public void attach() {
+        codec.setCallback(this, handler);
+    }
+
+    /**
+     * Starts the configured codec.
+     */
+    public void start() {
+        synchronized (lock) {
+            running = true;
+            frameCount = 0;
+            freeCount = 0;
+        }
+        codec.start();
+    }
+
+    /**
+     * Stops the codec and the handler thread, the codec is left to release.
+     */
+    public void stop() {
+        synchronized (lock) {
+            running = false;
+            while (frameCount > 0) {
+                releaseFrame(frameHead);
+                frameHead = (frameHead + 1) % frames.length;
+                frameCount--;
+            }
+            freeCount = 0;
+        }
+        try {
+            codec.stop();
+        } catch (IllegalStateException e) {
+            Log.e(name, "stop codec failed", e);
+        }
+        thread.quitSafely();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the number of frames dropped because the queue was full, or because they did not
+     * fit in an input buffer of the codec.
+     */
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * Submits a frame, without waiting for the codec. The frame is copied, so the array can be
+     * reused at once.
+     */
+    public void submit(byte[] data, int size, long pts) {
+        synchronized (lock) {
+            if (!running) {
+                return;
+            }
+            // An input buffer is waiting, so the queue is empty.
+            if (freeCount > 0) {
+                ByteBuffer bb = dequeueFreeInput();
+                if (!fits(bb, size)) {
+                    restoreFreeInput();
+                    return;
+                }
+                bb.put(data, 0, size);
+                queueInput(size, pts);
+                return;
+            }
+
+            int tail = enqueueSlot();
+            if (copies[tail] == null || copies[tail].capacity() < size) {
+                copies[tail] = ByteBuffer.allocate(size);
+            }
+            copies[tail].clear();
+            copies[tail].put(data, 0, size);
+            copies[tail].flip();
+            frames[tail] = copies[tail];
+            framePts[tail] = pts;
+        }
+    }
+
+    /**
+     * Submits a frame, without waiting for the codec. The frame between the position and the
+     * limit of the buffer is queued by reference, the buffer is handed back to the listener
+     * once released.
+     */
+    public void submit(ByteBuffer frame, long pts) {
+        synchronized (lock) {
+            if (!running) {
+                listener.onFrameReleased(frame);
+                return;
+            }
+            if (freeCount > 0) {
+                int size = frame.remaining();
+                ByteBuffer bb = dequeueFreeInput();
+                if (!fits(bb, size)) {
+                    restoreFreeInput();
+                    listener.onFrameReleased(frame);
+                    return;
+                }
+                bb.put(frame);
+                queueInput(size, pts);
+                listener.onFrameReleased(frame);
+                return;
+            }
+
+            int tail = enqueueSlot();
+            frames[tail] = frame;
+            framePts[tail] = pts;
+        }
+    }
+
+    /**
+     * Takes an input buffer of the codec waiting for a frame, so that the frame is written
+     * straight into it instead of being submitted. No frame is queued while an input buffer is
+     * waiting, so the frames keep their order.
+     *
+     * @return the index of the input buffer, to queue with {@link #queueAcquiredInput}, or -1
+     *         when none is waiting.
+     */
+    public int acquireInput() {
+        synchronized (lock) {
+            if (!running || freeCount == 0) {
+                return -1;
+            }
+            return takeFreeInput();
+        }
+    }
+
+    /**
+     * Queues the input buffer taken by {@link #acquireInput()}, filled with a frame from its
+     * start. Nothing is queued when the codec was stopped meanwhile.
+     */
+    public void queueAcquiredInput(int index, int size, long pts) {
+        synchronized (lock) {
+            if (!running) {
+                return;
+            }
+            inputIndex = index;
+            queueInput(size, pts);
+        }
+    }
+
+    // Holding the lock, the index of the slot for a new frame, the oldest frame is dropped when
+    // the queue is full.
+    private int enqueueSlot() {
+        if (frameCount == frames.length) {
+            // Drop the oldest frame, the newest one is more relevant to a live stream.
+            releaseFrame(frameHead);
+            frameHead = (frameHead + 1) % frames.length;
+            frameCount--;
+            droppedFrames++;
+        }
+        int tail = (frameHead + frameCount) % frames.length;
+        frameCount++;
+        return tail;
+    }
+
+    // Holding the lock, hands a frame submitted as a buffer back to the listener.
+    private void releaseFrame(int slot) {
+        ByteBuffer frame = frames[slot];
+        frames[slot] = null;
+        if (frame != null && frame != copies[slot]) {
+            listener.onFrameReleased(frame);
+        }
+    }
+
+    // Holding the lock, the index of the input buffer waiting for the longest time.
+    private int takeFreeInput() {
+        int index = freeInputs[freeHead];
+        freeHead = (freeHead + 1) % freeInputs.length;
+        freeCount--;
+        return index;
+    }
+
+    // Holding the lock, the cleared input buffer waiting for the longest time.
+    private ByteBuffer dequeueFreeInput() {
+        inputIndex = takeFreeInput();
+        ByteBuffer bb = codec.getInputBuffer(inputIndex);
+        bb.clear();
+        return bb;
+    }
+
+    // Holding the lock, gives the input buffer dequeued last back, as the longest waiting one.
+    private void restoreFreeInput() {
+        freeHead = (freeHead + freeInputs.length - 1) % freeInputs.length;
+        freeCount++;
+    }
+
+    // Holding the lock, whether a frame of the size fits in the cleared input buffer, a frame
+    // which does not is counted as dropped.
+    private boolean fits(ByteBuffer bb, int size) {
+        if (size <= bb.capacity()) {
+            return true;
+        }
+        droppedFrames++;
+        Log.w(name, String.format("drop a frame of %d bytes, the input buffer holds %d", size, bb.capacity()));
+        return false;
+    }
+
+    // Holding the lock, queues the input buffer filled last.
+    private void queueInput(int size, long pts) {
+        try {
+            codec.queueInputBuffer(inputIndex, 0, size, pts, 0);
+        } catch (IllegalStateException e) {
+            Log.e(name, "queue input failed", e);
+        }
+    }
+
+    @Override
+    public void onInputBufferAvailable(MediaCodec codec, int index) {
+        synchronized (lock) {
+            if (!running) {
+                return;
+            }
+            // A frame too large for the input buffer is dropped, and the next one tried.
+            while (frameCount > 0) {
+                int head = frameHead;
+                frameHead = (frameHead + 1) % frames.length;
+                frameCount--;
+                boolean done = false;
+                try {
+                    ByteBuffer bb = codec.getInputBuffer(index);
+                    bb.clear();
+                    int size = frames[head].remaining();
+                    if (fits(bb, size)) {
+                        bb.put(frames[head]);
+                        codec.queueInputBuffer(index, 0, size, framePts[head], 0);
+                        done = true;
+                    }
+                } catch (IllegalStateException e) {
+                    Log.e(name, "queue input failed", e);
+                    done = true;
+                }
+                releaseFrame(head);
+                if (done) {
+                    return;
+                }
+            }
+
+            if (freeCount == freeInputs.length) {
+                int[] grown = new int[freeInputs.length * 2];
+                for (int i = 0; i < freeCount; i++) {
+                    grown[i] = freeInputs[(freeHead + i) % freeInputs.length];
+                }
+                freeInputs = grown;
+                freeHead = 0;
+            }
+            freeInputs[(freeHead + freeCount) % freeInputs.length] = index;
+            freeCount++;
+        }
+    }
+
+    @Override
+    public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+        try {
+            if (info.size > 0) {
+                ByteBuffer bb = codec.getOutputBuffer(index);
+                listener.onEncodedFrame(bb, info);
+            }
+            codec.releaseOutputBuffer(index, false);
+        } catch (IllegalStateException e) {
+            // Stopped while the buffer was being muxed.
+            Log.w(name, "output after stop: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+        Log.e(name, "codec error: " + e.getDiagnosticInfo(), e);
+        listener.onEncodeError(e);
+    }
+
+    @Override
+    public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+        Log.i(name, "output format changed: " + format);
+    }
+}
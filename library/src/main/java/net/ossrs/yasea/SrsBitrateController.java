@@ -0,0 +1,143 @@
+package net.ossrs.yasea;
+
+/**
+ * Closed-loop video bitrate controller for the RTMP stream.
+ *
+ * It is fed at most once per sample interval with the number of video frames waiting in the
+ * send queue, the bitrate the connection actually sent and the time spent blocked in socket
+ * writes. When the queue builds up or the socket blocks, the target bitrate is cut by a factor
+ * and capped to what was actually sent (multiplicative decrease). After the queue stayed
+ * empty for a while, the target probes up by a fixed step (additive increase).
+ *
+ * The controller does not read any clock, so it behaves the same in a simulation.
+ */
+public class SrsBitrateController {
+
+    // Time between two samples.
+    private static final int SAMPLE_INTERVAL_MS = 1000;
+    // Queue depth in video frames from which the link is considered congested.
+    private static final int CONGESTED_QUEUE_FRAMES = 12;
+    // Queue depth in video frames under which the link is considered clear.
+    private static final int CLEAR_QUEUE_FRAMES = 3;
+    // Share of the sample interval spent blocked in writes from which the link is congested.
+    private static final double CONGESTED_BLOCKING_RATIO = 0.5;
+    // Share of the sample interval spent blocked in writes under which the link is clear.
+    private static final double CLEAR_BLOCKING_RATIO = 0.1;
+    private static final double DECREASE_FACTOR = 0.75;
+    // Time for a new bitrate to reach the queue before it is cut again.
+    private static final int DECREASE_HOLD_MS = 2000;
+    // Time the link must stay clear before each probe up.
+    private static final int INCREASE_HOLD_MS = 5000;
+    // Number of probe steps between the floor and the ceiling.
+    private static final int INCREASE_STEPS = 20;
+
+    private int minBitrate;
+    private int maxBitrate;
+    private int bitrate;
+    private long lastSampleMs = -1;
+    private long lastBlockingNanos;
+    private int lastQueuedVideoFrames;
+    private long lastChangeMs;
+    private long clearSinceMs = -1;
+
+    /**
+     * @param minBitrate the floor of the target bitrate, in bps.
+     * @param maxBitrate the ceiling of the target bitrate, in bps.
+     * @param initialBitrate the target bitrate to start with, in bps.
+     */
+    public SrsBitrateController(int minBitrate, int maxBitrate, int initialBitrate) {
+        setBitrateRange(minBitrate, maxBitrate);
+        bitrate = clamp(initialBitrate);
+    }
+
+    public void setBitrateRange(int minBitrate, int maxBitrate) {
+        if (minBitrate <= 0 || maxBitrate < minBitrate) {
+            throw new IllegalArgumentException(String.format("invalid bitrate range [%d, %d]", minBitrate, maxBitrate));
+        }
+        this.minBitrate = minBitrate;
+        this.maxBitrate = maxBitrate;
+        bitrate = clamp(bitrate);
+    }
+
+    public int getMinBitrate() {
+        return minBitrate;
+    }
+
+    public int getMaxBitrate() {
+        return maxBitrate;
+    }
+
+    /**
+     * @return the current target bitrate, in bps.
+     */
+    public int getBitrate() {
+        return bitrate;
+    }
+
+    /**
+     * Feeds a sample of the connection state, samples closer than the sample interval to the
+     * previous one are ignored.
+     *
+     * @param nowMs a monotonic time, in ms.
+     * @param queuedVideoFrames the video frames waiting in the send queue.
+     * @param sendBitrate the video bitrate actually sent, in bps, 0 when unknown.
+     * @param writeBlockingNanos the total time spent in socket writes so far, in ns.
+     * @return the target bitrate, in bps.
+     */
+    public int update(long nowMs, int queuedVideoFrames, double sendBitrate, long writeBlockingNanos) {
+        if (lastSampleMs < 0) {
+            lastSampleMs = nowMs;
+            lastChangeMs = nowMs;
+            lastBlockingNanos = writeBlockingNanos;
+            return bitrate;
+        }
+
+        long elapsedMs = nowMs - lastSampleMs;
+        if (elapsedMs < SAMPLE_INTERVAL_MS) {
+            return bitrate;
+        }
+        double blockingRatio = (writeBlockingNanos - lastBlockingNanos) / 1000000.0 / elapsedMs;
+        boolean draining = queuedVideoFrames < lastQueuedVideoFrames;
+        lastSampleMs = nowMs;
+        lastBlockingNanos = writeBlockingNanos;
+        lastQueuedVideoFrames = queuedVideoFrames;
+
+        if (queuedVideoFrames >= CONGESTED_QUEUE_FRAMES || blockingRatio >= CONGESTED_BLOCKING_RATIO) {
+            clearSinceMs = -1;
+            // Don't cut again while the queue drains at the current bitrate.
+            if (!draining && nowMs - lastChangeMs >= DECREASE_HOLD_MS) {
+                double target = bitrate * DECREASE_FACTOR;
+                // What went through the link is a better estimate when it is even lower.
+                if (sendBitrate > 0 && sendBitrate < target) {
+                    target = sendBitrate;
+                }
+                changeBitrate(nowMs, (int) target);
+            }
+        } else if (queuedVideoFrames <= CLEAR_QUEUE_FRAMES && blockingRatio < CLEAR_BLOCKING_RATIO) {
+            if (clearSinceMs < 0) {
+                clearSinceMs = nowMs;
+            }
+            if (nowMs - Math.max(clearSinceMs, lastChangeMs) >= INCREASE_HOLD_MS) {
+                int step = Math.max((maxBitrate - minBitrate) / INCREASE_STEPS, 1);
+                changeBitrate(nowMs, bitrate + step);
+            }
+        } else {
+            // Neither congested nor clear, hold the current bitrate.
+            clearSinceMs = -1;
+        }
+
+        return bitrate;
+    }
+
+    private void changeBitrate(long nowMs, int target) {
+        target = clamp(target);
+        if (target != bitrate) {
+            bitrate = target;
+            lastChangeMs = nowMs;
+        }
+    }
+
+    private int clamp(int target) {
+        return Math.max(minBitrate, Math.min(maxBitrate, target));
+    }
+}
@@ -12,6 +12,7 @@ import android.opengl.GLSurfaceView;
 import android.opengl.Matrix;
 import android.support.annotation.IntRange;
 import android.util.AttributeSet;
+import android.util.Log;
 import android.view.Surface;
 
 import com.seu.magicfilter.base.gpuimage.GPUImageFilter;
@@ -25,7 +26,8 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.IntBuffer;
 import java.util.List;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
@@ -34,6 +36,9 @@ import javax.microedition.khronos.opengles.GL10;
  * Created by Leo Ma on 2016/2/25.
  */
 public class SrsCameraView extends GLSurfaceView implements GLSurfaceView.Renderer {
+    private static final String TAG = "SrsCameraView";
+
+    private static final int STALL_SAMPLES = 128;
 
     private GPUImageFilter magicFilter;
     private SurfaceTexture surfaceTexture;
@@ -53,14 +58,30 @@ public class SrsCameraView extends GLSurfaceView implements GLSurfaceView.Render
 
     private Camera mCamera;
     private ByteBuffer mGLPreviewBuffer;
+    // The view the frames are copied through into mGLPreviewBuffer.
+    private IntBuffer mGLPreviewInts;
     private int mCamId = -1;
     private int mPreviewRotation = 0;
     private int mPreviewOrientation = Configuration.ORIENTATION_LANDSCAPE;
 
     private Thread worker;
-    private final Object writeLock = new Object();
-    private ConcurrentLinkedQueue<IntBuffer> mGLIntBufferCache = new ConcurrentLinkedQueue<>();
+    // The frames read back for the worker, the newest one wins when the worker is behind.
+    private SrsTripleBuffer<IntBuffer> mGLFrames;
+    // Whether the last frame drawn was read back, on the GL thread.
+    private boolean mReadingPixels;
+    private final SrsLatencyMeter mReadPixelsStall = new SrsLatencyMeter(STALL_SAMPLES);
+    private final SrsLatencyMeter mFrameWait = new SrsLatencyMeter(STALL_SAMPLES);
+    private volatile long mDroppedFrames;
+    private volatile long mCoalescedFrames;
+    private volatile long mEncodedFrames;
     private PreviewCallback mPrevCb;
+    private SurfaceFrameCallback mSurfaceFrameCb;
+    // The input surface of the hard encoder when the frames are drawn into it, null when they
+    // are read back for the preview callback.
+    private volatile Surface mEncoderInputSurface;
+    // Owned by the GL thread, with the input surface it draws into.
+    private SrsEncoderSurface mEncoderSurface;
+    private Surface mEncoderSurfaceTarget;
     private CameraCallbacksHandler cameraCallbacksHandler = new CameraCallbacksHandler();
     private CaptureFrameCallback captureFrameCallback;
 
@@ -88,6 +109,9 @@ public class SrsCameraView extends GLSurfaceView implements GLSurfaceView.Render
         magicFilter.init(getContext());
         magicFilter.onInputSizeChanged(mPreviewWidth, mPreviewHeight);
 
+        // The context of the encoder surface shares the textures of the lost context.
+        releaseEncoderSurface();
+
         mOESTextureId = OpenGLUtils.getExternalOESTextureID();
         surfaceTexture = new SurfaceTexture(mOESTextureId);
         surfaceTexture.setOnFrameAvailableListener(new SurfaceTexture.OnFrameAvailableListener() {
@@ -134,14 +158,20 @@ public class SrsCameraView extends GLSurfaceView implements GLSurfaceView.Render
         surfaceTexture.getTransformMatrix(mSurfaceMatrix);
         Matrix.multiplyMM(mTransformMatrix, 0, mSurfaceMatrix, 0, mProjectionMatrix, 0);
         magicFilter.setTextureTransformMatrix(mTransformMatrix);
+        // The pixels are only read back for the preview callback or a capture, the encoder
+        // surface is drawn from the texture.
+        Surface encoderInputSurface = mEncoderInputSurface;
+        boolean isEncoding = mIsEncoding;
+        magicFilter.setReadPixelsEnabled(mRequestCaptureFrame);
         magicFilter.onDrawFrame(mOESTextureId);
 
-        if (mIsEncoding) {
-            mGLIntBufferCache.add(magicFilter.getGLFboBuffer());
-            synchronized (writeLock) {
-                writeLock.notifyAll();
-            }
+        boolean readingPixels = isEncoding && encoderInputSurface == null;
+        if (readingPixels) {
+            readEncoderFrame();
+        } else if (isEncoding) {
+            drawEncoderSurface(encoderInputSurface);
         }
+        mReadingPixels = readingPixels;
 
         // 拍照
         if (mRequestCaptureFrame && captureFrameCallback != null) {
@@ -156,6 +186,56 @@ public class SrsCameraView extends GLSurfaceView implements GLSurfaceView.Render
         }
     }
 
+    // Reads the frame back and hands it over to the worker.
+    private void readEncoderFrame() {
+        if (!mReadingPixels) {
+            // The frames being read were drawn before the encoding started.
+            magicFilter.resetReadPixels();
+        }
+        long start = System.nanoTime();
+        boolean read = magicFilter.readPixels(mGLFrames.back());
+        mReadPixelsStall.record((System.nanoTime() - start) / 1000);
+        if (!read) {
+            mDroppedFrames++;
+        } else if (mGLFrames.publish()) {
+            mCoalescedFrames++;
+        }
+    }
+
+    private void drawEncoderSurface(Surface encoderInputSurface) {
+        long ptsNs = mSurfaceFrameCb != null ? mSurfaceFrameCb.onGetSurfaceFrame() : -1;
+        if (ptsNs < 0) {
+            return;
+        }
+
+        if (mEncoderSurfaceTarget != encoderInputSurface) {
+            // Left by an encoder the GL thread could not release in time.
+            releaseEncoderSurface();
+        }
+        if (mEncoderSurface == null) {
+            try {
+                mEncoderSurface = new SrsEncoderSurface(getContext(), encoderInputSurface);
+                mEncoderSurfaceTarget = encoderInputSurface;
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "create encoder surface failed", e);
+                mEncoderInputSurface = null;
+                mIsEncoding = false;
+                mSurfaceFrameCb.onSurfaceError(e);
+                return;
+            }
+        }
+        mEncoderSurface.draw(magicFilter.getGLFboTexture(), ptsNs);
+    }
+
+    // On the GL thread.
+    private void releaseEncoderSurface() {
+        if (mEncoderSurface != null) {
+            mEncoderSurface.release();
+            mEncoderSurface = null;
+            mEncoderSurfaceTarget = null;
+        }
+    }
+
     /**
      * 请求截取帧
      */
@@ -167,6 +247,10 @@ public class SrsCameraView extends GLSurfaceView implements GLSurfaceView.Render
         mPrevCb = cb;
     }
 
+    public void setSurfaceFrameCallback(SurfaceFrameCallback cb) {
+        mSurfaceFrameCb = cb;
+    }
+
     public void setCaptureFrameCallback(CaptureFrameCallback captureFrameCallback) {
         this.captureFrameCallback = captureFrameCallback;
     }
@@ -200,6 +284,7 @@ public class SrsCameraView extends GLSurfaceView implements GLSurfaceView.Render
         mCamera.getParameters().setPreviewSize(mPreviewWidth, mPreviewHeight);
 
         mGLPreviewBuffer = ByteBuffer.allocate(mPreviewWidth * mPreviewHeight * 4);
+        mGLPreviewInts = mGLPreviewBuffer.asIntBuffer();
         mInputAspectRatio = mPreviewWidth > mPreviewHeight ?
                 (float) mPreviewWidth / mPreviewHeight : (float) mPreviewHeight / mPreviewWidth;
     }
@@ -364,25 +449,90 @@ public class SrsCameraView extends GLSurfaceView implements GLSurfaceView.Render
         return mCamId;
     }
 
+    /**
+     * @return the time the GL thread waits for the frames read back for the preview callback,
+     *         which the pixel buffer objects keep short on GLES 3.0.
+     */
+    public SrsLatencyMeter getReadPixelsStall() {
+        return mReadPixelsStall;
+    }
+
+    /**
+     * @return the time the frames read back wait for the worker, before the preview callback.
+     */
+    public SrsLatencyMeter getFrameWait() {
+        return mFrameWait;
+    }
+
+    /**
+     * @return the frames drawn while encoding but not read back, while the pixel buffer
+     *         objects fill up or when the read failed.
+     */
+    public long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    /**
+     * @return the frames read back but overwritten by a newer one before the worker took them.
+     */
+    public long getCoalescedFrames() {
+        return mCoalescedFrames;
+    }
+
+    /**
+     * @return the frames handed to the preview callback.
+     */
+    public long getEncodedFrames() {
+        return mEncodedFrames;
+    }
+
+    /**
+     * Draws the filtered frames straight into the input surface of the hard encoder, the
+     * surface frame callback gives their presentation time. Without a surface, the frames are
+     * read back for the preview callback.
+     *
+     * @param encoderInputSurface the surface created by the encoder, or null.
+     */
+    public void enableEncoding(Surface encoderInputSurface) {
+        if (encoderInputSurface == null) {
+            enableEncoding();
+            return;
+        }
+        mEncoderInputSurface = encoderInputSurface;
+        mIsEncoding = true;
+    }
+
     public void enableEncoding() {
+        if (mGLFrames == null || mGLFrames.back().capacity() != mPreviewWidth * mPreviewHeight) {
+            IntBuffer[] frames = new IntBuffer[3];
+            for (int i = 0; i < frames.length; i++) {
+                frames[i] = IntBuffer.allocate(mPreviewWidth * mPreviewHeight);
+            }
+            mGLFrames = new SrsTripleBuffer<>(frames);
+        }
+        mGLFrames.clear();
+        mReadPixelsStall.reset();
+        mFrameWait.reset();
+        mDroppedFrames = 0;
+        mCoalescedFrames = 0;
+        mEncodedFrames = 0;
+
+        final SrsTripleBuffer<IntBuffer> frames = mGLFrames;
         worker = new Thread(new Runnable() {
             @Override
             public void run() {
                 while (!Thread.interrupted()) {
-                    while (!mGLIntBufferCache.isEmpty()) {
-                        IntBuffer picture = mGLIntBufferCache.poll();
-                        mGLPreviewBuffer.asIntBuffer().put(picture.array());
-                        mPrevCb.onGetRgbaFrame(mGLPreviewBuffer.array(), mPreviewWidth, mPreviewHeight);
-                    }
-                    // Waiting for next frame
-                    synchronized (writeLock) {
-                        try {
-                            // isEmpty() may take some time, so we set timeout to detect next frame
-                            writeLock.wait(500);
-                        } catch (InterruptedException ie) {
-                            worker.interrupt();
-                        }
+                    IntBuffer picture = frames.take();
+                    if (picture == null) {
+                        // Waiting for next frame, with a timeout to check the interruption.
+                        frames.await(TimeUnit.MILLISECONDS.toNanos(500));
+                        continue;
                     }
+                    mFrameWait.record((System.nanoTime() - frames.getPublishNanos()) / 1000);
+                    mGLPreviewInts.clear();
+                    mGLPreviewInts.put(picture.array());
+                    mPrevCb.onGetRgbaFrame(mGLPreviewBuffer.array(), mPreviewWidth, mPreviewHeight);
+                    mEncodedFrames++;
                 }
             }
         });
@@ -392,9 +542,29 @@ public class SrsCameraView extends GLSurfaceView implements GLSurfaceView.Render
 
     public void disableEncoding() {
         mIsEncoding = false;
-        mGLIntBufferCache.clear();
         mGLPreviewBuffer.clear();
 
+        if (mEncoderInputSurface != null) {
+            mEncoderInputSurface = null;
+            // The encoder surface is released before the encoder, by the GL thread which may
+            // be drawing into it.
+            final CountDownLatch released = new CountDownLatch(1);
+            queueEvent(new Runnable() {
+                @Override
+                public void run() {
+                    releaseEncoderSurface();
+                    released.countDown();
+                }
+            });
+            try {
+                if (!released.await(500, TimeUnit.MILLISECONDS)) {
+                    Log.w(TAG, "encoder surface not released by the GL thread");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
         if (worker != null) {
             worker.interrupt();
             try {
@@ -582,6 +752,22 @@ public class SrsCameraView extends GLSurfaceView implements GLSurfaceView.Render
         void onGetRgbaFrame(byte[] data, int width, int height);
     }
 
+    public interface SurfaceFrameCallback {
+
+        /**
+         * Called on the GL thread before each frame is drawn into the encoder surface.
+         *
+         * @return the presentation time of the frame in ns, negative to skip the frame.
+         */
+        long onGetSurfaceFrame();
+
+        /**
+         * Called on the GL thread when the encoder surface can't be drawn into, no frame is
+         * drawn into it anymore.
+         */
+        void onSurfaceError(IllegalStateException e);
+    }
+
     public interface CaptureFrameCallback {
         void onCaptureFrame(byte[] data, int width, int height);
     }
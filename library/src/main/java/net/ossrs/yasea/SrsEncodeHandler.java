@@ -49,6 +49,7 @@ public class SrsEncodeHandler extends Handler {
                 break;
             case MSG_ENCODE_ILLEGAL_ARGUMENT_EXCEPTION:
                 listener.onEncodeIllegalArgumentException((IllegalArgumentException) msg.obj);
+                break;
             default:
                 throw new RuntimeException("unknown msg " + msg.what);
         }
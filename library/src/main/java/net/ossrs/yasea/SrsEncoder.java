@@ -1,18 +1,22 @@
 package net.ossrs.yasea;
 
+import android.content.Context;
 import android.content.res.Configuration;
 import android.graphics.Rect;
 import android.media.AudioFormat;
 import android.media.AudioRecord;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
-import android.media.MediaCodecList;
 import android.media.MediaFormat;
 import android.media.MediaRecorder;
+import android.os.Build;
+import android.os.Bundle;
 import android.util.Log;
+import android.view.Surface;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -38,25 +42,85 @@ public class SrsEncoder {
     public static final int ASAMPLERATE = 44100;
     public static int aChannelConfig = AudioFormat.CHANNEL_IN_STEREO;
     public static final int ABITRATE = 64 * 1024;  // 64 kbps
+    // MediaFormat.KEY_MAX_B_FRAMES, API 29.
+    private static final String KEY_MAX_B_FRAMES = "max-bframes";
+    // Consecutive B-frames asked to the encoder, none of them referenced, so reordered by 1 frame.
+    private static final int MAX_B_FRAMES = 1;
+    // The frames waiting for an input buffer of the codec at most, in the asynchronous mode.
+    // The input buffers of the codec absorb the jitter, a longer video queue only adds latency.
+    private static final int VIDEO_INPUT_QUEUE_SIZE = 1;
+    private static final int AUDIO_INPUT_QUEUE_SIZE = 8;
+    // The converted frames kept for reuse, the queued ones plus the one being converted and
+    // the one being copied into the codec.
+    private static final int YUV_POOL_SIZE = VIDEO_INPUT_QUEUE_SIZE + 2;
+    // The smallest buffer the x264 output is copied into.
+    private static final int SOFT_ES_BUFFER_SIZE = 1024 * 1024;
+    // The number of frames the latencies are averaged over.
+    private static final int LATENCY_SAMPLES = 128;
 
     private SrsEncodeHandler mHandler;
 
     private SrsFlvMuxer flvMuxer;
     private SrsMp4Muxer mp4Muxer;
 
-    private MediaCodecInfo vmci;
+    private SrsEncoderCapabilities vCapabilities;
+    // Whether this encoder holds off the benchmark of the capabilities.
+    private boolean benchmarkHeld = false;
     private MediaCodec vencoder;
     private MediaCodec aencoder;
+    // The asynchronous pipelines of the codecs, null in the synchronous mode.
+    private SrsAsyncCodec videoPipeline;
+    private SrsAsyncCodec audioPipeline;
+    private boolean asyncEncoding = false;
+    // The renderer draws into the input surface of the hard encoder, no pixels are read back.
+    private boolean surfaceInputEnabled = false;
+    private Surface mInputSurface;
+
+    // The buffers of the codecs in the synchronous mode, fetched once per start.
+    private ByteBuffer[] vInputBuffers;
+    // The input buffer a frame is converted into, held by the capture thread until the
+    // conversion succeeds.
+    private int vInputIndex = -1;
+    // The buffers the frames are converted into, in the asynchronous mode when no input buffer
+    // is waiting.
+    private final SrsFrameBufferPool yuvPool = new SrsFrameBufferPool(YUV_POOL_SIZE);
+    private ByteBuffer[] vOutputBuffers;
+    private ByteBuffer[] aInputBuffers;
+    private ByteBuffer[] aOutputBuffers;
+    private final MediaCodec.BufferInfo vebi = new MediaCodec.BufferInfo();
+    private final MediaCodec.BufferInfo aebi = new MediaCodec.BufferInfo();
+    private final MediaCodec.BufferInfo swbi = new MediaCodec.BufferInfo();
+
+    // From the capture of a frame to its muxing.
+    private final SrsLatencyMeter videoLatency = new SrsLatencyMeter(LATENCY_SAMPLES);
+    private final SrsLatencyMeter audioLatency = new SrsLatencyMeter(LATENCY_SAMPLES);
 
     private boolean networkWeakTriggered = false;
     private boolean mCameraFaceFront = true;
     private boolean useSoftEncoder = false;
     private boolean canSoftEncode = false;
+    // The x264 threading and rate control, a negative lookahead keeps the one of the preset.
+    private int softThreads = 0;
+    private boolean softSlicedThreads = false;
+    private int softSyncLookahead = -1;
+    private int softRcLookahead = -1;
+    private int softVbvMaxBitrate = 0;
+    private int softVbvBufferSize = 0;
+    private boolean softZeroLatency = true;
+    // The frames converted by the capture thread for the x264 encode thread, the newest one
+    // wins when the encoder is behind.
+    private SrsTripleBuffer<SrsYuvFrame> softFrames;
+    private Thread softEncodeThread;
+    private volatile long softDroppedFrames;
 
     private long mPresentTimeUs;
     private long mPausetime;
 
     private int mVideoColorFormat;
+    // The highest level of the high profile supported by the hard encoder, 0 if unsupported.
+    private int mHighProfileLevel;
+    private boolean bFramesEnabled = false;
+    private volatile SrsBitrateController bitrateController;
 
     private int videoFlvTrack;
     private int videoMp4Track;
@@ -75,8 +139,20 @@ public class SrsEncoder {
     // YUY2 -> YUV422SP  yuyv yuyv
 
     public SrsEncoder(SrsEncodeHandler handler) {
+        this(handler, null);
+    }
+
+    /**
+     * @param context any context of the app, to persist the encoder capabilities probed on the
+     *                first run, so the codecs are not walked again on the next runs.
+     */
+    public SrsEncoder(SrsEncodeHandler handler, Context context) {
         mHandler = handler;
-        mVideoColorFormat = chooseVideoEncoder();
+        vCapabilities = SrsEncoderCapabilities.get(context);
+        mVideoColorFormat = vCapabilities.getColorFormat();
+        mHighProfileLevel = vCapabilities.getHighProfileLevel();
+        Log.i(TAG, String.format("vencoder %s choose color format 0x%x(%d), encodes %.1ffps", vCapabilities.getCodecName(),
+            mVideoColorFormat, mVideoColorFormat, vCapabilities.getEncodeFps()));
     }
 
     public void setFlvMuxer(SrsFlvMuxer flvMuxer) {
@@ -91,14 +167,30 @@ public class SrsEncoder {
         if (flvMuxer == null || mp4Muxer == null) {
             return false;
         }
+        if (!benchmarkHeld) {
+            SrsEncoderCapabilities.onEncoderStarted();
+            benchmarkHeld = true;
+        }
 
         // the referent PTS for video and audio encoder.
         mPresentTimeUs = System.nanoTime() / 1000;
+        videoLatency.reset();
+        audioLatency.reset();
+        // requires sdk level 23+, Android 6.0, the M, for the callbacks on our own thread.
+        boolean async = asyncEncoding && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+
+        // the adaptive bitrate restarts from the configured bitrate.
+        int bitrate = vBitrate;
+        if (bitrateController != null) {
+            bitrateController = new SrsBitrateController(bitrateController.getMinBitrate(),
+                bitrateController.getMaxBitrate(), vBitrate);
+            bitrate = bitrateController.getBitrate();
+        }
 
         // Note: the stride of resolution must be set as 16x for hard encoding with some chip like MTK
         // Since Y component is quadruple size as U and V component, the stride must be set as 32x
         if (!useSoftEncoder && (vOutWidth % 32 != 0 || vOutHeight % 32 != 0)) {
-            if (vmci.getName().contains("MTK")) {
+            if (vCapabilities.getCodecName().contains("MTK")) {
                 //throw new AssertionError("MTK encoding revolution stride must be 32x");
             }
         }
@@ -111,14 +203,25 @@ public class SrsEncoder {
         // the first picture on the player, a spare lower GOP value is suggested. But note that
         // lower GOP will produce more I frames and therefore more streaming data flow.
         // setEncoderGop(15);
-        setEncoderBitrate(vBitrate);
+        setEncoderBitrate(bitrate);
         setEncoderPreset(x264Preset);
 
         if (useSoftEncoder) {
+            setEncoderThreads(softThreads, softSlicedThreads);
+            setEncoderLookahead(softSyncLookahead, softRcLookahead);
+            // x264 only retargets the bitrate of an encoder opened with a VBV, which the
+            // adaptive bitrate then scales along with each target.
+            int vbvMaxBitrate = softVbvMaxBitrate;
+            if (bitrateController != null && vbvMaxBitrate <= 0) {
+                vbvMaxBitrate = bitrate;
+            }
+            setEncoderVbv(vbvMaxBitrate, softVbvBufferSize);
+            setEncoderZeroLatency(softZeroLatency);
             canSoftEncode = openSoftEncoder();
             if (!canSoftEncode) {
                 return false;
             }
+            startSoftEncodeThread();
         }
 
         // aencoder pcm to aac raw stream.
@@ -130,6 +233,10 @@ public class SrsEncoder {
             e.printStackTrace();
             return false;
         }
+        if (async) {
+            // the pcm buffer is reused by the audio thread, so it is copied.
+            audioPipeline = new SrsAsyncCodec("SrsAudioEncoder", aencoder, AUDIO_INPUT_QUEUE_SIZE, audioListener);
+        }
 
         // setup the aencoder.
         // @see https://developer.android.com/reference/android/media/MediaCodec.html
@@ -145,32 +252,116 @@ public class SrsEncoder {
         // vencoder yuv to 264 es stream.
         // requires sdk level 16+, Android 4.1, 4.1.1, the JELLY_BEAN
         try {
-            vencoder = MediaCodec.createByCodecName(vmci.getName());
+            vencoder = MediaCodec.createByCodecName(vCapabilities.getCodecName());
         } catch (IOException e) {
             Log.e(TAG, "create vencoder failed.");
             e.printStackTrace();
             return false;
         }
+        if (async && !useSoftEncoder) {
+            // the frames are converted into pooled buffers, queued by reference.
+            videoPipeline = new SrsAsyncCodec("SrsVideoEncoder", vencoder, VIDEO_INPUT_QUEUE_SIZE, videoListener);
+        }
 
         // setup the vencoder.
         // Note: landscape to portrait, 90 degree rotation, so we need to switch width and height in configuration
-        MediaFormat videoFormat = MediaFormat.createVideoFormat(VCODEC, vOutWidth, vOutHeight);
-        videoFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, mVideoColorFormat);
-        videoFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, 0);
-        videoFormat.setInteger(MediaFormat.KEY_BIT_RATE, vBitrate);
-        videoFormat.setInteger(MediaFormat.KEY_FRAME_RATE, VFPS);
-        videoFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
-        vencoder.configure(videoFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        boolean highProfile = bFramesEnabled && !useSoftEncoder && mHighProfileLevel > 0
+            && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+        // the B-frames cost the encoder more, not worth it when it was measured too slow.
+        if (highProfile && !vCapabilities.canEncodeInRealTime(vOutWidth, vOutHeight, VFPS)) {
+            Log.w(TAG, String.format("vencoder benchmark encodes %.1ffps, too slow for B-frames at %dx%d",
+                vCapabilities.getEncodeFps(), vOutWidth, vOutHeight));
+            highProfile = false;
+        }
+        // requires sdk level 18+, Android 4.3, the JELLY_BEAN_MR2, for the input surface.
+        boolean surfaceInput = surfaceInputEnabled && !useSoftEncoder;
+        MediaFormat videoFormat = null;
+        while (videoFormat == null) {
+            try {
+                videoFormat = createVideoFormat(bitrate, highProfile, surfaceInput);
+                vencoder.configure(videoFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+                if (surfaceInput) {
+                    mInputSurface = vencoder.createInputSurface();
+                }
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                if (highProfile) {
+                    // Some encoders list the high profile but reject it, fall back to the default one.
+                    Log.w(TAG, "vencoder rejected high profile, fallback to default profile: " + e.getMessage());
+                    highProfile = false;
+                } else if (surfaceInput) {
+                    Log.w(TAG, "vencoder rejected surface input, fallback to yuv input: " + e.getMessage());
+                    surfaceInput = false;
+                } else {
+                    throw e;
+                }
+                videoFormat = null;
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                    vencoder.reset();
+                    if (videoPipeline != null) {
+                        videoPipeline.attach();
+                    }
+                } else {
+                    // reset() requires sdk level 21+, start over with a new codec, the async
+                    // pipeline requires sdk level 23+ so there is none to attach.
+                    vencoder.release();
+                    try {
+                        vencoder = MediaCodec.createByCodecName(vCapabilities.getCodecName());
+                    } catch (IOException ioe) {
+                        Log.e(TAG, "recreate vencoder failed.");
+                        ioe.printStackTrace();
+                        vencoder = null;
+                        return false;
+                    }
+                }
+            }
+        }
+        // the frames are output in decoding order, reordered by the B-frames if any.
+        int reorderDepth = highProfile ? MAX_B_FRAMES : 0;
+        flvMuxer.setVideoReorderDepth(reorderDepth);
+        mp4Muxer.setVideoReorderDepth(reorderDepth);
         // add the video tracker to muxer.
         videoFlvTrack = flvMuxer.addTrack(videoFormat);
         videoMp4Track = mp4Muxer.addTrack(videoFormat);
 
         // start device and encoder.
-        vencoder.start();
-        aencoder.start();
+        vInputIndex = -1;
+        if (videoPipeline != null) {
+            videoPipeline.start();
+        } else {
+            vencoder.start();
+            if (mInputSurface == null) {
+                vInputBuffers = vencoder.getInputBuffers();
+            }
+            vOutputBuffers = vencoder.getOutputBuffers();
+        }
+        if (audioPipeline != null) {
+            audioPipeline.start();
+        } else {
+            aencoder.start();
+            aInputBuffers = aencoder.getInputBuffers();
+            aOutputBuffers = aencoder.getOutputBuffers();
+        }
+        Log.i(TAG, String.format("encoders started, %s mode, %s input", async ? "async" : "sync",
+            mInputSurface != null ? "surface" : "yuv"));
         return true;
     }
 
+    private MediaFormat createVideoFormat(int bitrate, boolean highProfile, boolean surfaceInput) {
+        MediaFormat videoFormat = MediaFormat.createVideoFormat(VCODEC, vOutWidth, vOutHeight);
+        videoFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, surfaceInput ?
+            MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface : mVideoColorFormat);
+        videoFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, 0);
+        videoFormat.setInteger(MediaFormat.KEY_BIT_RATE, bitrate);
+        videoFormat.setInteger(MediaFormat.KEY_FRAME_RATE, VFPS);
+        videoFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+        if (highProfile) {
+            videoFormat.setInteger(MediaFormat.KEY_PROFILE, MediaCodecInfo.CodecProfileLevel.AVCProfileHigh);
+            videoFormat.setInteger(MediaFormat.KEY_LEVEL, mHighProfileLevel);
+            videoFormat.setInteger(KEY_MAX_B_FRAMES, MAX_B_FRAMES);
+        }
+        return videoFormat;
+    }
+
     public void pause(){
         mPausetime = System.nanoTime() / 1000;
     }
@@ -182,16 +373,22 @@ public class SrsEncoder {
     }
     public void stop() {
         if (useSoftEncoder) {
+            stopSoftEncodeThread();
             closeSoftEncoder();
             canSoftEncode = false;
         }
 
         if (aencoder != null) {
             Log.i(TAG, "stop aencoder");
-            try {
-                aencoder.stop();
-            }catch (IllegalStateException e){
-                e.printStackTrace();
+            if (audioPipeline != null) {
+                audioPipeline.stop();
+                audioPipeline = null;
+            } else {
+                try {
+                    aencoder.stop();
+                }catch (IllegalStateException e){
+                    e.printStackTrace();
+                }
             }
             aencoder.release();
             aencoder = null;
@@ -199,14 +396,81 @@ public class SrsEncoder {
 
         if (vencoder != null) {
             Log.i(TAG, "stop vencoder");
-            try {
-                vencoder.stop();
-            }catch (IllegalStateException e){
-                e.printStackTrace();
+            if (videoPipeline != null) {
+                videoPipeline.stop();
+                videoPipeline = null;
+            } else {
+                try {
+                    vencoder.stop();
+                }catch (IllegalStateException e){
+                    e.printStackTrace();
+                }
             }
             vencoder.release();
             vencoder = null;
+            vInputIndex = -1;
+        }
+        yuvPool.clear();
+        if (mInputSurface != null) {
+            mInputSurface.release();
+            mInputSurface = null;
         }
+        Log.i(TAG, String.format("video latency avg=%dms p95=%dms, audio latency avg=%dms p95=%dms",
+            videoLatency.getAverageUs() / 1000, videoLatency.getPercentileUs(95) / 1000,
+            audioLatency.getAverageUs() / 1000, audioLatency.getPercentileUs(95) / 1000));
+        if (benchmarkHeld) {
+            benchmarkHeld = false;
+            SrsEncoderCapabilities.onEncoderStopped();
+        }
+    }
+
+    /**
+     * Encodes with the codec callbacks on dedicated threads, so the capture threads never wait
+     * for the codecs, requires API 23, the synchronous mode is used below. Applies from the
+     * next start.
+     */
+    public void setAsyncEncoding(boolean enabled) {
+        asyncEncoding = enabled;
+    }
+
+    /**
+     * Encodes the frames drawn by the renderer into the input surface of the hard encoder,
+     * instead of reading them back and converting them with libyuv. The x264 encoder always
+     * reads them back. Applies from the next start.
+     */
+    public void setSurfaceInput(boolean enabled) {
+        surfaceInputEnabled = enabled;
+    }
+
+    /**
+     * @return the surface to draw the video frames into, null when the frames are given as
+     *         pixels.
+     */
+    public Surface getInputSurface() {
+        return mInputSurface;
+    }
+
+    /**
+     * @return the number of captured video frames dropped because the codec was behind, in
+     *         the asynchronous mode or by the x264 encoder.
+     */
+    public long getDroppedVideoFrames() {
+        SrsAsyncCodec pipeline = videoPipeline;
+        return pipeline != null ? pipeline.getDroppedFrames() : softDroppedFrames;
+    }
+
+    /**
+     * @return the latencies of the video frames, from their capture to their muxing.
+     */
+    public SrsLatencyMeter getVideoLatency() {
+        return videoLatency;
+    }
+
+    /**
+     * @return the latencies of the audio frames, from their capture to their muxing.
+     */
+    public SrsLatencyMeter getAudioLatency() {
+        return audioLatency;
     }
 
     public void setCameraFrontFace() {
@@ -274,11 +538,102 @@ public class SrsEncoder {
         x264Preset = "superfast";
     }
 
+    /**
+     * Sets the threads of the x264 encoder, applies from the next start.
+     *
+     * @param threads the number of threads, 0 to derive it from the cores.
+     * @param slicedThreads true to encode the slices of each frame in parallel, which adds no
+     *                      latency but splits the frames in slices some decoders play badly,
+     *                      false to encode several frames in parallel, which delays the output
+     *                      by a frame per thread.
+     */
+    public void setSoftEncoderThreads(int threads, boolean slicedThreads) {
+        softThreads = threads;
+        softSlicedThreads = slicedThreads;
+    }
+
+    /**
+     * Sets the lookahead of the x264 encoder in frames, each one delays the output by a frame,
+     * applies from the next start.
+     *
+     * @param syncLookahead the frames buffered for the threaded lookahead, -1 for the default.
+     * @param rcLookahead the frames the rate control looks ahead, -1 for the default.
+     */
+    public void setSoftEncoderLookahead(int syncLookahead, int rcLookahead) {
+        softSyncLookahead = syncLookahead;
+        softRcLookahead = rcLookahead;
+    }
+
+    /**
+     * Caps the bitrate of the x264 encoder with a VBV, applies from the next start.
+     *
+     * @param maxBitrate the ceiling in bps, 0 for none, or the bitrate under the adaptive
+     * bitrate which needs the VBV to retarget x264.
+     * @param bufferSize the buffer in bits, 0 for one second at the ceiling.
+     */
+    public void setSoftEncoderVbv(int maxBitrate, int bufferSize) {
+        softVbvMaxBitrate = maxBitrate;
+        softVbvBufferSize = bufferSize;
+    }
+
+    /**
+     * Tunes the x264 encoder for zero latency, on by default, which disables the lookahead and
+     * the frame delays of the preset. Applies from the next start.
+     */
+    public void setSoftEncoderZeroLatency(boolean enabled) {
+        softZeroLatency = enabled;
+    }
+
+    /**
+     * Encodes with the high profile and B-frames when the hard encoder supports them, the
+     * muxers then derive the dts of the reordered frames. Applies from the next start.
+     */
+    public void setVideoBFrames(boolean enabled) {
+        bFramesEnabled = enabled;
+    }
+
     public void setBitrate(int vBitrate) {
         SrsEncoder.vBitrate = vBitrate;
         x264Preset = "veryfast";
     }
 
+    /**
+     * Enables the adaptive bitrate, the video bitrate is then retargeted while streaming
+     * between the floor and the ceiling according to the RTMP send queue and throughput.
+     * @param minBitrate the floor in bps, 0 to disable the adaptive bitrate
+     * @param maxBitrate the ceiling in bps
+     */
+    public void setAdaptiveBitrate(int minBitrate, int maxBitrate) {
+        bitrateController = minBitrate > 0 ? new SrsBitrateController(minBitrate, maxBitrate, vBitrate) : null;
+    }
+
+    // Called before each video frame is encoded, the controller only samples once per second.
+    private void adaptBitrate() {
+        SrsBitrateController controller = bitrateController;
+        if (controller == null) {
+            return;
+        }
+
+        AtomicInteger videoFrameCacheNumber = flvMuxer.getVideoFrameCacheNumber();
+        int bitrate = controller.getBitrate();
+        int target = controller.update(System.nanoTime() / 1000000,
+            videoFrameCacheNumber == null ? 0 : videoFrameCacheNumber.get(),
+            flvMuxer.getVideoBitrate(), flvMuxer.getWriteBlockingNanos());
+        if (target == bitrate) {
+            return;
+        }
+
+        Log.i(TAG, String.format("adaptive bitrate %dkbps -> %dkbps", bitrate / 1024, target / 1024));
+        if (useSoftEncoder) {
+            setEncoderBitrate(target);
+        } else if (vencoder != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            // requires sdk level 19+, Android 4.4, the KITKAT
+            Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, target);
+            vencoder.setParameters(params);
+        }
+    }
+
     public int getPreviewWidth() {
         return vPrevWidth;
     }
@@ -307,7 +662,7 @@ public class SrsEncoder {
         // Note: the stride of resolution must be set as 16x for hard encoding with some chip like MTK
         // Since Y component is quadruple size as U and V component, the stride must be set as 32x
         if (!useSoftEncoder && (vOutWidth % 32 != 0 || vOutHeight % 32 != 0)) {
-            if (vmci.getName().contains("MTK")) {
+            if (vCapabilities.getCodecName().contains("MTK")) {
                 //throw new AssertionError("MTK encoding revolution stride must be 32x");
             }
         }
@@ -315,80 +670,222 @@ public class SrsEncoder {
         setEncoderResolution(vOutWidth, vOutHeight);
     }
 
-    private void onProcessedYuvFrame(byte[] yuvFrame, long pts) {
-        ByteBuffer[] inBuffers = vencoder.getInputBuffers();
-        ByteBuffer[] outBuffers = vencoder.getOutputBuffers();
+    // The buffer a frame is converted into by libyuv: an input buffer of the codec, so the frame
+    // is never copied again, or in the asynchronous mode a pooled one when none is waiting.
+    private ByteBuffer acquireYuvBuffer() {
+        SrsAsyncCodec pipeline = videoPipeline;
+        if (pipeline != null) {
+            if (vInputIndex < 0) {
+                vInputIndex = pipeline.acquireInput();
+            }
+            if (vInputIndex >= 0) {
+                return vencoder.getInputBuffer(vInputIndex);
+            }
+            return yuvPool.acquire(vOutWidth, vOutHeight, mVideoColorFormat);
+        }
+        if (vInputIndex < 0) {
+            vInputIndex = vencoder.dequeueInputBuffer(-1);
+            if (vInputIndex < 0) {
+                return null;
+            }
+        }
+        return vInputBuffers[vInputIndex];
+    }
+
+    private void onProcessedYuvFrame(ByteBuffer yuvFrame, int size, long pts) {
+        SrsAsyncCodec pipeline = videoPipeline;
+        if (size < 0) {
+            // An input buffer of the codec is kept for the next frame.
+            if (pipeline != null && vInputIndex < 0) {
+                yuvPool.release(yuvFrame, vOutWidth, vOutHeight, mVideoColorFormat);
+            }
+            mHandler.notifyEncodeIllegalArgumentException(new IllegalArgumentException("libyuv failure"));
+            return;
+        }
 
-        int inBufferIndex = vencoder.dequeueInputBuffer(-1);
-        if (inBufferIndex >= 0) {
-            ByteBuffer bb = inBuffers[inBufferIndex];
-            bb.clear();
-            bb.put(yuvFrame, 0, yuvFrame.length);
-            vencoder.queueInputBuffer(inBufferIndex, 0, yuvFrame.length, pts, 0);
+        adaptBitrate();
+
+        if (pipeline != null) {
+            if (vInputIndex >= 0) {
+                pipeline.queueAcquiredInput(vInputIndex, size, pts);
+                vInputIndex = -1;
+            } else {
+                yuvFrame.limit(size);
+                pipeline.submit(yuvFrame, pts);
+            }
+            return;
         }
 
+        vencoder.queueInputBuffer(vInputIndex, 0, size, pts, 0);
+        vInputIndex = -1;
+
+        drainVideoEncoder();
+    }
+
+    // Muxes the video frames encoded so far, in the synchronous mode.
+    private void drainVideoEncoder() {
         for (; ; ) {
-            MediaCodec.BufferInfo vebi = new MediaCodec.BufferInfo();
             int outBufferIndex = vencoder.dequeueOutputBuffer(vebi, 0);
             if (outBufferIndex >= 0) {
-                ByteBuffer bb = outBuffers[outBufferIndex];
+                ByteBuffer bb = vOutputBuffers[outBufferIndex];
                 onEncodedAnnexbFrame(bb, vebi);
                 vencoder.releaseOutputBuffer(outBufferIndex, false);
-            } else {
+            } else if (outBufferIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                vOutputBuffers = vencoder.getOutputBuffers();
+            } else if (outBufferIndex != MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
                 break;
             }
         }
     }
 
-    private void onSoftEncodedData(byte[] es, long pts, boolean isKeyFrame) {
-        ByteBuffer bb = ByteBuffer.wrap(es);
-        MediaCodec.BufferInfo vebi = new MediaCodec.BufferInfo();
-        vebi.offset = 0;
-        vebi.size = es.length;
-        vebi.presentationTimeUs = pts;
-        vebi.flags = isKeyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
-        onEncodedAnnexbFrame(bb, vebi);
+    // Called by I420SoftEncode on the soft encode thread, es is reused for the next frame.
+    private void onSoftEncodedData(ByteBuffer es, int size, long pts, boolean isKeyFrame) {
+        es.clear();
+        es.limit(size);
+        swbi.offset = 0;
+        swbi.size = size;
+        swbi.presentationTimeUs = pts;
+        swbi.flags = isKeyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+        onEncodedAnnexbFrame(es, swbi);
+    }
+
+    // A frame converted for the x264 encoder.
+    private static final class SrsYuvFrame {
+        final ByteBuffer data;
+        long pts;
+
+        SrsYuvFrame(int size) {
+            data = ByteBuffer.allocateDirect(size);
+        }
+    }
+
+    private void startSoftEncodeThread() {
+        SrsYuvFrame[] slots = new SrsYuvFrame[3];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = new SrsYuvFrame(vOutWidth * vOutHeight * 3 / 2);
+        }
+        final SrsTripleBuffer<SrsYuvFrame> frames = new SrsTripleBuffer<>(slots);
+        final ByteBuffer es = ByteBuffer.allocateDirect(Math.max(SOFT_ES_BUFFER_SIZE, vOutWidth * vOutHeight * 3 / 2));
+        softDroppedFrames = 0;
+        softFrames = frames;
+
+        // x264 encodes while the capture thread converts the next frame.
+        softEncodeThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!Thread.interrupted()) {
+                    SrsYuvFrame frame = frames.take();
+                    if (frame == null) {
+                        frames.await(TimeUnit.MILLISECONDS.toNanos(500));
+                        continue;
+                    }
+                    // x264 is reconfigured between two encodes, on its thread.
+                    adaptBitrate();
+                    if (I420SoftEncode(frame.data, frame.pts, es) != 0) {
+                        mHandler.notifyEncodeIllegalArgumentException(new IllegalArgumentException("x264 failure"));
+                    }
+                }
+            }
+        }, "SrsSoftEncoder");
+        softEncodeThread.start();
+    }
+
+    private void stopSoftEncodeThread() {
+        softFrames = null;
+        if (softEncodeThread != null) {
+            softEncodeThread.interrupt();
+            try {
+                softEncodeThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            softEncodeThread = null;
+        }
     }
 
     // when got encoded h264 es stream.
     private void onEncodedAnnexbFrame(ByteBuffer es, MediaCodec.BufferInfo bi) {
         mp4Muxer.writeSampleData(videoMp4Track, es.duplicate(), bi);
         flvMuxer.writeSampleData(videoFlvTrack, es, bi);
+        recordLatency(videoLatency, bi);
     }
 
     // when got encoded aac raw stream.
     private void onEncodedAacFrame(ByteBuffer es, MediaCodec.BufferInfo bi) {
         mp4Muxer.writeSampleData(audioMp4Track, es.duplicate(), bi);
         flvMuxer.writeSampleData(audioFlvTrack, es, bi);
+        recordLatency(audioLatency, bi);
     }
 
+    // The pts is the capture time relative to the referent PTS, so the latency is derived
+    // from it when the frame has been muxed.
+    private void recordLatency(SrsLatencyMeter meter, MediaCodec.BufferInfo bi) {
+        if ((bi.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+            meter.record(System.nanoTime() / 1000 - mPresentTimeUs - bi.presentationTimeUs);
+        }
+    }
+
+    private final SrsAsyncCodec.Listener videoListener = new SrsAsyncCodec.Listener() {
+        @Override
+        public void onEncodedFrame(ByteBuffer bb, MediaCodec.BufferInfo bi) {
+            onEncodedAnnexbFrame(bb, bi);
+        }
+
+        @Override
+        public void onEncodeError(Exception e) {
+            mHandler.notifyEncodeIllegalArgumentException(new IllegalArgumentException("vencoder error", e));
+        }
+
+        @Override
+        public void onFrameReleased(ByteBuffer frame) {
+            yuvPool.release(frame, vOutWidth, vOutHeight, mVideoColorFormat);
+        }
+    };
+
+    private final SrsAsyncCodec.Listener audioListener = new SrsAsyncCodec.Listener() {
+        @Override
+        public void onEncodedFrame(ByteBuffer bb, MediaCodec.BufferInfo bi) {
+            onEncodedAacFrame(bb, bi);
+        }
+
+        @Override
+        public void onEncodeError(Exception e) {
+            mHandler.notifyEncodeIllegalArgumentException(new IllegalArgumentException("aencoder error", e));
+        }
+
+        @Override
+        public void onFrameReleased(ByteBuffer frame) {
+        }
+    };
+
     public void onGetPcmFrame(byte[] data, int size) {
-        // Check video frame cache number to judge the networking situation.
-        // Just cache GOP / FPS seconds data according to latency.
-        AtomicInteger videoFrameCacheNumber = flvMuxer.getVideoFrameCacheNumber();
-        if (videoFrameCacheNumber != null && videoFrameCacheNumber.get() < VGOP) {
-            ByteBuffer[] inBuffers = aencoder.getInputBuffers();
-            ByteBuffer[] outBuffers = aencoder.getOutputBuffers();
-
-            int inBufferIndex = aencoder.dequeueInputBuffer(-1);
-            if (inBufferIndex >= 0) {
-                ByteBuffer bb = inBuffers[inBufferIndex];
-                bb.clear();
-                bb.put(data, 0, size);
-                long pts = System.nanoTime() / 1000 - mPresentTimeUs;
-                aencoder.queueInputBuffer(inBufferIndex, 0, size, pts, 0);
-            }
+        // Audio is always encoded, when the network is weak the muxer drops video frames
+        // from its send queue and never drops audio.
+        long pts = System.nanoTime() / 1000 - mPresentTimeUs;
+        SrsAsyncCodec pipeline = audioPipeline;
+        if (pipeline != null) {
+            pipeline.submit(data, size, pts);
+            return;
+        }
 
-            for (; ; ) {
-                MediaCodec.BufferInfo aebi = new MediaCodec.BufferInfo();
-                int outBufferIndex = aencoder.dequeueOutputBuffer(aebi, 0);
-                if (outBufferIndex >= 0) {
-                    ByteBuffer bb = outBuffers[outBufferIndex];
-                    onEncodedAacFrame(bb, aebi);
-                    aencoder.releaseOutputBuffer(outBufferIndex, false);
-                } else {
-                    break;
-                }
+        int inBufferIndex = aencoder.dequeueInputBuffer(-1);
+        if (inBufferIndex >= 0) {
+            ByteBuffer bb = aInputBuffers[inBufferIndex];
+            bb.clear();
+            bb.put(data, 0, size);
+            aencoder.queueInputBuffer(inBufferIndex, 0, size, pts, 0);
+        }
+
+        for (; ; ) {
+            int outBufferIndex = aencoder.dequeueOutputBuffer(aebi, 0);
+            if (outBufferIndex >= 0) {
+                ByteBuffer bb = aOutputBuffers[outBufferIndex];
+                onEncodedAacFrame(bb, aebi);
+                aencoder.releaseOutputBuffer(outBufferIndex, false);
+            } else if (outBufferIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                aOutputBuffers = aencoder.getOutputBuffers();
+            } else if (outBufferIndex != MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                break;
             }
         }
     }
@@ -402,11 +899,9 @@ public class SrsEncoder {
             if (useSoftEncoder) {
                 swRgbaFrame(data, width, height, pts);
             } else {
-                byte[] processedData = hwRgbaFrame(data, width, height);
-                if (processedData != null) {
-                    onProcessedYuvFrame(processedData, pts);
-                } else {
-                    mHandler.notifyEncodeIllegalArgumentException(new IllegalArgumentException("libyuv failure"));
+                ByteBuffer yuvFrame = acquireYuvBuffer();
+                if (yuvFrame != null) {
+                    onProcessedYuvFrame(yuvFrame, hwRgbaFrame(data, width, height, yuvFrame), pts);
                 }
             }
 
@@ -420,6 +915,44 @@ public class SrsEncoder {
         }
     }
 
+    /**
+     * Called by the renderer before it draws a frame into the input surface.
+     *
+     * @return the presentation time of the frame in ns, or -1 to skip the frame when the
+     *         network is weak.
+     */
+    public long onGetSurfaceFrame() {
+        // Check video frame cache number to judge the networking situation.
+        // Just cache GOP / FPS seconds data according to latency.
+        AtomicInteger videoFrameCacheNumber = flvMuxer.getVideoFrameCacheNumber();
+        if (videoFrameCacheNumber != null && videoFrameCacheNumber.get() < VGOP) {
+            long pts = System.nanoTime() / 1000 - mPresentTimeUs;
+            adaptBitrate();
+            if (videoPipeline == null) {
+                // the frames drawn before are output meanwhile.
+                drainVideoEncoder();
+            }
+
+            if (networkWeakTriggered) {
+                networkWeakTriggered = false;
+                mHandler.notifyNetworkResume();
+            }
+            return pts * 1000;
+        } else {
+            mHandler.notifyNetworkWeak();
+            networkWeakTriggered = true;
+            return -1;
+        }
+    }
+
+    /**
+     * Called by the renderer when it can't draw into the input surface, the video stops until
+     * the encoding is restarted.
+     */
+    public void onSurfaceError(IllegalStateException e) {
+        mHandler.notifyEncodeIllegalArgumentException(new IllegalArgumentException("encoder surface error", e));
+    }
+
     public void onGetYuvNV21Frame(byte[] data, int width, int height, Rect boundingBox) {
         // Check video frame cache number to judge the networking situation.
         // Just cache GOP / FPS seconds data according to latency.
@@ -430,11 +963,9 @@ public class SrsEncoder {
                 throw new UnsupportedOperationException("Not implemented");
                 //swRgbaFrame(data, width, height, pts);
             } else {
-                byte[] processedData = hwYUVNV21FrameScaled(data, width, height, boundingBox);
-                if (processedData != null) {
-                    onProcessedYuvFrame(processedData, pts);
-                } else {
-                    mHandler.notifyEncodeIllegalArgumentException(new IllegalArgumentException("libyuv failure"));
+                ByteBuffer yuvFrame = acquireYuvBuffer();
+                if (yuvFrame != null) {
+                    onProcessedYuvFrame(yuvFrame, hwYUVNV21FrameScaled(data, width, height, boundingBox, yuvFrame), pts);
                 }
             }
 
@@ -458,11 +989,9 @@ public class SrsEncoder {
                 throw new UnsupportedOperationException("Not implemented");
                 //swArgbFrame(data, width, height, pts);
             } else {
-                byte[] processedData = hwArgbFrameScaled(data, width, height, boundingBox);
-                if (processedData != null) {
-                    onProcessedYuvFrame(processedData, pts);
-                } else {
-                    mHandler.notifyEncodeIllegalArgumentException(new IllegalArgumentException("libyuv failure"));
+                ByteBuffer yuvFrame = acquireYuvBuffer();
+                if (yuvFrame != null) {
+                    onProcessedYuvFrame(yuvFrame, hwArgbFrameScaled(data, width, height, boundingBox, yuvFrame), pts);
                 }
             }
 
@@ -486,11 +1015,9 @@ public class SrsEncoder {
                 throw new UnsupportedOperationException("Not implemented");
                 //swArgbFrame(data, width, height, pts);
             } else {
-                byte[] processedData = hwArgbFrame(data, width, height);
-                if (processedData != null) {
-                    onProcessedYuvFrame(processedData, pts);
-                } else {
-                    mHandler.notifyEncodeIllegalArgumentException(new IllegalArgumentException("libyuv failure"));
+                ByteBuffer yuvFrame = acquireYuvBuffer();
+                if (yuvFrame != null) {
+                    onProcessedYuvFrame(yuvFrame, hwArgbFrame(data, width, height, yuvFrame), pts);
                 }
             }
 
@@ -504,52 +1031,57 @@ public class SrsEncoder {
         }
     }
 
-    private byte[] hwRgbaFrame(byte[] data, int width, int height) {
-        switch (mVideoColorFormat) {
-            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar:
-                return RGBAToI420(data, width, height, true, 180);
-            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar:
-                return RGBAToNV12(data, width, height, true, 180);
-            default:
-                throw new IllegalStateException("Unsupported color format!");
-        }
+    // The hwXxx conversions write the frame at the start of the buffer and return its size, or
+    // a negative value on failure.
+    private int hwRgbaFrame(byte[] data, int width, int height, ByteBuffer dst) {
+        boolean planar = isPlanarColorFormat();
+        return planar ? RGBAToI420(data, width, height, true, 180, dst)
+            : RGBAToNV12(data, width, height, true, 180, dst);
     }
 
-    private byte[] hwYUVNV21FrameScaled(byte[] data, int width, int height, Rect boundingBox) {
-        switch (mVideoColorFormat) {
-            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar:
-                return NV21ToI420Scaled(data, width, height, true, 180, boundingBox.left, boundingBox.top, boundingBox.width(), boundingBox.height());
-            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar:
-                return NV21ToNV12Scaled(data, width, height, true, 180, boundingBox.left, boundingBox.top, boundingBox.width(), boundingBox.height());
-            default:
-                throw new IllegalStateException("Unsupported color format!");
-        }
+    private int hwYUVNV21FrameScaled(byte[] data, int width, int height, Rect boundingBox, ByteBuffer dst) {
+        boolean planar = isPlanarColorFormat();
+        return planar ? NV21ToI420Scaled(data, width, height, true, 180, boundingBox.left, boundingBox.top, boundingBox.width(), boundingBox.height(), dst)
+            : NV21ToNV12Scaled(data, width, height, true, 180, boundingBox.left, boundingBox.top, boundingBox.width(), boundingBox.height(), dst);
     }
 
-    private byte[] hwArgbFrameScaled(int[] data, int width, int height, Rect boundingBox) {
-        switch (mVideoColorFormat) {
-            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar:
-                return ARGBToI420Scaled(data, width, height, false, 0, boundingBox.left, boundingBox.top, boundingBox.width(), boundingBox.height());
-            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar:
-                return ARGBToNV12Scaled(data, width, height, false, 0, boundingBox.left, boundingBox.top, boundingBox.width(), boundingBox.height());
-            default:
-                throw new IllegalStateException("Unsupported color format!");
-        }
+    private int hwArgbFrameScaled(int[] data, int width, int height, Rect boundingBox, ByteBuffer dst) {
+        boolean planar = isPlanarColorFormat();
+        return planar ? ARGBToI420Scaled(data, width, height, false, 0, boundingBox.left, boundingBox.top, boundingBox.width(), boundingBox.height(), dst)
+            : ARGBToNV12Scaled(data, width, height, false, 0, boundingBox.left, boundingBox.top, boundingBox.width(), boundingBox.height(), dst);
+    }
+
+    private int hwArgbFrame(int[] data, int inputWidth, int inputHeight, ByteBuffer dst) {
+        boolean planar = isPlanarColorFormat();
+        return planar ? ARGBToI420(data, inputWidth, inputHeight, false, 0, dst)
+            : ARGBToNV12(data, inputWidth, inputHeight, false, 0, dst);
     }
 
-    private byte[] hwArgbFrame(int[] data, int inputWidth, int inputHeight) {
+    private boolean isPlanarColorFormat() {
         switch (mVideoColorFormat) {
             case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar:
-                return ARGBToI420(data, inputWidth, inputHeight, false, 0);
+                return true;
             case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar:
-                return ARGBToNV12(data, inputWidth, inputHeight, false, 0);
+                return false;
             default:
                 throw new IllegalStateException("Unsupported color format!");
         }
     }
 
     private void swRgbaFrame(byte[] data, int width, int height, long pts) {
-        RGBASoftEncode(data, width, height, true, 180, pts);
+        SrsTripleBuffer<SrsYuvFrame> frames = softFrames;
+        if (frames == null) {
+            return;
+        }
+        SrsYuvFrame frame = frames.back();
+        if (RGBAToI420(data, width, height, true, 180, frame.data) < 0) {
+            mHandler.notifyEncodeIllegalArgumentException(new IllegalArgumentException("libyuv failure"));
+            return;
+        }
+        frame.pts = pts;
+        if (frames.publish()) {
+            softDroppedFrames++;
+        }
     }
 
     public AudioRecord chooseAudioRecord() {
@@ -576,72 +1108,15 @@ public class SrsEncoder {
         return pcmBufSize - (pcmBufSize % 8192);
     }
 
-    // choose the video encoder by name.
-    private MediaCodecInfo chooseVideoEncoder(String name) {
-        int nbCodecs = MediaCodecList.getCodecCount();
-        for (int i = 0; i < nbCodecs; i++) {
-            MediaCodecInfo mci = MediaCodecList.getCodecInfoAt(i);
-            if (!mci.isEncoder()) {
-                continue;
-            }
-
-            String[] types = mci.getSupportedTypes();
-            for (int j = 0; j < types.length; j++) {
-                if (types[j].equalsIgnoreCase(VCODEC)) {
-                    Log.i(TAG, String.format("vencoder %s types: %s", mci.getName(), types[j]));
-                    if (name == null) {
-                        return mci;
-                    }
-
-                    if (mci.getName().contains(name)) {
-                        return mci;
-                    }
-                }
-            }
-        }
-
-        return null;
-    }
-
-    // choose the right supported color format. @see below:
-    private int chooseVideoEncoder() {
-        // choose the encoder "video/avc":
-        //      1. select default one when type matched.
-        //      2. google avc is unusable.
-        //      3. choose qcom avc.
-        vmci = chooseVideoEncoder(null);
-        //vmci = chooseVideoEncoder("google");
-        //vmci = chooseVideoEncoder("qcom");
-
-        int matchedColorFormat = 0;
-        MediaCodecInfo.CodecCapabilities cc = vmci.getCapabilitiesForType(VCODEC);
-        for (int i = 0; i < cc.colorFormats.length; i++) {
-            int cf = cc.colorFormats[i];
-            Log.i(TAG, String.format("vencoder %s supports color fomart 0x%x(%d)", vmci.getName(), cf, cf));
-
-            // choose YUV for h.264, prefer the bigger one.
-            // corresponding to the color space transform in onPreviewFrame
-            if (cf >= cc.COLOR_FormatYUV420Planar && cf <= cc.COLOR_FormatYUV420SemiPlanar) {
-                if (cf > matchedColorFormat) {
-                    matchedColorFormat = cf;
-                }
-            }
-        }
-
-        for (int i = 0; i < cc.profileLevels.length; i++) {
-            MediaCodecInfo.CodecProfileLevel pl = cc.profileLevels[i];
-            Log.i(TAG, String.format("vencoder %s support profile %d, level %d", vmci.getName(), pl.profile, pl.level));
-        }
-
-        Log.i(TAG, String.format("vencoder %s choose color format 0x%x(%d)", vmci.getName(), matchedColorFormat, matchedColorFormat));
-        return matchedColorFormat;
-    }
-
     private native void setEncoderResolution(int outWidth, int outHeight);
     private native void setEncoderFps(int fps);
     private native void setEncoderGop(int gop);
     private native void setEncoderBitrate(int bitrate);
     private native void setEncoderPreset(String preset);
+    private native void setEncoderThreads(int threads, boolean slicedThreads);
+    private native void setEncoderLookahead(int syncLookahead, int rcLookahead);
+    private native void setEncoderVbv(int maxBitrate, int bufferSize);
+    private native void setEncoderZeroLatency(boolean zeroLatency);
     private native byte[] RGBAToI420(byte[] frame, int width, int height, boolean flip, int rotate);
     private native byte[] RGBAToNV12(byte[] frame, int width, int height, boolean flip, int rotate);
     private native byte[] ARGBToI420Scaled(int[] frame, int width, int height, boolean flip, int rotate, int crop_x, int crop_y,int crop_width, int crop_height);
@@ -650,7 +1125,18 @@ public class SrsEncoder {
     private native byte[] ARGBToNV12(int[] frame, int width, int height, boolean flip, int rotate);
     private native byte[] NV21ToNV12Scaled(byte[] frame, int width, int height, boolean flip, int rotate, int crop_x, int crop_y,int crop_width, int crop_height);
     private native byte[] NV21ToI420Scaled(byte[] frame, int width, int height, boolean flip, int rotate, int crop_x, int crop_y,int crop_width, int crop_height);
-    private native int RGBASoftEncode(byte[] frame, int width, int height, boolean flip, int rotate, long pts);
+    // The conversions into a direct buffer, at its start, they return the size of the frame or
+    // -1 when the buffer is too small.
+    private native int RGBAToI420(byte[] frame, int width, int height, boolean flip, int rotate, ByteBuffer dst);
+    private native int RGBAToNV12(byte[] frame, int width, int height, boolean flip, int rotate, ByteBuffer dst);
+    private native int ARGBToI420Scaled(int[] frame, int width, int height, boolean flip, int rotate, int crop_x, int crop_y,int crop_width, int crop_height, ByteBuffer dst);
+    private native int ARGBToNV12Scaled(int[] frame, int width, int height, boolean flip, int rotate, int crop_x, int crop_y,int crop_width, int crop_height, ByteBuffer dst);
+    private native int ARGBToI420(int[] frame, int width, int height, boolean flip, int rotate, ByteBuffer dst);
+    private native int ARGBToNV12(int[] frame, int width, int height, boolean flip, int rotate, ByteBuffer dst);
+    private native int NV21ToNV12Scaled(byte[] frame, int width, int height, boolean flip, int rotate, int crop_x, int crop_y,int crop_width, int crop_height, ByteBuffer dst);
+    private native int NV21ToI420Scaled(byte[] frame, int width, int height, boolean flip, int rotate, int crop_x, int crop_y,int crop_width, int crop_height, ByteBuffer dst);
+    // Encodes an I420 frame of the output size and calls onSoftEncodedData with es.
+    private native int I420SoftEncode(ByteBuffer frame, long pts, ByteBuffer es);
     private native boolean openSoftEncoder();
     private native void closeSoftEncoder();
 
@@ -0,0 +1,483 @@
+package net.ossrs.yasea;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+import android.util.Range;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The capabilities of the H.264 encoder, probed once per device and OS build.
+ *
+ * Walking the MediaCodecList is slow on some devices, so the encoder chosen and its
+ * capabilities are kept in memory for the process and serialized to the app storage, keyed by
+ * the fingerprint of the build. The encode throughput is measured on a background thread, only
+ * while no encoder is started, and saved with the rest. A benchmark still running when an
+ * encoder starts is aborted, to run again when all the encoders are stopped.
+ */
+public class SrsEncoderCapabilities {
+    private static final String TAG = "SrsEncoderCapabilities";
+    private static final String VCODEC = "video/avc";
+    private static final String FILE_NAME = "yasea-encoder-capabilities";
+    // Bumped whenever the serialized fields change.
+    private static final int FORMAT_VERSION = 1;
+
+    // The frames encoded by the benchmark, and its geometry at most.
+    private static final int BENCHMARK_FRAMES = 60;
+    private static final int BENCHMARK_WIDTH = 1280;
+    private static final int BENCHMARK_HEIGHT = 720;
+    private static final long BENCHMARK_TIMEOUT_US = 5000000;
+
+    private static SrsEncoderCapabilities sCapabilities;
+    private static File sFile;
+    private static boolean sBenchmarking;
+    private static volatile boolean sBenchmarkAborted;
+    private static int sStartedEncoders;
+
+    private String codecName;
+    private int colorFormat;
+    private int[] colorFormats = new int[0];
+    private int[] profiles = new int[0];
+    private int[] levels = new int[0];
+    private int highProfileLevel;
+    // A bit per MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_*.
+    private int bitrateModes;
+    private int maxWidth;
+    private int maxHeight;
+    private int maxFps;
+    // The frames per second encoded by the benchmark, 0 until measured, -1 when it failed.
+    private volatile float encodeFps;
+
+    private SrsEncoderCapabilities() {
+    }
+
+    /**
+     * @param context any context of the app, to persist the capabilities, or null to only keep
+     *                them for the process.
+     * @return the capabilities, probed the first time on this build.
+     */
+    public static synchronized SrsEncoderCapabilities get(Context context) {
+        if (sFile == null && context != null) {
+            File dir = context.getApplicationContext().getFilesDir();
+            sFile = dir != null ? new File(dir, FILE_NAME) : null;
+        }
+        if (sCapabilities == null && sFile != null) {
+            sCapabilities = load(sFile);
+        }
+        if (sCapabilities == null) {
+            sCapabilities = probe();
+            if (sFile != null) {
+                save(sFile, sCapabilities);
+            }
+        }
+        return sCapabilities;
+    }
+
+    /**
+     * measure the encode throughput now, when it was not measured yet on this build. it is
+     * otherwise measured when the last encoder stops.
+     * @param context any context of the app, to persist the result.
+     * @return true when the benchmark was started, false when an encoder is started.
+     */
+    public static synchronized boolean startBenchmark(Context context) {
+        SrsEncoderCapabilities caps = get(context);
+        if (sStartedEncoders > 0 || sBenchmarking || caps.encodeFps != 0 || sFile == null) {
+            return false;
+        }
+        return startBenchmark(caps, sFile);
+    }
+
+    // Called by SrsEncoder, the benchmark would compete with the encoder for the codec.
+    static synchronized void onEncoderStarted() {
+        sStartedEncoders++;
+        if (sBenchmarking) {
+            sBenchmarkAborted = true;
+        }
+    }
+
+    static synchronized void onEncoderStopped() {
+        if (--sStartedEncoders == 0 && sCapabilities != null && sCapabilities.encodeFps == 0
+            && sFile != null && !sBenchmarking) {
+            startBenchmark(sCapabilities, sFile);
+        }
+    }
+
+    /**
+     * @return the name of the encoder, null when the device has none.
+     */
+    public String getCodecName() {
+        return codecName;
+    }
+
+    /**
+     * @return the YUV color format the frames are converted into.
+     */
+    public int getColorFormat() {
+        return colorFormat;
+    }
+
+    public int[] getColorFormats() {
+        return colorFormats.clone();
+    }
+
+    /**
+     * @return the profiles supported, each one at the level of the same index.
+     */
+    public int[] getProfiles() {
+        return profiles.clone();
+    }
+
+    public int[] getLevels() {
+        return levels.clone();
+    }
+
+    /**
+     * @return the highest level of the high profile, 0 when not supported.
+     */
+    public int getHighProfileLevel() {
+        return highProfileLevel;
+    }
+
+    public boolean isBitrateModeSupported(int mode) {
+        return (bitrateModes & (1 << mode)) != 0;
+    }
+
+    /**
+     * @return the widest frame supported, 0 when unknown before Android 5.0.
+     */
+    public int getMaxWidth() {
+        return maxWidth;
+    }
+
+    public int getMaxHeight() {
+        return maxHeight;
+    }
+
+    public int getMaxFps() {
+        return maxFps;
+    }
+
+    /**
+     * @return the frames per second encoded at 720p, or the largest size below, 0 until measured
+     *         and -1 when the benchmark failed.
+     */
+    public float getEncodeFps() {
+        return encodeFps;
+    }
+
+    /**
+     * @return false when the throughput measured, scaled to the frame size, is below the frame
+     *         rate, true when it is enough or not measured.
+     */
+    public boolean canEncodeInRealTime(int width, int height, int fps) {
+        float measured = encodeFps;
+        if (measured <= 0 || width <= 0 || height <= 0) {
+            return true;
+        }
+        return measured * benchmarkWidth() * benchmarkHeight() / ((float) width * height) >= fps;
+    }
+
+    private int benchmarkWidth() {
+        return maxWidth > 0 ? Math.min(BENCHMARK_WIDTH, maxWidth) : BENCHMARK_WIDTH;
+    }
+
+    private int benchmarkHeight() {
+        return maxHeight > 0 ? Math.min(BENCHMARK_HEIGHT, maxHeight) : BENCHMARK_HEIGHT;
+    }
+
+    private static String buildKey() {
+        return Build.FINGERPRINT + "/" + Build.VERSION.SDK_INT;
+    }
+
+    // choose the video encoder "video/avc":
+    //      1. select default one when type matched.
+    //      2. google avc is unusable.
+    //      3. choose qcom avc.
+    private static MediaCodecInfo chooseVideoEncoder() {
+        int nbCodecs = MediaCodecList.getCodecCount();
+        for (int i = 0; i < nbCodecs; i++) {
+            MediaCodecInfo mci = MediaCodecList.getCodecInfoAt(i);
+            if (!mci.isEncoder()) {
+                continue;
+            }
+
+            String[] types = mci.getSupportedTypes();
+            for (int j = 0; j < types.length; j++) {
+                if (types[j].equalsIgnoreCase(VCODEC)) {
+                    Log.i(TAG, String.format("vencoder %s types: %s", mci.getName(), types[j]));
+                    return mci;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private static SrsEncoderCapabilities probe() {
+        long start = System.nanoTime();
+        SrsEncoderCapabilities caps = new SrsEncoderCapabilities();
+        MediaCodecInfo vmci = chooseVideoEncoder();
+        if (vmci == null) {
+            Log.e(TAG, "no " + VCODEC + " encoder");
+            return caps;
+        }
+        caps.codecName = vmci.getName();
+
+        MediaCodecInfo.CodecCapabilities cc = vmci.getCapabilitiesForType(VCODEC);
+        caps.colorFormats = cc.colorFormats.clone();
+        for (int cf : cc.colorFormats) {
+            Log.i(TAG, String.format("vencoder %s supports color fomart 0x%x(%d)", vmci.getName(), cf, cf));
+
+            // choose YUV for h.264, prefer the bigger one.
+            // corresponding to the color space transform in onPreviewFrame
+            if (cf >= MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar
+                && cf <= MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar) {
+                if (cf > caps.colorFormat) {
+                    caps.colorFormat = cf;
+                }
+            }
+        }
+
+        caps.profiles = new int[cc.profileLevels.length];
+        caps.levels = new int[cc.profileLevels.length];
+        for (int i = 0; i < cc.profileLevels.length; i++) {
+            MediaCodecInfo.CodecProfileLevel pl = cc.profileLevels[i];
+            Log.i(TAG, String.format("vencoder %s support profile %d, level %d", vmci.getName(), pl.profile, pl.level));
+            caps.profiles[i] = pl.profile;
+            caps.levels[i] = pl.level;
+            if (pl.profile == MediaCodecInfo.CodecProfileLevel.AVCProfileHigh && pl.level > caps.highProfileLevel) {
+                caps.highProfileLevel = pl.level;
+            }
+        }
+
+        // requires sdk level 21+, Android 5.0, the LOLLIPOP
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            MediaCodecInfo.EncoderCapabilities ec = cc.getEncoderCapabilities();
+            if (ec != null) {
+                int[] modes = {
+                    MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ,
+                    MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR,
+                    MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR,
+                };
+                for (int mode : modes) {
+                    if (ec.isBitrateModeSupported(mode)) {
+                        caps.bitrateModes |= 1 << mode;
+                    }
+                }
+            }
+            MediaCodecInfo.VideoCapabilities vc = cc.getVideoCapabilities();
+            if (vc != null) {
+                caps.maxWidth = upper(vc.getSupportedWidths());
+                caps.maxHeight = upper(vc.getSupportedHeights());
+                caps.maxFps = upper(vc.getSupportedFrameRates());
+            }
+        }
+
+        Log.i(TAG, String.format("vencoder %s choose color format 0x%x(%d), probed in %dms", vmci.getName(),
+            caps.colorFormat, caps.colorFormat, (System.nanoTime() - start) / 1000000));
+        return caps;
+    }
+
+    private static int upper(Range<Integer> range) {
+        return range != null ? range.getUpper() : 0;
+    }
+
+    private static SrsEncoderCapabilities load(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FORMAT_VERSION || !in.readUTF().equals(buildKey())) {
+                Log.i(TAG, "encoder capabilities of another build, probe again");
+                return null;
+            }
+            SrsEncoderCapabilities caps = new SrsEncoderCapabilities();
+            caps.codecName = in.readBoolean() ? in.readUTF() : null;
+            caps.colorFormat = in.readInt();
+            caps.colorFormats = readInts(in);
+            caps.profiles = readInts(in);
+            caps.levels = readInts(in);
+            caps.highProfileLevel = in.readInt();
+            caps.bitrateModes = in.readInt();
+            caps.maxWidth = in.readInt();
+            caps.maxHeight = in.readInt();
+            caps.maxFps = in.readInt();
+            caps.encodeFps = in.readFloat();
+            return caps;
+        } catch (IOException e) {
+            Log.w(TAG, "load encoder capabilities failed", e);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    // Written to a temporary file renamed over the previous one, so a crash never leaves half a
+    // file behind.
+    private static void save(File file, SrsEncoderCapabilities caps) {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(buildKey());
+            out.writeBoolean(caps.codecName != null);
+            if (caps.codecName != null) {
+                out.writeUTF(caps.codecName);
+            }
+            out.writeInt(caps.colorFormat);
+            writeInts(out, caps.colorFormats);
+            writeInts(out, caps.profiles);
+            writeInts(out, caps.levels);
+            out.writeInt(caps.highProfileLevel);
+            out.writeInt(caps.bitrateModes);
+            out.writeInt(caps.maxWidth);
+            out.writeInt(caps.maxHeight);
+            out.writeInt(caps.maxFps);
+            out.writeFloat(caps.encodeFps);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                Log.w(TAG, "rename " + tmp + " failed");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "save encoder capabilities failed", e);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static int[] readInts(DataInputStream in) throws IOException {
+        int[] values = new int[in.readInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.readInt();
+        }
+        return values;
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    private static void closeQuietly(java.io.Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                // nothing to do.
+            }
+        }
+    }
+
+    private static boolean startBenchmark(final SrsEncoderCapabilities caps, final File file) {
+        // requires sdk level 21+, Android 5.0, the LOLLIPOP, for getInputBuffer.
+        if (caps.codecName == null || caps.colorFormat == 0 || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;
+        }
+        sBenchmarking = true;
+        sBenchmarkAborted = false;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                float fps = benchmark(caps);
+                synchronized (SrsEncoderCapabilities.class) {
+                    sBenchmarking = false;
+                    if (sBenchmarkAborted) {
+                        Log.i(TAG, "vencoder benchmark aborted by an encoder");
+                        return;
+                    }
+                    // a failed benchmark is not run again on this build.
+                    caps.encodeFps = fps;
+                    save(file, caps);
+                }
+            }
+        }, "SrsEncoderBenchmark");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+        return true;
+    }
+
+    // Encodes blank frames as fast as the codec takes them, the throughput of the first output
+    // to the last one, -1 when failed.
+    private static float benchmark(SrsEncoderCapabilities caps) {
+        int width = caps.benchmarkWidth();
+        int height = caps.benchmarkHeight();
+        int size = width * height * 3 / 2;
+        MediaCodec codec = null;
+        try {
+            codec = MediaCodec.createByCodecName(caps.codecName);
+            MediaFormat format = MediaFormat.createVideoFormat(VCODEC, width, height);
+            format.setInteger(MediaFormat.KEY_COLOR_FORMAT, caps.colorFormat);
+            format.setInteger(MediaFormat.KEY_BIT_RATE, 2 * 1024 * 1024);
+            format.setInteger(MediaFormat.KEY_FRAME_RATE, 30);
+            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+            codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            codec.start();
+
+            MediaCodec.BufferInfo bi = new MediaCodec.BufferInfo();
+            long deadline = System.nanoTime() / 1000 + BENCHMARK_TIMEOUT_US;
+            int queued = 0;
+            int output = 0;
+            long firstOutput = 0;
+            long lastOutput = 0;
+            while (output < BENCHMARK_FRAMES && System.nanoTime() / 1000 < deadline && !sBenchmarkAborted) {
+                if (queued < BENCHMARK_FRAMES) {
+                    int inBufferIndex = codec.dequeueInputBuffer(1000);
+                    if (inBufferIndex >= 0) {
+                        ByteBuffer bb = codec.getInputBuffer(inBufferIndex);
+                        int frameSize = Math.min(size, bb.capacity());
+                        bb.clear();
+                        bb.position(frameSize);
+                        codec.queueInputBuffer(inBufferIndex, 0, frameSize, queued * 1000000L / 30, 0);
+                        queued++;
+                    }
+                }
+                int outBufferIndex = codec.dequeueOutputBuffer(bi, 1000);
+                if (outBufferIndex >= 0) {
+                    if ((bi.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && bi.size > 0) {
+                        lastOutput = System.nanoTime();
+                        if (output == 0) {
+                            firstOutput = lastOutput;
+                        }
+                        output++;
+                    }
+                    codec.releaseOutputBuffer(outBufferIndex, false);
+                }
+            }
+            codec.stop();
+
+            if (output < 2 || lastOutput == firstOutput) {
+                Log.w(TAG, String.format("vencoder %s benchmark output %d frames only", caps.codecName, output));
+                return -1;
+            }
+            float fps = (output - 1) * 1e9f / (lastOutput - firstOutput);
+            Log.i(TAG, String.format("vencoder %s encodes %dx%d at %.1ffps", caps.codecName, width, height, fps));
+            return fps;
+        } catch (IOException | IllegalStateException | IllegalArgumentException e) {
+            Log.w(TAG, "vencoder benchmark failed", e);
+            return -1;
+        } finally {
+            if (codec != null) {
+                codec.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package net.ossrs.yasea;
+
+import android.content.Context;
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import android.opengl.EGLSurface;
+import android.opengl.GLES20;
+import android.util.Log;
+import android.view.Surface;
+
+import com.seu.magicfilter.utils.OpenGLUtils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Draws the frames rendered by a GL thread into the input surface of a hard encoder.
+ *
+ * It is created on the GL thread, with the context of the thread current, and owns a second
+ * context which shares its textures, bound to a recordable window surface of the encoder. A
+ * frame is drawn by switching to that context, drawing the texture over the whole surface and
+ * swapping with the presentation time of the frame, then switching back, so the pixels never
+ * leave the GPU. All the methods must be called on the GL thread.
+ */
+public class SrsEncoderSurface {
+    private static final String TAG = "SrsEncoderSurface";
+
+    // EGLExt.EGL_RECORDABLE_ANDROID, API 26.
+    private static final int EGL_RECORDABLE_ANDROID = 0x3142;
+
+    private static final float VEX_CUBE[] = {
+        -1.0f, -1.0f, // Bottom left.
+        1.0f, -1.0f, // Bottom right.
+        -1.0f, 1.0f, // Top left.
+        1.0f, 1.0f, // Top right.
+    };
+
+    private static final float TEX_COORD[] = {
+        0.0f, 0.0f, // Bottom left.
+        1.0f, 0.0f, // Bottom right.
+        0.0f, 1.0f, // Top left.
+        1.0f, 1.0f, // Top right.
+    };
+
+    private EGLDisplay mEGLDisplay;
+    private EGLContext mEGLContext;
+    private EGLSurface mEGLSurface;
+    private int mWidth;
+    private int mHeight;
+
+    private int mGLProgId;
+    private int mGLPositionIndex;
+    private int mGLTextureCoordinateIndex;
+    private int mGLInputImageTextureIndex;
+    private FloatBuffer mGLCubeBuffer;
+    private FloatBuffer mGLTextureBuffer;
+
+    /**
+     * @param surface the input surface of the encoder, its size is the one of the encoder.
+     * @throws IllegalStateException when the surface can't be drawn into.
+     */
+    public SrsEncoderSurface(Context context, Surface surface) {
+        mEGLDisplay = EGL14.eglGetCurrentDisplay();
+        EGLContext sharedContext = EGL14.eglGetCurrentContext();
+        if (mEGLDisplay == EGL14.EGL_NO_DISPLAY || sharedContext == EGL14.EGL_NO_CONTEXT) {
+            throw new IllegalStateException("no current egl context");
+        }
+
+        int[] configAttribs = {
+            EGL14.EGL_RED_SIZE, 8,
+            EGL14.EGL_GREEN_SIZE, 8,
+            EGL14.EGL_BLUE_SIZE, 8,
+            EGL14.EGL_ALPHA_SIZE, 8,
+            EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
+            EGL_RECORDABLE_ANDROID, 1,
+            EGL14.EGL_NONE
+        };
+        EGLConfig[] configs = new EGLConfig[1];
+        int[] numConfigs = new int[1];
+        if (!EGL14.eglChooseConfig(mEGLDisplay, configAttribs, 0, configs, 0, 1, numConfigs, 0) || numConfigs[0] == 0) {
+            throw new IllegalStateException("no recordable egl config");
+        }
+
+        int[] contextAttribs = { EGL14.EGL_CONTEXT_CLIENT_VERSION, 2, EGL14.EGL_NONE };
+        mEGLContext = EGL14.eglCreateContext(mEGLDisplay, configs[0], sharedContext, contextAttribs, 0);
+        if (mEGLContext == EGL14.EGL_NO_CONTEXT) {
+            throw new IllegalStateException(String.format("eglCreateContext failed 0x%x", EGL14.eglGetError()));
+        }
+        mEGLSurface = EGL14.eglCreateWindowSurface(mEGLDisplay, configs[0], surface, new int[] { EGL14.EGL_NONE }, 0);
+        if (mEGLSurface == EGL14.EGL_NO_SURFACE) {
+            int error = EGL14.eglGetError();
+            EGL14.eglDestroyContext(mEGLDisplay, mEGLContext);
+            throw new IllegalStateException(String.format("eglCreateWindowSurface failed 0x%x", error));
+        }
+        int[] size = new int[1];
+        EGL14.eglQuerySurface(mEGLDisplay, mEGLSurface, EGL14.EGL_WIDTH, size, 0);
+        mWidth = size[0];
+        EGL14.eglQuerySurface(mEGLDisplay, mEGLSurface, EGL14.EGL_HEIGHT, size, 0);
+        mHeight = size[0];
+
+        // The program and the vertices belong to our context.
+        EGLSurface drawSurface = EGL14.eglGetCurrentSurface(EGL14.EGL_DRAW);
+        EGLSurface readSurface = EGL14.eglGetCurrentSurface(EGL14.EGL_READ);
+        EGL14.eglMakeCurrent(mEGLDisplay, mEGLSurface, mEGLSurface, mEGLContext);
+        mGLProgId = OpenGLUtils.loadProgram(OpenGLUtils.readShaderFromRawResource(context, R.raw.base_2d_vertex),
+            OpenGLUtils.readShaderFromRawResource(context, R.raw.base_2d_fragment));
+        mGLPositionIndex = GLES20.glGetAttribLocation(mGLProgId, "position");
+        mGLTextureCoordinateIndex = GLES20.glGetAttribLocation(mGLProgId, "inputTextureCoordinate");
+        mGLInputImageTextureIndex = GLES20.glGetUniformLocation(mGLProgId, "inputImageTexture");
+        EGL14.eglMakeCurrent(mEGLDisplay, drawSurface, readSurface, sharedContext);
+
+        mGLCubeBuffer = ByteBuffer.allocateDirect(VEX_CUBE.length * 4)
+            .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        mGLCubeBuffer.put(VEX_CUBE).position(0);
+        mGLTextureBuffer = ByteBuffer.allocateDirect(TEX_COORD.length * 4)
+            .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        mGLTextureBuffer.put(TEX_COORD).position(0);
+
+        Log.i(TAG, String.format("encoder surface %dx%d", mWidth, mHeight));
+    }
+
+    /**
+     * Draws the texture scaled to the whole encoder surface and submits it to the encoder.
+     *
+     * @param textureId a 2D texture of the current context.
+     * @param ptsNs the presentation time of the frame, in ns.
+     * @return false if the frame was not submitted.
+     */
+    public boolean draw(int textureId, long ptsNs) {
+        if (textureId == OpenGLUtils.NO_TEXTURE) {
+            return false;
+        }
+
+        EGLContext context = EGL14.eglGetCurrentContext();
+        EGLSurface drawSurface = EGL14.eglGetCurrentSurface(EGL14.EGL_DRAW);
+        EGLSurface readSurface = EGL14.eglGetCurrentSurface(EGL14.EGL_READ);
+        // The texture must be rendered before our context samples it.
+        GLES20.glFlush();
+        if (!EGL14.eglMakeCurrent(mEGLDisplay, mEGLSurface, mEGLSurface, mEGLContext)) {
+            Log.e(TAG, String.format("eglMakeCurrent failed 0x%x", EGL14.eglGetError()));
+            return false;
+        }
+
+        GLES20.glViewport(0, 0, mWidth, mHeight);
+        GLES20.glUseProgram(mGLProgId);
+
+        GLES20.glEnableVertexAttribArray(mGLPositionIndex);
+        GLES20.glVertexAttribPointer(mGLPositionIndex, 2, GLES20.GL_FLOAT, false, 4 * 2, mGLCubeBuffer);
+        GLES20.glEnableVertexAttribArray(mGLTextureCoordinateIndex);
+        GLES20.glVertexAttribPointer(mGLTextureCoordinateIndex, 2, GLES20.GL_FLOAT, false, 4 * 2, mGLTextureBuffer);
+
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
+        GLES20.glUniform1i(mGLInputImageTextureIndex, 0);
+
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GLES20.glDisableVertexAttribArray(mGLPositionIndex);
+        GLES20.glDisableVertexAttribArray(mGLTextureCoordinateIndex);
+
+        EGLExt.eglPresentationTimeANDROID(mEGLDisplay, mEGLSurface, ptsNs);
+        boolean swapped = EGL14.eglSwapBuffers(mEGLDisplay, mEGLSurface);
+        if (!swapped) {
+            Log.e(TAG, String.format("eglSwapBuffers failed 0x%x", EGL14.eglGetError()));
+        }
+
+        EGL14.eglMakeCurrent(mEGLDisplay, drawSurface, readSurface, context);
+        return swapped;
+    }
+
+    /**
+     * Releases the context and the window surface, so the encoder surface can be drawn into by
+     * another one.
+     */
+    public void release() {
+        if (mEGLContext == null) {
+            return;
+        }
+
+        EGLContext context = EGL14.eglGetCurrentContext();
+        EGLSurface drawSurface = EGL14.eglGetCurrentSurface(EGL14.EGL_DRAW);
+        EGLSurface readSurface = EGL14.eglGetCurrentSurface(EGL14.EGL_READ);
+        if (EGL14.eglMakeCurrent(mEGLDisplay, mEGLSurface, mEGLSurface, mEGLContext)) {
+            GLES20.glDeleteProgram(mGLProgId);
+        }
+        if (context == EGL14.EGL_NO_CONTEXT) {
+            EGL14.eglMakeCurrent(mEGLDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+        } else {
+            EGL14.eglMakeCurrent(mEGLDisplay, drawSurface, readSurface, context);
+        }
+
+        EGL14.eglDestroySurface(mEGLDisplay, mEGLSurface);
+        EGL14.eglDestroyContext(mEGLDisplay, mEGLContext);
+        mEGLSurface = null;
+        mEGLContext = null;
+    }
+}
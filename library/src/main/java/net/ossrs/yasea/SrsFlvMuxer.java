@@ -10,7 +10,7 @@ import com.github.faucamp.simplertmp.RtmpHandler;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -23,22 +23,39 @@ public class SrsFlvMuxer {
 
     private static final int VIDEO_ALLOC_SIZE = 128 * 1024;
     private static final int AUDIO_ALLOC_SIZE = 4 * 1024;
+    // About 10s of audio and video at 30fps, the encoder stops feeding long before.
+    private static final int FLV_TAG_CACHE_SIZE = 1024;
+    // The frames of the last GOP kept for a reconnect, about 8s at 30fps.
+    private static final int REPLAY_BUFFER_SIZE = 512;
+    private static final int RECONNECT_MIN_BACKOFF_MS = 500;
+    private static final int RECONNECT_MAX_BACKOFF_MS = 16000;
 
     private volatile boolean started = false;
-    private DefaultRtmpPublisher publisher;
-
-    private Thread worker;
-    private final Object txFrameLock = new Object();
-
+    private final boolean nonBlocking;
+    private volatile boolean autoReconnect = false;
+    private volatile int maxReplayMs = 5000;
+    // The destination given to the constructor, it drives the encoder and the stats.
+    private final SrsFlvSender primary;
+    // All the destinations, the primary first, guarded by the muxer.
+    private final ArrayList<SrsFlvSender> destinations = new ArrayList<>();
+    // The started destinations, read by the producer without locking.
+    private volatile SrsFlvSender[] activeSenders = new SrsFlvSender[0];
+    // The workers still running, the last one to exit after stop() reports the leaks.
+    private final AtomicInteger runningSenders = new AtomicInteger(0);
+
+    // The video and audio encoders mux from their own threads, the muxer state and the
+    // producer side of the send queues are guarded by this lock.
+    private final Object producerLock = new Object();
     private SrsFlv flv = new SrsFlv();
     private boolean needToFindKeyFrame = true;
-    private SrsFlvFrame mVideoSequenceHeader;
-    private SrsFlvFrame mAudioSequenceHeader;
+    // The last sequence headers muxed, for the destinations which join later.
+    private final Object mSequenceHeaderLock = new Object();
+    private SrsFlvFrame mLastVideoSequenceHeader;
+    private SrsFlvFrame mLastAudioSequenceHeader;
     private SrsAllocator mVideoAllocator = new SrsAllocator(VIDEO_ALLOC_SIZE);
     private SrsAllocator mAudioAllocator = new SrsAllocator(AUDIO_ALLOC_SIZE);
-    private ConcurrentLinkedQueue<SrsFlvFrame> mFlvTagCache = new ConcurrentLinkedQueue<>();
 
-    private static final int VIDEO_TRACK = 100;
+    static final int VIDEO_TRACK = 100;
     private static final int AUDIO_TRACK = 101;
     private static final String TAG = "SrsFlvMuxer";
 
@@ -47,14 +64,155 @@ public class SrsFlvMuxer {
      * @param handler the rtmp event handler.
      */
     public SrsFlvMuxer(RtmpHandler handler) {
-        publisher = new DefaultRtmpPublisher(handler);
+        this(handler, false);
+    }
+
+    /**
+     * constructor.
+     * @param handler the rtmp event handler.
+     * @param nonBlocking true to send over the non-blocking transport, the frames then wait in
+     *                    the send queue, where they can be dropped, instead of in a socket write.
+     */
+    public SrsFlvMuxer(RtmpHandler handler, boolean nonBlocking) {
+        this.nonBlocking = nonBlocking;
+        primary = new SrsFlvSender(handler);
+        destinations.add(primary);
+    }
+
+    private SrsFlvFrame[] newFlvFrames(int count) {
+        SrsFlvFrame[] frames = new SrsFlvFrame[count];
+        for (int i = 0; i < count; i++) {
+            frames[i] = new SrsFlvFrame();
+        }
+        return frames;
+    }
+
+    /**
+     * add another RTMP server to publish the same stream to. the tags are muxed once and
+     * shared, but each destination has its own connection, send queue and drop policy, so a
+     * slow server does not hold the others back. the destination connects with start(), or
+     * right away when the muxer is already started, and its stream begins at a keyframe.
+     * @param rtmpUrl the url to publish to.
+     * @param handler the rtmp event handler of this destination.
+     * @return the index of the destination, for the per destination stats.
+     */
+    public synchronized int addDestination(String rtmpUrl, RtmpHandler handler) {
+        SrsFlvSender sender = new SrsFlvSender(handler);
+        sender.rtmpUrl = rtmpUrl;
+        destinations.add(sender);
+        if (started) {
+            sender.start();
+            updateActiveSenders();
+        }
+        return destinations.size() - 1;
+    }
+
+    /**
+     * get the number of destinations, including the one of the constructor.
+     */
+    public synchronized int getDestinationCount() {
+        return destinations.size();
+    }
+
+    private synchronized SrsFlvSender getDestination(int index) {
+        return destinations.get(index);
+    }
+
+    private void updateActiveSenders() {
+        activeSenders = started ? destinations.toArray(new SrsFlvSender[destinations.size()]) : new SrsFlvSender[0];
     }
 
     /**
      * get cached video frame number in publisher
      */
     public AtomicInteger getVideoFrameCacheNumber() {
-        return publisher == null ? null : publisher.getVideoFrameCacheNumber();
+        return primary.publisher.getVideoFrameCacheNumber();
+    }
+
+    /**
+     * get cached video frame number in the publisher of a destination
+     * @param destination the index returned by addDestination, 0 for the constructor one.
+     */
+    public AtomicInteger getVideoFrameCacheNumber(int destination) {
+        return getDestination(destination).publisher.getVideoFrameCacheNumber();
+    }
+
+    /**
+     * set the write batching policy of the RTMP connections. The worker writes everything
+     * queued so far before it flushes once, a packet never waits longer than maxLatencyMs
+     * and the batch is written as soon as it reaches maxBytes.
+     * @param maxLatencyMs the longest time a packet may wait, 0 to flush every frame.
+     * @param maxBytes the batch size which forces a write, 0 for no limit.
+     */
+    public synchronized void setWriteBatching(int maxLatencyMs, int maxBytes) {
+        for (SrsFlvSender sender : destinations) {
+            sender.publisher.setWriteBatching(maxLatencyMs, maxBytes);
+        }
+    }
+
+    /**
+     * get the average number of packets written per flush
+     */
+    public double getPacketsPerFlush() {
+        return primary.publisher.getPacketsPerFlush();
+    }
+
+    /**
+     * get the number of socket writes per second
+     */
+    public double getFlushRate() {
+        return primary.publisher.getFlushRate();
+    }
+
+    /**
+     * get the video bitrate sent over the last 48 frames, in bps
+     */
+    public double getVideoBitrate() {
+        return primary.publisher.getVideoBitrate();
+    }
+
+    /**
+     * get the video bitrate sent to a destination over the last 48 frames, in bps
+     * @param destination the index returned by addDestination, 0 for the constructor one.
+     */
+    public double getVideoBitrate(int destination) {
+        return getDestination(destination).publisher.getVideoBitrate();
+    }
+
+    /**
+     * get the total time spent in socket writes, in ns
+     */
+    public long getWriteBlockingNanos() {
+        return primary.publisher.getWriteBlockingNanos();
+    }
+
+    /**
+     * set the backlog thresholds of the send queues at which video frames are dropped, the
+     * backlog is the time between the oldest and the newest queued frame. audio and sequence
+     * headers are never dropped.
+     * @param disposableMs drop the non-reference frames above this backlog.
+     * @param interMs drop the inter frames up to the next keyframe above this backlog.
+     * @param gopMs drop whole GOPs while a newer keyframe is queued above this backlog.
+     */
+    public synchronized void setDropThresholds(int disposableMs, int interMs, int gopMs) {
+        for (SrsFlvSender sender : destinations) {
+            sender.dropper.setThresholds(disposableMs, interMs, gopMs);
+        }
+    }
+
+    /**
+     * get the number of video frames dropped by the send queue
+     */
+    public long getDroppedFrames() {
+        return primary.dropper.getDroppedFrames();
+    }
+
+    /**
+     * get the number of video frames dropped by the send queue of a destination
+     * @param destination the index returned by addDestination, 0 for the constructor one.
+     */
+    public long getDroppedFrames(int destination) {
+        return getDestination(destination).dropper.getDroppedFrames();
     }
 
     /**
@@ -62,12 +220,21 @@ public class SrsFlvMuxer {
      * @param width width
      * @param height height
      */
-    public void setVideoResolution(int width, int height) {
-        if (publisher != null) {
-            publisher.setVideoResolution(width, height);
+    public synchronized void setVideoResolution(int width, int height) {
+        for (SrsFlvSender sender : destinations) {
+            sender.publisher.setVideoResolution(width, height);
         }
     }
 
+    /**
+     * set the reorder depth of the video frames, the number of frames the encoder may output
+     * before a frame presented earlier, 0 without B-frames. the dts of the frames are derived
+     * from their pts and this depth, @see SrsTimestampGenerator.
+     */
+    public void setVideoReorderDepth(int reorderDepth) {
+        flv.setVideoReorderDepth(reorderDepth);
+    }
+
     /**
      * Adds a track with the specified format.
      * @param format The media format for the track.
@@ -83,121 +250,78 @@ public class SrsFlvMuxer {
         }
     }
 
-    private void disconnect() {
-        try {
-            publisher.close();
-        } catch (IllegalStateException e) {
-            // Ignore illegal state.
-        }
-        mVideoSequenceHeader = null;
-        mAudioSequenceHeader = null;
-        Log.i(TAG, "worker: disconnect ok.");
-    }
-
-    private boolean connect(String url) {
-        boolean connected = false;
-        Log.i(TAG, String.format("worker: connecting to RTMP server by url=%s\n", url));
-        if (publisher.connect(url)) {
-            connected = publisher.publish("live");
-        }
-        mVideoSequenceHeader = null;
-        mAudioSequenceHeader = null;
-        return connected;
+    /**
+     * reconnect the destinations whose connection failed, with an exponential backoff. once
+     * reconnected, the sequence headers and the metadata are sent again, then the GOP which
+     * was being sent is replayed from its keyframe, the timestamps starting over from 0.
+     * @param enabled true to reconnect, false to give up on the first failure.
+     * @param maxReplayMs the longest GOP kept for a replay, a longer one is not replayed and
+     *                    the stream restarts from the next keyframe.
+     */
+    public void setAutoReconnect(boolean enabled, int maxReplayMs) {
+        this.maxReplayMs = maxReplayMs;
+        autoReconnect = enabled;
     }
 
-    private void sendFlvTag(SrsFlvFrame frame) {
-        if (frame == null) {
-            return;
-        }
-
-        if (frame.isVideo()) {
-//            if (frame.isKeyFrame()) {
-//                Log.i(TAG, String.format("worker: send frame type=%d, dts=%d, size=%dB",
-//                    frame.type, frame.dts, frame.flvTag.array().length));
-//            }
-            publisher.publishVideoData(frame.flvTag.array(), frame.flvTag.size(), frame.dts);
-            mVideoAllocator.release(frame.flvTag);
-        } else if (frame.isAudio()) {
-            publisher.publishAudioData(frame.flvTag.array(), frame.flvTag.size(), frame.dts);
-            mAudioAllocator.release(frame.flvTag);
-        }
+    /**
+     * enable or disable the tracking of tag allocations, the allocations which are not
+     * returned when the last worker exits are logged with the stack where they were allocated.
+     * for debugging only, it records a stack trace per frame.
+     */
+    public void setLeakDetection(boolean enabled) {
+        mVideoAllocator.setLeakDetection(enabled);
+        mAudioAllocator.setLeakDetection(enabled);
     }
 
     /**
-     * start to the remote server for remux.
+     * start to the remote server for remux, and to the destinations added so far.
      */
-    public void start(final String rtmpUrl) {
+    public synchronized void start(final String rtmpUrl) {
         started = true;
-        worker = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                if (!connect(rtmpUrl)) {
-                    started = false;
-                    return;
-                }
+        primary.rtmpUrl = rtmpUrl;
+        for (SrsFlvSender sender : destinations) {
+            sender.start();
+        }
+        updateActiveSenders();
+    }
 
-                while (started) {
-                    while (!mFlvTagCache.isEmpty()) {
-                        SrsFlvFrame frame = mFlvTagCache.poll();
-                        if (frame.isSequenceHeader()) {
-                            if (frame.isVideo()) {
-                                mVideoSequenceHeader = frame;
-                                sendFlvTag(mVideoSequenceHeader);
-                            } else if (frame.isAudio()) {
-                                mAudioSequenceHeader = frame;
-                                sendFlvTag(mAudioSequenceHeader);
-                            }
-                        } else {
-                            if (frame.isVideo() && mVideoSequenceHeader != null) {
-                                sendFlvTag(frame);
-                            } else if (frame.isAudio() && mAudioSequenceHeader != null) {
-                                sendFlvTag(frame);
-                            }
-                        }
-                    }
-                    // Waiting for next frame
-                    synchronized (txFrameLock) {
-                        try {
-                            // isEmpty() may take some time, so we set timeout to detect next frame
-                            txFrameLock.wait(500);
-                        } catch (InterruptedException ie) {
-                            if (worker != null) {
-                                worker.interrupt();
-                            }
-                        }
-                    }
-                }
-            }
-        });
-        worker.start();
+    private void reportLeaks() {
+        int leaks = mVideoAllocator.reportLeaks(TAG) + mAudioAllocator.reportLeaks(TAG);
+        if (leaks > 0) {
+            Log.w(TAG, String.format("worker: %d tag allocations never returned", leaks));
+        }
     }
 
     /**
-     * stop the muxer, disconnect RTMP connection.
+     * stop the muxer, disconnect all the RTMP connections.
      */
-    public void stop() {
+    public synchronized void stop() {
         started = false;
-        mFlvTagCache.clear();
-        if (worker != null) {
-            try {
-                worker.interrupt();
-                worker.join(200);
-            } catch (Exception e) {
-                e.printStackTrace();
-                worker.interrupt();
-            }
-            worker = null;
+        updateActiveSenders();
+        releaseSequenceHeaders();
+        for (SrsFlvSender sender : destinations) {
+            sender.stop();
+        }
+        synchronized (producerLock) {
+            flv.reset();
+            needToFindKeyFrame = true;
         }
-        flv.reset();
-        needToFindKeyFrame = true;
+        mVideoAllocator.trim();
+        mAudioAllocator.trim();
         Log.i(TAG, "SrsFlvMuxer closed");
-        // We should not block the main thread
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                disconnect();
+    }
+
+    private void releaseSequenceHeaders() {
+        synchronized (mSequenceHeaderLock) {
+            if (mLastVideoSequenceHeader != null) {
+                mLastVideoSequenceHeader.release();
+                mLastVideoSequenceHeader = null;
+            }
+            if (mLastAudioSequenceHeader != null) {
+                mLastAudioSequenceHeader.release();
+                mLastAudioSequenceHeader = null;
             }
-        }).start();
+        }
     }
 
     /**
@@ -213,10 +337,12 @@ public class SrsFlvMuxer {
             ));
         }
 
-        if (VIDEO_TRACK == trackIndex) {
-            flv.writeVideoSample(byteBuf, bufferInfo);
-        } else {
-            flv.writeAudioSample(byteBuf, bufferInfo);
+        synchronized (producerLock) {
+            if (VIDEO_TRACK == trackIndex) {
+                flv.writeVideoSample(byteBuf, bufferInfo);
+            } else {
+                flv.writeAudioSample(byteBuf, bufferInfo);
+            }
         }
     }
 
@@ -398,14 +524,6 @@ public class SrsFlvMuxer {
         public final static int CodedSliceExt = 20;
     }
 
-    /**
-     * the search result for annexb.
-     */
-    private class SrsAnnexbSearch {
-        public int nb_start_code = 0;
-        public boolean match = false;
-    }
-
     /**
      * the demuxed tag frame.
      */
@@ -417,7 +535,7 @@ public class SrsFlvMuxer {
     /**
      * the muxed flv frame.
      */
-    private class SrsFlvFrame {
+    class SrsFlvFrame {
         // the tag bytes.
         public SrsAllocator.Allocation flvTag;
         // the codec type for audio/aac and video/avc for instance.
@@ -433,6 +551,32 @@ public class SrsFlvMuxer {
             return isVideo() && frame_type == SrsCodecVideoAVCFrame.KeyFrame;
         }
 
+        // Whether no other frame references this one, so it can be dropped alone.
+        public boolean isDisposable() {
+            if (!isVideo() || isSequenceHeader()) {
+                return false;
+            }
+            if (frame_type == SrsCodecVideoAVCFrame.DisposableInterFrame) {
+                return true;
+            }
+            if (flvTag == null) {
+                return false;
+            }
+            // 5 bytes video tag header, then 4 bytes NALU length and the NALU, for each NALU.
+            // the nal_ref_idc of the first slice tells, the sei before it is never referenced.
+            byte[] data = flvTag.array();
+            int pos = 5;
+            while (pos + 4 < flvTag.size()) {
+                int nal_unit_type = data[pos + 4] & 0x1f;
+                if (nal_unit_type == SrsAvcNaluType.IDR || nal_unit_type == SrsAvcNaluType.NonIDR) {
+                    return (data[pos + 4] & 0x60) == 0;
+                }
+                pos += 4 + ((data[pos] & 0xff) << 24 | (data[pos + 1] & 0xff) << 16
+                    | (data[pos + 2] & 0xff) << 8 | (data[pos + 3] & 0xff));
+            }
+            return false;
+        }
+
         public boolean isSequenceHeader() {
             return avc_aac_type == 0;
         }
@@ -444,15 +588,513 @@ public class SrsFlvMuxer {
         public boolean isAudio() {
             return type == SrsCodecFlvTag.Audio;
         }
+
+        // Return the tag to its allocator, the frame must not be sent afterwards.
+        public void release() {
+            if (flvTag == null) {
+                return;
+            }
+            if (isVideo()) {
+                mVideoAllocator.release(flvTag);
+            } else {
+                mAudioAllocator.release(flvTag);
+            }
+            flvTag = null;
+        }
+
+        public SrsFlvFrame copy() {
+            SrsFlvFrame frame = new SrsFlvFrame();
+            frame.flvTag = flvTag;
+            frame.avc_aac_type = avc_aac_type;
+            frame.frame_type = frame_type;
+            frame.type = type;
+            frame.dts = dts;
+            return frame;
+        }
+    }
+
+    /**
+     * one RTMP destination, with its own connection, send queue, drop policy and worker.
+     * the producer queues the same tag to every sender, each queued frame holding its own
+     * reference of the tag.
+     */
+    private class SrsFlvSender {
+        private final DefaultRtmpPublisher publisher;
+        private final SrsSpscRing<SrsFlvFrame> mFlvTagCache = new SrsSpscRing<>(newFlvFrames(FLV_TAG_CACHE_SIZE));
+        private final SrsFlvFrameDropper dropper = new SrsFlvFrameDropper(mFlvTagCache);
+        private volatile String rtmpUrl;
+        // Cleared under producerLock, so that no frame is queued once the cache is cleared.
+        private volatile boolean started;
+        private Thread worker;
+        // Guarded by producerLock, the queue restarts from here after a frame was lost.
+        private boolean needToFindKeyFrame;
+        private boolean needSequenceHeaders;
+        // Only used by the worker, the headers sent over this connection.
+        private SrsFlvFrame mVideoSequenceHeader;
+        private SrsFlvFrame mAudioSequenceHeader;
+        // Only used by the worker, the frames sent since the last keyframe, for a reconnect.
+        private final SrsSpscRing<SrsFlvFrame> mReplayBuffer = new SrsSpscRing<>(newFlvFrames(REPLAY_BUFFER_SIZE));
+        // Only used by the worker, subtracted from the dts of the frames sent after a reconnect.
+        private int dtsOffset;
+        private boolean waitKeyFrame;
+
+        public SrsFlvSender(RtmpHandler handler) {
+            publisher = new DefaultRtmpPublisher(handler, nonBlocking);
+        }
+
+        public void start() {
+            // A single worker consumes the cache, the previous one must have let it go.
+            waitForWorker();
+            final String url = rtmpUrl;
+            synchronized (producerLock) {
+                needToFindKeyFrame = true;
+                needSequenceHeaders = true;
+            }
+            started = true;
+            runningSenders.incrementAndGet();
+            worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        work(url);
+                    } finally {
+                        // The interrupt of stop() would close the channel before the unpublish.
+                        Thread.interrupted();
+                        // Stopped by itself or by stop(), a producer still holding the sender
+                        // must not queue a frame after the clear, the next worker would send it.
+                        synchronized (producerLock) {
+                            started = false;
+                        }
+                        clearFlvTagCache();
+                        disconnect();
+                        // The muxer keeps the last headers until it is stopped.
+                        if (runningSenders.decrementAndGet() == 0 && !SrsFlvMuxer.this.started) {
+                            reportLeaks();
+                        }
+                    }
+                }
+            });
+            worker.start();
+        }
+
+        /**
+         * ask the worker to exit, it disconnects and releases its frames by itself, so that
+         * the main thread is not blocked.
+         */
+        public void stop() {
+            // The producer checks the flag under the lock, it won't queue anything from now.
+            synchronized (producerLock) {
+                started = false;
+            }
+            if (worker != null) {
+                worker.interrupt();
+            }
+        }
+
+        // Wait for the worker to exit, interrupting it again when it takes long, a blocked
+        // socket write is then aborted.
+        private void waitForWorker() {
+            Thread thread = worker;
+            if (thread == null) {
+                return;
+            }
+            boolean interrupted = false;
+            while (thread.isAlive()) {
+                try {
+                    thread.join(500);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+                thread.interrupt();
+            }
+            worker = null;
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * producer side: queue the frame, the tag is retained when it is actually queued.
+         */
+        public void enqueue(int type, int dts, int frame_type, int avc_aac_type, SrsAllocator.Allocation tag) {
+            if (!started) {
+                return;
+            }
+            if (type == SrsCodecFlvTag.Video && needToFindKeyFrame) {
+                if (frame_type != SrsCodecVideoAVCFrame.KeyFrame) {
+                    return;
+                }
+                needToFindKeyFrame = false;
+            }
+            if (needSequenceHeaders) {
+                // Joined after the headers were muxed, or lost them in a full queue.
+                needSequenceHeaders = false;
+                synchronized (mSequenceHeaderLock) {
+                    offerSequenceHeader(mLastVideoSequenceHeader, dts, tag);
+                    offerSequenceHeader(mLastAudioSequenceHeader, dts, tag);
+                }
+            }
+            offer(type, dts, frame_type, avc_aac_type, tag);
+        }
+
+        private void offerSequenceHeader(SrsFlvFrame header, int dts, SrsAllocator.Allocation tag) {
+            // The frame being queued may be the header itself.
+            if (header != null && header.flvTag != tag) {
+                offer(header.type, dts, header.frame_type, header.avc_aac_type, header.flvTag);
+            }
+        }
+
+        private void offer(int type, int dts, int frame_type, int avc_aac_type, SrsAllocator.Allocation tag) {
+            SrsFlvFrame frame = mFlvTagCache.claim();
+            if (frame == null) {
+                // The worker is stuck, drop the frame and restart from the next keyframe.
+                Log.w(TAG, String.format("flv tag cache full, drop frame type=%d, dts=%d", type, dts));
+                if (type == SrsCodecFlvTag.Video) {
+                    needToFindKeyFrame = true;
+                }
+                if (avc_aac_type == 0) {
+                    needSequenceHeaders = true;
+                }
+                return;
+            }
+
+            tag.retain();
+            frame.flvTag = tag;
+            frame.type = type;
+            frame.dts = dts;
+            frame.frame_type = frame_type;
+            frame.avc_aac_type = avc_aac_type;
+            if (frame.isVideo()) {
+                publisher.getVideoFrameCacheNumber().incrementAndGet();
+            }
+            mFlvTagCache.publish();
+        }
+
+        private void work(String url) {
+            boolean connected = connect(url);
+            if (!connected && !autoReconnect) {
+                return;
+            }
+
+            dropper.reset();
+            dtsOffset = 0;
+            waitKeyFrame = false;
+            while (started) {
+                if (!connected) {
+                    connected = reconnect(url);
+                    continue;
+                }
+
+                SrsFlvFrame frame;
+                while ((frame = mFlvTagCache.peek()) != null) {
+                    if (autoReconnect && publisher.isConnectionLost()) {
+                        // Keep the frame for the next connection.
+                        break;
+                    } else if (dropper.shouldDrop(frame)) {
+                        discardFlvTag(frame);
+                    } else if (!publisher.awaitWritable(100)) {
+                        // The socket is congested, keep the frame in the cache.
+                        break;
+                    } else if (frame.isSequenceHeader()) {
+                        // The slot is reused once consumed, keep a copy of the header.
+                        if (frame.isVideo()) {
+                            if (mVideoSequenceHeader != null) {
+                                mVideoSequenceHeader.release();
+                            }
+                            mVideoSequenceHeader = frame.copy();
+                            sendFlvTag(mVideoSequenceHeader);
+                        } else if (frame.isAudio()) {
+                            if (mAudioSequenceHeader != null) {
+                                mAudioSequenceHeader.release();
+                            }
+                            mAudioSequenceHeader = frame.copy();
+                            sendFlvTag(mAudioSequenceHeader);
+                        }
+                    } else if (canSend(frame)) {
+                        sendFlvTag(frame);
+                    } else {
+                        discardFlvTag(frame);
+                    }
+                    mFlvTagCache.consume();
+                }
+                // Everything queued so far has been written, send the batch out.
+                publisher.flush();
+                if (autoReconnect && publisher.isConnectionLost()) {
+                    connected = false;
+                    continue;
+                }
+                // Waiting for next frame, the timeout only guards the started flag.
+                mFlvTagCache.await(TimeUnit.MILLISECONDS.toNanos(500));
+            }
+        }
+
+        // Whether the frame continues the stream of the current connection.
+        private boolean canSend(SrsFlvFrame frame) {
+            if (frame.isVideo() ? mVideoSequenceHeader == null : mAudioSequenceHeader == null) {
+                return false;
+            }
+            if (waitKeyFrame) {
+                if (!frame.isKeyFrame()) {
+                    return false;
+                }
+                // Reconnected without a GOP to replay, the new stream starts here.
+                waitKeyFrame = false;
+                dtsOffset = frame.dts;
+            }
+            return frame.dts >= dtsOffset;
+        }
+
+        // Connect again with an exponential backoff, until connected or stopped.
+        private boolean reconnect(String url) {
+            try {
+                publisher.close();
+            } catch (IllegalStateException e) {
+                // Ignore illegal state.
+            }
+
+            int backoffMs = RECONNECT_MIN_BACKOFF_MS;
+            while (started) {
+                Log.w(TAG, String.format("worker: connection lost, reconnect in %dms", backoffMs));
+                try {
+                    Thread.sleep(backoffMs);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+                if (started && connect(url)) {
+                    resume();
+                    return true;
+                }
+                backoffMs = Math.min(backoffMs * 2, RECONNECT_MAX_BACKOFF_MS);
+            }
+            return false;
+        }
+
+        // Start the new connection with the sequence headers, then replay the GOP which was
+        // being sent, the timestamps of the new stream start from its keyframe.
+        private void resume() {
+            SrsFlvFrame keyFrame = mReplayBuffer.peek();
+            waitKeyFrame = keyFrame == null;
+            dtsOffset = keyFrame == null ? 0 : keyFrame.dts;
+
+            if (mVideoSequenceHeader != null) {
+                republishFlvTag(mVideoSequenceHeader, 0);
+            }
+            if (mAudioSequenceHeader != null) {
+                republishFlvTag(mAudioSequenceHeader, 0);
+            }
+            SrsFlvFrame frame;
+            int replayed = 0;
+            for (int i = 0; (frame = mReplayBuffer.peek(i)) != null; i++) {
+                if (frame.dts >= dtsOffset) {
+                    republishFlvTag(frame, frame.dts - dtsOffset);
+                    replayed++;
+                }
+            }
+            publisher.flush();
+            Log.i(TAG, String.format("worker: reconnected, replayed %d frames", replayed));
+        }
+
+        // Send a frame which already left the cache again.
+        private void republishFlvTag(SrsFlvFrame frame, int dts) {
+            if (frame.isVideo()) {
+                // The connection uncounts every video frame it sends from the cache.
+                publisher.getVideoFrameCacheNumber().incrementAndGet();
+                publisher.publishVideoData(frame.flvTag.array(), frame.flvTag.size(), dts);
+            } else if (frame.isAudio()) {
+                publisher.publishAudioData(frame.flvTag.array(), frame.flvTag.size(), dts);
+            }
+        }
+
+        // Only called by the worker, the frame must be sent and not in the replay buffer yet.
+        private void keepForReplay(SrsFlvFrame frame) {
+            if (!autoReconnect) {
+                frame.release();
+                return;
+            }
+            if (frame.isKeyFrame()) {
+                // A new GOP, the previous one won't be replayed.
+                clearReplayBuffer();
+            } else if (mReplayBuffer.isEmpty()) {
+                // The replay starts at a keyframe.
+                frame.release();
+                return;
+            }
+
+            SrsFlvFrame keyFrame = mReplayBuffer.peek();
+            SrsFlvFrame slot = mReplayBuffer.claim();
+            if (slot == null || (keyFrame != null && frame.dts - keyFrame.dts > maxReplayMs)) {
+                // The GOP outgrew the buffer, nothing is replayed until the next keyframe.
+                clearReplayBuffer();
+                frame.release();
+                return;
+            }
+            // The replay buffer takes over the tag of the frame.
+            slot.flvTag = frame.flvTag;
+            slot.type = frame.type;
+            slot.dts = frame.dts;
+            slot.frame_type = frame.frame_type;
+            slot.avc_aac_type = frame.avc_aac_type;
+            frame.flvTag = null;
+            mReplayBuffer.publish();
+        }
+
+        private void clearReplayBuffer() {
+            SrsFlvFrame frame;
+            while ((frame = mReplayBuffer.peek()) != null) {
+                frame.release();
+                mReplayBuffer.consume();
+            }
+        }
+
+        // Only called by the worker when it exits, the frames it holds go back to the pool.
+        private void disconnect() {
+            try {
+                publisher.close();
+            } catch (IllegalStateException e) {
+                // Ignore illegal state.
+            }
+            clearReplayBuffer();
+            releaseSequenceHeaders();
+            Log.i(TAG, "worker: disconnect ok.");
+        }
+
+        private boolean connect(String url) {
+            boolean connected = false;
+            Log.i(TAG, String.format("worker: connecting to RTMP server by url=%s\n", url));
+            if (publisher.connect(url)) {
+                connected = publisher.publish("live");
+            }
+            return connected;
+        }
+
+        private void sendFlvTag(SrsFlvFrame frame) {
+            if (frame == null) {
+                return;
+            }
+
+            if (frame.isVideo()) {
+                publisher.publishVideoData(frame.flvTag.array(), frame.flvTag.size(), Math.max(frame.dts - dtsOffset, 0));
+            } else if (frame.isAudio()) {
+                publisher.publishAudioData(frame.flvTag.array(), frame.flvTag.size(), Math.max(frame.dts - dtsOffset, 0));
+            }
+            // The sequence header is kept by the worker, its tag must not be reused.
+            if (!frame.isSequenceHeader()) {
+                keepForReplay(frame);
+            }
+        }
+
+        // Drop a queued frame which will never be published.
+        private void discardFlvTag(SrsFlvFrame frame) {
+            if (frame.isVideo()) {
+                publisher.getVideoFrameCacheNumber().decrementAndGet();
+            }
+            frame.release();
+        }
+
+        // Only called by the worker, which is the single consumer of the cache.
+        private void clearFlvTagCache() {
+            SrsFlvFrame frame;
+            while ((frame = mFlvTagCache.peek()) != null) {
+                discardFlvTag(frame);
+                mFlvTagCache.consume();
+            }
+        }
+
+        private void releaseSequenceHeaders() {
+            if (mVideoSequenceHeader != null) {
+                mVideoSequenceHeader.release();
+                mVideoSequenceHeader = null;
+            }
+            if (mAudioSequenceHeader != null) {
+                mAudioSequenceHeader.release();
+                mAudioSequenceHeader = null;
+            }
+        }
+    }
+
+    /**
+     * the drop policy of the send queue, only used by the worker. when the backlog grows it
+     * drops the disposable frames first, then the inter frames up to the next keyframe, then
+     * the whole stale GOPs. audio and sequence headers are always sent.
+     */
+    class SrsFlvFrameDropper {
+        private volatile int disposableMs = 300;
+        private volatile int interMs = 1000;
+        private volatile int gopMs = 2000;
+        // once an inter frame is dropped, the frames up to the next keyframe can't be decoded.
+        private boolean dropToKeyFrame;
+        private volatile long droppedFrames;
+        private final SrsSpscRing<SrsFlvFrame> mFlvTagCache;
+
+        public SrsFlvFrameDropper(SrsSpscRing<SrsFlvFrame> cache) {
+            mFlvTagCache = cache;
+        }
+
+        public void setThresholds(int disposableMs, int interMs, int gopMs) {
+            this.disposableMs = disposableMs;
+            this.interMs = interMs;
+            this.gopMs = gopMs;
+        }
+
+        public long getDroppedFrames() {
+            return droppedFrames;
+        }
+
+        public void reset() {
+            dropToKeyFrame = false;
+        }
+
+        public boolean shouldDrop(SrsFlvFrame frame) {
+            if (!frame.isVideo() || frame.isSequenceHeader()) {
+                return false;
+            }
+
+            boolean drop;
+            if (frame.isKeyFrame()) {
+                // A keyframe ends the dropping, unless a newer GOP is queued behind a stale one.
+                drop = dropToKeyFrame = backlog(frame) > gopMs && hasNewerKeyFrame();
+                if (drop) {
+                    Log.w(TAG, String.format("worker: drop stale gop, dts=%d, backlog=%dms",
+                        frame.dts, backlog(frame)));
+                }
+            } else if (dropToKeyFrame) {
+                drop = true;
+            } else {
+                int backlog = backlog(frame);
+                dropToKeyFrame = backlog > interMs;
+                drop = dropToKeyFrame || (backlog > disposableMs && frame.isDisposable());
+            }
+
+            if (drop) {
+                droppedFrames++;
+            }
+            return drop;
+        }
+
+        // The time between the frame at the head of the queue and the newest queued frame.
+        private int backlog(SrsFlvFrame head) {
+            SrsFlvFrame newest = mFlvTagCache.peek(mFlvTagCache.size() - 1);
+            return newest == null ? 0 : newest.dts - head.dts;
+        }
+
+        private boolean hasNewerKeyFrame() {
+            SrsFlvFrame frame;
+            for (int i = 1; (frame = mFlvTagCache.peek(i)) != null; i++) {
+                if (frame.isKeyFrame() && !frame.isSequenceHeader()) {
+                    return true;
+                }
+            }
+            return false;
+        }
     }
 
     /**
      * the raw h.264 stream, in annexb.
      */
-    private class SrsRawH264Stream {
+    class SrsRawH264Stream {
         private final static String TAG = "SrsFlvMuxer";
 
-        private SrsAnnexbSearch annexb = new SrsAnnexbSearch();
+        private SrsNaluScanner scanner = new SrsNaluScanner();
         private SrsFlvFrameBytes seq_hdr = new SrsFlvFrameBytes();
         private SrsFlvFrameBytes sps_hdr = new SrsFlvFrameBytes();
         private SrsFlvFrameBytes sps_bb = new SrsFlvFrameBytes();
@@ -467,22 +1109,13 @@ public class SrsFlvMuxer {
             return frame.size >= 1 && (frame.data.get(0) & 0x1f) == SrsAvcNaluType.PPS;
         }
 
-        public SrsFlvFrameBytes muxNaluHeader(SrsFlvFrameBytes frame) {
-            SrsFlvFrameBytes nalu_hdr = new SrsFlvFrameBytes();
-            nalu_hdr.data = ByteBuffer.allocate(4);
-            nalu_hdr.size = 4;
-            // 5.3.4.2.1 Syntax, H.264-AVC-ISO_IEC_14496-15.pdf, page 16
-            // lengthSizeMinusOne, or NAL_unit_length, always use 4bytes size
-            int NAL_unit_length = frame.size;
-
-            // mux the avc NALU in "ISO Base Media File Format"
-            // from H.264-AVC-ISO_IEC_14496-15.pdf, page 20
-            // NALUnitLength
-            nalu_hdr.data.putInt(NAL_unit_length);
-
-            // reset the buffer.
-            nalu_hdr.data.rewind();
-            return nalu_hdr;
+        /**
+         * whether the NAL unit goes in the video tag of its access unit, the sps/pps are
+         * sent in the sequence header and the access unit delimiter is meaningless in flv.
+         */
+        public boolean isFrameNalu(int nal_unit_type) {
+            return nal_unit_type != SrsAvcNaluType.SPS && nal_unit_type != SrsAvcNaluType.PPS
+                && nal_unit_type != SrsAvcNaluType.AccessUnitDelimiter;
         }
 
         public void muxSequenceHeader(ByteBuffer sps, ByteBuffer pps, int dts, int pts,
@@ -575,17 +1208,72 @@ public class SrsFlvMuxer {
 
         public SrsAllocator.Allocation muxFlvTag(ArrayList<SrsFlvFrameBytes> frames, int frame_type,
                                                  int avc_packet_type, int dts, int pts) {
-            // for h264 in RTMP video payload, there is 5bytes header:
-            //      1bytes, FrameType | CodecID
-            //      1bytes, AVCPacketType
-            //      3bytes, CompositionTime, the cts.
-            // @see: E.4.3 Video Tags, video_file_format_spec_v10_1.pdf, page 78
             int size = 5;
             for (int i = 0; i < frames.size(); i++) {
                 size += frames.get(i).size;
             }
             SrsAllocator.Allocation allocation = mVideoAllocator.allocate(size);
+            muxFlvTagHeader(allocation, frame_type, avc_packet_type, dts, pts);
+
+            // h.264 raw data.
+            for (int i = 0; i < frames.size(); i++) {
+                SrsFlvFrameBytes frame = frames.get(i);
+                frame.data.get(allocation.array(), allocation.size(), frame.size);
+                allocation.appendOffset(frame.size);
+            }
+
+            return allocation;
+        }
+
+        /**
+         * mux the NAL units of an annexb access unit in a video tag, in "ISO Base Media File
+         * Format", each start code is replaced by the length of its NAL unit while the units
+         * are copied, so the payload is copied once straight from the codec buffer.
+         */
+        public SrsAllocator.Allocation muxFlvTag(ByteBuffer bb, SrsNaluScanner nalus, int frame_type,
+                                                 int dts, int pts) {
+            int size = 5;
+            for (int i = 0; i < nalus.count(); i++) {
+                if (isFrameNalu(nalus.type(i))) {
+                    size += 4 + nalus.length(i);
+                }
+            }
+            SrsAllocator.Allocation allocation = mVideoAllocator.allocate(size);
+            muxFlvTagHeader(allocation, frame_type, SrsCodecVideoAVCType.NALU, dts, pts);
+
+            ByteBuffer src = bb.duplicate();
+            for (int i = 0; i < nalus.count(); i++) {
+                if (!isFrameNalu(nalus.type(i))) {
+                    continue;
+                }
+                // 5.3.4.2.1 Syntax, H.264-AVC-ISO_IEC_14496-15.pdf, page 16
+                // lengthSizeMinusOne, or NAL_unit_length, always use 4bytes size
+                int NAL_unit_length = nalus.length(i);
+
+                // mux the avc NALU in "ISO Base Media File Format"
+                // from H.264-AVC-ISO_IEC_14496-15.pdf, page 20
+                // NALUnitLength
+                allocation.put((byte) (NAL_unit_length >> 24));
+                allocation.put((byte) (NAL_unit_length >> 16));
+                allocation.put((byte) (NAL_unit_length >> 8));
+                allocation.put((byte) NAL_unit_length);
+
+                // NALUnit
+                src.limit(nalus.offset(i) + NAL_unit_length);
+                src.position(nalus.offset(i));
+                src.get(allocation.array(), allocation.size(), NAL_unit_length);
+                allocation.appendOffset(NAL_unit_length);
+            }
+
+            return allocation;
+        }
 
+        private void muxFlvTagHeader(SrsAllocator.Allocation allocation, int frame_type,
+                                     int avc_packet_type, int dts, int pts) {
+            // for h264 in RTMP video payload, there is 5bytes header:
+            //      1bytes, FrameType | CodecID
+            //      1bytes, AVCPacketType
+            //      3bytes, CompositionTime, the cts.
             // @see: E.4.3 Video Tags, video_file_format_spec_v10_1.pdf, page 78
             // Frame Type, Type of video frame.
             // CodecID, Codec Identifier.
@@ -599,83 +1287,38 @@ public class SrsFlvMuxer {
             // pts = dts + cts, or
             // cts = pts - dts.
             // where cts is the header in rtmp video packet payload header.
-            int cts = pts - dts;
+            // a frame reordered deeper than expected gets a dts above its pts, it is then
+            // presented at its dts, as in the mp4 recording.
+            int cts = Math.max(pts - dts, 0);
             allocation.put((byte)(cts >> 16));
             allocation.put((byte)(cts >> 8));
             allocation.put((byte)cts);
-
-            // h.264 raw data.
-            for (int i = 0; i < frames.size(); i++) {
-                SrsFlvFrameBytes frame = frames.get(i);
-                frame.data.get(allocation.array(), allocation.size(), frame.size);
-                allocation.appendOffset(frame.size);
-            }
-
-            return allocation;
         }
 
-        private SrsAnnexbSearch searchStartcode(ByteBuffer bb, MediaCodec.BufferInfo bi) {
-            annexb.match = false;
-            annexb.nb_start_code = 0;
-            if (bi.size - 4 > 0) {
-                if (bb.get(0) == 0x00 && bb.get(1) == 0x00 && bb.get(2) == 0x00 && bb.get(3) == 0x01) {
-                    // match N[00] 00 00 00 01, where N>=0
-                    annexb.match = true;
-                    annexb.nb_start_code = 4;
-                }else if (bb.get(0) == 0x00 && bb.get(1) == 0x00 && bb.get(2) == 0x01){
-                    // match N[00] 00 00 01, where N>=0
-                    annexb.match = true;
-                    annexb.nb_start_code = 3;
-                }
+        /**
+         * split the annexb access unit into its NAL units, in a single pass.
+         * @return the scanner holding the NAL units.
+         */
+        public SrsNaluScanner demuxAnnexb(ByteBuffer bb, MediaCodec.BufferInfo bi) {
+            // each frame must prefixed by annexb format.
+            // about annexb, @see H.264-AVC-ISO_IEC_14496-10.pdf, page 211.
+            if (scanner.scan(bb, bi.offset, bi.offset + bi.size) == 0) {
+                Log.e(TAG, "annexb not match.");
             }
-            return annexb;
+            return scanner;
         }
 
-        private SrsAnnexbSearch searchAnnexb(ByteBuffer bb, MediaCodec.BufferInfo bi) {
-            annexb.match = false;
-            annexb.nb_start_code = 0;
-            for (int i = bb.position(); i < bi.size - 4; i++) {
-                // not match.
-                if (bb.get(i) != 0x00 || bb.get(i + 1) != 0x00) {
-                    continue;
-                }
-                // match N[00] 00 00 01, where N>=0
-                if (bb.get(i + 2) == 0x01) {
-                    annexb.match = true;
-                    annexb.nb_start_code = i + 3 - bb.position();
-                    break;
-                }
-                // match N[00] 00 00 00 01, where N>=0
-                if (bb.get(i + 2) == 0x00 && bb.get(i + 3) == 0x01) {
-                    annexb.match = true;
-                    annexb.nb_start_code = i + 4 - bb.position();
-                    break;
-                }
-            }
-            return annexb;
-        }
-
-        public SrsFlvFrameBytes demuxAnnexb(ByteBuffer bb, MediaCodec.BufferInfo bi, boolean isOnlyChkHeader) {
-            SrsFlvFrameBytes tbb = new SrsFlvFrameBytes();
-            if (bb.position() < bi.size - 4) {
-                // each frame must prefixed by annexb format.
-                // about annexb, @see H.264-AVC-ISO_IEC_14496-10.pdf, page 211.
-                SrsAnnexbSearch tbbsc = isOnlyChkHeader ? searchStartcode(bb, bi) : searchAnnexb(bb, bi);
-                // tbbsc.nb_start_code always 4 , after 00 00 00 01
-                if (!tbbsc.match || tbbsc.nb_start_code < 3) {
-                    Log.e(TAG, "annexb not match.");
-                } else {
-                    // the start codes.
-                    for (int i = 0; i < tbbsc.nb_start_code; i++) {
-                        bb.get();
-                    }
-
-                    // find out the frame size.
-                    tbb.data = bb.slice();
-                    tbb.size = bi.size - bb.position();
-                }
-            }
-            return tbb;
+        /**
+         * get the bytes from offset to limit, without touching the buffer.
+         */
+        public SrsFlvFrameBytes slice(ByteBuffer bb, int offset, int limit) {
+            ByteBuffer dup = bb.duplicate();
+            dup.limit(limit);
+            dup.position(offset);
+            SrsFlvFrameBytes frame = new SrsFlvFrameBytes();
+            frame.data = dup.slice();
+            frame.size = limit - offset;
+            return frame;
         }
     }
 
@@ -706,7 +1349,7 @@ public class SrsFlvMuxer {
         private int achannel;
         private int asample_rate;
         private SrsRawH264Stream avc = new SrsRawH264Stream();
-        private ArrayList<SrsFlvFrameBytes> ipbs = new ArrayList<>();
+        private SrsTimestampGenerator videoTimestamps = new SrsTimestampGenerator(0);
         private SrsAllocator.Allocation audio_tag;
         private SrsAllocator.Allocation video_tag;
         private ByteBuffer h264_sps;
@@ -725,6 +1368,7 @@ public class SrsFlvMuxer {
             h264_pps_changed = false;
             h264_sps_pps_sent = false;
             aac_specific_config_got = false;
+            videoTimestamps.reset();
             if (null != h264_sps){
                 Arrays.fill(h264_sps.array(),(byte) 0x00);
                 h264_sps.clear();
@@ -740,6 +1384,10 @@ public class SrsFlvMuxer {
             videoTrack = format;
         }
 
+        public void setVideoReorderDepth(int reorderDepth) {
+            videoTimestamps.setReorderDepth(reorderDepth);
+        }
+
         public void setAudioTrack(MediaFormat format) {
             audioTrack = format;
             achannel = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
@@ -747,7 +1395,7 @@ public class SrsFlvMuxer {
         }
 
         public void writeAudioSample(final ByteBuffer bb, MediaCodec.BufferInfo bi) {
-            int pts = (int)(bi.presentationTimeUs / 1000);
+            int pts = (int) (videoTimestamps.pts(bi.presentationTimeUs) / 1000);
             int dts = pts;
 
             audio_tag = mAudioAllocator.allocate(bi.size + 2);
@@ -870,48 +1518,59 @@ public class SrsFlvMuxer {
         public void writeVideoSample(final ByteBuffer bb, MediaCodec.BufferInfo bi) {
             if (bi.size < 4) return;
 
-            int pts = (int) (bi.presentationTimeUs / 1000);
+            int pts = (int) (videoTimestamps.pts(bi.presentationTimeUs) / 1000);
             int dts = pts;
             int type = SrsCodecVideoAVCFrame.InterFrame;
-            SrsFlvFrameBytes frame = avc.demuxAnnexb(bb, bi, true);
-            int nal_unit_type = frame.data.get(0) & 0x1f;
-            if (nal_unit_type == SrsAvcNaluType.IDR) {
-                type = SrsCodecVideoAVCFrame.KeyFrame;
-            } else if (nal_unit_type == SrsAvcNaluType.SPS || nal_unit_type == SrsAvcNaluType.PPS) {
-                SrsFlvFrameBytes frame_pps = avc.demuxAnnexb(bb, bi, false);
-                frame.size = frame.size - frame_pps.size - 4;  // 4 ---> 00 00 00 01 pps
+            SrsNaluScanner nalus = avc.demuxAnnexb(bb, bi);
+            if (nalus.count() == 0) {
+                return;
+            }
+            // an access unit may hold an aud, sei, sps/pps and several slices,
+            // @see 7.4.1.2.3 Order of NAL units, H.264-AVC-ISO_IEC_14496-10.pdf, page 79
+            boolean hasSlice = false;
+            for (int i = 0; i < nalus.count(); i++) {
+                int nal_unit_type = nalus.type(i);
+                if (nal_unit_type == SrsAvcNaluType.IDR) {
+                    type = SrsCodecVideoAVCFrame.KeyFrame;
+                    hasSlice = true;
+                } else if (nal_unit_type == SrsAvcNaluType.NonIDR) {
+                    hasSlice = true;
+                }
+            }
+
+            int i = nalus.indexOf(SrsAvcNaluType.SPS);
+            if (i >= 0) {
+                SrsFlvFrameBytes frame = avc.slice(bb, nalus.offset(i), nalus.offset(i) + nalus.length(i));
                 if (!frame.data.equals(h264_sps)) {
                     byte[] sps = new byte[frame.size];
                     frame.data.get(sps);
                     h264_sps_changed = true;
                     h264_sps = ByteBuffer.wrap(sps);
-//                    writeH264SpsPps(dts, pts);
-                }
-
-                SrsFlvFrameBytes frame_sei = avc.demuxAnnexb(bb, bi, false);
-                if (frame_sei.size > 0){
-                    if(SrsAvcNaluType.SEI == (int)(frame_sei.data.get(0) & 0x1f))
-                        frame_pps.size = frame_pps.size - frame_sei.size - 3;// 3 ---> 00 00 01 SEI
                 }
+            }
 
-                if (!frame_pps.data.equals(h264_pps)) {
-                    byte[] pps = new byte[frame_pps.size];
-                    frame_pps.data.get(pps);
+            i = nalus.indexOf(SrsAvcNaluType.PPS);
+            if (i >= 0) {
+                SrsFlvFrameBytes frame = avc.slice(bb, nalus.offset(i), nalus.offset(i) + nalus.length(i));
+                if (!frame.data.equals(h264_pps)) {
+                    byte[] pps = new byte[frame.size];
+                    frame.data.get(pps);
                     h264_pps_changed = true;
                     h264_pps = ByteBuffer.wrap(pps);
-                    writeH264SpsPps(dts, pts);
                 }
-                return;
-            } else if (nal_unit_type != SrsAvcNaluType.NonIDR) {
-                return;
             }
+            // the pictures are output in decoding order, so with B-frames the pts is not
+            // monotonic, the dts is derived from it and cts = pts - dts is sent in the tag.
+            if (hasSlice) {
+                dts = (int) (videoTimestamps.dts(bi.presentationTimeUs) / 1000);
+            }
+            writeH264SpsPps(dts, pts);
 
-            ipbs.add(avc.muxNaluHeader(frame));
-            ipbs.add(frame);
-
-            //writeH264SpsPps(dts, pts);
-            writeH264IpbFrame(ipbs, type, dts, pts);
-            ipbs.clear();
+            // the codec config buffer, or an access unit without any picture.
+            if (!hasSlice) {
+                return;
+            }
+            writeH264IpbFrame(bb, nalus, type, dts, pts);
         }
 
         private void writeH264SpsPps(int dts, int pts) {
@@ -947,50 +1606,71 @@ public class SrsFlvMuxer {
                 h264_sps.array().length, h264_pps.array().length));
         }
 
-        private void writeH264IpbFrame(ArrayList<SrsFlvFrameBytes> frames, int type, int dts, int pts) {
+        private void writeH264IpbFrame(ByteBuffer bb, SrsNaluScanner nalus, int type, int dts, int pts) {
             // when sps or pps not sent, ignore the packet.
             // @see https://github.com/simple-rtmp-server/srs/issues/203
             if (!h264_sps_pps_sent) {
                 return;
             }
 
-            video_tag = avc.muxFlvTag(frames, type, SrsCodecVideoAVCType.NALU, dts, pts);
+            video_tag = avc.muxFlvTag(bb, nalus, type, dts, pts);
 
             // the timestamp in rtmp message header is dts.
             writeRtmpPacket(SrsCodecFlvTag.Video, dts, type, SrsCodecVideoAVCType.NALU, video_tag);
         }
 
         private void writeRtmpPacket(int type, int dts, int frame_type, int avc_aac_type, SrsAllocator.Allocation tag) {
-            SrsFlvFrame frame = new SrsFlvFrame();
-            frame.flvTag = tag;
-            frame.type = type;
-            frame.dts = dts;
-            frame.frame_type = frame_type;
-            frame.avc_aac_type = avc_aac_type;
-
-            if (frame.isVideo()) {
+            if (type == SrsCodecFlvTag.Video) {
                 if (needToFindKeyFrame) {
-                    if (frame.isKeyFrame()) {
-                        needToFindKeyFrame = false;
-                        flvTagCacheAdd(frame);
+                    if (frame_type != SrsCodecVideoAVCFrame.KeyFrame) {
+                        mVideoAllocator.release(tag);
+                        return;
                     }
-                } else {
-                    flvTagCacheAdd(frame);
+                    needToFindKeyFrame = false;
                 }
-            } else if (frame.isAudio()) {
-                flvTagCacheAdd(frame);
+            } else if (type != SrsCodecFlvTag.Audio) {
+                return;
             }
+            if (avc_aac_type == 0) {
+                keepSequenceHeader(type, dts, frame_type, avc_aac_type, tag);
+            }
+            flvTagCacheAdd(type, dts, frame_type, avc_aac_type, tag);
         }
 
-        private void flvTagCacheAdd(SrsFlvFrame frame) {
-            if (started) {
-                mFlvTagCache.add(frame);
-                if (frame.isVideo()) {
-                    getVideoFrameCacheNumber().incrementAndGet();
+        // Keep a reference of the last header, for the destinations which join later.
+        private void keepSequenceHeader(int type, int dts, int frame_type, int avc_aac_type, SrsAllocator.Allocation tag) {
+            synchronized (mSequenceHeaderLock) {
+                SrsFlvFrame header = type == SrsCodecFlvTag.Video ? mLastVideoSequenceHeader : mLastAudioSequenceHeader;
+                if (header == null) {
+                    header = new SrsFlvFrame();
+                } else {
+                    header.release();
+                }
+                tag.retain();
+                header.flvTag = tag;
+                header.type = type;
+                header.dts = dts;
+                header.frame_type = frame_type;
+                header.avc_aac_type = avc_aac_type;
+                if (type == SrsCodecFlvTag.Video) {
+                    mLastVideoSequenceHeader = header;
+                } else {
+                    mLastAudioSequenceHeader = header;
                 }
             }
-            synchronized (txFrameLock) {
-                txFrameLock.notifyAll();
+        }
+
+        private void flvTagCacheAdd(int type, int dts, int frame_type, int avc_aac_type, SrsAllocator.Allocation tag) {
+            // The tag is muxed once and shared, each destination queuing it takes a reference.
+            SrsFlvSender[] senders = activeSenders;
+            for (SrsFlvSender sender : senders) {
+                sender.enqueue(type, dts, frame_type, avc_aac_type, tag);
+            }
+            // Give back the reference of the muxer, the tag is pooled again if nobody took it.
+            if (type == SrsCodecFlvTag.Video) {
+                mVideoAllocator.release(tag);
+            } else {
+                mAudioAllocator.release(tag);
             }
         }
     }
@@ -0,0 +1,82 @@
+package net.ossrs.yasea;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Pool of direct buffers the video frames are converted into, so a conversion never allocates.
+ *
+ * The buffers are keyed by the geometry and the color format of the frames they hold, a
+ * buffer is released with the key it was acquired with. The free buffers of a key are kept up
+ * to a bound, the extra ones are left to the GC.
+ */
+public class SrsFrameBufferPool {
+
+    private final int maxFreeBuffers;
+    private final Map<Long, ArrayDeque<ByteBuffer>> freeBuffers = new HashMap<>();
+    // The free buffers of the last key, which does not change while encoding, so the key is
+    // not boxed for each frame.
+    private long lastKey = -1;
+    private ArrayDeque<ByteBuffer> lastFree;
+
+    /**
+     * @param maxFreeBuffers the number of free buffers kept per key.
+     */
+    public SrsFrameBufferPool(int maxFreeBuffers) {
+        this.maxFreeBuffers = maxFreeBuffers;
+    }
+
+    private static long key(int width, int height, int colorFormat) {
+        return ((long) width << 48) | ((long) height << 32) | (colorFormat & 0xffffffffL);
+    }
+
+    private ArrayDeque<ByteBuffer> free(long key) {
+        if (key != lastKey) {
+            lastFree = freeBuffers.get(key);
+            if (lastFree == null) {
+                lastFree = new ArrayDeque<>();
+                freeBuffers.put(key, lastFree);
+            }
+            lastKey = key;
+        }
+        return lastFree;
+    }
+
+    /**
+     * @return a cleared direct buffer for a YUV 4:2:0 frame of the geometry, a new one when the
+     *         pool has none.
+     */
+    public synchronized ByteBuffer acquire(int width, int height, int colorFormat) {
+        ByteBuffer bb = free(key(width, height, colorFormat)).pollFirst();
+        if (bb == null) {
+            bb = ByteBuffer.allocateDirect(width * height * 3 / 2);
+        }
+        bb.clear();
+        return bb;
+    }
+
+    /**
+     * Gives back a buffer acquired with the same geometry and color format, a buffer of another
+     * size is dropped.
+     */
+    public synchronized void release(ByteBuffer bb, int width, int height, int colorFormat) {
+        if (bb.capacity() != width * height * 3 / 2) {
+            return;
+        }
+        ArrayDeque<ByteBuffer> free = free(key(width, height, colorFormat));
+        if (free.size() < maxFreeBuffers) {
+            free.addFirst(bb);
+        }
+    }
+
+    /**
+     * Drops the free buffers, when the geometry won't be used anymore.
+     */
+    public synchronized void clear() {
+        freeBuffers.clear();
+        lastKey = -1;
+        lastFree = null;
+    }
+}
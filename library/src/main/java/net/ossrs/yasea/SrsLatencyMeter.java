@@ -0,0 +1,74 @@
+package net.ossrs.yasea;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the last latency samples of a stream, such as from the capture of a frame to its
+ * muxing.
+ *
+ * Recording a sample does not allocate, the statistics are computed when read.
+ */
+public class SrsLatencyMeter {
+
+    private final long[] samples;
+    private int next;
+    private int count;
+    private long total;
+
+    /**
+     * @param size the number of samples the statistics are computed over.
+     */
+    public SrsLatencyMeter(int size) {
+        samples = new long[size];
+    }
+
+    public synchronized void record(long latencyUs) {
+        samples[next] = latencyUs;
+        next = (next + 1) % samples.length;
+        if (count < samples.length) {
+            count++;
+        }
+        total++;
+    }
+
+    public synchronized void reset() {
+        next = 0;
+        count = 0;
+        total = 0;
+    }
+
+    /**
+     * @return the number of samples recorded since the last reset.
+     */
+    public synchronized long getCount() {
+        return total;
+    }
+
+    /**
+     * @return the average over the last samples, in us, 0 without samples.
+     */
+    public synchronized long getAverageUs() {
+        if (count == 0) {
+            return 0;
+        }
+        long sum = 0;
+        for (int i = 0; i < count; i++) {
+            sum += samples[i];
+        }
+        return sum / count;
+    }
+
+    /**
+     * @param percentile from 0 to 100, 50 for the median.
+     * @return the percentile of the last samples, in us, 0 without samples.
+     */
+    public synchronized long getPercentileUs(int percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        int i = (int) Math.ceil(percentile / 100.0 * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, i))];
+    }
+}
@@ -21,16 +21,23 @@ import com.coremedia.iso.boxes.MediaInformationBox;
 import com.coremedia.iso.boxes.MovieBox;
 import com.coremedia.iso.boxes.MovieHeaderBox;
 import com.coremedia.iso.boxes.SampleDescriptionBox;
-import com.coremedia.iso.boxes.SampleSizeBox;
 import com.coremedia.iso.boxes.SampleTableBox;
-import com.coremedia.iso.boxes.SampleToChunkBox;
 import com.coremedia.iso.boxes.SoundMediaHeaderBox;
-import com.coremedia.iso.boxes.StaticChunkOffsetBox;
-import com.coremedia.iso.boxes.SyncSampleBox;
-import com.coremedia.iso.boxes.TimeToSampleBox;
 import com.coremedia.iso.boxes.TrackBox;
 import com.coremedia.iso.boxes.TrackHeaderBox;
 import com.coremedia.iso.boxes.VideoMediaHeaderBox;
+import com.coremedia.iso.boxes.fragment.MovieExtendsBox;
+import com.coremedia.iso.boxes.fragment.MovieFragmentBox;
+import com.coremedia.iso.boxes.fragment.MovieFragmentHeaderBox;
+import com.coremedia.iso.boxes.fragment.MovieFragmentRandomAccessBox;
+import com.coremedia.iso.boxes.fragment.MovieFragmentRandomAccessOffsetBox;
+import com.coremedia.iso.boxes.fragment.SampleFlags;
+import com.coremedia.iso.boxes.fragment.TrackExtendsBox;
+import com.coremedia.iso.boxes.fragment.TrackFragmentBaseMediaDecodeTimeBox;
+import com.coremedia.iso.boxes.fragment.TrackFragmentBox;
+import com.coremedia.iso.boxes.fragment.TrackFragmentHeaderBox;
+import com.coremedia.iso.boxes.fragment.TrackFragmentRandomAccessBox;
+import com.coremedia.iso.boxes.fragment.TrackRunBox;
 import com.coremedia.iso.boxes.h264.AvcConfigurationBox;
 import com.coremedia.iso.boxes.sampleentry.AudioSampleEntry;
 import com.coremedia.iso.boxes.sampleentry.VisualSampleEntry;
@@ -42,20 +49,25 @@ import com.googlecode.mp4parser.boxes.mp4.objectdescriptors.SLConfigDescriptor;
 import com.googlecode.mp4parser.util.Math;
 import com.googlecode.mp4parser.util.Matrix;
 
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Created by LeoMa on 2016/5/21.
@@ -65,6 +77,27 @@ public class SrsMp4Muxer {
     private static final String TAG = "SrsMp4Muxer";
     private static final int VIDEO_TRACK = 100;
     private static final int AUDIO_TRACK = 101;
+    // tfhd flag, the data offsets of the track runs are relative to the moof.
+    private static final int DEFAULT_BASE_IS_MOOF = 0x20000;
+    // The frames waiting for the worker, about 3 seconds at 30fps with the audio, and the bytes
+    // they may hold when the disk can't keep up.
+    private static final int FRAME_CACHE_SIZE = 256;
+    private static final long MAX_CACHED_BYTES = 16 * 1024 * 1024;
+    private static final int SAMPLE_ALLOC_SIZE = 4 * 1024;
+    // The samples are written to the mdat by batches, in one gathering write when a batch holds
+    // BATCH_BYTES or BATCH_MAX_BUFFERS buffers, or when its first sample waited BATCH_INTERVAL_MS.
+    private static final int BATCH_BYTES = 256 * 1024;
+    private static final int BATCH_MAX_BUFFERS = 256;
+    private static final long BATCH_INTERVAL_MS = 200;
+    // The longest fragment of a recording without video, and of one whose video stopped,
+    // which are cut by the audio instead of the video key frames.
+    private static final long AUDIO_FRAGMENT_DURATION_US = 1000 * 1000;
+    private static final long STALLED_VIDEO_FRAGMENT_DURATION_US = 10 * 1000 * 1000;
+    // The mdat is moved by this much at a time by the fast start, at most by the size of the
+    // moov so a chunk never overwrites itself and can be moved again after a crash.
+    private static final int FAST_START_BUFFER_SIZE = 4 * 1024 * 1024;
+    // Ends the journal of a fast start move, in the last bytes of the file until it is done.
+    private static final byte[] FAST_START_JOURNAL_MAGIC = {'y', 'a', 's', 'e', 'a', 'f', 's', '1'};
 
     private File mRecFile;
     private SrsRecordHandler mHandler;
@@ -73,6 +106,7 @@ public class SrsMp4Muxer {
     private MediaFormat audioFormat = null;
 
     private SrsRawH264Stream avc = new SrsRawH264Stream();
+    private SrsTimestampGenerator videoTimestamps = new SrsTimestampGenerator(0);
     private Mp4Movie mp4Movie = new Mp4Movie();
 
     private boolean aacSpecConfig = false;
@@ -80,16 +114,47 @@ public class SrsMp4Muxer {
     private ByteBuffer h264_pps = null;
     private ArrayList<byte[]> spsList = new ArrayList<>();
     private ArrayList<byte[]> ppsList = new ArrayList<>();
+    // Only used by the producer, the parameter sets changed while recording and are queued
+    // before the next video frame.
+    private boolean parameterSetsChanged = false;
 
     private Thread worker;
     private volatile boolean bRecording = false;
     private volatile boolean bPaused = false;
     private volatile boolean needToFindKeyFrame = true;
-    private final Object writeLock = new Object();
-    private ConcurrentLinkedQueue<SrsEsFrame> frameCache = new ConcurrentLinkedQueue<>();
+    // The encoded frames are copied into pooled arrays when queued, the codec reuses its buffers
+    // as soon as writeSampleData returns. The video and audio encoders queue from their own
+    // threads, so the producer side of the ring is locked.
+    private final SrsAllocator sampleAllocator = new SrsAllocator(SAMPLE_ALLOC_SIZE);
+    private final SrsSpscRing<SrsEsFrame> frameCache = new SrsSpscRing<>(newEsFrames(FRAME_CACHE_SIZE));
+    private final Object producerLock = new Object();
+    // Held by the worker while it writes, the tests hold it to stand for a disk which can't keep
+    // up.
+    final Object writerLock = new Object();
+    // The fast start move gives up after this many chunks, the tests interrupt it as a crash.
+    int fastStartChunkLimit = Integer.MAX_VALUE;
+    // Only used by the worker, the buffer info of the frame being written.
+    private final MediaCodec.BufferInfo writeInfo = new MediaCodec.BufferInfo();
+    private volatile long droppedFrames = 0;
+    // Only used by the producer, the video dropped a frame and waits for a key frame.
+    private boolean videoNeedsKeyFrame = false;
+    // The fragmented mode, @see setFragmentedRecording.
+    private boolean fragmented = false;
+    private long fragmentDurationUs = 0;
+    // The fast start mode, @see setFastStart.
+    private volatile boolean fastStart = false;
+    // Only used by the worker, the samples not written yet.
+    private final SampleBatch sampleBatch = new SampleBatch();
+    // The fdatasync checkpoints, @see setSyncInterval.
+    private long syncIntervalNs = 0;
+    private long lastSyncNanos = 0;
 
     private static Map<Integer, Integer> samplingFrequencyIndexMap = new HashMap<>();
 
+    // The flags of a key frame and of a frame depending on others, in a track run.
+    private static final SampleFlags SYNC_SAMPLE_FLAGS = new SampleFlags();
+    private static final SampleFlags NON_SYNC_SAMPLE_FLAGS = new SampleFlags();
+
     static {
         samplingFrequencyIndexMap.put(96000, 0x0);
         samplingFrequencyIndexMap.put(88200, 0x1);
@@ -103,6 +168,10 @@ public class SrsMp4Muxer {
         samplingFrequencyIndexMap.put(12000, 0x9);
         samplingFrequencyIndexMap.put(11025, 0xa);
         samplingFrequencyIndexMap.put(8000, 0xb);
+
+        SYNC_SAMPLE_FLAGS.setSampleDependsOn(2);
+        NON_SYNC_SAMPLE_FLAGS.setSampleDependsOn(1);
+        NON_SYNC_SAMPLE_FLAGS.setSampleIsDifferenceSample(true);
     }
 
     public SrsMp4Muxer(SrsRecordHandler handler) {
@@ -131,28 +200,32 @@ public class SrsMp4Muxer {
 //        }
         mp4Movie.addTrack(audioFormat, true);
 
+        // nothing is queued once stopped, but the ring must start empty for the new file.
+        releaseCachedFrames();
+        droppedFrames = 0;
+        synchronized (producerLock) {
+            bRecording = true;
+        }
         worker = new Thread(new Runnable() {
             @Override
             public void run() {
-                bRecording = true;
                 while (bRecording) {
-                    // Keep at least one audio and video frame in cache to ensure monotonically increasing.
-                    while (!frameCache.isEmpty()) {
-                        SrsEsFrame frame = frameCache.poll();
-                        writeSampleData(frame.bb, frame.bi, frame.is_audio());
-                    }
-                    // Waiting for next frame
-                    synchronized (writeLock) {
-                        try {
-                            // isEmpty() may take some time, so we set timeout to detect next frame
-                            writeLock.wait(500);
-                        } catch (InterruptedException ie) {
-                            worker.interrupt();
-                        }
+                    synchronized (writerLock) {
+                        writeCachedFrames();
                     }
+                    // Waiting for next frame, or for the time to write the batch, the timeout
+                    // also guards the recording flag.
+                    long timeoutNs = TimeUnit.MILLISECONDS.toNanos(sampleBatch.isEmpty() ? 500 : BATCH_INTERVAL_MS)
+                        - sampleBatch.getAgeNanos();
+                    frameCache.await(java.lang.Math.max(timeoutNs, 0));
+                }
+                // the frames queued before the stop are written too, with the batch when the
+                // movie is finished.
+                synchronized (writerLock) {
+                    writeCachedFrames();
                 }
             }
-        });
+        }, "SrsMp4Writer");
         worker.start();
 
         return true;
@@ -183,13 +256,16 @@ public class SrsMp4Muxer {
      * finish recording.
      */
     public void stop() {
-        bRecording = false;
+        // Cleared under the producer lock, so no frame is queued once the worker is gone.
+        synchronized (producerLock) {
+            bRecording = false;
+        }
         bPaused = false;
         needToFindKeyFrame = true;
         aacSpecConfig = false;
-        frameCache.clear();
 
         if (worker != null) {
+            LockSupport.unpark(worker);
             try {
                 worker.join();
             } catch (InterruptedException e) {
@@ -197,6 +273,8 @@ public class SrsMp4Muxer {
                 worker.interrupt();
             }
             worker = null;
+            // the worker is gone, release what was queued meanwhile.
+            releaseCachedFrames();
 
             finishMovie();
             mHandler.notifyRecordFinished(mRecFile.getPath());
@@ -204,6 +282,90 @@ public class SrsMp4Muxer {
         Log.i(TAG, "SrsMp4Muxer closed");
     }
 
+    /**
+     * record a fragmented mp4: the moov is written first, then a moof and mdat pair for each
+     * fragment and an mfra index at the end, so the file stays playable up to its last fragment
+     * when the recording is interrupted, and the memory is bounded by a fragment. Set before
+     * record.
+     *
+     * The moov is written once, so the video parameter sets can't change afterwards: when the
+     * encoder changes them, the recording ends with the last fragment and the listener gets an
+     * IllegalArgumentException, the file is finished by stop.
+     *
+     * @param fragmentDurationMs the minimum duration of a fragment, each one starts at a video
+     *                           key frame, 0 for a fragment per key frame. Without video, or
+     *                           when the video stops, the audio cuts the fragments instead.
+     */
+    public void setFragmentedRecording(boolean enabled, int fragmentDurationMs) {
+        fragmented = enabled;
+        fragmentDurationUs = fragmentDurationMs * 1000L;
+    }
+
+    /**
+     * finish the recording with the moov before the mdat, so a player can start before the
+     * whole file is downloaded. The mdat is moved in place when the recording stops, which
+     * reads and writes it once more without holding the samples in memory, so stop takes
+     * longer with large files. The file is first finished with its moov at the end and synced,
+     * a move interrupted by a crash leaves a file which doesn't play until resumeFastStart
+     * finished the move. The fragmented mode already has its moov first.
+     */
+    public void setFastStart(boolean enabled) {
+        fastStart = enabled;
+    }
+
+    /**
+     * finish the fast start move of a recording interrupted by a crash, @see setFastStart.
+     *
+     * @return false when the file has no move to finish.
+     */
+    public static boolean resumeFastStart(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel fc = raf.getChannel();
+            FastStartJournal journal = FastStartJournal.read(fc);
+            if (journal == null) {
+                return false;
+            }
+            journal.move(fc, false, Integer.MAX_VALUE);
+            journal.finish(fc);
+            return true;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * sync the recorded data to the disk every intervalMs with an fdatasync, so what was written
+     * before a crash or a power loss is on the disk, up to the interval. 0, the default, leaves
+     * it to the kernel. Set before record.
+     */
+    public void setSyncInterval(int intervalMs) {
+        syncIntervalNs = TimeUnit.MILLISECONDS.toNanos(intervalMs);
+    }
+
+    /**
+     * @return the number of frames dropped since the recording started, because the disk could
+     *         not keep up. The video restarts from the next key frame after a drop.
+     */
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * @return the number of frames waiting for the disk.
+     */
+    public int getCachedFrames() {
+        return frameCache.size();
+    }
+
+    /**
+     * set the reorder depth of the video frames, the number of frames the encoder may output
+     * before a frame presented earlier, 0 without B-frames.
+     */
+    public void setVideoReorderDepth(int reorderDepth) {
+        videoTimestamps.setReorderDepth(reorderDepth);
+    }
+
     /**
      * Adds a track with the specified format.
      *
@@ -221,7 +383,8 @@ public class SrsMp4Muxer {
     }
 
     /**
-     * send the annexb frame to SRS over RTMP.
+     * queue the annexb frame for the file, the sample is copied before this returns, so the
+     * codec can reuse its buffer. The position and the limit of byteBuf are changed.
      *
      * @param trackIndex The track index for this sample.
      * @param byteBuf    The encoded sample.
@@ -281,37 +444,55 @@ public class SrsMp4Muxer {
     }
 
     private void writeVideoSample(final ByteBuffer bb, MediaCodec.BufferInfo bi) {
-        int nal_unit_type = bb.get(4) & 0x1f;
+        SrsNaluScanner nalus = avc.annexb_demux(bb, bi);
+        if (nalus.count() == 0) {
+            return;
+        }
+        int nal_unit_type = nalus.type(0);
         if (nal_unit_type == SrsAvcNaluType.IDR || nal_unit_type == SrsAvcNaluType.NonIDR) {
-            writeFrameByte(VIDEO_TRACK, bb, bi, nal_unit_type == SrsAvcNaluType.IDR);
+            // the pictures are output in decoding order, with B-frames the pts is not monotonic.
+            long dts = videoTimestamps.dts(bi.presentationTimeUs);
+            writeFrameByte(VIDEO_TRACK, bb, bi, dts, nal_unit_type == SrsAvcNaluType.IDR);
         } else {
-            while (bb.position() < bi.size) {
-                SrsEsFrameBytes frame = avc.annexb_demux(bb, bi);
-
-                if (avc.is_sps(frame)) {
-                    if (!frame.data.equals(h264_sps)) {
-                        byte[] sps = new byte[frame.size];
-                        frame.data.get(sps);
-                        h264_sps = ByteBuffer.wrap(sps);
-                        spsList.clear();
-                        spsList.add(sps);
-                    }
-                    continue;
+            boolean changed = false;
+            int i = nalus.indexOf(SrsAvcNaluType.SPS);
+            if (i >= 0) {
+                SrsEsFrameBytes frame = avc.slice(bb, nalus.offset(i), nalus.length(i));
+                if (!frame.data.equals(h264_sps)) {
+                    byte[] sps = new byte[frame.size];
+                    frame.data.get(sps);
+                    h264_sps = ByteBuffer.wrap(sps);
+                    spsList.clear();
+                    spsList.add(sps);
+                    changed = true;
                 }
+            }
 
-                if (avc.is_pps(frame)) {
-                    if (!frame.data.equals(h264_pps)) {
-                        byte[] pps = new byte[frame.size];
-                        frame.data.get(pps);
-                        h264_pps = ByteBuffer.wrap(pps);
-                        ppsList.clear();
-                        ppsList.add(pps);
-                    }
-                    continue;
+            i = nalus.indexOf(SrsAvcNaluType.PPS);
+            if (i >= 0) {
+                SrsEsFrameBytes frame = avc.slice(bb, nalus.offset(i), nalus.length(i));
+                if (!frame.data.equals(h264_pps)) {
+                    byte[] pps = new byte[frame.size];
+                    frame.data.get(pps);
+                    h264_pps = ByteBuffer.wrap(pps);
+                    ppsList.clear();
+                    ppsList.add(pps);
+                    changed = true;
                 }
             }
+            // a repeated sequence header must not drop the samples of the track.
             if (!spsList.isEmpty() && !ppsList.isEmpty()) {
-                mp4Movie.addTrack(videoFormat, false);
+                if (!mp4Movie.getTracks().containsKey(VIDEO_TRACK)) {
+                    mp4Movie.addTrack(videoFormat, false);
+                } else if (changed) {
+                    if (bRecording) {
+                        // the worker updates the track in order with its samples, so they are
+                        // kept along with the timeline of the fragments.
+                        parameterSetsChanged = true;
+                    } else {
+                        mp4Movie.addTrack(videoFormat, false);
+                    }
+                }
             }
         }
     }
@@ -320,41 +501,130 @@ public class SrsMp4Muxer {
         if (!aacSpecConfig) {
             aacSpecConfig = true;
         } else {
-            writeFrameByte(AUDIO_TRACK, bb, bi, false);
+            writeFrameByte(AUDIO_TRACK, bb, bi, videoTimestamps.pts(bi.presentationTimeUs), false);
         }
     }
 
-    private void writeFrameByte(int track, ByteBuffer bb, MediaCodec.BufferInfo bi, boolean isKeyFrame) {
-        SrsEsFrame frame = new SrsEsFrame();
-        frame.bb = bb;
-        frame.bi = bi;
-        frame.isKeyFrame = isKeyFrame;
-        frame.track = track;
+    private void writeFrameByte(int track, ByteBuffer bb, MediaCodec.BufferInfo bi, long dts, boolean isKeyFrame) {
+        if (!bRecording || bPaused) {
+            return;
+        }
 
-        if (bRecording && !bPaused) {
+        synchronized (producerLock) {
+            // stop() may have drained the ring since the check above.
+            if (!bRecording) {
+                return;
+            }
             if (needToFindKeyFrame) {
-                if (frame.isKeyFrame) {
-                    needToFindKeyFrame = false;
-                    frameCache.add(frame);
-                    synchronized (writeLock) {
-                        writeLock.notifyAll();
-                    }
+                // a recording without video starts at once.
+                if (!isKeyFrame && videoFormat != null) {
+                    return;
                 }
-            } else {
-                frameCache.add(frame);
-                synchronized (writeLock) {
-                    writeLock.notifyAll();
+                needToFindKeyFrame = false;
+                videoNeedsKeyFrame = false;
+            }
+            if (track == VIDEO_TRACK && videoNeedsKeyFrame) {
+                if (!isKeyFrame) {
+                    droppedFrames++;
+                    return;
                 }
+                videoNeedsKeyFrame = false;
             }
+            if (track == VIDEO_TRACK && parameterSetsChanged) {
+                if (!queueParameterSets()) {
+                    droppedFrames++;
+                    videoNeedsKeyFrame = true;
+                    return;
+                }
+                parameterSetsChanged = false;
+            }
+
+            SrsEsFrame frame = frameCache.claim();
+            if (frame == null || sampleAllocator.getBytesOutstanding() + bi.size > MAX_CACHED_BYTES) {
+                // The disk can't keep up, the encoder is never blocked: drop the frame, the
+                // video restarts from the next key frame while the audio goes on.
+                droppedFrames++;
+                Log.w(TAG, String.format("frame cache full, drop %s frame dts=%dms, %d queued",
+                    track == VIDEO_TRACK ? "video" : "audio", dts / 1000, frameCache.size()));
+                if (track == VIDEO_TRACK) {
+                    videoNeedsKeyFrame = true;
+                }
+                return;
+            }
+
+            // the codec reuses its buffer once this returns, copy the sample.
+            frame.data = sampleAllocator.allocate(bi.size);
+            bb.limit(bi.offset + bi.size);
+            bb.position(bi.offset);
+            bb.get(frame.data.array(), 0, bi.size);
+            frame.data.appendOffset(bi.size);
+            // on the timeline of the dts, shifted for the reordered frames.
+            frame.pts = videoTimestamps.pts(bi.presentationTimeUs);
+            frame.flags = bi.flags;
+            frame.dts = dts;
+            frame.isKeyFrame = isKeyFrame;
+            frame.track = track;
+            frameCache.publish();
         }
     }
 
-    /**
-     * the search result for annexb.
-     */
-    private class SrsAnnexbSearch {
-        public int nb_start_code = 0;
-        public boolean match = false;
+    // Holding the producer lock, queues the SPS and the PPS for the worker as a codec config
+    // frame of the video, each behind its length.
+    private boolean queueParameterSets() {
+        byte[] sps = spsList.get(0);
+        byte[] pps = ppsList.get(0);
+        SrsEsFrame frame = frameCache.claim();
+        if (frame == null) {
+            return false;
+        }
+        frame.data = sampleAllocator.allocate(8 + sps.length + pps.length);
+        ByteBuffer bb = ByteBuffer.wrap(frame.data.array());
+        bb.putInt(sps.length);
+        bb.put(sps);
+        bb.putInt(pps.length);
+        bb.put(pps);
+        frame.data.appendOffset(bb.position());
+        frame.pts = 0;
+        frame.flags = MediaCodec.BUFFER_FLAG_CODEC_CONFIG;
+        frame.dts = 0;
+        frame.isKeyFrame = false;
+        frame.track = VIDEO_TRACK;
+        frameCache.publish();
+        return true;
+    }
+
+    // Without a worker, gives the arrays of the queued frames back.
+    private void releaseCachedFrames() {
+        SrsEsFrame frame;
+        while ((frame = frameCache.peek()) != null) {
+            frame.release();
+            frameCache.consume();
+        }
+    }
+
+    // Only called by the worker, writes the queued frames and gives their arrays back.
+    private void writeCachedFrames() {
+        if (fragmented && !moovWritten && hasAllTracks()) {
+            try {
+                writeMovieBox();
+            } catch (IOException e) {
+                e.printStackTrace();
+                mHandler.notifyRecordIOException(e);
+            }
+        }
+        SrsEsFrame frame;
+        while ((frame = frameCache.peek()) != null) {
+            writeInfo.offset = 0;
+            writeInfo.size = frame.data.size();
+            writeInfo.presentationTimeUs = frame.pts;
+            writeInfo.flags = frame.flags;
+            writeSampleData(frame, writeInfo);
+            frame.release();
+            frameCache.consume();
+        }
+        if (sampleBatch.getAgeNanos() >= TimeUnit.MILLISECONDS.toNanos(BATCH_INTERVAL_MS)) {
+            writeSampleBatch();
+        }
     }
 
     /**
@@ -366,14 +636,25 @@ public class SrsMp4Muxer {
     }
 
     /**
-     * the AV frame.
+     * the AV frame, a slot of the frame cache.
      */
     private class SrsEsFrame {
-        public ByteBuffer bb;
-        public MediaCodec.BufferInfo bi;
+        // the sample bytes, owned by the slot until written.
+        public SrsAllocator.Allocation data;
+        public long pts;
+        // the decoding timestamp in us.
+        public long dts;
+        public int flags;
         public int track;
         public boolean isKeyFrame;
 
+        public void release() {
+            if (data != null) {
+                sampleAllocator.release(data);
+                data = null;
+            }
+        }
+
         public boolean is_video() {
             return track == VIDEO_TRACK;
         }
@@ -383,166 +664,97 @@ public class SrsMp4Muxer {
         }
     }
 
+    private SrsEsFrame[] newEsFrames(int count) {
+        SrsEsFrame[] frames = new SrsEsFrame[count];
+        for (int i = 0; i < count; i++) {
+            frames[i] = new SrsEsFrame();
+        }
+        return frames;
+    }
+
     /**
      * the raw h.264 stream, in annexb.
      */
     private class SrsRawH264Stream {
-        public boolean is_sps(SrsEsFrameBytes frame) {
-            if (frame.size < 1) {
-                return false;
+        private SrsNaluScanner scanner = new SrsNaluScanner();
+
+        /**
+         * split the annexb access unit into its NAL units, in a single pass.
+         */
+        public SrsNaluScanner annexb_demux(ByteBuffer bb, MediaCodec.BufferInfo bi) {
+            // each frame must prefixed by annexb format.
+            // about annexb, @see H.264-AVC-ISO_IEC_14496-10.pdf, page 211.
+            if (scanner.scan(bb, bi.offset, bi.offset + bi.size) == 0) {
+                Log.e(TAG, "annexb not match.");
+                mHandler.notifyRecordIllegalArgumentException(new IllegalArgumentException(
+                    String.format("annexb not match for %dB, offset=%d", bi.size, bi.offset)));
             }
-
-            return (frame.data.get(0) & 0x1f) == SrsAvcNaluType.SPS;
-        }
-
-        public boolean is_pps(SrsEsFrameBytes frame) {
-            if (frame.size < 1) {
-                return false;
-            }
-            return (frame.data.get(0) & 0x1f) == SrsAvcNaluType.PPS;
-        }
-
-        public SrsAnnexbSearch srs_avc_startswith_annexb(ByteBuffer bb, MediaCodec.BufferInfo bi) {
-            SrsAnnexbSearch as = new SrsAnnexbSearch();
-            as.match = false;
-
-            int pos = bb.position();
-            while (pos < bi.size - 3) {
-                // not match.
-                if (bb.get(pos) != 0x00 || bb.get(pos + 1) != 0x00) {
-                    break;
-                }
-
-                // match N[00] 00 00 01, where N>=0
-                if (bb.get(pos + 2) == 0x01) {
-                    as.match = true;
-                    as.nb_start_code = pos + 3 - bb.position();
-                    break;
-                }
-
-                pos++;
-            }
-
-            return as;
+            return scanner;
         }
 
-        public SrsEsFrameBytes annexb_demux(ByteBuffer bb, MediaCodec.BufferInfo bi) {
+        public SrsEsFrameBytes slice(ByteBuffer bb, int offset, int size) {
+            ByteBuffer dup = bb.duplicate();
+            dup.limit(offset + size);
+            dup.position(offset);
             SrsEsFrameBytes tbb = new SrsEsFrameBytes();
-
-            while (bb.position() < bi.size) {
-                // each frame must prefixed by annexb format.
-                // about annexb, @see H.264-AVC-ISO_IEC_14496-10.pdf, page 211.
-                SrsAnnexbSearch tbbsc = srs_avc_startswith_annexb(bb, bi);
-                if (!tbbsc.match || tbbsc.nb_start_code < 3) {
-                    Log.e(TAG, "annexb not match.");
-                    mHandler.notifyRecordIllegalArgumentException(new IllegalArgumentException(
-                        String.format("annexb not match for %dB, pos=%d", bi.size, bb.position())));
-                }
-
-                // the start codes.
-                ByteBuffer tbbs = bb.slice();
-                for (int i = 0; i < tbbsc.nb_start_code; i++) {
-                    bb.get();
-                }
-
-                // find out the frame size.
-                tbb.data = bb.slice();
-                int pos = bb.position();
-                while (bb.position() < bi.size) {
-                    SrsAnnexbSearch bsc = srs_avc_startswith_annexb(bb, bi);
-                    if (bsc.match) {
-                        break;
-                    }
-                    bb.get();
-                }
-
-                tbb.size = bb.position() - pos;
-                break;
-            }
-
+            tbb.data = dup.slice();
+            tbb.size = size;
             return tbb;
         }
     }
 
-    private class Sample {
-        private long offset = 0;
-        private long size = 0;
-
-        public Sample(long offset, long size) {
-            this.offset = offset;
-            this.size = size;
-        }
-
-        public long getOffset() {
-            return offset;
-        }
-
-        public long getSize() {
-            return size;
-        }
-    }
-
     private class Track {
         private int trackId = 0;
-        private ArrayList<Sample> samples = new ArrayList<>();
+        private SrsMp4SampleTable sampleTable;
         private long duration = 0;
         private String handler;
         private AbstractMediaHeaderBox headerBox = null;
         private SampleDescriptionBox sampleDescriptionBox = null;
-        private LinkedList<Integer> syncSamples = null;
         private int timeScale;
         private Date creationTime = new Date();
         private int height;
         private int width;
         private float volume = 0;
-        private ArrayList<Long> sampleDurations = new ArrayList<>();
         private boolean isAudio = false;
-        private long lastPresentationTimeUs = 0;
+        private long lastDecodingTimeUs = 0;
         private boolean first = true;
+        // The parameter sets of the avcC, and whether the moov of the fragmented movie
+        // describes the track.
+        private List<byte[]> sps;
+        private List<byte[]> pps;
+        private boolean inMovieBox = false;
+
+        // The fragment being built in the fragmented mode: its samples, their data as written in
+        // the mdat and the decoding time of the first one. The times are in the timescale, from
+        // the first sample of the track.
+        private ArrayList<TrackRunBox.Entry> fragmentSamples = new ArrayList<>();
+        private ByteBuffer fragmentData = ByteBuffer.allocate(64 * 1024);
+        private long fragmentTime = 0;
+        private long firstDecodingTimeUs = -1;
+        private long lastTime = 0;
+        private long lastDuration = 0;
+        private ArrayList<TrackFragmentRandomAccessBox.Entry> randomAccessEntries = new ArrayList<>();
 
         public Track(int id, MediaFormat format, boolean audio) {
             trackId = id;
             isAudio = audio;
             if (!isAudio) {
-                sampleDurations.add((long) 3015);
+                sampleTable = new SrsMp4SampleTable(3015);
                 duration = 3015;
+                lastDuration = 3015;
                 width = format.getInteger(MediaFormat.KEY_WIDTH);
                 height = format.getInteger(MediaFormat.KEY_HEIGHT);
                 timeScale = 90000;
-                syncSamples = new LinkedList<>();
                 handler = "vide";
                 headerBox = new VideoMediaHeaderBox();
                 sampleDescriptionBox = new SampleDescriptionBox();
                 if (format.getString(MediaFormat.KEY_MIME).contentEquals(SrsEncoder.VCODEC)) {
-                    VisualSampleEntry visualSampleEntry = new VisualSampleEntry("avc1");
-                    visualSampleEntry.setDataReferenceIndex(1);
-                    visualSampleEntry.setDepth(24);
-                    visualSampleEntry.setFrameCount(1);
-                    visualSampleEntry.setHorizresolution(72);
-                    visualSampleEntry.setVertresolution(72);
-                    visualSampleEntry.setWidth(width);
-                    visualSampleEntry.setHeight(height);
-                    visualSampleEntry.setCompressorname("AVC Coding");
-
-                    AvcConfigurationBox avcConfigurationBox = new AvcConfigurationBox();
-                    avcConfigurationBox.setConfigurationVersion(1);
-                    avcConfigurationBox.setAvcProfileIndication((int) h264_sps.get(1));
-                    avcConfigurationBox.setProfileCompatibility(0);
-                    avcConfigurationBox.setAvcLevelIndication((int) h264_sps.get(3));
-                    avcConfigurationBox.setLengthSizeMinusOne(3);
-                    avcConfigurationBox.setSequenceParameterSets(spsList);
-                    avcConfigurationBox.setPictureParameterSets(ppsList);
-                    avcConfigurationBox.setBitDepthLumaMinus8(-1);
-                    avcConfigurationBox.setBitDepthChromaMinus8(-1);
-                    avcConfigurationBox.setChromaFormat(-1);
-                    avcConfigurationBox.setHasExts(false);
-
-                    visualSampleEntry.addBox(avcConfigurationBox);
-                    sampleDescriptionBox.addBox(visualSampleEntry);
+                    setParameterSets(spsList, ppsList);
                 }
             } else {
-                sampleDurations.add((long) 1024);
+                sampleTable = new SrsMp4SampleTable(1024);
                 duration = 1024;
+                lastDuration = 1024;
                 volume = 1;
                 timeScale = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
                 handler = "soun";
@@ -585,35 +797,162 @@ public class SrsMp4Muxer {
             }
         }
 
-        public void addSample(long offset, MediaCodec.BufferInfo bi) {
-            long delta = bi.presentationTimeUs - lastPresentationTimeUs;
+        /**
+         * Describes the samples with these parameter sets, the samples are kept.
+         */
+        public void setParameterSets(List<byte[]> spsList, List<byte[]> ppsList) {
+            sps = new ArrayList<>(spsList);
+            pps = new ArrayList<>(ppsList);
+
+            VisualSampleEntry visualSampleEntry = new VisualSampleEntry("avc1");
+            visualSampleEntry.setDataReferenceIndex(1);
+            visualSampleEntry.setDepth(24);
+            visualSampleEntry.setFrameCount(1);
+            visualSampleEntry.setHorizresolution(72);
+            visualSampleEntry.setVertresolution(72);
+            visualSampleEntry.setWidth(width);
+            visualSampleEntry.setHeight(height);
+            visualSampleEntry.setCompressorname("AVC Coding");
+
+            AvcConfigurationBox avcConfigurationBox = new AvcConfigurationBox();
+            avcConfigurationBox.setConfigurationVersion(1);
+            avcConfigurationBox.setAvcProfileIndication((int) sps.get(0)[1]);
+            avcConfigurationBox.setProfileCompatibility(0);
+            avcConfigurationBox.setAvcLevelIndication((int) sps.get(0)[3]);
+            avcConfigurationBox.setLengthSizeMinusOne(3);
+            avcConfigurationBox.setSequenceParameterSets(sps);
+            avcConfigurationBox.setPictureParameterSets(pps);
+            avcConfigurationBox.setBitDepthLumaMinus8(-1);
+            avcConfigurationBox.setBitDepthChromaMinus8(-1);
+            avcConfigurationBox.setChromaFormat(-1);
+            avcConfigurationBox.setHasExts(false);
+
+            visualSampleEntry.addBox(avcConfigurationBox);
+            sampleDescriptionBox = new SampleDescriptionBox();
+            sampleDescriptionBox.addBox(visualSampleEntry);
+        }
+
+        public boolean hasParameterSets(byte[] sps, byte[] pps) {
+            return this.sps.size() == 1 && Arrays.equals(this.sps.get(0), sps)
+                && this.pps.size() == 1 && Arrays.equals(this.pps.get(0), pps);
+        }
+
+        public boolean isInMovieBox() {
+            return inMovieBox;
+        }
+
+        public void setInMovieBox() {
+            inMovieBox = true;
+        }
+
+        public void addSample(long offset, MediaCodec.BufferInfo bi, long dts) {
+            long delta = dts - lastDecodingTimeUs;
             if (delta < 0) {
                 return;
             }
             boolean isSyncFrame = !isAudio && (bi.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
-            samples.add(new Sample(offset, bi.size));
-            if (syncSamples != null && isSyncFrame) {
-                syncSamples.add(samples.size());
-            }
+            // the sample is presented at dts + cts, cts is never negative in a version 0 ctts.
+            long cts = java.lang.Math.max(bi.presentationTimeUs - dts, 0);
+            cts = (cts * timeScale + 500000L) / 1000000L;
+            sampleTable.addSample(offset, bi.size, isSyncFrame, (int) cts);
 
             delta = (delta * timeScale + 500000L) / 1000000L;
-            lastPresentationTimeUs = bi.presentationTimeUs;
+            lastDecodingTimeUs = dts;
             if (!first) {
-                sampleDurations.add(sampleDurations.size() - 1, delta);
+                sampleTable.addDuration(delta);
                 duration += delta;
             }
             first = false;
         }
 
+        /**
+         * Appends a sample to the fragment being built, its duration is set by the next one.
+         */
+        public void addFragmentSample(ByteBuffer bb, MediaCodec.BufferInfo bi, long dts) {
+            if (firstDecodingTimeUs < 0) {
+                firstDecodingTimeUs = dts;
+                lastDecodingTimeUs = dts;
+            } else if (dts < lastDecodingTimeUs) {
+                return;
+            }
+
+            // the times are not accumulated from the rounded durations, so they never drift.
+            long time = ((dts - firstDecodingTimeUs) * timeScale + 500000L) / 1000000L;
+            if (fragmentSamples.isEmpty()) {
+                fragmentTime = time;
+            } else {
+                lastDuration = time - lastTime;
+                fragmentSamples.get(fragmentSamples.size() - 1).setSampleDuration(lastDuration);
+            }
+            lastTime = time;
+            lastDecodingTimeUs = dts;
+
+            if (fragmentData.remaining() < bi.size) {
+                ByteBuffer grown = ByteBuffer.allocate(java.lang.Math.max(fragmentData.capacity() * 2,
+                    fragmentData.position() + bi.size));
+                fragmentData.flip();
+                grown.put(fragmentData);
+                fragmentData = grown;
+            }
+            ByteBuffer src = bb.duplicate();
+            src.limit(bi.offset + bi.size);
+            src.position(bi.offset + (isAudio ? 0 : 4));
+            if (!isAudio) {
+                fragmentData.putInt(bi.size - 4);
+            }
+            fragmentData.put(src);
+
+            boolean isSyncFrame = isAudio || (bi.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+            long cts = java.lang.Math.max(bi.presentationTimeUs - dts, 0);
+            cts = (cts * timeScale + 500000L) / 1000000L;
+            // the last sample of a fragment lasts as long as the one before.
+            fragmentSamples.add(new TrackRunBox.Entry(lastDuration, bi.size,
+                isSyncFrame ? SYNC_SAMPLE_FLAGS : NON_SYNC_SAMPLE_FLAGS, (int) cts));
+        }
+
+        public boolean hasFragmentSamples() {
+            return !fragmentSamples.isEmpty();
+        }
+
+        /**
+         * @return true when the fragment can be decoded from its first sample.
+         */
+        public boolean startsWithSyncSample() {
+            return fragmentSamples.get(0).getSampleFlags() == SYNC_SAMPLE_FLAGS;
+        }
+
+        public long getFragmentTime() {
+            return fragmentTime;
+        }
+
+        public ArrayList<TrackRunBox.Entry> getFragmentSamples() {
+            return fragmentSamples;
+        }
+
+        /**
+         * @return the data of the fragment samples, flipped.
+         */
+        public ByteBuffer getFragmentData() {
+            fragmentData.flip();
+            return fragmentData;
+        }
+
+        public void clearFragment() {
+            fragmentSamples.clear();
+            fragmentData.clear();
+        }
+
+        public ArrayList<TrackFragmentRandomAccessBox.Entry> getRandomAccessEntries() {
+            return randomAccessEntries;
+        }
+
         public void clearSample() {
             first = true;
-            samples.clear();
-            syncSamples.clear();
-            sampleDurations.clear();
+            sampleTable.clear();
         }
 
-        public ArrayList<Sample> getSamples() {
-            return samples;
+        public SrsMp4SampleTable getSampleTable() {
+            return sampleTable;
         }
 
         public long getDuration() {
@@ -632,17 +971,6 @@ public class SrsMp4Muxer {
             return sampleDescriptionBox;
         }
 
-        public long[] getSyncSamples() {
-            if (syncSamples == null || syncSamples.isEmpty()) {
-                return null;
-            }
-            long[] returns = new long[syncSamples.size()];
-            for (int i = 0; i < syncSamples.size(); i++) {
-                returns[i] = syncSamples.get(i);
-            }
-            return returns;
-        }
-
         public int getTimeScale() {
             return timeScale;
         }
@@ -663,10 +991,6 @@ public class SrsMp4Muxer {
             return volume;
         }
 
-        public ArrayList<Long> getSampleDurations() {
-            return sampleDurations;
-        }
-
         public boolean isAudio() {
             return isAudio;
         }
@@ -688,18 +1012,18 @@ public class SrsMp4Muxer {
             return tracks;
         }
 
-        public void addSample(int trackIndex, long offset, MediaCodec.BufferInfo bi) {
+        public void addSample(int trackIndex, long offset, MediaCodec.BufferInfo bi, long dts) {
             Track track = tracks.get(trackIndex);
-            track.addSample(offset, bi);
+            track.addSample(offset, bi, dts);
         }
 
         public void addTrack(MediaFormat format, boolean isAudio) {
             if (format != null) {
-                if (isAudio) {
-                    tracks.put(AUDIO_TRACK, new Track(tracks.size(), format, true));
-                } else {
-                    tracks.put(VIDEO_TRACK, new Track(tracks.size(), format, false));
-                }
+                int trackIndex = isAudio ? AUDIO_TRACK : VIDEO_TRACK;
+                // a track added again keeps its id.
+                Track old = tracks.get(trackIndex);
+                int id = old != null ? old.getTrackId() : tracks.size();
+                tracks.put(trackIndex, new Track(id, format, isAudio));
             }
         }
 
@@ -774,73 +1098,391 @@ public class SrsMp4Muxer {
         }
     }
 
+    /**
+     * the samples written to the mdat in one gathering write, with the length prefix of each
+     * video sample. The batch owns the arrays of its samples until they are written.
+     */
+    private class SampleBatch {
+        private final ByteBuffer[] buffers = new ByteBuffer[BATCH_MAX_BUFFERS];
+        private final ByteBuffer[] prefixes = new ByteBuffer[BATCH_MAX_BUFFERS];
+        private final SrsAllocator.Allocation[] samples = new SrsAllocator.Allocation[BATCH_MAX_BUFFERS];
+        private int bufferCount = 0;
+        private int sampleCount = 0;
+        private long bytes = 0;
+        private long firstNanos = 0;
+
+        public SampleBatch() {
+            for (int i = 0; i < prefixes.length; i++) {
+                prefixes[i] = ByteBuffer.allocate(4);
+            }
+        }
+
+        public boolean isEmpty() {
+            return sampleCount == 0;
+        }
+
+        public boolean isFull() {
+            return bytes >= BATCH_BYTES || bufferCount + 2 > BATCH_MAX_BUFFERS;
+        }
+
+        /**
+         * @return how long the first sample waited, 0 when the batch is empty.
+         */
+        public long getAgeNanos() {
+            return sampleCount == 0 ? 0 : System.nanoTime() - firstNanos;
+        }
+
+        /**
+         * Takes the sample, an annexb video sample is written with its start code replaced by
+         * its length.
+         */
+        public void add(SrsAllocator.Allocation data, boolean isVideo) {
+            if (sampleCount == 0) {
+                firstNanos = System.nanoTime();
+            }
+            ByteBuffer payload = data.byteBuffer();
+            if (isVideo) {
+                ByteBuffer prefix = prefixes[bufferCount];
+                prefix.clear();
+                prefix.putInt(data.size() - 4);
+                prefix.flip();
+                buffers[bufferCount++] = prefix;
+                payload.position(4);
+            }
+            buffers[bufferCount++] = payload;
+            samples[sampleCount++] = data;
+            bytes += data.size();
+        }
+
+        /**
+         * Writes the samples and gives their arrays back, even when the write fails.
+         */
+        public void write(FileChannel fc) throws IOException {
+            try {
+                long remaining = bytes;
+                while (remaining > 0) {
+                    remaining -= fc.write(buffers, 0, bufferCount);
+                }
+            } finally {
+                for (int i = 0; i < sampleCount; i++) {
+                    sampleAllocator.release(samples[i]);
+                    samples[i] = null;
+                }
+                Arrays.fill(buffers, 0, bufferCount, null);
+                bufferCount = 0;
+                sampleCount = 0;
+                bytes = 0;
+            }
+        }
+    }
+
     private InterleaveChunkMdat mdat = null;
-    private FileOutputStream fos = null;
+    private RandomAccessFile raf = null;
     private FileChannel fc = null;
     private volatile long recFileSize = 0;
     private volatile long mdatOffset = 0;
-    private volatile long flushBytes = 0;
-    private HashMap<Track, long[]> track2SampleSizes = new HashMap<>();
+    // The fragmented mode state, the fragments start at this dts.
+    private boolean moovWritten = false;
+    private long fragmentSequence = 0;
+    // Only used by the worker, the video parameter sets changed after the moov, the frames
+    // queued since are not written.
+    private boolean parameterSetsStale = false;
+    private long fragmentStartDts = 0;
 
     private void createMovie(File outputFile) throws IOException {
-        fos = new FileOutputStream(outputFile);
-        fc = fos.getChannel();
+        // read and written, the fast start moves the mdat in the file.
+        raf = new RandomAccessFile(outputFile, "rw");
+        raf.setLength(0);
+        fc = raf.getChannel();
         mdat = new InterleaveChunkMdat();
         mdatOffset = 0;
+        moovWritten = false;
+        fragmentSequence = 0;
+        parameterSetsStale = false;
+        lastSyncNanos = System.nanoTime();
 
         FileTypeBox fileTypeBox = createFileTypeBox();
         fileTypeBox.getBox(fc);
         recFileSize += fileTypeBox.getSize();
     }
 
-    private void writeSampleData(ByteBuffer byteBuf, MediaCodec.BufferInfo bi, boolean isAudio) {
-        int trackIndex = isAudio ? AUDIO_TRACK : VIDEO_TRACK;
-        if (!mp4Movie.getTracks().containsKey(trackIndex)) {
+    private void writeSampleData(SrsEsFrame frame, MediaCodec.BufferInfo bi) {
+        int trackIndex = frame.track;
+        if (!mp4Movie.getTracks().containsKey(trackIndex) || parameterSetsStale) {
+            return;
+        }
+        if ((bi.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            updateParameterSets(frame.data.byteBuffer());
+            return;
+        }
+        if (fragmented) {
+            writeFragmentSample(trackIndex, frame.data.byteBuffer(), bi, frame.dts);
             return;
         }
 
-        try {
-            if (mdat.first) {
-                mdat.setContentSize(0);
-                mdat.getBox(fc);
-                mdatOffset = recFileSize;
-                recFileSize += mdat.getHeaderSize();
-                mdat.first = false;
-            }
+        if (mdat.first) {
+            mdat.setContentSize(0);
+            mdat.getBox(fc);
+            mdatOffset = recFileSize;
+            recFileSize += mdat.getHeaderSize();
+            mdat.first = false;
+        }
 
-            mp4Movie.addSample(trackIndex, recFileSize, bi);
-            byteBuf.position(bi.offset + (isAudio ? 0 : 4));
-            byteBuf.limit(bi.offset + bi.size);
-            if (!isAudio) {
-                ByteBuffer size = ByteBuffer.allocate(4);
-                size.position(0);
-                size.putInt(bi.size - 4);
-                size.position(0);
-                recFileSize += fc.write(size);
-            }
-            int writeBytes = fc.write(byteBuf);
+        // the sample is written with the batch, where recFileSize already counts it.
+        mp4Movie.addSample(trackIndex, recFileSize, bi, frame.dts);
+        sampleBatch.add(frame.data, frame.is_video());
+        frame.data = null;
+        recFileSize += bi.size;
+        if (sampleBatch.isFull()) {
+            writeSampleBatch();
+        }
+    }
 
-            recFileSize += writeBytes;
-            flushBytes += writeBytes;
-            if (flushBytes > 64 * 1024) {
-                fos.flush();
-                flushBytes = 0;
+    // Only called by the worker, the SPS or the PPS of the video changed while recording.
+    private void updateParameterSets(ByteBuffer bb) {
+        byte[] sps = new byte[bb.getInt()];
+        bb.get(sps);
+        byte[] pps = new byte[bb.getInt()];
+        bb.get(pps);
+        Track track = mp4Movie.getTracks().get(VIDEO_TRACK);
+        if (track.hasParameterSets(sps, pps)) {
+            return;
+        }
+        if (fragmented && moovWritten) {
+            // The avcC of the moov on the disk can't decode the next samples, the recording
+            // ends with the fragment of the previous parameter sets, stop finishes the file.
+            try {
+                flushFragment();
+            } catch (IOException e) {
+                e.printStackTrace();
+                mHandler.notifyRecordIOException(e);
+            }
+            parameterSetsStale = true;
+            synchronized (producerLock) {
+                bRecording = false;
             }
+            Log.e(TAG, "the video parameter sets changed after the moov, recording stopped");
+            mHandler.notifyRecordIllegalArgumentException(new IllegalArgumentException(
+                "the video parameter sets changed after the moov of the fragmented recording"));
+            return;
+        }
+        // the samples and the timeline of the track are kept.
+        track.setParameterSets(Arrays.asList(sps), Arrays.asList(pps));
+    }
+
+    private void writeSampleBatch() {
+        if (sampleBatch.isEmpty()) {
+            return;
+        }
+        try {
+            sampleBatch.write(fc);
+            syncIfNeeded();
         } catch (IOException e) {
             e.printStackTrace();
             mHandler.notifyRecordIOException(e);
         }
     }
 
+    // The fdatasync checkpoint, after a write.
+    private void syncIfNeeded() throws IOException {
+        if (syncIntervalNs > 0 && System.nanoTime() - lastSyncNanos >= syncIntervalNs) {
+            fc.force(false);
+            lastSyncNanos = System.nanoTime();
+        }
+    }
+
+    private void writeFragmentSample(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bi, long dts) {
+        Track track = mp4Movie.getTracks().get(trackIndex);
+        if (moovWritten && !track.isInMovieBox()) {
+            // added after the moov, which can't describe it anymore.
+            return;
+        }
+        boolean cut;
+        if (trackIndex == VIDEO_TRACK) {
+            // a fragment starts at a key frame, so it is decodable on its own.
+            cut = (bi.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0 && dts - fragmentStartDts >= fragmentDurationUs;
+        } else {
+            // without the video key frames, the audio bounds the fragments.
+            Track video = mp4Movie.getTracks().get(VIDEO_TRACK);
+            boolean hasVideo = video != null && (!moovWritten || video.isInMovieBox());
+            long maxDurationUs = java.lang.Math.max(fragmentDurationUs,
+                hasVideo ? STALLED_VIDEO_FRAGMENT_DURATION_US : AUDIO_FRAGMENT_DURATION_US);
+            cut = dts - fragmentStartDts >= maxDurationUs;
+        }
+        if (cut && hasFragmentSamples()) {
+            try {
+                flushFragment();
+            } catch (IOException e) {
+                e.printStackTrace();
+                mHandler.notifyRecordIOException(e);
+            }
+        }
+        if (!hasFragmentSamples()) {
+            fragmentStartDts = dts;
+        }
+        track.addFragmentSample(byteBuf, bi, dts);
+    }
+
+    private boolean hasFragmentSamples() {
+        for (Track track : mp4Movie.getTracks().values()) {
+            if (track.hasFragmentSamples()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The tracks of the formats added to the muxer, the video one once its parameter sets are
+    // known.
+    private boolean hasAllTracks() {
+        HashMap<Integer, Track> tracks = mp4Movie.getTracks();
+        return (audioFormat == null || tracks.containsKey(AUDIO_TRACK))
+            && (videoFormat == null || tracks.containsKey(VIDEO_TRACK));
+    }
+
+    // Writes the moov of the fragmented movie, up front so the file is playable from its first
+    // fragment. It describes the tracks known by then.
+    private void writeMovieBox() throws IOException {
+        Box moov = createMovieBox(mp4Movie);
+        moov.getBox(fc);
+        recFileSize += moov.getSize();
+        moovWritten = true;
+        for (Track track : mp4Movie.getTracks().values()) {
+            track.setInMovieBox();
+        }
+    }
+
+    // Writes the moof and mdat of the samples of the fragment being built, and the moov before
+    // the first fragment when the tracks were not all known earlier.
+    private void flushFragment() throws IOException {
+        if (!moovWritten) {
+            writeMovieBox();
+        }
+
+        ArrayList<Track> tracks = new ArrayList<>();
+        for (Track track : mp4Movie.getTracks().values()) {
+            if (track.hasFragmentSamples()) {
+                tracks.add(track);
+            }
+        }
+        if (tracks.isEmpty()) {
+            return;
+        }
+
+        MovieFragmentBox moof = new MovieFragmentBox();
+        MovieFragmentHeaderBox mfhd = new MovieFragmentHeaderBox();
+        mfhd.setSequenceNumber(++fragmentSequence);
+        moof.addBox(mfhd);
+        ArrayList<TrackRunBox> truns = new ArrayList<>();
+        for (Track track : tracks) {
+            moof.addBox(createTraf(track, truns));
+        }
+
+        // the samples of each track follow each other in the mdat, in the order of the trafs.
+        ByteBuffer[] data = new ByteBuffer[tracks.size() + 1];
+        long dataSize = 0;
+        for (int i = 0; i < tracks.size(); i++) {
+            data[i + 1] = tracks.get(i).getFragmentData();
+            dataSize += data[i + 1].remaining();
+        }
+        long dataOffset = moof.getSize() + 8;
+        for (int i = 0; i < truns.size(); i++) {
+            truns.get(i).setDataOffset((int) dataOffset);
+            dataOffset += data[i + 1].remaining();
+        }
+
+        long moofOffset = recFileSize;
+        for (int i = 0; i < tracks.size(); i++) {
+            Track track = tracks.get(i);
+            // the first sample of a video fragment is a key frame unless the audio cut it, each
+            // audio sample is one.
+            if (track.startsWithSyncSample()) {
+                track.getRandomAccessEntries().add(new TrackFragmentRandomAccessBox.Entry(
+                    track.getFragmentTime(), moofOffset, i + 1, 1, 1));
+            }
+        }
+
+        moof.getBox(fc);
+        ByteBuffer header = ByteBuffer.allocate(8);
+        IsoTypeWriter.writeUInt32(header, 8 + dataSize);
+        header.put(IsoFile.fourCCtoBytes("mdat"));
+        header.flip();
+        data[0] = header;
+        long remaining = 8 + dataSize;
+        while (remaining > 0) {
+            remaining -= fc.write(data);
+        }
+        recFileSize += moof.getSize() + 8 + dataSize;
+        syncIfNeeded();
+
+        for (Track track : tracks) {
+            track.clearFragment();
+        }
+    }
+
+    private TrackFragmentBox createTraf(Track track, List<TrackRunBox> truns) {
+        TrackFragmentBox traf = new TrackFragmentBox();
+        TrackFragmentHeaderBox tfhd = new TrackFragmentHeaderBox();
+        tfhd.setTrackId(track.getTrackId() + 1);
+        tfhd.setFlags(DEFAULT_BASE_IS_MOOF);
+        traf.addBox(tfhd);
+
+        TrackFragmentBaseMediaDecodeTimeBox tfdt = new TrackFragmentBaseMediaDecodeTimeBox();
+        tfdt.setVersion(1);
+        tfdt.setBaseMediaDecodeTime(track.getFragmentTime());
+        traf.addBox(tfdt);
+
+        TrackRunBox trun = new TrackRunBox();
+        // the offset is set once the size of the moof is known.
+        trun.setDataOffset(0);
+        trun.setSampleDurationPresent(true);
+        trun.setSampleSizePresent(true);
+        if (!track.isAudio()) {
+            trun.setSampleFlagsPresent(true);
+            trun.setSampleCompositionTimeOffsetPresent(true);
+        }
+        trun.setEntries(track.getFragmentSamples());
+        traf.addBox(trun);
+        truns.add(trun);
+        return traf;
+    }
+
+    // Writes the last fragment and the mfra, the index of the key frames of each fragment.
+    private void finishFragmentedMovie() throws IOException {
+        flushFragment();
+
+        MovieFragmentRandomAccessBox mfra = new MovieFragmentRandomAccessBox();
+        for (Track track : mp4Movie.getTracks().values()) {
+            TrackFragmentRandomAccessBox tfra = new TrackFragmentRandomAccessBox();
+            tfra.setVersion(1);
+            tfra.setTrackId(track.getTrackId() + 1);
+            tfra.setLengthSizeOfTrafNum(1);
+            tfra.setLengthSizeOfTrunNum(1);
+            tfra.setLengthSizeOfSampleNum(1);
+            tfra.setEntries(track.getRandomAccessEntries());
+            mfra.addBox(tfra);
+        }
+        MovieFragmentRandomAccessOffsetBox mfro = new MovieFragmentRandomAccessOffsetBox();
+        mfra.addBox(mfro);
+        mfro.setMfraSize(mfra.getSize());
+        mfra.getBox(fc);
+        recFileSize += mfra.getSize();
+    }
+
     private void finishMovie() {
         try {
-            if (fos == null) {
+            if (raf == null) {
                 return;
             }
-            if (flushBytes > 0) {
-                fos.flush();
-                flushBytes = 0;
+            if (fragmented) {
+                finishFragmentedMovie();
+                fc.close();
+                raf.close();
+                mp4Movie.getTracks().clear();
+                recFileSize = 0;
+                return;
             }
+            writeSampleBatch();
             if (mdat.getSize() != 0) {
                 // flush cached mdat box
                 long oldPosition = fc.position();
@@ -849,37 +1491,215 @@ public class SrsMp4Muxer {
                 mdat.getBox(fc);
                 fc.position(oldPosition);
                 mdat.setContentSize(0);
-                fos.flush();
             }
 
-            for (Track track : mp4Movie.getTracks().values()) {
-                List<Sample> samples = track.getSamples();
-                long[] sizes = new long[samples.size()];
-                for (int i = 0; i < sizes.length; i++) {
-                    sizes[i] = samples.get(i).getSize();
-                }
-                track2SampleSizes.put(track, sizes);
+            if (fastStart && !mdat.first) {
+                writeFastStartMovie();
+            } else {
+                Box moov = createMovieBox(mp4Movie);
+                moov.getBox(fc);
             }
 
-            Box moov = createMovieBox(mp4Movie);
-            moov.getBox(fc);
-            fos.flush();
-
             fc.close();
-            fos.close();
+            raf.close();
             mp4Movie.getTracks().clear();
-            track2SampleSizes.clear();
             recFileSize = 0;
-            flushBytes = 0;
         } catch (IOException e) {
             mHandler.notifyRecordIOException(e);
         }
     }
 
+    // Writes the moov in place of the mdat, which is moved towards the end of the file by the
+    // size of the moov, from its tail so nothing is overwritten before it is moved. The chunk
+    // offsets are shifted by the same delta. The file is first finished with a free box of the
+    // shift after the mdat, the moov at the end and the journal of the move, and synced.
+    private void writeFastStartMovie() throws IOException {
+        // the shifted offsets may need a co64, which makes the moov and the shift larger.
+        long shift = 0;
+        Box moov;
+        while (true) {
+            for (Track track : mp4Movie.getTracks().values()) {
+                track.getSampleTable().setChunkOffsetShift(shift);
+            }
+            moov = createMovieBox(mp4Movie);
+            if (moov.getSize() == shift) {
+                break;
+            }
+            shift = moov.getSize();
+        }
+        ByteArrayOutputStream fastStartMoov = new ByteArrayOutputStream((int) shift);
+        moov.getBox(Channels.newChannel(fastStartMoov));
+
+        for (Track track : mp4Movie.getTracks().values()) {
+            track.getSampleTable().setChunkOffsetShift(0);
+        }
+        long mdatEnd = recFileSize;
+        ByteBuffer free = ByteBuffer.allocate(8);
+        IsoTypeWriter.writeUInt32(free, shift);
+        free.put(IsoFile.fourCCtoBytes("free"));
+        free.flip();
+        FastStartJournal.writeFully(fc, free, mdatEnd);
+        fc.position(mdatEnd + shift);
+        moov = createMovieBox(mp4Movie);
+        moov.getBox(fc);
+
+        FastStartJournal journal = new FastStartJournal(mdatEnd + shift + moov.getSize(), mdatOffset,
+            mdatEnd, ByteBuffer.wrap(fastStartMoov.toByteArray()));
+        journal.write(fc);
+        fc.force(false);
+        if (!journal.move(fc, syncIntervalNs > 0, fastStartChunkLimit)) {
+            return;
+        }
+        journal.finish(fc);
+        recFileSize = mdatEnd + shift;
+    }
+
+    // The journal of a fast start move, a free box at the end of the file with the moov to
+    // write first and how far the mdat was moved, which is saved after each chunk. A chunk is
+    // not larger than the shift, so it overwrites only what was moved already, and can be moved
+    // again when the crash came before its progress was saved.
+    private static class FastStartJournal {
+        // the mdat offset, its end and how far its tail was moved, after the box header.
+        private static final int HEADER_SIZE = 8 + 3 * 8;
+        // the journal offset and the magic.
+        private static final int TRAILER_SIZE = 8 + 8;
+
+        private final long offset;
+        private final long mdatOffset;
+        private final long mdatEnd;
+        private final ByteBuffer moov;
+        private long progress;
+
+        FastStartJournal(long offset, long mdatOffset, long mdatEnd, ByteBuffer moov) {
+            this.offset = offset;
+            this.mdatOffset = mdatOffset;
+            this.mdatEnd = mdatEnd;
+            this.moov = moov;
+            progress = mdatEnd;
+        }
+
+        private long shift() {
+            return moov.capacity();
+        }
+
+        // @return null when the file ends with no journal.
+        static FastStartJournal read(FileChannel fc) throws IOException {
+            long size = fc.size();
+            if (size < HEADER_SIZE + TRAILER_SIZE) {
+                return null;
+            }
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+            readFully(fc, trailer, size - TRAILER_SIZE);
+            long offset = trailer.getLong();
+            byte[] magic = new byte[FAST_START_JOURNAL_MAGIC.length];
+            trailer.get(magic);
+            if (!Arrays.equals(magic, FAST_START_JOURNAL_MAGIC) || offset < 0
+                || offset > size - HEADER_SIZE - TRAILER_SIZE) {
+                return null;
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(fc, header, offset);
+            long journalSize = header.getInt() & 0xffffffffL;
+            header.getInt();
+            long mdatOffset = header.getLong();
+            long mdatEnd = header.getLong();
+            long progress = header.getLong();
+            long shift = journalSize - HEADER_SIZE - TRAILER_SIZE;
+            if (offset + journalSize != size || shift <= 0 || mdatOffset > progress || progress > mdatEnd
+                || mdatEnd + shift > offset) {
+                throw new IOException("invalid fast start journal at " + offset);
+            }
+            ByteBuffer moov = ByteBuffer.allocate((int) shift);
+            readFully(fc, moov, offset + HEADER_SIZE);
+            FastStartJournal journal = new FastStartJournal(offset, mdatOffset, mdatEnd, moov);
+            journal.progress = progress;
+            return journal;
+        }
+
+        void write(FileChannel fc) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            IsoTypeWriter.writeUInt32(header, HEADER_SIZE + shift() + TRAILER_SIZE);
+            header.put(IsoFile.fourCCtoBytes("free"));
+            header.putLong(mdatOffset);
+            header.putLong(mdatEnd);
+            header.putLong(progress);
+            header.flip();
+            writeFully(fc, header, offset);
+            moov.clear();
+            writeFully(fc, moov, offset + HEADER_SIZE);
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+            trailer.putLong(offset);
+            trailer.put(FAST_START_JOURNAL_MAGIC);
+            trailer.flip();
+            writeFully(fc, trailer, offset + HEADER_SIZE + shift());
+        }
+
+        // Moves the mdat by the shift from its tail, syncs each chunk before its progress is
+        // saved when sync.
+        // @return false when it gave up after maxChunks, without saving the progress of the
+        //         last one.
+        boolean move(FileChannel fc, boolean sync, int maxChunks) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocateDirect((int) java.lang.Math.min(FAST_START_BUFFER_SIZE, shift()));
+            ByteBuffer saved = ByteBuffer.allocate(8);
+            int chunks = 0;
+            while (progress > mdatOffset) {
+                if (chunks == maxChunks) {
+                    return false;
+                }
+                int count = (int) java.lang.Math.min(buffer.capacity(), progress - mdatOffset);
+                long position = progress - count;
+                buffer.clear();
+                buffer.limit(count);
+                readFully(fc, buffer, position);
+                writeFully(fc, buffer, position + shift());
+                if (++chunks == maxChunks) {
+                    return false;
+                }
+                if (sync) {
+                    fc.force(false);
+                }
+                progress = position;
+                saved.clear();
+                saved.putLong(progress).flip();
+                writeFully(fc, saved, offset + HEADER_SIZE - 8);
+            }
+            return true;
+        }
+
+        // Writes the moov before the moved mdat and cuts the moov at the end and the journal.
+        void finish(FileChannel fc) throws IOException {
+            moov.clear();
+            writeFully(fc, moov, mdatOffset);
+            fc.force(false);
+            fc.truncate(mdatEnd + shift());
+        }
+
+        static void readFully(FileChannel fc, ByteBuffer bb, long position) throws IOException {
+            while (bb.hasRemaining()) {
+                if (fc.read(bb, position + bb.position()) < 0) {
+                    throw new EOFException("file truncated at " + (position + bb.position()));
+                }
+            }
+            bb.flip();
+        }
+
+        static void writeFully(FileChannel fc, ByteBuffer bb, long position) throws IOException {
+            while (bb.hasRemaining()) {
+                fc.write(bb, position + bb.position());
+            }
+        }
+    }
+
     private FileTypeBox createFileTypeBox() {
         LinkedList<String> minorBrands = new LinkedList<>();
         minorBrands.add("isom");
-        minorBrands.add("3gp4");
+        if (fragmented) {
+            // the tfdt box is defined by iso6.
+            minorBrands.add("iso6");
+        } else {
+            minorBrands.add("3gp4");
+        }
         return new FileTypeBox("isom", 0, minorBrands);
     }
 
@@ -894,6 +1714,11 @@ public class SrsMp4Muxer {
         return timescale;
     }
 
+    // The duration of a fragmented movie is unknown when its moov is written.
+    private long getTrackDuration(Track track) {
+        return fragmented ? 0 : track.getDuration();
+    }
+
     private MovieBox createMovieBox(Mp4Movie movie) {
         MovieBox movieBox = new MovieBox();
         MovieHeaderBox mvhd = new MovieHeaderBox();
@@ -905,7 +1730,7 @@ public class SrsMp4Muxer {
         long duration = 0;
 
         for (Track track : movie.getTracks().values()) {
-            long tracksDuration = track.getDuration() * movieTimeScale / track.getTimeScale();
+            long tracksDuration = getTrackDuration(track) * movieTimeScale / track.getTimeScale();
             if (tracksDuration > duration) {
                 duration = tracksDuration;
             }
@@ -919,9 +1744,28 @@ public class SrsMp4Muxer {
         for (Track track : movie.getTracks().values()) {
             movieBox.addBox(createTrackBox(track, movie));
         }
+        if (fragmented) {
+            movieBox.addBox(createMvex(movie));
+        }
         return movieBox;
     }
 
+    // The samples of the fragmented movie are described by the moofs, with the defaults of the
+    // trex boxes, the sample tables of the moov are empty.
+    private MovieExtendsBox createMvex(Mp4Movie movie) {
+        MovieExtendsBox mvex = new MovieExtendsBox();
+        for (Track track : movie.getTracks().values()) {
+            TrackExtendsBox trex = new TrackExtendsBox();
+            trex.setTrackId(track.getTrackId() + 1);
+            trex.setDefaultSampleDescriptionIndex(1);
+            trex.setDefaultSampleDuration(0);
+            trex.setDefaultSampleSize(0);
+            trex.setDefaultSampleFlags(track.isAudio() ? SYNC_SAMPLE_FLAGS : NON_SYNC_SAMPLE_FLAGS);
+            mvex.addBox(trex);
+        }
+        return mvex;
+    }
+
     private TrackBox createTrackBox(Track track, Mp4Movie movie) {
         TrackBox trackBox = new TrackBox();
         TrackHeaderBox tkhd = new TrackHeaderBox();
@@ -937,7 +1781,7 @@ public class SrsMp4Muxer {
         tkhd.setAlternateGroup(0);
         tkhd.setCreationTime(track.getCreationTime());
         tkhd.setModificationTime(track.getCreationTime());
-        tkhd.setDuration(track.getDuration() * getTimescale(movie) / track.getTimeScale());
+        tkhd.setDuration(getTrackDuration(track) * getTimescale(movie) / track.getTimeScale());
         tkhd.setHeight(track.getHeight());
         tkhd.setWidth(track.getWidth());
         tkhd.setLayer(0);
@@ -952,7 +1796,7 @@ public class SrsMp4Muxer {
         MediaHeaderBox mdhd = new MediaHeaderBox();
         mdhd.setCreationTime(track.getCreationTime());
         mdhd.setModificationTime(track.getCreationTime());
-        mdhd.setDuration(track.getDuration());
+        mdhd.setDuration(getTrackDuration(track));
         mdhd.setTimescale(track.getTimeScale());
         mdhd.setLanguage("eng");
         mdia.addBox(mdhd);
@@ -980,113 +1824,23 @@ public class SrsMp4Muxer {
         return trackBox;
     }
 
+    // The samples of the fragmented movie are in the moofs, its sample tables are empty.
     private Box createStbl(Track track) {
+        SrsMp4SampleTable sampleTable = track.getSampleTable();
         SampleTableBox stbl = new SampleTableBox();
-        createStsd(track, stbl);
-        createStts(track, stbl);
-        createStss(track, stbl);
-        createStsc(track, stbl);
-        createStsz(track, stbl);
-        createStco(track, stbl);
-        return stbl;
-    }
-
-    private void createStsd(Track track, SampleTableBox stbl) {
         stbl.addBox(track.getSampleDescriptionBox());
-    }
-
-    private void createStts(Track track, SampleTableBox stbl) {
-        TimeToSampleBox.Entry lastEntry = null;
-        List<TimeToSampleBox.Entry> entries = new ArrayList<>();
-
-        for (long delta : track.getSampleDurations()) {
-            if (lastEntry != null && lastEntry.getDelta() == delta) {
-                lastEntry.setCount(lastEntry.getCount() + 1);
-            } else {
-                lastEntry = new TimeToSampleBox.Entry(1, delta);
-                entries.add(lastEntry);
-            }
+        stbl.addBox(sampleTable.createStts());
+        Box ctts = sampleTable.createCtts();
+        if (ctts != null) {
+            stbl.addBox(ctts);
         }
-        TimeToSampleBox stts = new TimeToSampleBox();
-        stts.setEntries(entries);
-        stbl.addBox(stts);
-    }
-
-    private void createStss(Track track, SampleTableBox stbl) {
-        long[] syncSamples = track.getSyncSamples();
-        if (syncSamples != null && syncSamples.length > 0) {
-            SyncSampleBox stss = new SyncSampleBox();
-            stss.setSampleNumber(syncSamples);
+        Box stss = sampleTable.createStss();
+        if (stss != null) {
             stbl.addBox(stss);
         }
-    }
-
-    private void createStsc(Track track, SampleTableBox stbl) {
-        SampleToChunkBox stsc = new SampleToChunkBox();
-        stsc.setEntries(new LinkedList<SampleToChunkBox.Entry>());
-
-        long lastOffset;
-        int lastChunkNumber = 1;
-        int lastSampleCount = 0;
-
-        int previousWritedChunkCount = -1;
-
-        int samplesCount = track.getSamples().size();
-        for (int a = 0; a < samplesCount; a++) {
-            Sample sample = track.getSamples().get(a);
-            long offset = sample.getOffset();
-            long size = sample.getSize();
-
-            lastOffset = offset + size;
-            lastSampleCount++;
-
-            boolean write = false;
-            if (a != samplesCount - 1) {
-                Sample nextSample = track.getSamples().get(a + 1);
-                if (lastOffset != nextSample.getOffset()) {
-                    write = true;
-                }
-            } else {
-                write = true;
-            }
-            if (write) {
-                if (previousWritedChunkCount != lastSampleCount) {
-                    stsc.getEntries().add(new SampleToChunkBox.Entry(lastChunkNumber, lastSampleCount, 1));
-                    previousWritedChunkCount = lastSampleCount;
-                }
-                lastSampleCount = 0;
-                lastChunkNumber++;
-            }
-        }
-        stbl.addBox(stsc);
-    }
-
-    private void createStsz(Track track, SampleTableBox stbl) {
-        SampleSizeBox stsz = new SampleSizeBox();
-        stsz.setSampleSizes(track2SampleSizes.get(track));
-        stbl.addBox(stsz);
-    }
-
-    private void createStco(Track track, SampleTableBox stbl) {
-        ArrayList<Long> chunksOffsets = new ArrayList<>();
-        long lastOffset = -1;
-        for (Sample sample : track.getSamples()) {
-            long offset = sample.getOffset();
-            if (lastOffset != -1 && lastOffset != offset) {
-                lastOffset = -1;
-            }
-            if (lastOffset == -1) {
-                chunksOffsets.add(offset);
-            }
-            lastOffset = offset + sample.getSize();
-        }
-        long[] chunkOffsetsLong = new long[chunksOffsets.size()];
-        for (int a = 0; a < chunksOffsets.size(); a++) {
-            chunkOffsetsLong[a] = chunksOffsets.get(a);
-        }
-
-        StaticChunkOffsetBox stco = new StaticChunkOffsetBox();
-        stco.setChunkOffsets(chunkOffsetsLong);
-        stbl.addBox(stco);
+        stbl.addBox(sampleTable.createStsc());
+        stbl.addBox(sampleTable.createStsz());
+        stbl.addBox(sampleTable.createStco());
+        return stbl;
     }
 }
@@ -0,0 +1,288 @@
+package net.ossrs.yasea;
+
+import com.coremedia.iso.boxes.Box;
+import com.googlecode.mp4parser.AbstractFullBox;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The sample tables of a track of a MP4 recording, kept in growable primitive columns.
+ *
+ * A sample costs the 4 bytes of its size, the 8 bytes of its chunk offset when it does not
+ * follow the previous sample of the track in the file, and its 1-based number when it is a
+ * sync sample. The durations, the composition offsets and the samples per chunk are run
+ * length encoded, as in their boxes, so nothing is boxed or allocated per sample, and the
+ * stts, ctts, stss, stsc, stsz and stco or co64 boxes are written from the columns.
+ */
+public final class SrsMp4SampleTable {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // The duration of the last sample, which is not followed by another one.
+    private final long lastSampleDuration;
+
+    private int sampleCount = 0;
+    private int[] sizes = new int[INITIAL_CAPACITY];
+
+    // The consecutive samples of the file are grouped in a chunk, the last one is still open.
+    private int chunkCount = 0;
+    private long[] chunkOffsets = new long[INITIAL_CAPACITY];
+    private long chunkEnd = 0;
+    private int chunkSamples = 0;
+    // Added to the chunk offsets when they are written, once the mdat is moved.
+    private long chunkOffsetShift = 0;
+    // The stsc runs of the closed chunks, the first chunk number and its samples count.
+    private int chunkRunCount = 0;
+    private int[] chunkRuns = new int[16];
+
+    // The stts runs of the samples followed by another one, the count and the duration.
+    private int durationRunCount = 0;
+    private int[] durationRuns = new int[16];
+
+    // The ctts runs, the count and the offset.
+    private int offsetRunCount = 0;
+    private int[] offsetRuns = new int[16];
+    private boolean hasCompositionOffsets = false;
+
+    private int syncSampleCount = 0;
+    private int[] syncSamples = new int[64];
+
+    /**
+     * @param lastSampleDuration the duration of the last sample, in the timescale of the track.
+     */
+    public SrsMp4SampleTable(long lastSampleDuration) {
+        this.lastSampleDuration = lastSampleDuration;
+    }
+
+    /**
+     * Appends a sample, its duration is set by {@link #addDuration(long)} when the next one
+     * comes.
+     *
+     * @param offset the position of the sample in the file.
+     * @param compositionOffset the composition offset in the timescale of the track.
+     */
+    public void addSample(long offset, int size, boolean isSync, int compositionOffset) {
+        if (sampleCount == sizes.length) {
+            sizes = Arrays.copyOf(sizes, sizes.length * 2);
+        }
+        sizes[sampleCount++] = size;
+
+        if (chunkCount == 0 || offset != chunkEnd) {
+            if (chunkCount > 0) {
+                chunkRunCount = closeChunk(chunkRunCount);
+            }
+            if (chunkCount == chunkOffsets.length) {
+                chunkOffsets = Arrays.copyOf(chunkOffsets, chunkOffsets.length * 2);
+            }
+            chunkOffsets[chunkCount++] = offset;
+            chunkSamples = 0;
+        }
+        chunkSamples++;
+        chunkEnd = offset + size;
+
+        if (isSync) {
+            if (syncSampleCount == syncSamples.length) {
+                syncSamples = Arrays.copyOf(syncSamples, syncSamples.length * 2);
+            }
+            syncSamples[syncSampleCount++] = sampleCount;
+        }
+
+        offsetRuns = growRuns(offsetRuns, offsetRunCount);
+        offsetRunCount = appendRun(offsetRuns, offsetRunCount, compositionOffset);
+        hasCompositionOffsets |= compositionOffset != 0;
+    }
+
+    /**
+     * Sets the duration of the first sample without one.
+     *
+     * @param duration the duration in the timescale of the track.
+     */
+    public void addDuration(long duration) {
+        durationRuns = growRuns(durationRuns, durationRunCount);
+        durationRunCount = appendRun(durationRuns, durationRunCount, (int) duration);
+    }
+
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    public void clear() {
+        sampleCount = 0;
+        chunkCount = 0;
+        chunkRunCount = 0;
+        durationRunCount = 0;
+        offsetRunCount = 0;
+        hasCompositionOffsets = false;
+        syncSampleCount = 0;
+        chunkOffsetShift = 0;
+    }
+
+    /**
+     * Sets the delta added to the chunk offsets in the stco or co64 box, when the samples are
+     * moved in the file after they are added.
+     */
+    public void setChunkOffsetShift(long shift) {
+        chunkOffsetShift = shift;
+    }
+
+    // Adds the stsc run of the last chunk if its samples count changes, and returns the count
+    // of runs. The open chunk is added the same way when the box is created, without counting
+    // its run, which is overwritten if more samples come.
+    private int closeChunk(int runCount) {
+        if (runCount > 0 && chunkRuns[runCount * 2 - 1] == chunkSamples) {
+            return runCount;
+        }
+        chunkRuns = growRuns(chunkRuns, runCount);
+        chunkRuns[runCount * 2] = chunkCount;
+        chunkRuns[runCount * 2 + 1] = chunkSamples;
+        return runCount + 1;
+    }
+
+    // Makes room for one more run of two ints.
+    private static int[] growRuns(int[] runs, int runCount) {
+        return runCount * 2 + 2 > runs.length ? Arrays.copyOf(runs, runs.length * 2) : runs;
+    }
+
+    // Counts the value in the last (count, value) run, or appends a run of it.
+    private static int appendRun(int[] runs, int runCount, int value) {
+        if (runCount > 0 && runs[runCount * 2 - 1] == value) {
+            runs[runCount * 2 - 2]++;
+            return runCount;
+        }
+        runs[runCount * 2] = 1;
+        runs[runCount * 2 + 1] = value;
+        return runCount + 1;
+    }
+
+    public Box createStts() {
+        // The last sample takes the last run when its duration is the same.
+        final boolean extraRun = sampleCount > 0 && (durationRunCount == 0
+            || durationRuns[durationRunCount * 2 - 1] != (int) lastSampleDuration);
+        final int runCount = durationRunCount + (extraRun ? 1 : 0);
+        return new TableBox("stts", 8L * runCount) {
+            @Override
+            protected void getContent(ByteBuffer bb) {
+                writeVersionAndFlags(bb);
+                bb.putInt(runCount);
+                for (int i = 0; i < durationRunCount * 2; i += 2) {
+                    boolean last = !extraRun && i == durationRunCount * 2 - 2;
+                    bb.putInt(durationRuns[i] + (last ? 1 : 0));
+                    bb.putInt(durationRuns[i + 1]);
+                }
+                if (extraRun) {
+                    bb.putInt(1);
+                    bb.putInt((int) lastSampleDuration);
+                }
+            }
+        };
+    }
+
+    /**
+     * @return the ctts box, or null when the samples are presented in decoding order.
+     */
+    public Box createCtts() {
+        if (!hasCompositionOffsets) {
+            return null;
+        }
+        return new TableBox("ctts", 8L * offsetRunCount) {
+            @Override
+            protected void getContent(ByteBuffer bb) {
+                writeVersionAndFlags(bb);
+                bb.putInt(offsetRunCount);
+                bb.asIntBuffer().put(offsetRuns, 0, offsetRunCount * 2);
+                bb.position(bb.position() + offsetRunCount * 8);
+            }
+        };
+    }
+
+    /**
+     * @return the stss box, or null when there is no sync sample.
+     */
+    public Box createStss() {
+        if (syncSampleCount == 0) {
+            return null;
+        }
+        return new TableBox("stss", 4L * syncSampleCount) {
+            @Override
+            protected void getContent(ByteBuffer bb) {
+                writeVersionAndFlags(bb);
+                bb.putInt(syncSampleCount);
+                bb.asIntBuffer().put(syncSamples, 0, syncSampleCount);
+                bb.position(bb.position() + syncSampleCount * 4);
+            }
+        };
+    }
+
+    public Box createStsc() {
+        final int runCount = chunkCount > 0 ? closeChunk(chunkRunCount) : 0;
+        return new TableBox("stsc", 12L * runCount) {
+            @Override
+            protected void getContent(ByteBuffer bb) {
+                writeVersionAndFlags(bb);
+                bb.putInt(runCount);
+                for (int i = 0; i < runCount * 2; i += 2) {
+                    bb.putInt(chunkRuns[i]);
+                    bb.putInt(chunkRuns[i + 1]);
+                    // the sample description index.
+                    bb.putInt(1);
+                }
+            }
+        };
+    }
+
+    public Box createStsz() {
+        return new TableBox("stsz", 4 + 4L * sampleCount) {
+            @Override
+            protected void getContent(ByteBuffer bb) {
+                writeVersionAndFlags(bb);
+                // the samples have different sizes.
+                bb.putInt(0);
+                bb.putInt(sampleCount);
+                bb.asIntBuffer().put(sizes, 0, sampleCount);
+                bb.position(bb.position() + sampleCount * 4);
+            }
+        };
+    }
+
+    /**
+     * @return the stco box, or the co64 box when a chunk is beyond the 4GB of the stco.
+     */
+    public Box createStco() {
+        // the chunks are in the order of the file.
+        final boolean large = chunkCount > 0 && chunkOffsets[chunkCount - 1] + chunkOffsetShift > 0xffffffffL;
+        return new TableBox(large ? "co64" : "stco", (large ? 8L : 4L) * chunkCount) {
+            @Override
+            protected void getContent(ByteBuffer bb) {
+                writeVersionAndFlags(bb);
+                bb.putInt(chunkCount);
+                for (int i = 0; i < chunkCount; i++) {
+                    if (large) {
+                        bb.putLong(chunkOffsets[i] + chunkOffsetShift);
+                    } else {
+                        bb.putInt((int) (chunkOffsets[i] + chunkOffsetShift));
+                    }
+                }
+            }
+        };
+    }
+
+    // A full box with an entry count and the entries, which is only written.
+    private static abstract class TableBox extends AbstractFullBox {
+        private final long entriesSize;
+
+        TableBox(String type, long entriesSize) {
+            super(type);
+            this.entriesSize = entriesSize;
+        }
+
+        @Override
+        protected long getContentSize() {
+            return 8 + entriesSize;
+        }
+
+        @Override
+        protected void _parseDetails(ByteBuffer content) {
+        }
+    }
+}
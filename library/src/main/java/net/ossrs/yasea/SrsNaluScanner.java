@@ -0,0 +1,144 @@
+package net.ossrs.yasea;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Splits an h.264 annexb access unit into its NAL units in a single pass.
+ *
+ * The buffer is read 8 bytes at a time and only the words which hold a zero byte are
+ * looked at byte by byte, as every start code begins with one. The result is kept in
+ * reusable arrays of (offset, length, nal_unit_type), the offsets are absolute positions
+ * in the buffer of the first byte after the start code, and the lengths exclude the
+ * trailing zero bytes which belong to the next start code.
+ *
+ * An instance is not thread safe, each muxer owns its own.
+ */
+public final class SrsNaluScanner {
+
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGHS = 0x8080808080808080L;
+
+    private int[] offsets = new int[16];
+    private int[] lengths = new int[16];
+    private int[] types = new int[16];
+    private int count;
+
+    /**
+     * Scans the bytes of the buffer between offset and limit, the position and the limit of
+     * the buffer are left untouched.
+     *
+     * @return the number of NAL units found.
+     */
+    public int scan(ByteBuffer bb, int offset, int limit) {
+        count = 0;
+        // Word loads must not depend on the byte order the caller left the buffer in.
+        ByteOrder order = bb.order();
+        bb.order(ByteOrder.BIG_ENDIAN);
+
+        int nalStart = -1;
+        int i = offset;
+        while (i + 8 <= limit) {
+            long v = bb.getLong(i);
+            // Nonzero if any byte of the word is zero, the classic haszero(v) trick.
+            if (((v - ONES) & ~v & HIGHS) == 0) {
+                i += 8;
+                continue;
+            }
+            int end = i + 8;
+            for (; i < end; i++) {
+                if ((v >>> ((end - 1 - i) << 3) & 0xff) == 0 && isStartCode(bb, i, limit)) {
+                    nalStart = addNalu(bb, nalStart, i);
+                    // Continue after the 00 00 01.
+                    i += 2;
+                }
+            }
+        }
+        for (; i < limit; i++) {
+            if (bb.get(i) == 0 && isStartCode(bb, i, limit)) {
+                nalStart = addNalu(bb, nalStart, i);
+                i += 2;
+            }
+        }
+        if (nalStart >= 0) {
+            add(bb, nalStart, limit);
+        }
+
+        bb.order(order);
+        return count;
+    }
+
+    private static boolean isStartCode(ByteBuffer bb, int i, int limit) {
+        return i + 2 < limit && bb.get(i + 1) == 0 && bb.get(i + 2) == 1;
+    }
+
+    // Ends the NAL unit in progress at the start code at i, and starts the next one after it.
+    private int addNalu(ByteBuffer bb, int nalStart, int i) {
+        if (nalStart >= 0) {
+            add(bb, nalStart, i);
+        }
+        return i + 3;
+    }
+
+    private void add(ByteBuffer bb, int start, int end) {
+        // The zero bytes before a start code are trailing_zero_8bits, a NAL unit never ends with one.
+        while (end > start && bb.get(end - 1) == 0) {
+            end--;
+        }
+        if (end <= start) {
+            return;
+        }
+        if (count == offsets.length) {
+            grow();
+        }
+        offsets[count] = start;
+        lengths[count] = end - start;
+        types[count] = bb.get(start) & 0x1f;
+        count++;
+    }
+
+    private void grow() {
+        int n = offsets.length * 2;
+        int[] o = new int[n];
+        int[] l = new int[n];
+        int[] t = new int[n];
+        System.arraycopy(offsets, 0, o, 0, count);
+        System.arraycopy(lengths, 0, l, 0, count);
+        System.arraycopy(types, 0, t, 0, count);
+        offsets = o;
+        lengths = l;
+        types = t;
+    }
+
+    /** @return the number of NAL units found by the last scan */
+    public int count() {
+        return count;
+    }
+
+    /** @return the position in the buffer of the first byte of the NAL unit, its header */
+    public int offset(int index) {
+        return offsets[index];
+    }
+
+    /** @return the size of the NAL unit in bytes */
+    public int length(int index) {
+        return lengths[index];
+    }
+
+    /** @return the nal_unit_type of the NAL unit */
+    public int type(int index) {
+        return types[index];
+    }
+
+    /**
+     * @return the index of the first NAL unit of the type, or -1.
+     */
+    public int indexOf(int type) {
+        for (int i = 0; i < count; i++) {
+            if (types[i] == type) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
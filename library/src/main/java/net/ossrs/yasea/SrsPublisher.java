@@ -46,6 +46,17 @@ public class SrsPublisher {
 
             }
         });
+        mCameraView.setSurfaceFrameCallback(new SrsCameraView.SurfaceFrameCallback() {
+            @Override
+            public long onGetSurfaceFrame() {
+                return sendAudioOnly ? -1 : mEncoder.onGetSurfaceFrame();
+            }
+
+            @Override
+            public void onSurfaceError(IllegalStateException e) {
+                mEncoder.onSurfaceError(e);
+            }
+        });
         mCameraView.setCaptureFrameCallback(new SrsCameraView.CaptureFrameCallback() {
             @Override
             public void onCaptureFrame(byte[] data, int width, int height) {
@@ -171,7 +182,7 @@ public class SrsPublisher {
         }
         int []resolution = mCameraView.getPreviewResolution();
         mEncoder.setPreviewResolution(resolution[0], resolution[1]);
-        mCameraView.enableEncoding();
+        mCameraView.enableEncoding(mEncoder.getInputSurface());
 
         startAudio();
     }
@@ -188,7 +199,7 @@ public class SrsPublisher {
     }
     private void resumeEncode() {
         startAudio();
-        mCameraView.enableEncoding();
+        mCameraView.enableEncoding(mEncoder.getInputSurface());
     }
 
     public void startPublish(String rtmpUrl) {
@@ -242,6 +253,83 @@ public class SrsPublisher {
         }
     }
 
+    /**
+     * Records a fragmented mp4, playable up to its last fragment if the app is killed, call
+     * before startRecord.
+     */
+    public void setFragmentedRecording(boolean enabled, int fragmentDurationMs) {
+        if (mMp4Muxer != null) {
+            mMp4Muxer.setFragmentedRecording(enabled, fragmentDurationMs);
+        }
+    }
+
+    /**
+     * Finishes the recording with its moov first, for progressive download, call before
+     * stopRecord.
+     */
+    public void setRecordFastStart(boolean enabled) {
+        if (mMp4Muxer != null) {
+            mMp4Muxer.setFastStart(enabled);
+        }
+    }
+
+    /**
+     * Syncs the recording to the disk every intervalMs, 0 to leave it to the kernel, call
+     * before startRecord.
+     */
+    public void setRecordSyncInterval(int intervalMs) {
+        if (mMp4Muxer != null) {
+            mMp4Muxer.setSyncInterval(intervalMs);
+        }
+    }
+
+    /**
+     * Set the write batching policy of the RTMP connection.
+     * @param maxLatencyMs the longest time a packet may wait, 0 to flush every frame
+     * @param maxBytes the batch size which forces a write, 0 for no limit
+     */
+    public void setWriteBatching(int maxLatencyMs, int maxBytes) {
+        if (mFlvMuxer != null) {
+            mFlvMuxer.setWriteBatching(maxLatencyMs, maxBytes);
+        }
+    }
+
+    /**
+     * Set the send queue backlogs at which video frames are dropped, audio is never dropped.
+     * @param disposableMs drop the non-reference frames above this backlog
+     * @param interMs drop the inter frames up to the next keyframe above this backlog
+     * @param gopMs drop whole stale GOPs above this backlog
+     */
+    public void setDropThresholds(int disposableMs, int interMs, int gopMs) {
+        if (mFlvMuxer != null) {
+            mFlvMuxer.setDropThresholds(disposableMs, interMs, gopMs);
+        }
+    }
+
+    /**
+     * Reconnect when the connection to an RTMP server fails, the last GOP is replayed.
+     * @param enabled true to reconnect with an exponential backoff
+     * @param maxReplayMs the longest GOP kept for a replay
+     */
+    public void setAutoReconnect(boolean enabled, int maxReplayMs) {
+        if (mFlvMuxer != null) {
+            mFlvMuxer.setAutoReconnect(enabled, maxReplayMs);
+        }
+    }
+
+    /**
+     * Publish the same encoded stream to another RTMP server, over its own connection.
+     * @param rtmpUrl the url to publish to
+     * @param handler the rtmp event handler of this destination
+     * @return the index of the destination, -1 without an rtmp handler
+     */
+    public int addPublishDestination(String rtmpUrl, RtmpHandler handler) {
+        if (mFlvMuxer != null) {
+            return mFlvMuxer.addDestination(rtmpUrl, handler);
+        }
+        return -1;
+    }
+
     public boolean isAllFramesUploaded(){
         return mFlvMuxer.getVideoFrameCacheNumber().get() == 0;
     }
@@ -310,6 +398,65 @@ public class SrsPublisher {
         mEncoder.setVideoSmoothMode();
     }
 
+    /**
+     * Sets the threads of the x264 encoder, call before startPublish or startRecord.
+     */
+    public void setSoftEncoderThreads(int threads, boolean slicedThreads) {
+        mEncoder.setSoftEncoderThreads(threads, slicedThreads);
+    }
+
+    public void setSoftEncoderLookahead(int syncLookahead, int rcLookahead) {
+        mEncoder.setSoftEncoderLookahead(syncLookahead, rcLookahead);
+    }
+
+    public void setSoftEncoderVbv(int maxBitrate, int bufferSize) {
+        mEncoder.setSoftEncoderVbv(maxBitrate, bufferSize);
+    }
+
+    public void setSoftEncoderZeroLatency(boolean enabled) {
+        mEncoder.setSoftEncoderZeroLatency(enabled);
+    }
+
+    /**
+     * Encodes with the codec callbacks on dedicated threads, so the camera and the microphone
+     * never wait for the codecs, call before startPublish or startRecord.
+     */
+    public void setAsyncEncoding(boolean enabled) {
+        mEncoder.setAsyncEncoding(enabled);
+    }
+
+    /**
+     * Draws the filtered preview straight into the input surface of the hard encoder, instead
+     * of reading the pixels back and converting them, call before startPublish or startRecord.
+     * The x264 encoder still reads them back.
+     */
+    public void setSurfaceInput(boolean enabled) {
+        mEncoder.setSurfaceInput(enabled);
+    }
+
+    /**
+     * @return the latencies of the video frames, from their capture to their muxing.
+     */
+    public SrsLatencyMeter getVideoLatency() {
+        return mEncoder.getVideoLatency();
+    }
+
+    /**
+     * @return the time the GL thread waits for each frame read back from the GPU, with the
+     *         YUV input of the hard encoder or the x264 encoder.
+     */
+    public SrsLatencyMeter getReadPixelsStall() {
+        return mCameraView.getReadPixelsStall();
+    }
+
+    /**
+     * Encodes with the high profile and B-frames where the hard encoder supports them,
+     * call before startPublish or startRecord.
+     */
+    public void setVideoBFrames(boolean enabled) {
+        mEncoder.setVideoBFrames(enabled);
+    }
+
     public void setSendVideoOnly(boolean flag) {
         if (mic != null) {
             if (flag) {
@@ -339,13 +486,21 @@ public class SrsPublisher {
             mEncoder.setCameraFrontFace();
         }
         if (mEncoder != null && mEncoder.isEnabled()) {
-            mCameraView.enableEncoding();
+            mCameraView.enableEncoding(mEncoder.getInputSurface());
         }
         mCameraView.startCamera();
     }
 
     public void setRtmpHandler(RtmpHandler handler) {
-        mFlvMuxer = new SrsFlvMuxer(handler);
+        setRtmpHandler(handler, false);
+    }
+
+    /**
+     * @param nonBlocking true to publish over the non-blocking transport, so that a stalled
+     *                    network never blocks the sender inside a socket write
+     */
+    public void setRtmpHandler(RtmpHandler handler, boolean nonBlocking) {
+        mFlvMuxer = new SrsFlvMuxer(handler, nonBlocking);
         if (mEncoder != null) {
             mEncoder.setFlvMuxer(mFlvMuxer);
         }
@@ -359,7 +514,7 @@ public class SrsPublisher {
     }
 
     public void setEncodeHandler(SrsEncodeHandler handler) {
-        mEncoder = new SrsEncoder(handler);
+        mEncoder = new SrsEncoder(handler, mCameraView.getContext());
         if (mFlvMuxer != null) {
             mEncoder.setFlvMuxer(mFlvMuxer);
         }
@@ -376,4 +531,14 @@ public class SrsPublisher {
         mEncoder.setBitrate(vBitrate);
     }
 
+    /**
+     * Retarget the video bitrate while streaming according to the network, between the floor
+     * and the ceiling.
+     * @param minBitrate the floor in bps, 0 to disable the adaptive bitrate
+     * @param maxBitrate the ceiling in bps
+     */
+    public void setAdaptiveBitrate(int minBitrate, int maxBitrate) {
+        mEncoder.setAdaptiveBitrate(minBitrate, maxBitrate);
+    }
+
 }
@@ -0,0 +1,122 @@
+package net.ossrs.yasea;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded single-producer/single-consumer ring of preallocated slots.
+ *
+ * The producer fills the slot returned by {@link #claim()} and hands it over with
+ * {@link #publish()}; the consumer reads the slot returned by {@link #peek()} and gives it
+ * back with {@link #consume()}. Slots are reused, so nothing is allocated per element and
+ * the consumer must not keep a reference to a slot after consuming it.
+ *
+ * The consumer parks in {@link #await(long)} when the ring is empty, and the producer only
+ * unparks it when it is actually parked.
+ */
+public final class SrsSpscRing<E> {
+
+    private final E[] slots;
+    private final int mask;
+    // Next slot to consume, only written by the consumer.
+    private final AtomicLong head = new AtomicLong(0);
+    // Next slot to publish, only written by the producer.
+    private final AtomicLong tail = new AtomicLong(0);
+    private volatile Thread parkedConsumer;
+
+    /**
+     * @param slots the preallocated slots, the length must be a power of two.
+     */
+    public SrsSpscRing(E[] slots) {
+        if (slots.length == 0 || (slots.length & (slots.length - 1)) != 0) {
+            throw new IllegalArgumentException("ring size must be a power of two: " + slots.length);
+        }
+        this.slots = slots;
+        this.mask = slots.length - 1;
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    public boolean isEmpty() {
+        return tail.get() == head.get();
+    }
+
+    /**
+     * Producer side: get the next free slot to fill.
+     * @return the slot, or null when the ring is full.
+     */
+    public E claim() {
+        long t = tail.get();
+        if (t - head.get() >= slots.length) {
+            return null;
+        }
+        return slots[(int) t & mask];
+    }
+
+    /**
+     * Producer side: hand the slot returned by {@link #claim()} over to the consumer.
+     */
+    public void publish() {
+        // Volatile store followed by the volatile load of parkedConsumer, it pairs with
+        // the store/load order in await() so that a wakeup is never missed.
+        tail.set(tail.get() + 1);
+        Thread consumer = parkedConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Consumer side: get the oldest published slot without consuming it.
+     * @return the slot, or null when the ring is empty.
+     */
+    public E peek() {
+        return peek(0);
+    }
+
+    /**
+     * Consumer side: get the published slot at the given distance from the oldest one.
+     * @return the slot, or null when fewer slots are published.
+     */
+    public E peek(int index) {
+        long h = head.get();
+        if (h + index >= tail.get()) {
+            return null;
+        }
+        return slots[(int) (h + index) & mask];
+    }
+
+    /**
+     * Consumer side: give the oldest slot back to the producer.
+     */
+    public void consume() {
+        long h = head.get();
+        if (h < tail.get()) {
+            head.lazySet(h + 1);
+        }
+    }
+
+    /**
+     * Consumer side: park until something is published, the timeout elapses or the
+     * thread is interrupted.
+     */
+    public void await(long timeoutNanos) {
+        if (!isEmpty()) {
+            return;
+        }
+        parkedConsumer = Thread.currentThread();
+        try {
+            if (isEmpty()) {
+                LockSupport.parkNanos(this, timeoutNanos);
+            }
+        } finally {
+            parkedConsumer = null;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package net.ossrs.yasea;
+
+import android.util.Log;
+
+/**
+ * Decoding timestamp generator for a video stream with reordered frames.
+ *
+ * The encoder outputs the frames in decoding order with their presentation timestamps. With
+ * B-frames a frame is presented after frames which come later in the stream, so the pts are
+ * not monotonic and can't be used as dts. The dts of a frame is the smallest pts among the
+ * frames not given as a dts yet, once reorder depth more frames have been seen, that is the
+ * presentation order shifted by the reorder depth. So dts is increasing and never above pts,
+ * as long as the frames are not reordered deeper than the reorder depth.
+ *
+ * Until reorder depth frames have been seen, the frames are primed a millisecond apart before
+ * the pts of the first one. So that the primed dts are not negative when the stream starts at
+ * 0, the whole timeline, pts included, is shifted by the priming of the configured depth, @see
+ * #pts(long).
+ *
+ * When a frame is presented before a dts already given, the reorder depth was too small. The
+ * frame still gets a dts above the previous one, so its dts is above its pts, and the muxers
+ * present it at its dts, with a composition offset of 0. The reorder depth is raised for the
+ * next frames.
+ *
+ * The generator does not read any clock, so it behaves the same in a simulation.
+ */
+public class SrsTimestampGenerator {
+
+    private static final String TAG = "SrsTimestampGenerator";
+
+    // The reorder depth is never raised above this.
+    private static final int MAX_REORDER_DEPTH = 16;
+    // The primed frames are this far apart, in us, a millisecond so they stay apart in FLV.
+    private static final long PRIMING_STEP_US = 1000;
+
+    private int configuredDepth;
+    private int reorderDepth;
+    // The pts of the frames not given as a dts yet, sorted ascending.
+    private final long[] window = new long[MAX_REORDER_DEPTH + 1];
+    private int count;
+    private long lastDts;
+    private boolean started;
+    // The pts of the first frame, on the shifted timeline.
+    private long firstPts;
+    // The frames primed since the start.
+    private int primed;
+
+    /**
+     * @param reorderDepth the number of frames a frame can be output before it is presented,
+     *                     0 without B-frames, 1 for B-frames which are not referenced.
+     */
+    public SrsTimestampGenerator(int reorderDepth) {
+        setReorderDepth(reorderDepth);
+    }
+
+    /**
+     * Sets the reorder depth and starts over.
+     */
+    public void setReorderDepth(int reorderDepth) {
+        if (reorderDepth < 0 || reorderDepth > MAX_REORDER_DEPTH) {
+            throw new IllegalArgumentException(String.format("invalid reorder depth %d", reorderDepth));
+        }
+        configuredDepth = reorderDepth;
+        reset();
+    }
+
+    /**
+     * @return the current reorder depth, which may have been raised above the configured one.
+     */
+    public int getReorderDepth() {
+        return reorderDepth;
+    }
+
+    /**
+     * Starts over for a new stream, with the configured reorder depth.
+     */
+    public void reset() {
+        reorderDepth = configuredDepth;
+        count = 0;
+        lastDts = 0;
+        started = false;
+        primed = 0;
+    }
+
+    /**
+     * Shifts a pts to the timeline of the dts. The muxers shift all the pts of the stream, the
+     * audio ones too, so that the tracks stay in sync.
+     *
+     * @param ptsUs a presentation timestamp of the stream, in us.
+     * @return the presentation timestamp to mux with the dts, in us.
+     */
+    public long pts(long ptsUs) {
+        return ptsUs + configuredDepth * PRIMING_STEP_US;
+    }
+
+    /**
+     * @param ptsUs the presentation timestamp of the frame, in decoding order, in us.
+     * @return the decoding timestamp of the frame, in us, on the timeline of {@link #pts(long)}.
+     */
+    public long dts(long ptsUs) {
+        ptsUs = pts(ptsUs);
+        long dts;
+        if (started && ptsUs <= lastDts) {
+            // The frame comes too late for the window, the next frames get a deeper one. The
+            // frames late because the window is still filling up since then don't count.
+            if (count >= reorderDepth && reorderDepth < MAX_REORDER_DEPTH) {
+                reorderDepth++;
+                Log.w(TAG, String.format("reorder depth raised to %d at pts=%dus", reorderDepth, ptsUs));
+            }
+            dts = lastDts + 1;
+        } else {
+            insert(ptsUs);
+            if (count > reorderDepth) {
+                dts = window[0];
+                System.arraycopy(window, 1, window, 0, --count);
+            } else if (primed < configuredDepth) {
+                // Priming the window, frame i is decoded (depth - i) steps before the first pts.
+                if (!started) {
+                    firstPts = ptsUs;
+                }
+                dts = firstPts - (configuredDepth - primed++) * PRIMING_STEP_US;
+            } else {
+                // Filling the window, no pts is known to be small enough yet.
+                dts = lastDts + 1;
+            }
+        }
+
+        started = true;
+        lastDts = dts;
+        return dts;
+    }
+
+    private void insert(long ptsUs) {
+        int i = count++;
+        while (i > 0 && window[i - 1] > ptsUs) {
+            window[i] = window[i - 1];
+            i--;
+        }
+        window[i] = ptsUs;
+    }
+}
@@ -0,0 +1,117 @@
+package net.ossrs.yasea;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Latest-wins exchange of three preallocated slots between a single producer and a single
+ * consumer.
+ *
+ * The producer fills the slot returned by {@link #back()} and hands it over with
+ * {@link #publish()}, which swaps it with the slot of the last published element. The
+ * consumer gets that slot with {@link #take()}, which swaps it with the slot it read before.
+ * When the consumer is behind, a published element it did not take is overwritten by the next
+ * one instead of being queued, so it always gets the newest element and none waits for the
+ * other. Nothing is allocated per element.
+ *
+ * The consumer parks in {@link #await(long)} when nothing new is published, and the producer
+ * only unparks it when it is actually parked.
+ */
+public final class SrsTripleBuffer<E> {
+
+    // Set in the middle index when its slot holds an element not taken yet.
+    private static final int FRESH = 4;
+    private static final int INDEX_MASK = 3;
+
+    private final E[] slots;
+    // The time each slot was published at, written before the slot is handed over.
+    private final long[] publishNanos = new long[3];
+    // The slot between the producer and the consumer, with the FRESH flag.
+    private final AtomicInteger middle = new AtomicInteger(2);
+    // Only used by the producer.
+    private int back = 0;
+    // Only used by the consumer.
+    private int front = 1;
+    private volatile Thread parkedConsumer;
+
+    /**
+     * @param slots the three preallocated slots.
+     */
+    public SrsTripleBuffer(E[] slots) {
+        if (slots.length != 3) {
+            throw new IllegalArgumentException("triple buffer needs 3 slots: " + slots.length);
+        }
+        this.slots = slots;
+    }
+
+    /**
+     * Producer side: get the slot to fill, owned by the producer until published.
+     */
+    public E back() {
+        return slots[back];
+    }
+
+    /**
+     * Producer side: hand the slot returned by {@link #back()} over to the consumer.
+     *
+     * @return true when an element the consumer had not taken was overwritten.
+     */
+    public boolean publish() {
+        publishNanos[back] = System.nanoTime();
+        // Volatile store followed by the volatile load of parkedConsumer, it pairs with the
+        // store/load order in await() so that a wakeup is never missed.
+        int old = middle.getAndSet(back | FRESH);
+        back = old & INDEX_MASK;
+        Thread consumer = parkedConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+        return (old & FRESH) != 0;
+    }
+
+    /**
+     * Consumer side: get the newest published slot, owned by the consumer until the next take.
+     *
+     * @return the slot, or null when nothing was published since the last take.
+     */
+    public E take() {
+        if ((middle.get() & FRESH) == 0) {
+            return null;
+        }
+        front = middle.getAndSet(front) & INDEX_MASK;
+        return slots[front];
+    }
+
+    /**
+     * Consumer side: the time the slot returned by the last {@link #take()} was published at,
+     * from {@link System#nanoTime()}.
+     */
+    public long getPublishNanos() {
+        return publishNanos[front];
+    }
+
+    /**
+     * Consumer side: park until something is published, the timeout elapses or the thread is
+     * interrupted.
+     */
+    public void await(long timeoutNanos) {
+        if ((middle.get() & FRESH) != 0) {
+            return;
+        }
+        parkedConsumer = Thread.currentThread();
+        try {
+            if ((middle.get() & FRESH) == 0) {
+                LockSupport.parkNanos(this, timeoutNanos);
+            }
+        } finally {
+            parkedConsumer = null;
+        }
+    }
+
+    /**
+     * Drops the published element, only while neither the producer nor the consumer runs.
+     */
+    public void clear() {
+        middle.set(middle.get() & INDEX_MASK);
+    }
+}
@@ -0,0 +1,173 @@
+package com.github.faucamp.simplertmp.io;
+
+import com.github.faucamp.simplertmp.Util;
+import com.github.faucamp.simplertmp.amf.AmfNull;
+import com.github.faucamp.simplertmp.amf.AmfNumber;
+import com.github.faucamp.simplertmp.amf.AmfString;
+import com.github.faucamp.simplertmp.packets.Command;
+import com.github.faucamp.simplertmp.packets.RtmpHeader;
+import com.github.faucamp.simplertmp.packets.Video;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Checks the chunks laid out by the writer against the stream framing that
+ * RtmpPacket.writeTo did before, byte for byte.
+ */
+public class RtmpChunkWriterTest {
+
+    private static final int CHUNK_SIZE = 128;
+
+    /**
+     * The framing of RtmpPacket.writeTo(OutputStream) and RtmpHeader.writeTo(OutputStream),
+     * a type 0 header then a type 3 header before each following chunk.
+     */
+    private static byte[] frame(RtmpHeader header, byte[] body, int length, int chunkSize) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int timestamp = header.getAbsoluteTimestamp();
+        out.write((byte) (RtmpHeader.ChunkType.TYPE_0_FULL.getValue() << 6) | header.getChunkStreamId());
+        Util.writeUnsignedInt24(out, timestamp >= 0xffffff ? 0xffffff : timestamp);
+        Util.writeUnsignedInt24(out, length);
+        out.write(header.getMessageType().getValue());
+        Util.writeUnsignedInt32LittleEndian(out, header.getMessageStreamId());
+        if (timestamp >= 0xffffff) {
+            Util.writeUnsignedInt32(out, timestamp);
+        }
+        int pos = 0;
+        while (length > chunkSize) {
+            out.write(body, pos, chunkSize);
+            length -= chunkSize;
+            pos += chunkSize;
+            out.write((byte) (RtmpHeader.ChunkType.TYPE_3_RELATIVE_SINGLE_BYTE.getValue() << 6) | header.getChunkStreamId());
+            if (timestamp >= 0xffffff) {
+                Util.writeUnsignedInt32(out, timestamp);
+            }
+        }
+        out.write(body, pos, length);
+        return out.toByteArray();
+    }
+
+    private static byte[] body(int length) {
+        byte[] body = new byte[length];
+        for (int i = 0; i < length; i++) {
+            body[i] = (byte) (i * 31 + 7);
+        }
+        return body;
+    }
+
+    private static Video video(int timestamp, int messageStreamId, byte[] body, int length) {
+        Video video = new Video();
+        video.getHeader().setAbsoluteTimestamp(timestamp);
+        video.getHeader().setMessageStreamId(messageStreamId);
+        video.setData(body, length);
+        return video;
+    }
+
+    private static void assertFramedLikeTheStream(int timestamp, int length) throws IOException {
+        byte[] body = body(length + 5);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RtmpChunkWriter writer = new RtmpChunkWriter(Channels.newChannel(out));
+        Video video = video(timestamp, 0x01020304, body, length);
+
+        video.writeTo(writer, CHUNK_SIZE, new ChunkStreamInfo());
+        writer.flush();
+
+        byte[] expected = frame(video(timestamp, 0x01020304, body, length).getHeader(), body, length, CHUNK_SIZE);
+        assertArrayEquals("timestamp " + timestamp + ", length " + length, expected, out.toByteArray());
+        assertEquals(expected.length, writer.getBytesWritten());
+    }
+
+    @Test
+    public void writesASingleChunk() throws IOException {
+        assertFramedLikeTheStream(1000, 0);
+        assertFramedLikeTheStream(1000, 1);
+        assertFramedLikeTheStream(1000, CHUNK_SIZE - 1);
+        assertFramedLikeTheStream(1000, CHUNK_SIZE);
+    }
+
+    @Test
+    public void splitsIntoType3Chunks() throws IOException {
+        assertFramedLikeTheStream(1000, CHUNK_SIZE + 1);
+        assertFramedLikeTheStream(1000, 2 * CHUNK_SIZE);
+        assertFramedLikeTheStream(1000, 10 * CHUNK_SIZE + 17);
+    }
+
+    @Test
+    public void repeatsTheExtendedTimestampInEveryChunk() throws IOException {
+        assertFramedLikeTheStream(0xffffff - 1, 3 * CHUNK_SIZE + 1);
+        assertFramedLikeTheStream(0xffffff, 3 * CHUNK_SIZE + 1);
+        assertFramedLikeTheStream(0x7fffffff, 3 * CHUNK_SIZE + 1);
+        assertFramedLikeTheStream(0x7fffffff, CHUNK_SIZE);
+    }
+
+    @Test
+    public void growsForPacketsLargerThanTheBuffer() throws IOException {
+        assertFramedLikeTheStream(1000, 300 * 1024 + 3);
+    }
+
+    @Test
+    public void appendsSeveralPacketsBeforeAFlush() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RtmpChunkWriter writer = new RtmpChunkWriter(Channels.newChannel(out));
+        ChunkStreamInfo chunkStreamInfo = new ChunkStreamInfo();
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        int[] lengths = {5, CHUNK_SIZE * 3 + 2, 0, 40 * 1024, 70 * 1024};
+
+        for (int i = 0; i < lengths.length; i++) {
+            byte[] body = body(lengths[i]);
+            video(i * 33, 1, body, lengths[i]).writeTo(writer, CHUNK_SIZE, chunkStreamInfo);
+            expected.write(frame(video(i * 33, 1, body, lengths[i]).getHeader(), body, lengths[i], CHUNK_SIZE));
+        }
+        writer.flush();
+
+        assertArrayEquals(expected.toByteArray(), out.toByteArray());
+        assertEquals(lengths.length, writer.getFlushedPackets());
+        assertFalse(writer.hasPending());
+    }
+
+    @Test
+    public void writesTheCommandBodies() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RtmpChunkWriter writer = new RtmpChunkWriter(Channels.newChannel(out));
+        // Long enough to be split.
+        String name = new String(new char[CHUNK_SIZE + 20]).replace('\0', 'c');
+        Command command = new Command(name, 7);
+        command.getHeader().setAbsoluteTimestamp(0);
+
+        command.writeTo(writer, CHUNK_SIZE, new ChunkStreamInfo());
+        writer.flush();
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        AmfString.writeStringTo(body, name, false);
+        AmfNumber.writeNumberTo(body, 7);
+        // Written in place of the missing arguments.
+        AmfNull.writeNullTo(body);
+        byte[] expected = frame(new Command(name, 7).getHeader(), body.toByteArray(), body.size(), CHUNK_SIZE);
+        assertArrayEquals(expected, out.toByteArray());
+    }
+
+    @Test
+    public void doesNotWriteWithoutPendingPackets() throws IOException {
+        final int[] writes = {0};
+        RtmpChunkWriter writer = new RtmpChunkWriter(Channels.newChannel(new OutputStream() {
+            @Override
+            public void write(int b) {
+                writes[0]++;
+            }
+        }));
+
+        writer.flush();
+
+        assertEquals(0, writes[0]);
+        assertEquals(0, writer.getFlushCount());
+    }
+}
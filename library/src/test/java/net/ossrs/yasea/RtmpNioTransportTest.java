@@ -0,0 +1,161 @@
+package net.ossrs.yasea;
+
+import com.github.faucamp.simplertmp.amf.AmfNull;
+import com.github.faucamp.simplertmp.io.ChunkStreamInfo;
+import com.github.faucamp.simplertmp.io.RtmpChunkWriter;
+import com.github.faucamp.simplertmp.io.RtmpDecoder;
+import com.github.faucamp.simplertmp.io.RtmpNioTransport;
+import com.github.faucamp.simplertmp.io.RtmpSessionInfo;
+import com.github.faucamp.simplertmp.packets.Command;
+import com.github.faucamp.simplertmp.packets.RtmpPacket;
+import com.github.faucamp.simplertmp.packets.Video;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Drives the transport against the stand-in server: it writes video tags for the server to
+ * read at its throttled rate, and reads the answers to a batch of commands.
+ */
+public class RtmpNioTransportTest {
+
+    private static final int CHUNK_SIZE = 128;
+    private static final int HANDSHAKE_SIZE = 1536;
+    private static final int TAG_SIZE = 16 * 1024;
+    // The queue size over which RtmpNioTransport.awaitWritable waits.
+    private static final int TX_HIGH_WATERMARK = 128 * 1024;
+    // The capacity of the rx ring of RtmpNioTransport.
+    private static final int RX_BUFFER_SIZE = 64 * 1024;
+
+    private RtmpStandInServer server;
+    private RtmpNioTransport transport;
+    private final RtmpSessionInfo sessionInfo = new RtmpSessionInfo();
+    private RtmpChunkWriter writer;
+
+    @After
+    public void tearDown() throws IOException {
+        if (transport != null) {
+            transport.close();
+        }
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    private void connect(int bytesPerSecond) throws IOException {
+        server = new RtmpStandInServer(bytesPerSecond);
+        URI url = URI.create(server.getUrl());
+        transport = new RtmpNioTransport();
+        // Keep the kernel from taking most of what is written.
+        transport.socket().setSendBufferSize(8 * 1024);
+        transport.connect(new InetSocketAddress(url.getHost(), url.getPort()), 3000);
+        writer = new RtmpChunkWriter(transport.getWritableChannel());
+
+        OutputStream out = transport.getOutputStream();
+        out.write(new byte[1 + HANDSHAKE_SIZE]);
+        readFully(transport.getInputStream(), new byte[1 + 2 * HANDSHAKE_SIZE]);
+        out.write(new byte[HANDSHAKE_SIZE]);
+    }
+
+    private static void readFully(InputStream in, byte[] buf) throws IOException {
+        int read = 0;
+        while (read < buf.length) {
+            int n = in.read(buf, read, buf.length - read);
+            if (n < 0) {
+                throw new IOException("EOF after " + read + " bytes");
+            }
+            read += n;
+        }
+    }
+
+    private void writeVideoTags(int count) throws IOException {
+        byte[] body = new byte[TAG_SIZE];
+        body[0] = 0x27;
+        body[1] = 1;
+        for (int i = 0; i < count; i++) {
+            Video video = new Video();
+            video.getHeader().setAbsoluteTimestamp(i * 33);
+            video.getHeader().setMessageStreamId(1);
+            video.setData(body, body.length);
+            ChunkStreamInfo chunkStreamInfo = sessionInfo.getChunkStreamInfo(video.getHeader().getChunkStreamId());
+            writer.write(video, CHUNK_SIZE, chunkStreamInfo);
+        }
+    }
+
+    @Test
+    public void queuesWhileThePeerIsSlowAndResumesOnceDrained() throws Exception {
+        connect(128 * 1024);
+        // Much more than the socket buffers take, none of the writes blocks.
+        long start = System.nanoTime();
+        writeVideoTags(16);
+        assertTrue("a write blocked", System.nanoTime() - start < 500000000L);
+
+        assertTrue(transport.getPendingBytes() >= TX_HIGH_WATERMARK);
+        assertFalse(transport.awaitWritable(10));
+
+        assertTrue(transport.awaitWritable(10000));
+        assertTrue(transport.getPendingBytes() < TX_HIGH_WATERMARK);
+        assertTrue(server.awaitVideoTags(16, 10000));
+        assertEquals(0, transport.getPendingBytes());
+        assertTrue(transport.getWriteBlockingNanos() > 0);
+    }
+
+    @Test
+    public void failsWhenAStalledPeerTakesNothingForTheWriteTimeout() throws Exception {
+        // The server sleeps for tens of seconds after the first tag.
+        connect(1000);
+        transport.setWriteTimeout(300);
+        writeVideoTags(16);
+        assertTrue(transport.getPendingBytes() > 0);
+
+        // The transport failed, it does not wait any more.
+        assertTrue(transport.awaitWritable(5000));
+        try {
+            writeVideoTags(1);
+            fail("wrote to a failed transport");
+        } catch (SocketTimeoutException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void readsMoreThanTheRxRingThroughTheInputStream() throws Exception {
+        connect(0);
+        int commands = 3000;
+        for (int i = 1; i <= commands; i++) {
+            Command createStream = new Command("createStream", i);
+            createStream.addData(new AmfNull());
+            createStream.writeTo(writer, CHUNK_SIZE, sessionInfo.getChunkStreamInfo(createStream.getHeader().getChunkStreamId()));
+        }
+        writer.flush();
+
+        // Let the answers fill the ring, the selector thread stops reading until it has room.
+        InputStream in = transport.getInputStream();
+        long deadline = System.nanoTime() + 10000000000L;
+        while (in.available() < RX_BUFFER_SIZE && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(RX_BUFFER_SIZE, in.available());
+
+        // The answers come in order, across the wraparound of the ring.
+        RtmpDecoder decoder = new RtmpDecoder(new RtmpSessionInfo());
+        for (int i = 1; i <= commands; i++) {
+            RtmpPacket packet = decoder.readPacket(in);
+            assertTrue(packet instanceof Command);
+            assertEquals("_result", ((Command) packet).getCommandName());
+            assertEquals(i, ((Command) packet).getTransactionId());
+        }
+    }
+}
@@ -0,0 +1,361 @@
+package net.ossrs.yasea;
+
+import com.github.faucamp.simplertmp.RtmpHandler;
+import com.github.faucamp.simplertmp.amf.AmfNull;
+import com.github.faucamp.simplertmp.amf.AmfObject;
+import com.github.faucamp.simplertmp.io.ChunkStreamInfo;
+import com.github.faucamp.simplertmp.io.RtmpChunkWriter;
+import com.github.faucamp.simplertmp.io.RtmpDecoder;
+import com.github.faucamp.simplertmp.io.RtmpSessionInfo;
+import com.github.faucamp.simplertmp.packets.Command;
+import com.github.faucamp.simplertmp.packets.RtmpHeader;
+import com.github.faucamp.simplertmp.packets.RtmpPacket;
+import com.github.faucamp.simplertmp.packets.SetPeerBandwidth;
+import com.github.faucamp.simplertmp.packets.Video;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A stand-in RTMP server on the loopback interface for the muxer tests. It serves one
+ * publisher at a time: it answers the handshake and the connect, createStream and publish
+ * commands, then records the video tags it receives. A throttled server reads at a limited
+ * rate, and asks for a small window so that the sender is held back soon rather than
+ * filling the socket buffers.
+ */
+class RtmpStandInServer implements Closeable {
+
+    private static final int HANDSHAKE_SIZE = 1536;
+    private static final int CHUNK_SIZE = 128;
+    private static final int STREAM_ID = 1;
+    private static final int THROTTLED_WINDOW_SIZE = 16 * 1024;
+
+    /** A video tag as received. */
+    static class VideoTag {
+        // The connection it was received on, from 1.
+        final int connection;
+        final int timestamp;
+        final int frameType;
+        final int avcPacketType;
+        final long receivedNanos;
+
+        VideoTag(int connection, Video video) {
+            this.connection = connection;
+            timestamp = video.getHeader().getAbsoluteTimestamp();
+            frameType = (video.getData()[0] >> 4) & 0x0f;
+            avcPacketType = video.getData()[1];
+            receivedNanos = System.nanoTime();
+        }
+
+        boolean isSequenceHeader() {
+            return avcPacketType == 0;
+        }
+    }
+
+    /**
+     * An event handler which ignores the events, the Handler of the mockable android.jar
+     * can't deliver them.
+     */
+    static class SilentHandler extends RtmpHandler {
+
+        SilentHandler() {
+            super(null);
+        }
+
+        @Override
+        public void notifyRtmpConnecting(String msg) {
+        }
+
+        @Override
+        public void notifyRtmpConnected(String msg) {
+        }
+
+        @Override
+        public void notifyRtmpVideoStreaming() {
+        }
+
+        @Override
+        public void notifyRtmpAudioStreaming() {
+        }
+
+        @Override
+        public void notifyRtmpStopped() {
+        }
+
+        @Override
+        public void notifyRtmpDisconnected() {
+        }
+
+        @Override
+        public void notifyRtmpVideoFpsChanged(double fps) {
+        }
+
+        @Override
+        public void notifyRtmpVideoBitrateChanged(double bitrate) {
+        }
+
+        @Override
+        public void notifyRtmpAudioBitrateChanged(double bitrate) {
+        }
+
+        @Override
+        public void notifyRtmpSocketException(SocketException e) {
+        }
+
+        @Override
+        public void notifyRtmpIOException(IOException e) {
+        }
+
+        @Override
+        public void notifyRtmpIllegalArgumentException(IllegalArgumentException e) {
+        }
+
+        @Override
+        public void notifyRtmpIllegalStateException(IllegalStateException e) {
+        }
+    }
+
+    private final ServerSocket serverSocket;
+    private final int bytesPerSecond;
+    private final Thread acceptor;
+    private volatile Socket session;
+    private volatile int dropAfterVideoTags;
+    // Guarded by this.
+    private final List<VideoTag> videoTags = new ArrayList<>();
+    private int connections;
+    private int publishing;
+
+    /**
+     * @param bytesPerSecond the rate at which the video tags are read, 0 for no limit.
+     */
+    RtmpStandInServer(int bytesPerSecond) throws IOException {
+        this.bytesPerSecond = bytesPerSecond;
+        serverSocket = new ServerSocket();
+        if (bytesPerSecond > 0) {
+            // Inherited by the accepted sockets, it must be set before the bind.
+            serverSocket.setReceiveBufferSize(8 * 1024);
+        }
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, "RtmpStandInServer");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    String getUrl() {
+        return "rtmp://127.0.0.1:" + serverSocket.getLocalPort() + "/live/stream";
+    }
+
+    synchronized List<VideoTag> getVideoTags() {
+        return new ArrayList<>(videoTags);
+    }
+
+    synchronized int getConnections() {
+        return connections;
+    }
+
+    /**
+     * Close the first connection once it received this number of video tags, as a server
+     * which goes away in the middle of the stream.
+     */
+    void dropAfterVideoTags(int count) {
+        dropAfterVideoTags = count;
+    }
+
+    /** @return true if the publishers were allowed to publish count times before the timeout */
+    synchronized boolean awaitPublishing(int count, long timeoutMs) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (publishing < count) {
+            long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remainingMs <= 0) {
+                return false;
+            }
+            wait(remainingMs);
+        }
+        return true;
+    }
+
+    /** @return true if at least count video tags were received before the timeout */
+    synchronized boolean awaitVideoTags(int count, long timeoutMs) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (videoTags.size() < count) {
+            long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remainingMs <= 0) {
+                return false;
+            }
+            wait(remainingMs);
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        Socket socket = session;
+        if (socket != null) {
+            socket.close();
+        }
+        // A throttled session may be sleeping.
+        acceptor.interrupt();
+        try {
+            acceptor.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void serve() {
+        while (!serverSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                // Closed.
+                return;
+            }
+            session = socket;
+            int connection;
+            synchronized (this) {
+                connection = ++connections;
+            }
+            try {
+                session(socket, connection);
+            } catch (IOException e) {
+                // The publisher left.
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Ignore.
+                }
+            }
+        }
+    }
+
+    private void session(Socket socket, int connection) throws IOException {
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        OutputStream out = socket.getOutputStream();
+        handshake(in, out);
+
+        RtmpSessionInfo sessionInfo = new RtmpSessionInfo();
+        RtmpDecoder decoder = new RtmpDecoder(sessionInfo);
+        RtmpChunkWriter writer = new RtmpChunkWriter(Channels.newChannel(out));
+        long startNanos = System.nanoTime();
+        long readBytes = 0;
+        int received = 0;
+        while (!serverSocket.isClosed()) {
+            RtmpPacket packet = decoder.readPacket(in);
+            if (packet instanceof Command) {
+                answer((Command) packet, sessionInfo, writer);
+            } else if (packet instanceof Video) {
+                synchronized (this) {
+                    videoTags.add(new VideoTag(connection, (Video) packet));
+                    notifyAll();
+                }
+                readBytes += packet.getHeader().getPacketLength();
+                throttle(startNanos, readBytes);
+                if (++received == dropAfterVideoTags && connection == 1) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // C0 and C1, then S0, S1 and S2 the echo of C1, then C2.
+    private static void handshake(InputStream in, OutputStream out) throws IOException {
+        byte[] c0c1 = new byte[1 + HANDSHAKE_SIZE];
+        readFully(in, c0c1);
+        byte[] s0s1s2 = new byte[1 + 2 * HANDSHAKE_SIZE];
+        s0s1s2[0] = c0c1[0];
+        System.arraycopy(c0c1, 1, s0s1s2, 1 + HANDSHAKE_SIZE, HANDSHAKE_SIZE);
+        out.write(s0s1s2);
+        out.flush();
+        readFully(in, new byte[HANDSHAKE_SIZE]);
+    }
+
+    private static void readFully(InputStream in, byte[] buf) throws IOException {
+        int read = 0;
+        while (read < buf.length) {
+            int n = in.read(buf, read, buf.length - read);
+            if (n == -1) {
+                throw new IOException("EOF in the handshake");
+            }
+            read += n;
+        }
+    }
+
+    private void answer(Command command, RtmpSessionInfo sessionInfo, RtmpChunkWriter writer) throws IOException {
+        String name = command.getCommandName();
+        if ("connect".equals(name)) {
+            if (bytesPerSecond > 0) {
+                // The publisher sizes its socket send buffer with the window.
+                SetPeerBandwidth bandwidth = new SetPeerBandwidth(THROTTLED_WINDOW_SIZE, SetPeerBandwidth.LimitType.DYNAMIC,
+                    sessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_CID_PROTOCOL_CONTROL));
+                bandwidth.getHeader().setMessageType(RtmpHeader.MessageType.SET_PEER_BANDWIDTH);
+                send(bandwidth, sessionInfo, writer);
+            }
+            Command result = new Command("_result", command.getTransactionId());
+            AmfObject properties = new AmfObject();
+            properties.setProperty("fmsVer", "FMS/3,0,1,123");
+            AmfObject information = new AmfObject();
+            information.setProperty("code", "NetConnection.Connect.Success");
+            result.addData(properties);
+            result.addData(information);
+            send(result, sessionInfo, writer);
+        } else if ("createStream".equals(name)) {
+            Command result = new Command("_result", command.getTransactionId());
+            result.addData(new AmfNull());
+            result.addData(STREAM_ID);
+            send(result, sessionInfo, writer);
+        } else if ("publish".equals(name)) {
+            Command status = new Command("onStatus", 0);
+            status.getHeader().setMessageStreamId(STREAM_ID);
+            status.addData(new AmfNull());
+            AmfObject information = new AmfObject();
+            information.setProperty("code", "NetStream.Publish.Start");
+            status.addData(information);
+            send(status, sessionInfo, writer);
+            synchronized (this) {
+                publishing++;
+                notifyAll();
+            }
+        }
+    }
+
+    private static void send(RtmpPacket packet, RtmpSessionInfo sessionInfo, RtmpChunkWriter writer) throws IOException {
+        packet.writeTo(writer, CHUNK_SIZE, sessionInfo.getChunkStreamInfo(packet.getHeader().getChunkStreamId()));
+        writer.flush();
+    }
+
+    // Sleep until the bytes read so far fit in the rate.
+    private void throttle(long startNanos, long readBytes) {
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        long dueNanos = startNanos + readBytes * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond;
+        long sleepMs = TimeUnit.NANOSECONDS.toMillis(dueNanos - System.nanoTime());
+        if (sleepMs > 0) {
+            try {
+                Thread.sleep(sleepMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
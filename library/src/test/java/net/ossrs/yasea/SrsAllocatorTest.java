@@ -0,0 +1,61 @@
+package net.ossrs.yasea;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class SrsAllocatorTest {
+
+    @Test
+    public void reusesAReleasedAllocation() {
+        SrsAllocator allocator = new SrsAllocator(1024);
+        SrsAllocator.Allocation first = allocator.allocate(1000);
+        allocator.release(first);
+
+        assertSame(first, allocator.allocate(600));
+        assertEquals(1, allocator.getHitCount());
+        assertEquals(1, allocator.getMissCount());
+    }
+
+    @Test
+    public void returnsToThePoolWithTheLastReference() {
+        SrsAllocator allocator = new SrsAllocator(1024);
+        SrsAllocator.Allocation shared = allocator.allocate(1000);
+        shared.retain();
+        allocator.release(shared);
+        assertEquals(1024, allocator.getBytesOutstanding());
+
+        allocator.release(shared);
+        assertEquals(0, allocator.getBytesOutstanding());
+        assertEquals(1024, allocator.getBytesPooled());
+    }
+
+    @Test
+    public void rejectsAReleaseTooMany() {
+        SrsAllocator allocator = new SrsAllocator(1024);
+        SrsAllocator.Allocation allocation = allocator.allocate(1000);
+        allocator.release(allocation);
+        try {
+            allocator.release(allocation);
+            fail("released twice");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        // The pool holds it once, so two owners never get the same array.
+        assertEquals(1024, allocator.getBytesPooled());
+        assertSame(allocation, allocator.allocate(1000));
+        assertNotSame(allocation, allocator.allocate(1000));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsARetainAfterTheLastRelease() {
+        SrsAllocator allocator = new SrsAllocator(1024);
+        SrsAllocator.Allocation allocation = allocator.allocate(1000);
+        allocator.release(allocation);
+        allocation.retain();
+    }
+}
@@ -0,0 +1,148 @@
+package net.ossrs.yasea;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives the controller with a simulated link, one sample per second, no clock involved.
+ */
+public class SrsBitrateControllerTest {
+
+    private static final int MIN_BITRATE = 300 * 1000;
+    private static final int MAX_BITRATE = 2000 * 1000;
+    private static final int FPS = 30;
+
+    /**
+     * A link of a fixed capacity in front of a send queue, the encoder produces the target
+     * bitrate of the controller.
+     */
+    private static class SimulatedLink {
+        private final SrsBitrateController controller;
+        private int capacity;
+        private long nowMs = 0;
+        private double queuedBits = 0;
+        private long blockingNanos = 0;
+
+        SimulatedLink(SrsBitrateController controller, int capacity) {
+            this.controller = controller;
+            this.capacity = capacity;
+            controller.update(nowMs, 0, 0, 0);
+        }
+
+        int run(int seconds) {
+            for (int i = 0; i < seconds; i++) {
+                int bitrate = controller.getBitrate();
+                queuedBits += bitrate;
+                double sentBits = Math.min(queuedBits, capacity);
+                queuedBits -= sentBits;
+                // The writes block for the time the link takes to send them.
+                blockingNanos += (long) (sentBits / capacity * 1000000000L);
+                nowMs += 1000;
+                int queuedFrames = (int) (queuedBits / (bitrate / (double) FPS));
+                controller.update(nowMs, queuedFrames, sentBits, blockingNanos);
+            }
+            return controller.getBitrate();
+        }
+    }
+
+    @Test
+    public void convergesUnderTheCapacityOfACongestedLink() {
+        SrsBitrateController controller = new SrsBitrateController(MIN_BITRATE, MAX_BITRATE, MAX_BITRATE);
+        SimulatedLink link = new SimulatedLink(controller, 800 * 1000);
+
+        int bitrate = link.run(30);
+        assertTrue("bitrate " + bitrate, bitrate <= 800 * 1000);
+        assertTrue("bitrate " + bitrate, bitrate >= MIN_BITRATE);
+    }
+
+    @Test
+    public void neverGoesBelowTheFloor() {
+        SrsBitrateController controller = new SrsBitrateController(MIN_BITRATE, MAX_BITRATE, MAX_BITRATE);
+        SimulatedLink link = new SimulatedLink(controller, 100 * 1000);
+
+        assertEquals(MIN_BITRATE, link.run(60));
+    }
+
+    @Test
+    public void probesUpToTheCeilingOnAClearLink() {
+        SrsBitrateController controller = new SrsBitrateController(MIN_BITRATE, MAX_BITRATE, MIN_BITRATE);
+        // The writes block for less than a tenth of the time at the ceiling.
+        SimulatedLink link = new SimulatedLink(controller, 50 * 1000 * 1000);
+
+        // The link must stay clear for the hold time after the first clear sample.
+        assertEquals(MIN_BITRATE, link.run(5));
+        int bitrate = link.run(1);
+        assertEquals(MIN_BITRATE + (MAX_BITRATE - MIN_BITRATE) / 20, bitrate);
+
+        assertEquals(MAX_BITRATE, link.run(20 * 5));
+    }
+
+    @Test
+    public void recoversAfterTheLinkClearsAgain() {
+        SrsBitrateController controller = new SrsBitrateController(MIN_BITRATE, MAX_BITRATE, MAX_BITRATE);
+        SimulatedLink link = new SimulatedLink(controller, 500 * 1000);
+        int congested = link.run(30);
+        assertTrue("bitrate " + congested, congested <= 500 * 1000);
+
+        link.capacity = 50 * 1000 * 1000;
+        int recovered = link.run(60);
+        assertTrue("bitrate " + recovered, recovered > congested);
+    }
+
+    @Test
+    public void ignoresTheSamplesWithinTheInterval() {
+        SrsBitrateController controller = new SrsBitrateController(MIN_BITRATE, MAX_BITRATE, MAX_BITRATE);
+        controller.update(0, 0, 0, 0);
+
+        assertEquals(MAX_BITRATE, controller.update(500, 100, 0, 0));
+        assertEquals(MAX_BITRATE, controller.update(999, 100, 0, 0));
+    }
+
+    @Test
+    public void cutsWhenTheWritesBlock() {
+        SrsBitrateController controller = new SrsBitrateController(MIN_BITRATE, MAX_BITRATE, MAX_BITRATE);
+        controller.update(0, 0, 0, 0);
+
+        // An empty queue but 800ms of each second blocked in writes.
+        controller.update(1000, 0, 0, 800 * 1000000L);
+        int bitrate = controller.update(2000, 0, 0, 1600 * 1000000L);
+        assertEquals((int) (MAX_BITRATE * 0.75), bitrate);
+    }
+
+    @Test
+    public void holdsWhileTheQueueDrains() {
+        SrsBitrateController controller = new SrsBitrateController(MIN_BITRATE, MAX_BITRATE, MAX_BITRATE);
+        controller.update(0, 0, 0, 0);
+
+        controller.update(1000, 40, 0, 0);
+        // Still congested but draining at the current bitrate, no cut.
+        assertEquals(MAX_BITRATE, controller.update(2000, 30, 0, 0));
+        assertEquals(MAX_BITRATE, controller.update(3000, 20, 0, 0));
+        // The queue grows again.
+        assertEquals((int) (MAX_BITRATE * 0.75), controller.update(4000, 25, 0, 0));
+    }
+
+    @Test
+    public void capsTheCutToTheSentBitrate() {
+        SrsBitrateController controller = new SrsBitrateController(MIN_BITRATE, MAX_BITRATE, MAX_BITRATE);
+        controller.update(0, 0, 0, 0);
+
+        controller.update(1000, 20, 700 * 1000, 0);
+        assertEquals(700 * 1000, controller.update(2000, 30, 700 * 1000, 0));
+    }
+
+    @Test
+    public void clampsToTheNewRange() {
+        SrsBitrateController controller = new SrsBitrateController(MIN_BITRATE, MAX_BITRATE, MAX_BITRATE);
+        controller.setBitrateRange(MIN_BITRATE, 1000 * 1000);
+
+        assertEquals(1000 * 1000, controller.getBitrate());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnInvalidRange() {
+        new SrsBitrateController(MAX_BITRATE, MIN_BITRATE, MIN_BITRATE);
+    }
+}
@@ -0,0 +1,345 @@
+package net.ossrs.yasea;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays synthetic backlogs through the drop policy of the send queue, the way the worker
+ * consumes it, and checks what is left of the stream.
+ */
+public class SrsFlvFrameDropperTest {
+
+    // E.4.1 FLV Tag, E.4.3.1 VIDEODATA
+    private static final int AUDIO = 8;
+    private static final int VIDEO = 9;
+    private static final int KEY_FRAME = 1;
+    private static final int INTER_FRAME = 2;
+    private static final int DISPOSABLE_INTER_FRAME = 3;
+    private static final int SEQUENCE_HEADER = 0;
+    private static final int NALU = 1;
+
+    private static final int FRAME_MS = 33;
+    private static final int AUDIO_FRAME_MS = 23;
+
+    /** A frame which left the queue, the slots are reused. */
+    private static class Sent {
+        final int type;
+        final int dts;
+        final int frameType;
+        final int avcAacType;
+        // The time between the sent frame and the newest queued frame.
+        final int backlog;
+
+        Sent(SrsFlvMuxer.SrsFlvFrame frame, int backlog) {
+            type = frame.type;
+            dts = frame.dts;
+            frameType = frame.frame_type;
+            avcAacType = frame.avc_aac_type;
+            this.backlog = backlog;
+        }
+
+        boolean isVideoFrame() {
+            return type == VIDEO && avcAacType != SEQUENCE_HEADER;
+        }
+    }
+
+    private SrsFlvMuxer muxer;
+    private SrsSpscRing<SrsFlvMuxer.SrsFlvFrame> cache;
+    private SrsFlvMuxer.SrsFlvFrameDropper dropper;
+    private int queuedAudio;
+    private int queuedHeaders;
+
+    @Before
+    public void setUp() {
+        muxer = new SrsFlvMuxer(null);
+        SrsFlvMuxer.SrsFlvFrame[] slots = new SrsFlvMuxer.SrsFlvFrame[4096];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = muxer.new SrsFlvFrame();
+        }
+        cache = new SrsSpscRing<>(slots);
+        dropper = muxer.new SrsFlvFrameDropper(cache);
+        queuedAudio = 0;
+        queuedHeaders = 0;
+    }
+
+    private SrsFlvMuxer.SrsFlvFrame queue(int type, int dts, int frameType, int avcAacType) {
+        SrsFlvMuxer.SrsFlvFrame frame = cache.claim();
+        frame.flvTag = null;
+        frame.type = type;
+        frame.dts = dts;
+        frame.frame_type = frameType;
+        frame.avc_aac_type = avcAacType;
+        cache.publish();
+        if (avcAacType == SEQUENCE_HEADER) {
+            queuedHeaders++;
+        } else if (type == AUDIO) {
+            queuedAudio++;
+        }
+        return frame;
+    }
+
+    private void queueHeaders(int dts) {
+        queue(VIDEO, dts, KEY_FRAME, SEQUENCE_HEADER);
+        queue(AUDIO, dts, 0, SEQUENCE_HEADER);
+    }
+
+    /**
+     * Queue the video frames from one dts to another, a keyframe every gopMs, every other
+     * inter frame disposable, and the audio frames in between, in dts order.
+     */
+    private void queueStream(int fromMs, int toMs, int gopMs) {
+        int audioDts = fromMs;
+        for (int dts = fromMs; dts < toMs; dts += FRAME_MS) {
+            while (audioDts <= dts) {
+                queue(AUDIO, audioDts, 0, NALU);
+                audioDts += AUDIO_FRAME_MS;
+            }
+            int inGop = (dts - fromMs) % gopMs;
+            if (inGop < FRAME_MS) {
+                queue(VIDEO, dts, KEY_FRAME, NALU);
+            } else {
+                queue(VIDEO, dts, (inGop / FRAME_MS) % 2 == 0 ? DISPOSABLE_INTER_FRAME : INTER_FRAME, NALU);
+            }
+        }
+    }
+
+    private int backlog() {
+        SrsFlvMuxer.SrsFlvFrame head = cache.peek();
+        SrsFlvMuxer.SrsFlvFrame newest = cache.peek(cache.size() - 1);
+        return head == null ? 0 : newest.dts - head.dts;
+    }
+
+    /** Consume the whole queue as the worker does, return the frames which are sent. */
+    private List<Sent> drain() {
+        List<Sent> sent = new ArrayList<>();
+        SrsFlvMuxer.SrsFlvFrame frame;
+        while ((frame = cache.peek()) != null) {
+            int backlog = backlog();
+            if (!dropper.shouldDrop(frame)) {
+                sent.add(new Sent(frame, backlog));
+            }
+            cache.consume();
+        }
+        return sent;
+    }
+
+    private List<Integer> videoDts(List<Sent> sent) {
+        List<Integer> dts = new ArrayList<>();
+        for (Sent frame : sent) {
+            if (frame.isVideoFrame()) {
+                dts.add(frame.dts);
+            }
+        }
+        return dts;
+    }
+
+    /** Audio and sequence headers are all sent, and the dts never goes back. */
+    private void assertContinuous(List<Sent> sent) {
+        int audio = 0;
+        int headers = 0;
+        int lastDts = Integer.MIN_VALUE;
+        for (Sent frame : sent) {
+            if (frame.avcAacType == SEQUENCE_HEADER) {
+                headers++;
+            } else if (frame.type == AUDIO) {
+                audio++;
+            }
+            assertTrue("dts " + frame.dts + " after " + lastDts, frame.dts >= lastDts);
+            lastDts = frame.dts;
+        }
+        assertEquals("audio frames", queuedAudio, audio);
+        assertEquals("sequence headers", queuedHeaders, headers);
+    }
+
+    @Test
+    public void sendsEverythingUnderTheDisposableThreshold() {
+        queueHeaders(0);
+        queueStream(0, 290, 2000);
+        int queued = cache.size();
+
+        List<Sent> sent = drain();
+
+        assertEquals(queued, sent.size());
+        assertEquals(0, dropper.getDroppedFrames());
+        assertContinuous(sent);
+    }
+
+    @Test
+    public void dropsTheDisposableFramesFirst() {
+        queueHeaders(0);
+        queueStream(0, 900, 2000);
+        int newest = cache.peek(cache.size() - 1).dts;
+
+        List<Sent> sent = drain();
+
+        assertContinuous(sent);
+        assertTrue(dropper.getDroppedFrames() > 0);
+        List<Integer> video = videoDts(sent);
+        for (int dts = 0; dts < 900; dts += FRAME_MS) {
+            int inGop = dts / FRAME_MS;
+            boolean disposable = inGop > 0 && inGop % 2 == 0;
+            // The disposable frames are dropped while the backlog is above 300ms.
+            boolean dropped = disposable && newest - dts > 300;
+            assertEquals("video frame at " + dts, !dropped, video.contains(dts));
+        }
+    }
+
+    @Test
+    public void dropsTheInterFramesUpToTheNextKeyFrame() {
+        queueHeaders(0);
+        queueStream(0, 1800, 1485);
+
+        List<Sent> sent = drain();
+
+        assertContinuous(sent);
+        List<Integer> video = videoDts(sent);
+        // The keyframe is sent, the backlog is then above 1s so its GOP goes, and the stream
+        // resumes at the next keyframe.
+        assertEquals(Integer.valueOf(0), video.get(0));
+        assertEquals(Integer.valueOf(1485), video.get(1));
+        for (int dts = 1485; dts < 1800; dts += FRAME_MS) {
+            assertTrue("video frame at " + dts, video.contains(dts));
+        }
+        assertEquals(1485 / FRAME_MS - 1, dropper.getDroppedFrames());
+    }
+
+    @Test
+    public void dropsTheStaleGops() {
+        queueHeaders(0);
+        queueStream(0, 3300, 990);
+
+        List<Sent> sent = drain();
+
+        assertContinuous(sent);
+        List<Integer> video = videoDts(sent);
+        // The GOPs at 0 and 990 are more than 2s behind with a newer keyframe queued, the
+        // one at 1980 is sent alone, then the stream resumes at the keyframe of 2970.
+        assertEquals(Integer.valueOf(1980), video.get(0));
+        assertEquals(Integer.valueOf(2970), video.get(1));
+        for (Sent frame : sent) {
+            if (frame.isVideoFrame()) {
+                assertTrue("stale frame at " + frame.dts, frame.backlog <= 2000);
+            }
+        }
+    }
+
+    @Test
+    public void keepsTheKeyFrameOfTheLastGop() {
+        // A single GOP longer than the thresholds, no newer keyframe to jump to.
+        queueHeaders(0);
+        queueStream(0, 4000, 10000);
+
+        List<Sent> sent = drain();
+
+        assertContinuous(sent);
+        assertEquals(Integer.valueOf(0), videoDts(sent).get(0));
+        assertEquals(1, videoDts(sent).size());
+    }
+
+    @Test
+    public void neverDropsAudioOrSequenceHeaders() {
+        dropper.setThresholds(0, 0, 0);
+        queueHeaders(0);
+        queueStream(0, 2000, 500);
+        queueHeaders(2000);
+        queueStream(2000, 4000, 500);
+
+        List<Sent> sent = drain();
+
+        assertContinuous(sent);
+        assertTrue(dropper.getDroppedFrames() > 0);
+    }
+
+    @Test
+    public void detectsTheNonReferenceSlices() {
+        SrsAllocator allocator = new SrsAllocator(64);
+        SrsAllocator.Allocation tag = allocator.allocate(5 + 4 + 1 + 4 + 2);
+        // The video tag header, an sei, then a P slice with nal_ref_idc 0.
+        tag.put(new byte[] {0x27, 0x01, 0, 0, 0});
+        tag.put(new byte[] {0, 0, 0, 1, 0x06});
+        tag.put(new byte[] {0, 0, 0, 2, 0x01, 0x00});
+        SrsFlvMuxer.SrsFlvFrame frame = muxer.new SrsFlvFrame();
+        frame.type = VIDEO;
+        frame.frame_type = INTER_FRAME;
+        frame.avc_aac_type = NALU;
+        frame.flvTag = tag;
+
+        assertTrue(frame.isDisposable());
+        // nal_ref_idc 3
+        tag.put((byte) 0x61, 5 + 4 + 1 + 4);
+        assertFalse(frame.isDisposable());
+    }
+
+    @Test
+    public void boundsTheLatencyOfACongestedLink() {
+        final int durationMs = 60 * 1000;
+        final int gopMs = 1980;
+        // About 200KB/s of video, 13KB/s of audio, over a 120KB/s link.
+        final int bytesPerMs = 120;
+        queueHeaders(0);
+
+        int budget = 0;
+        int nextVideo = 0;
+        int nextAudio = 0;
+        int maxVideoLatency = 0;
+        int maxAudioLatency = 0;
+        int lastDts = Integer.MIN_VALUE;
+        int sentAudio = 0;
+        for (int now = 0; now < durationMs; now++) {
+            while (nextAudio <= now) {
+                queue(AUDIO, nextAudio, 0, NALU);
+                nextAudio += AUDIO_FRAME_MS;
+            }
+            if (nextVideo <= now) {
+                int inGop = nextVideo % gopMs;
+                int frameType = inGop < FRAME_MS ? KEY_FRAME
+                    : (inGop / FRAME_MS) % 2 == 0 ? DISPOSABLE_INTER_FRAME : INTER_FRAME;
+                queue(VIDEO, nextVideo, frameType, NALU);
+                nextVideo += FRAME_MS;
+            }
+
+            budget += bytesPerMs;
+            SrsFlvMuxer.SrsFlvFrame frame;
+            while ((frame = cache.peek()) != null) {
+                int backlog = backlog();
+                if (dropper.shouldDrop(frame)) {
+                    cache.consume();
+                    continue;
+                }
+                int size = frame.isAudio() ? 300 : frame.isKeyFrame() ? 40000
+                    : frame.frame_type == DISPOSABLE_INTER_FRAME ? 4000 : 8000;
+                if (budget < size) {
+                    break;
+                }
+                budget -= size;
+                assertTrue("dts " + frame.dts + " after " + lastDts, frame.dts >= lastDts);
+                lastDts = frame.dts;
+                if (frame.isVideo() && !frame.isSequenceHeader()) {
+                    assertTrue("backlog " + backlog + " at " + frame.dts, backlog <= Math.max(2000, gopMs));
+                    maxVideoLatency = Math.max(maxVideoLatency, now - frame.dts);
+                } else if (frame.isAudio() && !frame.isSequenceHeader()) {
+                    maxAudioLatency = Math.max(maxAudioLatency, now - frame.dts);
+                    sentAudio++;
+                }
+                cache.consume();
+            }
+            if (cache.isEmpty()) {
+                // The link does not save up while idle.
+                budget = Math.min(budget, bytesPerMs);
+            }
+        }
+
+        assertTrue(dropper.getDroppedFrames() > 0);
+        // Without dropping the latency would grow by 40s over the run.
+        assertTrue("video latency " + maxVideoLatency + "ms", maxVideoLatency < 3000);
+        assertTrue("audio latency " + maxAudioLatency + "ms", maxAudioLatency < 3000);
+        assertTrue(queuedAudio - sentAudio <= cache.size());
+    }
+}
@@ -0,0 +1,132 @@
+package net.ossrs.yasea;
+
+import android.media.MediaCodec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Publishes the same stream to two stand-in RTMP servers, one of them reading at a fraction
+ * of the bitrate, and checks that the slow one does not hold the other back.
+ */
+public class SrsFlvMuxerDestinationTest {
+
+    private static final int FRAMES = 150;
+    static final int GOP = 30;
+    static final int FRAME_MS = 33;
+    // The frames are muxed faster than real time, the queues are measured in dts.
+    private static final int PACING_MS = 10;
+    private static final int FRAME_SIZE = 6 * 1024;
+    private static final int THROTTLED_BYTES_PER_SECOND = 32 * 1024;
+
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0xc0, 0x1f, (byte) 0xda, 0x01};
+    private static final byte[] PPS = {0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+
+    private RtmpStandInServer fast;
+    private RtmpStandInServer slow;
+    private SrsFlvMuxer muxer;
+
+    @Before
+    public void setUp() throws IOException {
+        fast = new RtmpStandInServer(0);
+        slow = new RtmpStandInServer(THROTTLED_BYTES_PER_SECOND);
+        muxer = new SrsFlvMuxer(new RtmpStandInServer.SilentHandler());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        muxer.stop();
+        fast.close();
+        slow.close();
+    }
+
+    /** An access unit of a start code and a slice, with the SPS and PPS before a keyframe. */
+    static ByteBuffer accessUnit(int frame, int size) {
+        ByteBuffer bb = ByteBuffer.allocate(size + SPS.length + PPS.length + 12);
+        boolean keyFrame = frame % GOP == 0;
+        if (keyFrame) {
+            bb.put(new byte[]{0, 0, 0, 1}).put(SPS);
+            bb.put(new byte[]{0, 0, 0, 1}).put(PPS);
+        }
+        bb.put(new byte[]{0, 0, 0, 1});
+        // nal_ref_idc 3, an IDR or a referenced non-IDR slice.
+        bb.put((byte) (keyFrame ? 0x65 : 0x61));
+        byte[] payload = new byte[size - 1];
+        Arrays.fill(payload, (byte) (frame | 0x80));
+        bb.put(payload);
+        bb.flip();
+        return bb;
+    }
+
+    // The video track needs no format, the muxer only parses the access units.
+    static void writeVideo(SrsFlvMuxer muxer, int frame, int dtsMs) {
+        ByteBuffer bb = accessUnit(frame, FRAME_SIZE);
+        MediaCodec.BufferInfo bi = new MediaCodec.BufferInfo();
+        bi.offset = 0;
+        bi.size = bb.remaining();
+        bi.presentationTimeUs = TimeUnit.MILLISECONDS.toMicros(dtsMs);
+        bi.flags = frame % GOP == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+        muxer.writeSampleData(SrsFlvMuxer.VIDEO_TRACK, bb, bi);
+    }
+
+    private static List<RtmpStandInServer.VideoTag> frames(List<RtmpStandInServer.VideoTag> tags) {
+        List<RtmpStandInServer.VideoTag> frames = new ArrayList<>();
+        for (RtmpStandInServer.VideoTag tag : tags) {
+            if (!tag.isSequenceHeader()) {
+                frames.add(tag);
+            }
+        }
+        return frames;
+    }
+
+    @Test
+    public void aThrottledDestinationDoesNotHoldBackTheOthers() throws InterruptedException {
+        int slowDestination = muxer.addDestination(slow.getUrl(), new RtmpStandInServer.SilentHandler());
+        muxer.start(fast.getUrl());
+        assertTrue(fast.awaitPublishing(1, 5000));
+        assertTrue(slow.awaitPublishing(1, 5000));
+
+        for (int i = 0; i < FRAMES; i++) {
+            writeVideo(muxer, i, i * FRAME_MS);
+            Thread.sleep(PACING_MS);
+        }
+        long lastWrittenNanos = System.nanoTime();
+
+        // The fast server gets the whole stream, in order, right after it is written.
+        assertTrue(fast.awaitVideoTags(FRAMES + 1, 5000));
+        List<RtmpStandInServer.VideoTag> tags = fast.getVideoTags();
+        assertTrue(tags.get(0).isSequenceHeader());
+        List<RtmpStandInServer.VideoTag> received = frames(tags);
+        assertEquals(FRAMES, received.size());
+        for (int i = 0; i < FRAMES; i++) {
+            assertEquals(i * FRAME_MS, received.get(i).timestamp);
+            assertEquals(i % GOP == 0 ? 1 : 2, received.get(i).frameType);
+        }
+        long lagMs = TimeUnit.NANOSECONDS.toMillis(received.get(FRAMES - 1).receivedNanos - lastWrittenNanos);
+        assertTrue("the last frame arrived after " + lagMs + "ms", lagMs < 1000);
+        assertEquals(0, muxer.getDroppedFrames(0));
+
+        // The slow server got a fraction of it, its worker drops the stale GOPs from its own
+        // queue as soon as a write returns.
+        int slowFrames = frames(slow.getVideoTags()).size();
+        assertTrue("the slow server got " + slowFrames + " frames", slowFrames < FRAMES / 2);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (muxer.getDroppedFrames(slowDestination) == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+        }
+        assertTrue(muxer.getDroppedFrames(slowDestination) > 0);
+        assertEquals(1, fast.getConnections());
+        assertEquals(1, slow.getConnections());
+    }
+}
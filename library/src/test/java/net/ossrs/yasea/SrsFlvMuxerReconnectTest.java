@@ -0,0 +1,125 @@
+package net.ossrs.yasea;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import static net.ossrs.yasea.SrsFlvMuxerDestinationTest.FRAME_MS;
+import static net.ossrs.yasea.SrsFlvMuxerDestinationTest.GOP;
+import static net.ossrs.yasea.SrsFlvMuxerDestinationTest.writeVideo;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Publishes to a stand-in RTMP server which goes away in the middle of the stream, and
+ * restarts the muxer while the encoder keeps feeding it.
+ */
+public class SrsFlvMuxerReconnectTest {
+
+    private static final int FRAMES = 120;
+    private static final int PACING_MS = 10;
+    private static final int RESTARTS = 20;
+
+    private RtmpStandInServer server;
+    private SrsFlvMuxer muxer;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new RtmpStandInServer(0);
+        muxer = new SrsFlvMuxer(new RtmpStandInServer.SilentHandler());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        muxer.stop();
+        server.close();
+    }
+
+    @Test
+    public void replaysTheLastGopAfterTheServerDropsTheConnection() throws InterruptedException {
+        // Frames 0 to 43 after the sequence header, in the middle of the second GOP.
+        server.dropAfterVideoTags(GOP + GOP / 2);
+        muxer.setAutoReconnect(true, 5000);
+        // The frames queued during the backoff must not be dropped.
+        muxer.setDropThresholds(60000, 60000, 60000);
+        muxer.start(server.getUrl());
+        assertTrue(server.awaitPublishing(1, 5000));
+
+        for (int i = 0; i < FRAMES; i++) {
+            writeVideo(muxer, i, i * FRAME_MS);
+            Thread.sleep(PACING_MS);
+        }
+
+        // The new connection starts with the sequence header, then the second GOP from its
+        // keyframe, with the timestamps from 0, then the frames queued meanwhile.
+        assertTrue(server.awaitPublishing(2, 5000));
+        assertTrue(server.awaitVideoTags(GOP + GOP / 2 + 1 + FRAMES - GOP, 5000));
+        List<RtmpStandInServer.VideoTag> tags = server.getVideoTags();
+        assertEquals(2, server.getConnections());
+        int first = GOP + GOP / 2;
+        assertEquals(2, tags.get(first).connection);
+        assertTrue(tags.get(first).isSequenceHeader());
+        for (int i = GOP; i < FRAMES; i++) {
+            RtmpStandInServer.VideoTag tag = tags.get(first + 1 + i - GOP);
+            assertEquals(2, tag.connection);
+            assertFalse(tag.isSequenceHeader());
+            assertEquals((i - GOP) * FRAME_MS, tag.timestamp);
+            assertEquals(i % GOP == 0 ? 1 : 2, tag.frameType);
+        }
+        assertEquals(first + 1 + FRAMES - GOP, tags.size());
+        assertEquals(0, muxer.getDroppedFrames());
+    }
+
+    @Test
+    public void restartsWithoutTheFramesQueuedBeforeTheStop() throws InterruptedException {
+        final AtomicBoolean running = new AtomicBoolean(true);
+        // The frame being muxed.
+        final AtomicInteger writing = new AtomicInteger(-1);
+        Thread encoder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; running.get(); i++) {
+                    writing.set(i);
+                    writeVideo(muxer, i, i * FRAME_MS);
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                }
+            }
+        });
+        encoder.start();
+
+        // The frames muxed up to the return of each stop.
+        int[] stopped = new int[RESTARTS];
+        try {
+            for (int r = 0; r < RESTARTS; r++) {
+                muxer.start(server.getUrl());
+                assertTrue(server.awaitPublishing(r + 1, 5000));
+                assertTrue(server.awaitVideoTags(server.getVideoTags().size() + GOP, 5000));
+                muxer.stop();
+                stopped[r] = writing.get();
+                // A frame muxed from now on only goes to the next start, unless the encoder
+                // thread stalls that long between the two.
+                Thread.sleep(20);
+            }
+        } finally {
+            running.set(false);
+            encoder.join();
+        }
+
+        // A frame which was queued when the muxer stopped must not be sent after the restart.
+        for (RtmpStandInServer.VideoTag tag : server.getVideoTags()) {
+            if (tag.connection > 1 && !tag.isSequenceHeader()) {
+                int stoppedAt = stopped[tag.connection - 2];
+                assertTrue("frame " + tag.timestamp / FRAME_MS + " of the run stopped at frame " + stoppedAt
+                    + " sent on connection " + tag.connection, tag.timestamp > stoppedAt * FRAME_MS);
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package net.ossrs.yasea;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static net.ossrs.yasea.SrsMp4MuxerFragmentedTest.FRAME_US;
+import static net.ossrs.yasea.SrsMp4MuxerFragmentedTest.GOP;
+import static net.ossrs.yasea.SrsMp4MuxerFragmentedTest.SPS;
+import static net.ossrs.yasea.SrsMp4MuxerFragmentedTest.audioFormat;
+import static net.ossrs.yasea.SrsMp4MuxerFragmentedTest.audioPts;
+import static net.ossrs.yasea.SrsMp4MuxerFragmentedTest.videoFormat;
+import static net.ossrs.yasea.SrsMp4MuxerFragmentedTest.writeAudio;
+import static net.ossrs.yasea.SrsMp4MuxerFragmentedTest.writeAudioConfig;
+import static net.ossrs.yasea.SrsMp4MuxerFragmentedTest.writeVideo;
+import static net.ossrs.yasea.SrsMp4MuxerFragmentedTest.writeVideoConfig;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Records a 25fps video of about 4Mbps and an AAC audio in the temporary directory, and prints
+ * how long stop takes without the fast start, with it, and with it and the sync interval which
+ * syncs each chunk of the move. The size is -Dyasea.fastStartMB, 512MB by default, set it to a
+ * few GB for the recordings of hours.
+ */
+public class SrsMp4FastStartBenchmark {
+
+    private static final int KEY_FRAME_SIZE = 60 * 1024;
+    private static final int FRAME_SIZE = 18 * 1024;
+
+    private static int frameSize(int frame) {
+        return frame % GOP == 0 ? KEY_FRAME_SIZE : FRAME_SIZE;
+    }
+
+    // The types and sizes of the top level boxes, SrsMp4FileReader maps at most 2GB.
+    private static Map<String, Long> boxes(File file) throws IOException {
+        Map<String, Long> boxes = new LinkedHashMap<>();
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long offset = 0;
+            while (offset < raf.length()) {
+                raf.seek(offset);
+                long size = raf.readInt() & 0xffffffffL;
+                byte[] type = new byte[4];
+                raf.readFully(type);
+                if (size == 1) {
+                    size = raf.readLong();
+                }
+                boxes.put(new String(type, "ISO-8859-1"), size);
+                offset += size;
+            }
+            assertEquals(raf.length(), offset);
+        } finally {
+            raf.close();
+        }
+        return boxes;
+    }
+
+    private static String measure(File file, long bytes, boolean fastStart, int syncIntervalMs)
+        throws IOException, InterruptedException {
+        SrsMp4Muxer muxer = new SrsMp4Muxer(new SrsMp4MuxerFragmentedTest.RecordHandler());
+        muxer.setFastStart(fastStart);
+        muxer.setSyncInterval(syncIntervalMs);
+        int videoTrack = muxer.addTrack(videoFormat());
+        int audioTrack = muxer.addTrack(audioFormat());
+        writeVideoConfig(muxer, videoTrack, SPS);
+        writeAudioConfig(muxer, audioTrack);
+        muxer.record(file);
+
+        int audioFrame = 0;
+        long written = 0;
+        for (int i = 0; written < bytes; i++) {
+            writeVideo(muxer, videoTrack, i, frameSize(i));
+            written += frameSize(i);
+            while (audioPts(audioFrame) < (i + 1) * FRAME_US) {
+                writeAudio(muxer, audioTrack, audioFrame++);
+            }
+            while (muxer.getCachedFrames() > 64) {
+                Thread.sleep(1);
+            }
+        }
+        while (muxer.getCachedFrames() > 0) {
+            Thread.sleep(1);
+        }
+        long start = System.nanoTime();
+        muxer.stop();
+        long stopNanos = System.nanoTime() - start;
+        assertEquals(0, muxer.getDroppedFrames());
+
+        Map<String, Long> boxes = boxes(file);
+        List<String> layout = new ArrayList<>(boxes.keySet());
+        assertEquals(fastStart ? Arrays.asList("ftyp", "moov", "mdat") : Arrays.asList("ftyp", "mdat", "moov"), layout);
+        long moov = boxes.get("moov");
+        long mdat = boxes.get("mdat");
+        String result = String.format("%s%s: %s, moov of %.0f KB, stop in %.0f ms",
+            fastStart ? "fast start" : "moov at the end", syncIntervalMs > 0 ? " synced" : "", layout,
+            moov / 1024.0, stopNanos / 1e6);
+        if (fastStart) {
+            // the chunks of the move are at most the size of the moov, and 4MB.
+            long chunk = Math.min(moov, 4 * 1024 * 1024);
+            result += String.format(", mdat moved at %.0f MB/s by %d chunks",
+                mdat / 1048576.0 / (stopNanos / 1e9), (mdat + chunk - 1) / chunk);
+        }
+        return result;
+    }
+
+    @Test
+    public void movesTheMdatOfALargeRecording() throws IOException, InterruptedException {
+        long bytes = Long.getLong("yasea.fastStartMB", 512) * 1024 * 1024;
+        File file = File.createTempFile("SrsMp4FastStartBenchmark", ".mp4");
+        try {
+            System.out.println(file.getParent() + ", " + bytes / 1048576 + "MB of media");
+            System.out.println(measure(file, bytes, false, 0));
+            System.out.println(measure(file, bytes, true, 0));
+            System.out.println(measure(file, bytes, true, 1000));
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,391 @@
+package net.ossrs.yasea;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads back the boxes of a recorded MP4 file for the muxer tests, and decodes the tables and
+ * the fragment boxes the muxer writes. The whole file is mapped, so it is meant for the small
+ * files of the tests, the boxes may also be read from memory.
+ */
+class SrsMp4FileReader {
+
+    /**
+     * A box of the file, with its position and its size, header included.
+     */
+    static class Box {
+        final String type;
+        final long offset;
+        final long size;
+        final int headerSize;
+
+        Box(String type, long offset, long size, int headerSize) {
+            this.type = type;
+            this.offset = offset;
+            this.size = size;
+            this.headerSize = headerSize;
+        }
+
+        long end() {
+            return offset + size;
+        }
+    }
+
+    /**
+     * The samples of a track run, with its data offset from the moof.
+     */
+    static class TrackRun {
+        long dataOffset;
+        int[] durations;
+        int[] sizes;
+        int[] flags;
+        int[] compositionOffsets;
+
+        int count() {
+            return sizes.length;
+        }
+
+        long duration() {
+            long duration = 0;
+            for (int d : durations) {
+                duration += d;
+            }
+            return duration;
+        }
+
+        long dataSize() {
+            long size = 0;
+            for (int s : sizes) {
+                size += s;
+            }
+            return size;
+        }
+
+        boolean isSync(int i) {
+            // sample_is_difference_sample
+            return flags == null || (flags[i] & 0x10000) == 0;
+        }
+    }
+
+    /**
+     * An entry of a tfra.
+     */
+    static class RandomAccessEntry {
+        long time;
+        long moofOffset;
+        int trafNumber;
+        int trunNumber;
+        int sampleNumber;
+    }
+
+    private final ByteBuffer file;
+
+    SrsMp4FileReader(File f) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            file = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @param boxes the boxes as written, from the position 0.
+     */
+    SrsMp4FileReader(ByteBuffer boxes) {
+        file = boxes;
+    }
+
+    long length() {
+        return file.capacity();
+    }
+
+    byte[] read(long offset, int size) {
+        byte[] bytes = new byte[size];
+        ByteBuffer dup = file.duplicate();
+        dup.position((int) offset);
+        dup.get(bytes);
+        return bytes;
+    }
+
+    int readInt(long offset) {
+        return file.getInt((int) offset);
+    }
+
+    /**
+     * @return the top level boxes.
+     */
+    List<Box> boxes() {
+        return boxes(0, file.capacity());
+    }
+
+    /**
+     * @return the boxes in the box, for a container.
+     */
+    List<Box> children(Box box) {
+        return boxes(box.offset + box.headerSize, box.end());
+    }
+
+    List<Box> boxes(String type) {
+        List<Box> found = new ArrayList<>();
+        for (Box box : boxes()) {
+            if (box.type.equals(type)) {
+                found.add(box);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @param path the types of the boxes from a top level one, like "moov/mvex/trex", the first
+     *             one of each type is taken.
+     * @return the box, or null.
+     */
+    Box find(String path) {
+        return find(null, path);
+    }
+
+    /**
+     * @param parent the box the path starts in, null for the top level.
+     */
+    Box find(Box parent, String path) {
+        Box box = parent;
+        for (String type : path.split("/")) {
+            Box child = null;
+            for (Box b : box == null ? boxes() : children(box)) {
+                if (b.type.equals(type)) {
+                    child = b;
+                    break;
+                }
+            }
+            if (child == null) {
+                return null;
+            }
+            box = child;
+        }
+        return box;
+    }
+
+    /**
+     * @param handler the handler type of the track, "vide" or "soun".
+     * @return the trak box, or null.
+     */
+    Box track(String handler) {
+        for (Box trak : children(find("moov"))) {
+            if (trak.type.equals("trak")) {
+                Box hdlr = find(trak, "mdia/hdlr");
+                // version and flags, pre_defined, then the handler type.
+                if (new String(read(hdlr.offset + hdlr.headerSize + 8, 4)).equals(handler)) {
+                    return trak;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the track id in the tkhd of the trak.
+     */
+    int trackId(Box trak) {
+        Box tkhd = find(trak, "tkhd");
+        int version = file.get((int) (tkhd.offset + tkhd.headerSize)) & 0xff;
+        return readInt(tkhd.offset + tkhd.headerSize + (version == 1 ? 20 : 12));
+    }
+
+    /**
+     * Decodes the entries of a stts, ctts, stsc, stss, stsz, stco or co64 box, each field of
+     * each entry in a row.
+     */
+    long[] table(Box box) {
+        ByteBuffer bb = content(box);
+        bb.getInt();
+        int fields;
+        if (box.type.equals("stts") || box.type.equals("ctts")) {
+            fields = 2;
+        } else if (box.type.equals("stsc")) {
+            fields = 3;
+        } else {
+            if (box.type.equals("stsz")) {
+                // the samples have different sizes when the default is 0.
+                bb.getInt();
+            }
+            fields = 1;
+        }
+        long[] entries = new long[bb.getInt() * fields];
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = box.type.equals("co64") ? bb.getLong() : bb.getInt() & 0xffffffffL;
+        }
+        return entries;
+    }
+
+    /**
+     * @return the decoded table of the stbl of the track, or null when the box is missing.
+     */
+    long[] table(Box trak, String type) {
+        Box box = find(trak, "mdia/minf/stbl/" + type);
+        return box == null ? null : table(box);
+    }
+
+    /**
+     * @return the chunk offsets of the track, from its stco or its co64.
+     */
+    long[] chunkOffsets(Box trak) {
+        long[] offsets = table(trak, "stco");
+        return offsets != null ? offsets : table(trak, "co64");
+    }
+
+    /**
+     * @return the file offset of each sample of the track, from its stsc, stsz and chunk
+     *         offsets.
+     */
+    long[] sampleOffsets(Box trak) {
+        long[] stsc = table(trak, "stsc");
+        long[] sizes = table(trak, "stsz");
+        long[] chunks = chunkOffsets(trak);
+        long[] offsets = new long[sizes.length];
+        int sample = 0;
+        for (int chunk = 0; chunk < chunks.length; chunk++) {
+            // the last run whose first chunk is not after this one, 1-based.
+            long perChunk = 0;
+            for (int i = 0; i < stsc.length; i += 3) {
+                if (stsc[i] <= chunk + 1) {
+                    perChunk = stsc[i + 1];
+                }
+            }
+            long offset = chunks[chunk];
+            for (int i = 0; i < perChunk; i++) {
+                offsets[sample] = offset;
+                offset += sizes[sample++];
+            }
+        }
+        return offsets;
+    }
+
+    /**
+     * @return the track id and the flags of the tfhd of the traf.
+     */
+    int[] trackFragmentHeader(Box traf) {
+        ByteBuffer bb = content(find(traf, "tfhd"));
+        int flags = bb.getInt() & 0xffffff;
+        return new int[]{bb.getInt(), flags};
+    }
+
+    /**
+     * @return the base media decode time of the traf.
+     */
+    long baseMediaDecodeTime(Box traf) {
+        ByteBuffer bb = content(find(traf, "tfdt"));
+        int version = bb.getInt() >>> 24;
+        return version == 1 ? bb.getLong() : bb.getInt() & 0xffffffffL;
+    }
+
+    TrackRun trackRun(Box traf) {
+        ByteBuffer bb = content(find(traf, "trun"));
+        int flags = bb.getInt() & 0xffffff;
+        int count = bb.getInt();
+        TrackRun run = new TrackRun();
+        if ((flags & 0x1) != 0) {
+            run.dataOffset = bb.getInt();
+        }
+        if ((flags & 0x4) != 0) {
+            bb.getInt();
+        }
+        run.durations = (flags & 0x100) != 0 ? new int[count] : null;
+        run.sizes = (flags & 0x200) != 0 ? new int[count] : null;
+        run.flags = (flags & 0x400) != 0 ? new int[count] : null;
+        run.compositionOffsets = (flags & 0x800) != 0 ? new int[count] : null;
+        for (int i = 0; i < count; i++) {
+            for (int[] field : new int[][]{run.durations, run.sizes, run.flags, run.compositionOffsets}) {
+                if (field != null) {
+                    field[i] = bb.getInt();
+                }
+            }
+        }
+        return run;
+    }
+
+    /**
+     * @return the sequence number in the mfhd of the moof.
+     */
+    long sequenceNumber(Box moof) {
+        ByteBuffer bb = content(find(moof, "mfhd"));
+        bb.getInt();
+        return bb.getInt() & 0xffffffffL;
+    }
+
+    /**
+     * @return the entries of the tfra of the track in the mfra.
+     */
+    List<RandomAccessEntry> randomAccessEntries(int trackId) {
+        List<RandomAccessEntry> entries = new ArrayList<>();
+        for (Box tfra : children(find("mfra"))) {
+            if (!tfra.type.equals("tfra")) {
+                continue;
+            }
+            ByteBuffer bb = content(tfra);
+            int version = bb.getInt() >>> 24;
+            if (bb.getInt() != trackId) {
+                continue;
+            }
+            int lengths = bb.getInt();
+            int trafSize = ((lengths >> 4) & 0x3) + 1;
+            int trunSize = ((lengths >> 2) & 0x3) + 1;
+            int sampleSize = (lengths & 0x3) + 1;
+            int count = bb.getInt();
+            for (int i = 0; i < count; i++) {
+                RandomAccessEntry entry = new RandomAccessEntry();
+                entry.time = version == 1 ? bb.getLong() : bb.getInt() & 0xffffffffL;
+                entry.moofOffset = version == 1 ? bb.getLong() : bb.getInt() & 0xffffffffL;
+                entry.trafNumber = readVariable(bb, trafSize);
+                entry.trunNumber = readVariable(bb, trunSize);
+                entry.sampleNumber = readVariable(bb, sampleSize);
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    private static int readVariable(ByteBuffer bb, int size) {
+        int value = 0;
+        for (int i = 0; i < size; i++) {
+            value = (value << 8) | (bb.get() & 0xff);
+        }
+        return value;
+    }
+
+    // The content of the box after its header.
+    private ByteBuffer content(Box box) {
+        ByteBuffer dup = file.duplicate();
+        dup.limit((int) box.end());
+        dup.position((int) (box.offset + box.headerSize));
+        return dup.slice();
+    }
+
+    private List<Box> boxes(long start, long end) {
+        List<Box> boxes = new ArrayList<>();
+        long offset = start;
+        while (offset + 8 <= end) {
+            long size = file.getInt((int) offset) & 0xffffffffL;
+            String type = new String(read(offset + 4, 4));
+            int headerSize = 8;
+            if (size == 1) {
+                size = file.getLong((int) offset + 8);
+                headerSize = 16;
+            } else if (size == 0) {
+                size = end - offset;
+            }
+            if (size < headerSize || offset + size > end) {
+                throw new IllegalStateException(String.format("box %s at %d of %dB is beyond %d",
+                    type, offset, size, end));
+            }
+            boxes.add(new Box(type, offset, size, headerSize));
+            offset += size;
+        }
+        return boxes;
+    }
+}
@@ -0,0 +1,127 @@
+package net.ossrs.yasea;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static net.ossrs.yasea.SrsMp4MuxerFragmentedTest.AUDIO_FRAME_SIZE;
+import static net.ossrs.yasea.SrsMp4MuxerFragmentedTest.FRAME_US;
+import static net.ossrs.yasea.SrsMp4MuxerFragmentedTest.GOP;
+import static net.ossrs.yasea.SrsMp4MuxerFragmentedTest.SPS;
+import static net.ossrs.yasea.SrsMp4MuxerFragmentedTest.audioFormat;
+import static net.ossrs.yasea.SrsMp4MuxerFragmentedTest.audioPts;
+import static net.ossrs.yasea.SrsMp4MuxerFragmentedTest.types;
+import static net.ossrs.yasea.SrsMp4MuxerFragmentedTest.videoFormat;
+import static net.ossrs.yasea.SrsMp4MuxerFragmentedTest.writeAudio;
+import static net.ossrs.yasea.SrsMp4MuxerFragmentedTest.writeAudioConfig;
+import static net.ossrs.yasea.SrsMp4MuxerFragmentedTest.writeVideo;
+import static net.ossrs.yasea.SrsMp4MuxerFragmentedTest.writeVideoConfig;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records samples which fill the write batches of the muxer by their bytes and by their
+ * buffers, in the middle of the GOPs, and checks that the sample tables point at each sample
+ * behind its length, and that the boxes follow each other up to the end of the file.
+ */
+public class SrsMp4MuxerBatchTest {
+
+    private File file;
+    private SrsMp4Muxer muxer;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("SrsMp4MuxerBatchTest", ".mp4");
+        muxer = new SrsMp4Muxer(new SrsMp4MuxerFragmentedTest.RecordHandler());
+    }
+
+    @After
+    public void tearDown() {
+        muxer.stop();
+        file.delete();
+    }
+
+    // The small frames of the first 6 GOPs fill the batches by their 256 buffers, two for a
+    // video sample and one for an audio one, then every 7th frame of 90KB fills them by their
+    // 256KB.
+    private static int videoFrameSize(int frame) {
+        return frame >= 6 * GOP && frame % 7 == 3 ? 90 * 1024 : 100 + frame;
+    }
+
+    @Test
+    public void pointsAtEachSampleAcrossTheBatches() throws IOException, InterruptedException {
+        int videoTrack = muxer.addTrack(videoFormat());
+        int audioTrack = muxer.addTrack(audioFormat());
+        writeVideoConfig(muxer, videoTrack, SPS);
+        writeAudioConfig(muxer, audioTrack);
+        assertTrue(muxer.record(file));
+
+        int frames = 12 * GOP;
+        int audioFrame = 0;
+        long bytes = 0;
+        for (int i = 0; i < frames; i++) {
+            writeVideo(muxer, videoTrack, i, videoFrameSize(i));
+            bytes += videoFrameSize(i);
+            while (audioPts(audioFrame) < (i + 1) * FRAME_US) {
+                writeAudio(muxer, audioTrack, audioFrame++);
+                bytes += AUDIO_FRAME_SIZE;
+            }
+            if (i % 32 == 0) {
+                // the writer keeps up, nothing is dropped.
+                Thread.sleep(5);
+            }
+        }
+        muxer.stop();
+        assertEquals(0, muxer.getDroppedFrames());
+
+        SrsMp4FileReader reader = new SrsMp4FileReader(file);
+        List<SrsMp4FileReader.Box> boxes = reader.boxes();
+        assertEquals(Arrays.asList("ftyp", "mdat", "moov"), types(boxes));
+        SrsMp4FileReader.Box mdat = boxes.get(1);
+        // the header of the mdat is 16 bytes, to grow to a large size.
+        assertEquals(16 + bytes, mdat.size);
+        assertEquals(reader.length(), boxes.get(2).end());
+
+        long[] sizes = reader.table(reader.track("vide"), "stsz");
+        for (int i = 0; i < frames; i++) {
+            assertEquals(videoFrameSize(i), sizes[i]);
+        }
+        assertSamples(reader, mdat, frames, audioFrame);
+    }
+
+    // Checks that the sample tables point at each sample as written by writeVideo and
+    // writeAudio, which fill the mdat up to its end.
+    static void assertSamples(SrsMp4FileReader reader, SrsMp4FileReader.Box mdat, int frames, int audioFrames)
+        throws IOException {
+        SrsMp4FileReader.Box video = reader.track("vide");
+        long[] sizes = reader.table(video, "stsz");
+        long[] offsets = reader.sampleOffsets(video);
+        assertEquals(frames, offsets.length);
+        long samplesEnd = 0;
+        for (int i = 0; i < frames; i++) {
+            // the start code is replaced by the length of the NAL, then its header.
+            assertEquals(sizes[i] - 4, reader.readInt(offsets[i]));
+            assertEquals(i % GOP == 0 ? 0x65 : 0x61, reader.read(offsets[i] + 4, 1)[0]);
+            assertEquals((byte) i, reader.read(offsets[i] + sizes[i] - 1, 1)[0]);
+            samplesEnd = Math.max(samplesEnd, offsets[i] + sizes[i]);
+        }
+
+        SrsMp4FileReader.Box audio = reader.track("soun");
+        sizes = reader.table(audio, "stsz");
+        offsets = reader.sampleOffsets(audio);
+        assertEquals(audioFrames, offsets.length);
+        for (int i = 0; i < audioFrames; i++) {
+            assertEquals(AUDIO_FRAME_SIZE, sizes[i]);
+            byte[] sample = reader.read(offsets[i], AUDIO_FRAME_SIZE);
+            assertEquals((byte) i, sample[0]);
+            assertEquals((byte) i, sample[AUDIO_FRAME_SIZE - 1]);
+            samplesEnd = Math.max(samplesEnd, offsets[i] + sizes[i]);
+        }
+        assertEquals(mdat.end(), samplesEnd);
+    }
+}
@@ -0,0 +1,124 @@
+package net.ossrs.yasea;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static net.ossrs.yasea.SrsMp4MuxerFragmentedTest.SPS;
+import static net.ossrs.yasea.SrsMp4MuxerFragmentedTest.videoFormat;
+import static net.ossrs.yasea.SrsMp4MuxerFragmentedTest.writeVideo;
+import static net.ossrs.yasea.SrsMp4MuxerFragmentedTest.writeVideoConfig;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Holds the writer of the muxer back, as a disk which can't keep up, until the frame cache
+ * or its byte cap fills, and checks the dropped frames and the restart of the video from the
+ * next key frame in the recorded file.
+ */
+public class SrsMp4MuxerDropTest {
+
+    private static final int FRAME_CACHE_SIZE = 256;
+
+    private File file;
+    private SrsMp4Muxer muxer;
+    private int videoTrack;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("SrsMp4MuxerDropTest", ".mp4");
+        muxer = new SrsMp4Muxer(new SrsMp4MuxerFragmentedTest.RecordHandler());
+        videoTrack = muxer.addTrack(videoFormat());
+        writeVideoConfig(muxer, videoTrack, SPS);
+        assertTrue(muxer.record(file));
+    }
+
+    @After
+    public void tearDown() {
+        muxer.stop();
+        file.delete();
+    }
+
+    private void writeFrames(int first, int end, int size) {
+        for (int i = first; i < end; i++) {
+            writeVideo(muxer, videoTrack, i, size);
+        }
+    }
+
+    // Lets the writer go and waits until it took the queued frames.
+    private void awaitWriter() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (muxer.getCachedFrames() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(0, muxer.getCachedFrames());
+    }
+
+    // The 1-based sync samples, from the stss.
+    private static long[] syncSamples(SrsMp4FileReader reader) {
+        return reader.table(reader.track("vide"), "stss");
+    }
+
+    // The frame number in each sample, in the order of the file.
+    private static int[] frameNumbers(SrsMp4FileReader reader) {
+        SrsMp4FileReader.Box trak = reader.track("vide");
+        long[] offsets = reader.sampleOffsets(trak);
+        int[] frames = new int[offsets.length];
+        for (int i = 0; i < offsets.length; i++) {
+            // after the length of the NAL and its header.
+            frames[i] = reader.read(offsets[i] + 5, 1)[0] & 0xff;
+        }
+        return frames;
+    }
+
+    @Test
+    public void dropsUntilAKeyFrameWhenTheFrameCacheFills() throws IOException, InterruptedException {
+        synchronized (muxer.writerLock) {
+            // the frames 256 to 289 find the cache full, the key frame 275 too.
+            writeFrames(0, 290, 1000);
+            assertEquals(FRAME_CACHE_SIZE, muxer.getCachedFrames());
+            assertEquals(34, muxer.getDroppedFrames());
+        }
+        awaitWriter();
+        // the cache is free again, the video waits for the key frame 300.
+        writeFrames(290, 350, 1000);
+        muxer.stop();
+        assertEquals(44, muxer.getDroppedFrames());
+
+        SrsMp4FileReader reader = new SrsMp4FileReader(file);
+        int[] frames = frameNumbers(reader);
+        assertEquals(FRAME_CACHE_SIZE + 50, frames.length);
+        for (int i = 0; i < frames.length; i++) {
+            assertEquals((i < FRAME_CACHE_SIZE ? i : i - FRAME_CACHE_SIZE + 300) & 0xff, frames[i]);
+        }
+        assertArrayEquals(new long[]{1, 26, 51, 76, 101, 126, 151, 176, 201, 226, 251, 257, 282},
+            syncSamples(reader));
+    }
+
+    @Test
+    public void dropsUntilAKeyFrameWhenTheCachedBytesFill() throws IOException, InterruptedException {
+        synchronized (muxer.writerLock) {
+            // the frames of 100KB take 128KB arrays, 128 of them fill the 16MB, the frames
+            // 128 to 199 are dropped, with the key frames 150 and 175.
+            writeFrames(0, 200, 100 * 1024);
+            assertEquals(128, muxer.getCachedFrames());
+            assertEquals(72, muxer.getDroppedFrames());
+        }
+        awaitWriter();
+        writeFrames(200, 230, 100 * 1024);
+        muxer.stop();
+        assertEquals(72, muxer.getDroppedFrames());
+
+        SrsMp4FileReader reader = new SrsMp4FileReader(file);
+        int[] frames = frameNumbers(reader);
+        assertEquals(128 + 30, frames.length);
+        for (int i = 0; i < frames.length; i++) {
+            assertEquals(i < 128 ? i : i - 128 + 200, frames[i]);
+        }
+        assertArrayEquals(new long[]{1, 26, 51, 76, 101, 126, 129, 154}, syncSamples(reader));
+    }
+}
@@ -0,0 +1,118 @@
+package net.ossrs.yasea;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static net.ossrs.yasea.SrsMp4MuxerFragmentedTest.FRAME_US;
+import static net.ossrs.yasea.SrsMp4MuxerFragmentedTest.SPS;
+import static net.ossrs.yasea.SrsMp4MuxerFragmentedTest.audioFormat;
+import static net.ossrs.yasea.SrsMp4MuxerFragmentedTest.audioPts;
+import static net.ossrs.yasea.SrsMp4MuxerFragmentedTest.types;
+import static net.ossrs.yasea.SrsMp4MuxerFragmentedTest.videoFormat;
+import static net.ossrs.yasea.SrsMp4MuxerFragmentedTest.writeAudio;
+import static net.ossrs.yasea.SrsMp4MuxerFragmentedTest.writeAudioConfig;
+import static net.ossrs.yasea.SrsMp4MuxerFragmentedTest.writeVideo;
+import static net.ossrs.yasea.SrsMp4MuxerFragmentedTest.writeVideoConfig;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records with the fast start, checks that the shifted chunk offsets point at the samples in
+ * the moved mdat, and that a move interrupted as by a crash is finished by resumeFastStart.
+ */
+public class SrsMp4MuxerFastStartTest {
+
+    private static final int FRAMES = 150;
+
+    private File file;
+    private SrsMp4Muxer muxer;
+    private int audioFrames;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("SrsMp4MuxerFastStartTest", ".mp4");
+        muxer = new SrsMp4Muxer(new SrsMp4MuxerFragmentedTest.RecordHandler());
+        muxer.setFastStart(true);
+    }
+
+    @After
+    public void tearDown() {
+        muxer.stop();
+        file.delete();
+    }
+
+    // The mdat is many times the moov, so it is moved by many chunks of the size of the moov.
+    private void record() throws InterruptedException {
+        int videoTrack = muxer.addTrack(videoFormat());
+        int audioTrack = muxer.addTrack(audioFormat());
+        writeVideoConfig(muxer, videoTrack, SPS);
+        writeAudioConfig(muxer, audioTrack);
+        assertTrue(muxer.record(file));
+
+        audioFrames = 0;
+        for (int i = 0; i < FRAMES; i++) {
+            writeVideo(muxer, videoTrack, i, 2000 + i * 7);
+            while (audioPts(audioFrames) < (i + 1) * FRAME_US) {
+                writeAudio(muxer, audioTrack, audioFrames++);
+            }
+            if (i % 32 == 0) {
+                // the writer keeps up, nothing is dropped.
+                Thread.sleep(5);
+            }
+        }
+        muxer.stop();
+        assertEquals(0, muxer.getDroppedFrames());
+    }
+
+    // The moov follows the ftyp, the moved mdat ends the file.
+    private void assertFastStart() throws IOException {
+        SrsMp4FileReader reader = new SrsMp4FileReader(file);
+        List<SrsMp4FileReader.Box> boxes = reader.boxes();
+        assertEquals(Arrays.asList("ftyp", "moov", "mdat"), types(boxes));
+        SrsMp4FileReader.Box mdat = boxes.get(2);
+        assertEquals(reader.length(), mdat.end());
+        SrsMp4MuxerBatchTest.assertSamples(reader, mdat, FRAMES, audioFrames);
+    }
+
+    @Test
+    public void pointsAtTheSamplesAfterTheShift() throws IOException, InterruptedException {
+        record();
+        assertFastStart();
+        assertFalse(SrsMp4Muxer.resumeFastStart(file));
+    }
+
+    @Test
+    public void playsWithTheMoovAtTheEndBeforeTheMove() throws IOException, InterruptedException {
+        muxer.fastStartChunkLimit = 0;
+        record();
+
+        // the free box the mdat moves into, the moov at the end and the journal.
+        SrsMp4FileReader reader = new SrsMp4FileReader(file);
+        List<SrsMp4FileReader.Box> boxes = reader.boxes();
+        assertEquals(Arrays.asList("ftyp", "mdat", "free", "moov", "free"), types(boxes));
+        assertEquals(boxes.get(2).size, reader.find("moov").size);
+        assertEquals(reader.length(), boxes.get(4).end());
+        SrsMp4MuxerBatchTest.assertSamples(reader, boxes.get(1), FRAMES, audioFrames);
+
+        assertTrue(SrsMp4Muxer.resumeFastStart(file));
+        assertFastStart();
+    }
+
+    @Test
+    public void resumesAnInterruptedMove() throws IOException, InterruptedException {
+        // the third chunk is moved but not saved in the journal, it is moved again.
+        muxer.fastStartChunkLimit = 3;
+        record();
+
+        assertTrue(SrsMp4Muxer.resumeFastStart(file));
+        assertFastStart();
+        assertFalse(SrsMp4Muxer.resumeFastStart(file));
+    }
+}
@@ -0,0 +1,432 @@
+package net.ossrs.yasea;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records fragmented files and reads their moofs back: the data offsets of the track runs
+ * from their moof, the decode times of the fragments one after the other, the fragments cut
+ * by the audio, and the mfra index.
+ */
+public class SrsMp4MuxerFragmentedTest {
+
+    static final int GOP = 25;
+    static final long FRAME_US = 40000;
+    static final int SAMPLE_RATE = 44100;
+    static final int VIDEO_TIMESCALE = 90000;
+    static final int FRAME_SIZE = 1000;
+    static final int AUDIO_FRAME_SIZE = 200;
+
+    static final byte[] SPS = {0x67, 0x42, (byte) 0xc0, 0x1f, (byte) 0xda, 0x01};
+    static final byte[] PPS = {0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+
+    // The fragments start at each key frame.
+    private static final int FRAGMENT_MS = 1000;
+
+    private File file;
+    private RecordHandler handler;
+    private SrsMp4Muxer muxer;
+
+    /**
+     * A format read by the muxer, the one of the mockable android.jar holds nothing.
+     */
+    static class Format extends MediaFormat {
+        private final Map<String, Object> values = new HashMap<>();
+
+        @Override
+        public String getString(String name) {
+            return (String) values.get(name);
+        }
+
+        @Override
+        public int getInteger(String name) {
+            return (Integer) values.get(name);
+        }
+
+        @Override
+        public void setString(String name, String value) {
+            values.put(name, value);
+        }
+
+        @Override
+        public void setInteger(String name, int value) {
+            values.put(name, value);
+        }
+    }
+
+    /**
+     * Keeps the errors instead of posting them to a looper.
+     */
+    static class RecordHandler extends SrsRecordHandler {
+        final List<Exception> errors = new ArrayList<>();
+
+        RecordHandler() {
+            super(null);
+        }
+
+        @Override
+        public void notifyRecordPause() {
+        }
+
+        @Override
+        public void notifyRecordResume() {
+        }
+
+        @Override
+        public void notifyRecordStarted(String msg) {
+        }
+
+        @Override
+        public void notifyRecordFinished(String msg) {
+        }
+
+        @Override
+        public synchronized void notifyRecordIllegalArgumentException(IllegalArgumentException e) {
+            errors.add(e);
+        }
+
+        @Override
+        public synchronized void notifyRecordIOException(IOException e) {
+            errors.add(e);
+        }
+
+        synchronized List<Exception> getErrors() {
+            return new ArrayList<>(errors);
+        }
+    }
+
+    static MediaFormat videoFormat() {
+        Format format = new Format();
+        format.setString(MediaFormat.KEY_MIME, SrsEncoder.VCODEC);
+        format.setInteger(MediaFormat.KEY_WIDTH, 640);
+        format.setInteger(MediaFormat.KEY_HEIGHT, 360);
+        return format;
+    }
+
+    static MediaFormat audioFormat() {
+        Format format = new Format();
+        format.setString(MediaFormat.KEY_MIME, SrsEncoder.ACODEC);
+        format.setInteger(MediaFormat.KEY_SAMPLE_RATE, SAMPLE_RATE);
+        format.setInteger(MediaFormat.KEY_CHANNEL_COUNT, 2);
+        return format;
+    }
+
+    static long audioPts(int frame) {
+        return frame * 1024 * 1000000L / SAMPLE_RATE;
+    }
+
+    private static void write(SrsMp4Muxer muxer, int track, ByteBuffer bb, long ptsUs, int flags) {
+        MediaCodec.BufferInfo bi = new MediaCodec.BufferInfo();
+        bi.offset = 0;
+        bi.size = bb.remaining();
+        bi.presentationTimeUs = ptsUs;
+        bi.flags = flags;
+        muxer.writeSampleData(track, bb, bi);
+    }
+
+    // The SPS and the PPS, output by the encoder before the frames.
+    static void writeVideoConfig(SrsMp4Muxer muxer, int track, byte[] sps) {
+        ByteBuffer bb = ByteBuffer.allocate(8 + sps.length + PPS.length);
+        bb.put(new byte[]{0, 0, 0, 1}).put(sps);
+        bb.put(new byte[]{0, 0, 0, 1}).put(PPS);
+        bb.flip();
+        write(muxer, track, bb, 0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+    }
+
+    // An IDR slice every GOP frames, the byte after the NAL header is the frame number.
+    static void writeVideo(SrsMp4Muxer muxer, int track, int frame, int size) {
+        boolean keyFrame = frame % GOP == 0;
+        ByteBuffer bb = ByteBuffer.allocate(size);
+        bb.put(new byte[]{0, 0, 0, 1});
+        bb.put((byte) (keyFrame ? 0x65 : 0x61));
+        while (bb.hasRemaining()) {
+            bb.put((byte) frame);
+        }
+        bb.flip();
+        write(muxer, track, bb, frame * FRAME_US, keyFrame ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0);
+    }
+
+    // The AudioSpecificConfig, output by the encoder before the frames.
+    static void writeAudioConfig(SrsMp4Muxer muxer, int track) {
+        write(muxer, track, ByteBuffer.wrap(new byte[]{0x12, 0x10}), 0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+    }
+
+    // The bytes of an AAC frame are its number.
+    static void writeAudio(SrsMp4Muxer muxer, int track, int frame) {
+        byte[] data = new byte[AUDIO_FRAME_SIZE];
+        Arrays.fill(data, (byte) frame);
+        write(muxer, track, ByteBuffer.wrap(data), audioPts(frame), 0);
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("SrsMp4MuxerFragmentedTest", ".mp4");
+        handler = new RecordHandler();
+        muxer = new SrsMp4Muxer(handler);
+        muxer.setFragmentedRecording(true, FRAGMENT_MS);
+    }
+
+    @After
+    public void tearDown() {
+        muxer.stop();
+        file.delete();
+    }
+
+    // Records the video frames from firstFrame with the audio frames in between, and returns the
+    // next audio frame.
+    private int recordAv(int videoTrack, int audioTrack, int firstFrame, int frames, int audioFrame) {
+        for (int i = firstFrame; i < firstFrame + frames; i++) {
+            writeVideo(muxer, videoTrack, i, i % GOP == 0 ? 2 * FRAME_SIZE : FRAME_SIZE);
+            while (audioPts(audioFrame) < (i + 1) * FRAME_US) {
+                writeAudio(muxer, audioTrack, audioFrame++);
+            }
+        }
+        return audioFrame;
+    }
+
+    @Test
+    public void writesFragmentsDecodableFromTheirMoof() throws IOException {
+        int videoTrack = muxer.addTrack(videoFormat());
+        int audioTrack = muxer.addTrack(audioFormat());
+        writeVideoConfig(muxer, videoTrack, SPS);
+        writeAudioConfig(muxer, audioTrack);
+        assertTrue(muxer.record(file));
+        int audioFrames = recordAv(videoTrack, audioTrack, 0, 3 * GOP, 0);
+        muxer.stop();
+        assertEquals(0, muxer.getDroppedFrames());
+        assertTrue(handler.getErrors().isEmpty());
+
+        SrsMp4FileReader reader = new SrsMp4FileReader(file);
+        List<SrsMp4FileReader.Box> boxes = reader.boxes();
+        assertEquals(Arrays.asList("ftyp", "moov", "moof", "mdat", "moof", "mdat", "moof", "mdat", "mfra"),
+            types(boxes));
+        int videoId = reader.trackId(reader.track("vide"));
+        int audioId = reader.trackId(reader.track("soun"));
+
+        int videoFrame = 0;
+        int audioFrame = 0;
+        long[] nextTime = new long[2];
+        for (int k = 0; k < 3; k++) {
+            SrsMp4FileReader.Box moof = boxes.get(2 + 2 * k);
+            SrsMp4FileReader.Box mdat = boxes.get(3 + 2 * k);
+            assertEquals(k + 1, reader.sequenceNumber(moof));
+
+            // the runs follow each other in the mdat, after the moof.
+            long dataOffset = moof.size + mdat.headerSize;
+            int trafNumber = 0;
+            for (SrsMp4FileReader.Box traf : reader.children(moof)) {
+                if (!traf.type.equals("traf")) {
+                    continue;
+                }
+                trafNumber++;
+                int[] tfhd = reader.trackFragmentHeader(traf);
+                assertEquals(0x20000, tfhd[1]);
+                boolean isVideo = tfhd[0] == videoId;
+                assertTrue(isVideo || tfhd[0] == audioId);
+
+                SrsMp4FileReader.TrackRun trun = reader.trackRun(traf);
+                assertEquals(dataOffset, trun.dataOffset);
+                long time = reader.baseMediaDecodeTime(traf);
+                assertEquals(nextTime[isVideo ? 0 : 1], time);
+                nextTime[isVideo ? 0 : 1] = time + trun.duration();
+
+                long offset = moof.offset + trun.dataOffset;
+                for (int i = 0; i < trun.count(); i++) {
+                    if (isVideo) {
+                        // the start code is replaced by the length of the NAL.
+                        assertEquals(trun.sizes[i] - 4, reader.readInt(offset));
+                        assertEquals(videoFrame % GOP == 0, trun.isSync(i));
+                        assertEquals((byte) videoFrame, reader.read(offset + 5, 1)[0]);
+                        assertEquals(FRAME_US * VIDEO_TIMESCALE / 1000000, trun.durations[i]);
+                        videoFrame++;
+                    } else {
+                        assertEquals(AUDIO_FRAME_SIZE, trun.sizes[i]);
+                        assertEquals((byte) audioFrame, reader.read(offset, 1)[0]);
+                        assertEquals(1024, trun.durations[i]);
+                        audioFrame++;
+                    }
+                    offset += trun.sizes[i];
+                }
+                dataOffset += trun.dataSize();
+
+                // each fragment starts at a key frame, and is indexed by the mfra.
+                SrsMp4FileReader.RandomAccessEntry entry =
+                    reader.randomAccessEntries(tfhd[0]).get(k);
+                assertEquals(time, entry.time);
+                assertEquals(moof.offset, entry.moofOffset);
+                assertEquals(trafNumber, entry.trafNumber);
+                assertEquals(1, entry.trunNumber);
+                assertEquals(1, entry.sampleNumber);
+            }
+            assertEquals(2, trafNumber);
+            assertEquals(mdat.size, dataOffset - moof.size);
+        }
+        assertEquals(3 * GOP, videoFrame);
+        assertEquals(audioFrames, audioFrame);
+        assertEquals(3 * GOP * FRAME_US * VIDEO_TIMESCALE / 1000000, nextTime[0]);
+        assertEquals(3, reader.randomAccessEntries(videoId).size());
+        assertEquals(3, reader.randomAccessEntries(audioId).size());
+        assertMfro(reader);
+    }
+
+    @Test
+    public void cutsTheFragmentsOfTheAudioWithoutVideo() throws IOException {
+        int audioTrack = muxer.addTrack(audioFormat());
+        writeAudioConfig(muxer, audioTrack);
+        assertTrue(muxer.record(file));
+        for (int i = 0; i < 150; i++) {
+            writeAudio(muxer, audioTrack, i);
+        }
+        muxer.stop();
+        assertEquals(0, muxer.getDroppedFrames());
+
+        // 44 frames are the first to last a second.
+        SrsMp4FileReader reader = new SrsMp4FileReader(file);
+        List<SrsMp4FileReader.Box> moofs = reader.boxes("moof");
+        int[] counts = new int[moofs.size()];
+        for (int k = 0; k < moofs.size(); k++) {
+            SrsMp4FileReader.Box traf = reader.find(moofs.get(k), "traf");
+            assertEquals(44L * 1024 * k, reader.baseMediaDecodeTime(traf));
+            counts[k] = reader.trackRun(traf).count();
+        }
+        assertArrayEquals(new int[]{44, 44, 44, 18}, counts);
+
+        List<SrsMp4FileReader.RandomAccessEntry> entries =
+            reader.randomAccessEntries(reader.trackId(reader.track("soun")));
+        assertEquals(moofs.size(), entries.size());
+        for (int k = 0; k < moofs.size(); k++) {
+            assertEquals(44L * 1024 * k, entries.get(k).time);
+            assertEquals(moofs.get(k).offset, entries.get(k).moofOffset);
+        }
+        assertMfro(reader);
+    }
+
+    @Test
+    public void cutsTheFragmentsOfTheAudioWhenTheVideoStops() throws IOException, InterruptedException {
+        int videoTrack = muxer.addTrack(videoFormat());
+        int audioTrack = muxer.addTrack(audioFormat());
+        writeVideoConfig(muxer, videoTrack, SPS);
+        writeAudioConfig(muxer, audioTrack);
+        assertTrue(muxer.record(file));
+        int audioFrame = recordAv(videoTrack, audioTrack, 0, GOP, 0);
+        // 12 seconds of audio alone, paced so the frame cache never fills.
+        for (; audioPts(audioFrame) < 13000000; audioFrame++) {
+            writeAudio(muxer, audioTrack, audioFrame);
+            if (audioFrame % 64 == 0) {
+                Thread.sleep(20);
+            }
+        }
+        muxer.stop();
+        assertEquals(0, muxer.getDroppedFrames());
+
+        // the first fragment lasts 10 seconds from the key frame, the audio cuts the next.
+        SrsMp4FileReader reader = new SrsMp4FileReader(file);
+        List<SrsMp4FileReader.Box> moofs = reader.boxes("moof");
+        assertEquals(2, moofs.size());
+        assertEquals(2, reader.children(moofs.get(0)).size() - 1);
+        assertEquals(1, reader.children(moofs.get(1)).size() - 1);
+        int audioId = reader.trackId(reader.track("soun"));
+        SrsMp4FileReader.Box traf = reader.find(moofs.get(1), "traf");
+        assertEquals(audioId, reader.trackFragmentHeader(traf)[0]);
+        // 431 frames are the first to last 10 seconds.
+        assertEquals(431L * 1024, reader.baseMediaDecodeTime(traf));
+        assertEquals(audioFrame - 431, reader.trackRun(traf).count());
+
+        // the second fragment has no video key frame.
+        assertEquals(1, reader.randomAccessEntries(reader.trackId(reader.track("vide"))).size());
+        assertEquals(2, reader.randomAccessEntries(audioId).size());
+    }
+
+    @Test
+    public void stopsWhenTheParameterSetsChangeAfterTheMoov() throws IOException {
+        int videoTrack = muxer.addTrack(videoFormat());
+        int audioTrack = muxer.addTrack(audioFormat());
+        writeVideoConfig(muxer, videoTrack, SPS);
+        writeAudioConfig(muxer, audioTrack);
+        assertTrue(muxer.record(file));
+        int audioFrame = recordAv(videoTrack, audioTrack, 0, 2 * GOP, 0);
+
+        // a new level, from the frame 50.
+        byte[] sps = SPS.clone();
+        sps[3] = 0x28;
+        writeVideoConfig(muxer, videoTrack, sps);
+        recordAv(videoTrack, audioTrack, 2 * GOP, GOP, audioFrame);
+        muxer.stop();
+
+        List<Exception> errors = handler.getErrors();
+        assertEquals(1, errors.size());
+        assertTrue(errors.get(0) instanceof IllegalArgumentException);
+
+        // the file ends with the frames of the previous parameter sets, described by the moov.
+        SrsMp4FileReader reader = new SrsMp4FileReader(file);
+        assertEquals(Arrays.asList("ftyp", "moov", "moof", "mdat", "moof", "mdat", "mfra"),
+            types(reader.boxes()));
+        SrsMp4FileReader.Box stsd = reader.find(reader.track("vide"), "mdia/minf/stbl/stsd");
+        assertNotNull(stsd);
+        assertTrue(indexOf(reader.read(stsd.offset, (int) stsd.size), SPS) > 0);
+        assertFalse(indexOf(reader.read(stsd.offset, (int) stsd.size), sps) > 0);
+
+        int videoId = reader.trackId(reader.track("vide"));
+        int videoFrames = 0;
+        int audioFrames = 0;
+        for (SrsMp4FileReader.Box moof : reader.boxes("moof")) {
+            for (SrsMp4FileReader.Box traf : reader.children(moof)) {
+                if (traf.type.equals("traf")) {
+                    int count = reader.trackRun(traf).count();
+                    if (reader.trackFragmentHeader(traf)[0] == videoId) {
+                        videoFrames += count;
+                    } else {
+                        audioFrames += count;
+                    }
+                }
+            }
+        }
+        assertEquals(2 * GOP, videoFrames);
+        assertEquals(audioFrame, audioFrames);
+        assertMfro(reader);
+    }
+
+    static List<String> types(List<SrsMp4FileReader.Box> boxes) {
+        List<String> types = new ArrayList<>();
+        for (SrsMp4FileReader.Box box : boxes) {
+            types.add(box.type);
+        }
+        return types;
+    }
+
+    private static int indexOf(byte[] bytes, byte[] pattern) {
+        for (int i = 0; i + pattern.length <= bytes.length; i++) {
+            if (Arrays.equals(Arrays.copyOfRange(bytes, i, i + pattern.length), pattern)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // The mfro at the end of the file gives the size of the mfra.
+    private static void assertMfro(SrsMp4FileReader reader) {
+        SrsMp4FileReader.Box mfra = reader.find("mfra");
+        assertEquals(reader.length(), mfra.end());
+        assertEquals(mfra.size, reader.readInt(reader.length() - 4));
+        assertEquals("mfro", new String(reader.read(reader.length() - 16 + 4, 4)));
+    }
+}
@@ -0,0 +1,103 @@
+package net.ossrs.yasea;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Copies encoded samples out of a direct codec buffer into heap arrays, as the muxer stages
+ * them, or into direct buffers, then writes them by batches of 256KB with one gathering write,
+ * each behind its 4 bytes length. Prints the throughput of the copy and of the write, on tmpfs
+ * when there is one so the disk doesn't hide the copies.
+ */
+public class SrsMp4SampleBatchBenchmark {
+
+    private static final int SAMPLE_SIZE = 8 * 1024;
+    private static final int SAMPLES_PER_BATCH = 32;
+    private static final int BATCHES = 256;
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int ROUNDS = 10;
+
+    static File tmpfsFile(String prefix) throws IOException {
+        File shm = new File("/dev/shm");
+        return File.createTempFile(prefix, ".mp4", shm.isDirectory() ? shm : null);
+    }
+
+    private static String measure(FileChannel fc, boolean direct) throws IOException {
+        byte[] sample = new byte[SAMPLE_SIZE];
+        new Random(SAMPLE_SIZE).nextBytes(sample);
+        ByteBuffer codec = ByteBuffer.allocateDirect(SAMPLE_SIZE);
+        codec.put(sample);
+
+        ByteBuffer[] samples = new ByteBuffer[SAMPLES_PER_BATCH];
+        ByteBuffer[] buffers = new ByteBuffer[SAMPLES_PER_BATCH * 2];
+        for (int i = 0; i < SAMPLES_PER_BATCH; i++) {
+            samples[i] = direct ? ByteBuffer.allocateDirect(SAMPLE_SIZE) : ByteBuffer.allocate(SAMPLE_SIZE);
+            buffers[i * 2] = ByteBuffer.allocate(4);
+            buffers[i * 2 + 1] = samples[i];
+        }
+
+        long copyNanos = 0;
+        long writeNanos = 0;
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+            if (round == WARMUP_ROUNDS) {
+                copyNanos = 0;
+                writeNanos = 0;
+            }
+            fc.position(0);
+            for (int batch = 0; batch < BATCHES; batch++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < SAMPLES_PER_BATCH; i++) {
+                    codec.clear();
+                    samples[i].clear();
+                    samples[i].put(codec);
+                    samples[i].flip();
+                    buffers[i * 2].clear();
+                    buffers[i * 2].putInt(SAMPLE_SIZE - 4).flip();
+                }
+                long copied = System.nanoTime();
+                long remaining = (SAMPLE_SIZE + 4L) * SAMPLES_PER_BATCH;
+                while (remaining > 0) {
+                    remaining -= fc.write(buffers);
+                }
+                writeNanos += System.nanoTime() - copied;
+                copyNanos += copied - start;
+            }
+        }
+        assertEquals((SAMPLE_SIZE + 4L) * SAMPLES_PER_BATCH * BATCHES, fc.position());
+
+        long bytes = (long) SAMPLE_SIZE * SAMPLES_PER_BATCH * BATCHES * ROUNDS;
+        return String.format("%s: copy %.0f MB/s, gathering write %.0f MB/s, %.0f us per 256KB batch",
+            direct ? "direct" : "heap", mbps(bytes, copyNanos), mbps(bytes, writeNanos),
+            (copyNanos + writeNanos) / 1000.0 / BATCHES / ROUNDS);
+    }
+
+    private static double mbps(long bytes, long elapsedNanos) {
+        return (double) bytes / elapsedNanos * 1e9 / (1024 * 1024);
+    }
+
+    @Test
+    public void writesBatchesOfHeapOrDirectSamples() throws IOException {
+        File file = tmpfsFile("SrsMp4SampleBatchBenchmark");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel fc = raf.getChannel();
+            System.out.println(file.getParent() + ", " + SAMPLE_SIZE / 1024 + "KB samples");
+            // each twice, the first ones also warm up the other path.
+            for (int i = 0; i < 2; i++) {
+                System.out.println(measure(fc, false));
+                System.out.println(measure(fc, true));
+            }
+        } finally {
+            raf.close();
+            file.delete();
+        }
+    }
+}
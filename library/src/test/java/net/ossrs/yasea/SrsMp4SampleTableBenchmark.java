@@ -0,0 +1,138 @@
+package net.ossrs.yasea;
+
+import com.coremedia.iso.boxes.Box;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Fills the sample tables of an hour and of four hours of a 30fps video and a 44.1kHz AAC
+ * audio, interleaved in the file as the muxer writes them, so almost each sample is a chunk
+ * of its own. Prints the heap the tables hold, the time to add a sample, and the time to
+ * write their boxes as finishMovie does.
+ */
+public class SrsMp4SampleTableBenchmark {
+
+    private static final int FPS = 30;
+    private static final int GOP = 60;
+    private static final int SAMPLE_RATE = 44100;
+    private static final int FINISH_ROUNDS = 5;
+
+    // Counts the bytes written, as the moov would hold them.
+    private static class CountingChannel implements WritableByteChannel {
+        long bytes;
+
+        @Override
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            src.position(src.limit());
+            bytes += n;
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // Adds the samples of the duration to the tables in the order of their decoding times.
+    private static long fill(SrsMp4SampleTable video, SrsMp4SampleTable audio, int seconds) {
+        Random random = new Random(seconds);
+        long videoFrames = (long) seconds * FPS;
+        long audioFrames = (long) seconds * SAMPLE_RATE / 1024;
+        long offset = 48;
+        long v = 0;
+        long a = 0;
+        while (v < videoFrames || a < audioFrames) {
+            // the frames are compared at their times in us.
+            boolean isVideo = a >= audioFrames
+                || (v < videoFrames && v * 1000000 / FPS <= a * 1024 * 1000000 / SAMPLE_RATE);
+            if (isVideo) {
+                boolean key = v % GOP == 0;
+                int size = key ? 60000 + random.nextInt(10000) : 6000 + random.nextInt(4000);
+                if (v > 0) {
+                    video.addDuration(3000);
+                }
+                video.addSample(offset, size, key, 0);
+                offset += size;
+                v++;
+            } else {
+                int size = 300 + random.nextInt(100);
+                if (a > 0) {
+                    audio.addDuration(1024);
+                }
+                audio.addSample(offset, size, false, 0);
+                offset += size;
+                a++;
+            }
+        }
+        return v + a;
+    }
+
+    private static long writeBoxes(SrsMp4SampleTable table, CountingChannel channel) throws IOException {
+        Box[] boxes = {table.createStts(), table.createCtts(), table.createStss(),
+            table.createStsc(), table.createStsz(), table.createStco()};
+        long bytes = 0;
+        for (Box box : boxes) {
+            if (box != null) {
+                box.getBox(channel);
+                bytes += box.getSize();
+            }
+        }
+        return bytes;
+    }
+
+    private static void measure(String name, int seconds) throws IOException {
+        long before = usedHeap();
+        long start = System.nanoTime();
+        SrsMp4SampleTable video = new SrsMp4SampleTable(3000);
+        SrsMp4SampleTable audio = new SrsMp4SampleTable(1024);
+        long samples = fill(video, audio, seconds);
+        long fillNanos = System.nanoTime() - start;
+        long retained = usedHeap() - before;
+
+        long finishNanos = Long.MAX_VALUE;
+        long bytes = 0;
+        for (int i = 0; i < FINISH_ROUNDS; i++) {
+            CountingChannel channel = new CountingChannel();
+            start = System.nanoTime();
+            bytes = writeBoxes(video, channel) + writeBoxes(audio, channel);
+            finishNanos = Math.min(finishNanos, System.nanoTime() - start);
+            assertEquals(bytes, channel.bytes);
+        }
+        System.out.println(String.format("%s: %d samples, %.1f MB of tables in the heap (%.1f bytes per sample), "
+                + "%.0f ns per sample added, boxes of %.1f MB written in %.1f ms",
+            name, samples, retained / 1048576.0, (double) retained / samples, (double) fillNanos / samples,
+            bytes / 1048576.0, finishNanos / 1e6));
+        // the tables are kept until here.
+        assertEquals(seconds * FPS, video.getSampleCount());
+        assertEquals(seconds * SAMPLE_RATE / 1024, audio.getSampleCount());
+    }
+
+    @Test
+    public void fillsAndWritesTheTablesOfLongRecordings() throws IOException {
+        // the first one warms up.
+        measure("10 minutes", 600);
+        measure("1 hour", 3600);
+        measure("4 hours", 4 * 3600);
+    }
+}
@@ -0,0 +1,142 @@
+package net.ossrs.yasea;
+
+import com.coremedia.iso.boxes.Box;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Writes the boxes of the sample table and decodes them back.
+ */
+public class SrsMp4SampleTableTest {
+
+    private static final long LAST_DURATION = 3015;
+
+    // Writes the box, checks its type and decodes its entries.
+    static long[] decode(Box box, String type) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        box.getBox(Channels.newChannel(out));
+        assertEquals(box.getSize(), out.size());
+        SrsMp4FileReader reader = new SrsMp4FileReader(ByteBuffer.wrap(out.toByteArray()));
+        SrsMp4FileReader.Box decoded = reader.boxes().get(0);
+        assertEquals(type, decoded.type);
+        return reader.table(decoded);
+    }
+
+    // Adds the samples one after the other in the file from the offset, with a duration.
+    private static long addSamples(SrsMp4SampleTable table, long offset, int count, int size, long duration) {
+        for (int i = 0; i < count; i++) {
+            if (table.getSampleCount() > 0) {
+                table.addDuration(duration);
+            }
+            table.addSample(offset, size, false, 0);
+            offset += size;
+        }
+        return offset;
+    }
+
+    @Test
+    public void countsTheLastSampleInTheLastDurationRun() throws IOException {
+        SrsMp4SampleTable table = new SrsMp4SampleTable(LAST_DURATION);
+        addSamples(table, 0, 4, 10, LAST_DURATION);
+        assertArrayEquals(new long[]{4, LAST_DURATION}, decode(table.createStts(), "stts"));
+    }
+
+    @Test
+    public void addsARunForTheLastSampleOfAnotherDuration() throws IOException {
+        SrsMp4SampleTable table = new SrsMp4SampleTable(LAST_DURATION);
+        long offset = addSamples(table, 0, 3, 10, 3000);
+        addSamples(table, offset, 2, 10, 3030);
+        // the duration of a sample is added with the next one, 2 of 3000, 2 of 3030 and the
+        // last one.
+        assertArrayEquals(new long[]{2, 3000, 2, 3030, 1, LAST_DURATION}, decode(table.createStts(), "stts"));
+    }
+
+    @Test
+    public void writesTheLastDurationOfASingleSample() throws IOException {
+        SrsMp4SampleTable table = new SrsMp4SampleTable(LAST_DURATION);
+        assertArrayEquals(new long[0], decode(table.createStts(), "stts"));
+        table.addSample(100, 10, true, 0);
+        assertArrayEquals(new long[]{1, LAST_DURATION}, decode(table.createStts(), "stts"));
+    }
+
+    @Test
+    public void writesTheCompositionOffsetsAndTheSyncSamples() throws IOException {
+        SrsMp4SampleTable table = new SrsMp4SampleTable(LAST_DURATION);
+        table.addSample(0, 10, false, 0);
+        assertNull(table.createCtts());
+        assertNull(table.createStss());
+
+        int[] offsets = {6030, 6030, 0, 3015};
+        for (int i = 0; i < offsets.length; i++) {
+            table.addDuration(3015);
+            table.addSample(10 + i * 10, 10, i == 1, offsets[i]);
+        }
+        assertArrayEquals(new long[]{1, 0, 2, 6030, 1, 0, 1, 3015}, decode(table.createCtts(), "ctts"));
+        assertArrayEquals(new long[]{3}, decode(table.createStss(), "stss"));
+        assertArrayEquals(new long[]{10, 10, 10, 10, 10}, decode(table.createStsz(), "stsz"));
+    }
+
+    @Test
+    public void mergesTheChunksOfAsManySamples() throws IOException {
+        SrsMp4SampleTable table = new SrsMp4SampleTable(LAST_DURATION);
+        // chunks of 3, 3, 3, 2, 2 and 5 samples, apart in the file.
+        int[] chunks = {3, 3, 3, 2, 2, 5};
+        long offset = 1000;
+        long[] chunkOffsets = new long[chunks.length];
+        for (int i = 0; i < chunks.length; i++) {
+            chunkOffsets[i] = offset;
+            offset = addSamples(table, offset, chunks[i], 100, 1024) + 500;
+        }
+        assertArrayEquals(new long[]{1, 3, 1, 4, 2, 1, 6, 5, 1}, decode(table.createStsc(), "stsc"));
+        assertArrayEquals(chunkOffsets, decode(table.createStco(), "stco"));
+
+        // the open chunk was written as a run of its own, more samples replace it.
+        addSamples(table, offset - 500, 1, 100, 1024);
+        assertArrayEquals(new long[]{1, 3, 1, 4, 2, 1, 6, 6, 1}, decode(table.createStsc(), "stsc"));
+
+        // the next chunk of 6 samples is counted in the run of the previous one.
+        addSamples(table, offset + 500, 6, 100, 1024);
+        assertArrayEquals(new long[]{1, 3, 1, 4, 2, 1, 6, 6, 1}, decode(table.createStsc(), "stsc"));
+        assertEquals(7, decode(table.createStco(), "stco").length);
+        assertEquals(3 + 3 + 3 + 2 + 2 + 6 + 6, decode(table.createStsz(), "stsz").length);
+    }
+
+    @Test
+    public void switchesToCo64BeyondFourGigabytes() throws IOException {
+        SrsMp4SampleTable table = new SrsMp4SampleTable(LAST_DURATION);
+        table.addSample(0xfffffff0L, 16, true, 0);
+        assertArrayEquals(new long[]{0xfffffff0L}, decode(table.createStco(), "stco"));
+
+        // the second chunk starts at 4GB.
+        table.addDuration(1024);
+        table.addSample(0x100000000L + 100, 16, false, 0);
+        assertArrayEquals(new long[]{0xfffffff0L, 0x100000000L + 100}, decode(table.createStco(), "co64"));
+    }
+
+    @Test
+    public void shiftsTheChunkOffsets() throws IOException {
+        SrsMp4SampleTable table = new SrsMp4SampleTable(LAST_DURATION);
+        table.addSample(40, 16, true, 0);
+        table.addDuration(1024);
+        table.addSample(100, 16, false, 0);
+        table.setChunkOffsetShift(1000);
+        assertArrayEquals(new long[]{1040, 1100}, decode(table.createStco(), "stco"));
+
+        // the shift moves the last chunk beyond 4GB.
+        table.setChunkOffsetShift(0xffffffffL - 90);
+        assertArrayEquals(new long[]{0xffffffffL - 50, 0xffffffffL + 10}, decode(table.createStco(), "co64"));
+
+        table.clear();
+        table.addSample(40, 16, true, 0);
+        assertArrayEquals(new long[]{40}, decode(table.createStco(), "stco"));
+    }
+}
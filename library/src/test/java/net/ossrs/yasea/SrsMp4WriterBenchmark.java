@@ -0,0 +1,174 @@
+package net.ossrs.yasea;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static net.ossrs.yasea.SrsMp4MuxerFragmentedTest.AUDIO_FRAME_SIZE;
+import static net.ossrs.yasea.SrsMp4MuxerFragmentedTest.FRAME_US;
+import static net.ossrs.yasea.SrsMp4MuxerFragmentedTest.GOP;
+import static net.ossrs.yasea.SrsMp4MuxerFragmentedTest.SPS;
+import static net.ossrs.yasea.SrsMp4MuxerFragmentedTest.audioFormat;
+import static net.ossrs.yasea.SrsMp4MuxerFragmentedTest.audioPts;
+import static net.ossrs.yasea.SrsMp4MuxerFragmentedTest.videoFormat;
+import static net.ossrs.yasea.SrsMp4MuxerFragmentedTest.writeAudio;
+import static net.ossrs.yasea.SrsMp4MuxerFragmentedTest.writeAudioConfig;
+import static net.ossrs.yasea.SrsMp4MuxerFragmentedTest.writeVideo;
+import static net.ossrs.yasea.SrsMp4MuxerFragmentedTest.writeVideoConfig;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Records a minute of a 25fps video of about 4Mbps and of an AAC audio on tmpfs, with the
+ * muxer and with a write per sample as the muxer did before its batches, and prints the write
+ * syscalls and the CPU time of the writing thread per second of media. The syscalls are read
+ * from /proc/self/io, on Linux.
+ */
+public class SrsMp4WriterBenchmark {
+
+    private static final int SECONDS = 60;
+    private static final int KEY_FRAME_SIZE = 60 * 1024;
+    private static final int FRAME_SIZE = 18 * 1024;
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    // The write syscalls of the process so far, -1 when they are not known.
+    private static long writeSyscalls() {
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader("/proc/self/io"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("syscw:")) {
+                        return Long.parseLong(line.substring(6).trim());
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            // not on Linux.
+        }
+        return -1;
+    }
+
+    private static int frameSize(int frame) {
+        return frame % GOP == 0 ? KEY_FRAME_SIZE : FRAME_SIZE;
+    }
+
+    private static Thread findThread(String name) {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals(name)) {
+                return thread;
+            }
+        }
+        return null;
+    }
+
+    private static String result(String name, long syscalls, long cpuNanos, long bytes) {
+        return String.format("%s: %s write syscalls/s, %.2f ms of writer CPU/s, %.1f MB",
+            name, syscalls < 0 ? "n/a" : String.format("%.1f", (double) syscalls / SECONDS),
+            cpuNanos / 1e6 / SECONDS, bytes / 1048576.0);
+    }
+
+    private static String measureMuxer(File file) throws IOException, InterruptedException {
+        SrsMp4Muxer muxer = new SrsMp4Muxer(new SrsMp4MuxerFragmentedTest.RecordHandler());
+        int videoTrack = muxer.addTrack(videoFormat());
+        int audioTrack = muxer.addTrack(audioFormat());
+        writeVideoConfig(muxer, videoTrack, SPS);
+        writeAudioConfig(muxer, audioTrack);
+        muxer.record(file);
+        Thread writer = findThread("SrsMp4Writer");
+        assertNotNull(writer);
+
+        long syscalls = writeSyscalls();
+        long cpu = threads.getThreadCpuTime(writer.getId());
+        int audioFrame = 0;
+        for (int i = 0; i < SECONDS * 1000000L / FRAME_US; i++) {
+            writeVideo(muxer, videoTrack, i, frameSize(i));
+            while (audioPts(audioFrame) < (i + 1) * FRAME_US) {
+                writeAudio(muxer, audioTrack, audioFrame++);
+            }
+            // faster than real time, as long as the writer keeps up.
+            while (muxer.getCachedFrames() > 64) {
+                Thread.sleep(1);
+            }
+        }
+        while (muxer.getCachedFrames() > 0) {
+            Thread.sleep(1);
+        }
+        // the last batch is written when it waited long enough.
+        Thread.sleep(300);
+        cpu = threads.getThreadCpuTime(writer.getId()) - cpu;
+        syscalls = syscalls < 0 ? -1 : writeSyscalls() - syscalls;
+        muxer.stop();
+        assertEquals(0, muxer.getDroppedFrames());
+        return result("muxer, batched", syscalls, cpu, file.length());
+    }
+
+    // The samples as they are written in the mdat, a video one behind its length.
+    private static List<ByteBuffer> samples() {
+        List<ByteBuffer> samples = new ArrayList<>();
+        int audioFrame = 0;
+        for (int i = 0; i < SECONDS * 1000000L / FRAME_US; i++) {
+            ByteBuffer bb = ByteBuffer.allocate(frameSize(i));
+            bb.putInt(frameSize(i) - 4);
+            bb.put((byte) (i % GOP == 0 ? 0x65 : 0x61));
+            while (bb.hasRemaining()) {
+                bb.put((byte) i);
+            }
+            bb.flip();
+            samples.add(bb);
+            while (audioPts(audioFrame) < (i + 1) * FRAME_US) {
+                samples.add(ByteBuffer.allocate(AUDIO_FRAME_SIZE));
+                audioFrame++;
+            }
+        }
+        return samples;
+    }
+
+    private static String measurePerSample(File file) throws IOException {
+        List<ByteBuffer> samples = samples();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel fc = raf.getChannel();
+            long syscalls = writeSyscalls();
+            long cpu = threads.getCurrentThreadCpuTime();
+            for (ByteBuffer sample : samples) {
+                while (sample.hasRemaining()) {
+                    fc.write(sample);
+                }
+            }
+            cpu = threads.getCurrentThreadCpuTime() - cpu;
+            syscalls = syscalls < 0 ? -1 : writeSyscalls() - syscalls;
+            return result("write per sample", syscalls, cpu, fc.size());
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void writesAMinuteOfMedia() throws IOException, InterruptedException {
+        File file = SrsMp4SampleBatchBenchmark.tmpfsFile("SrsMp4WriterBenchmark");
+        try {
+            System.out.println(file.getParent() + ", " + SECONDS + "s of media");
+            // each twice, the first ones warm up.
+            for (int i = 0; i < 2; i++) {
+                System.out.println(measurePerSample(file));
+                System.out.println(measureMuxer(file));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package net.ossrs.yasea;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Splits access units of random slices with the scanner and with the byte by byte search
+ * of SrsNaluScannerTest, in heap and direct buffers, and prints the throughput.
+ */
+public class SrsNaluScannerBenchmark {
+
+    private static final int WARMUP_ROUNDS = 300;
+    private static final int ROUNDS = 1000;
+
+    /** An access unit of an SPS, a PPS and slices of random bytes with emulation prevention. */
+    private static byte[] accessUnit(int size, int slices, Random random) {
+        byte[] au = new byte[size];
+        int pos = 0;
+        byte[] headers = {0, 0, 0, 1, 0x67, 0x42, (byte) 0xc0, 0x1f, 0, 0, 0, 1, 0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+        System.arraycopy(headers, 0, au, 0, headers.length);
+        pos += headers.length;
+        int sliceSize = (size - pos) / slices;
+        for (int s = 0; s < slices; s++) {
+            int end = s == slices - 1 ? size : pos + sliceSize;
+            au[pos++] = 0;
+            au[pos++] = 0;
+            au[pos++] = 1;
+            au[pos++] = 0x65;
+            for (; pos < end; pos++) {
+                au[pos] = (byte) random.nextInt(256);
+                // 00 00 0x never occurs in a NAL unit, an encoder inserts 03.
+                if (pos >= 2 && au[pos - 1] == 0 && au[pos - 2] == 0 && (au[pos] & 0xff) <= 3) {
+                    au[pos] = 3;
+                }
+            }
+            // Not followed by a zero which would make a start code of the next 00 00 01.
+            au[end - 1] = 0x55;
+        }
+        return au;
+    }
+
+    private static ByteBuffer direct(byte[] bytes) {
+        ByteBuffer bb = ByteBuffer.allocateDirect(bytes.length);
+        bb.put(bytes);
+        bb.clear();
+        return bb;
+    }
+
+    private static double scannerMBps(ByteBuffer bb, int expected) {
+        SrsNaluScanner scanner = new SrsNaluScanner();
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            assertEquals(expected, scanner.scan(bb, 0, bb.limit()));
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            scanner.scan(bb, 0, bb.limit());
+        }
+        return mbps(bb.limit(), System.nanoTime() - start);
+    }
+
+    private static double splitterMBps(ByteBuffer bb, int expected) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            assertEquals(expected, SrsNaluScannerTest.split(bb, 0, bb.limit()).size());
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            SrsNaluScannerTest.split(bb, 0, bb.limit());
+        }
+        return mbps(bb.limit(), System.nanoTime() - start);
+    }
+
+    private static double mbps(int size, long elapsedNanos) {
+        return (double) size * ROUNDS / elapsedNanos * 1e9 / (1024 * 1024);
+    }
+
+    private static void measure(String name, int size, int slices) {
+        byte[] au = accessUnit(size, slices, new Random(size));
+        ByteBuffer heap = ByteBuffer.wrap(au);
+        ByteBuffer direct = direct(au);
+        int expected = 2 + slices;
+        System.out.println(String.format("%s heap: scanner %.0f MB/s, byte by byte %.0f MB/s", name,
+            scannerMBps(heap, expected), splitterMBps(heap, expected)));
+        System.out.println(String.format("%s direct: scanner %.0f MB/s, byte by byte %.0f MB/s", name,
+            scannerMBps(direct, expected), splitterMBps(direct, expected)));
+    }
+
+    @Test
+    public void splitsAccessUnits() {
+        measure("720p (150KB, 4 slices)", 150 * 1024, 4);
+        measure("1080p (400KB, 8 slices)", 400 * 1024, 8);
+    }
+}
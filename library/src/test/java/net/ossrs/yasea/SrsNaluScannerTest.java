@@ -0,0 +1,233 @@
+package net.ossrs.yasea;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks the NAL units found by the scanner against a naive byte by byte splitter, on
+ * crafted access units and on random bytes dense in start codes, in heap and direct buffers.
+ */
+public class SrsNaluScannerTest {
+
+    private static final byte[] START_CODE_3 = {0, 0, 1};
+    private static final byte[] START_CODE_4 = {0, 0, 0, 1};
+
+    /**
+     * The NAL units between the 00 00 01 start codes, without the zero bytes before the next
+     * one, as {offset, length, nal_unit_type}. Empty units are skipped.
+     */
+    static List<int[]> split(ByteBuffer bb, int offset, int limit) {
+        List<int[]> nalus = new ArrayList<>();
+        int start = -1;
+        for (int i = offset; i + 2 < limit; i++) {
+            if (bb.get(i) == 0 && bb.get(i + 1) == 0 && bb.get(i + 2) == 1) {
+                if (start >= 0) {
+                    add(nalus, bb, start, i);
+                }
+                start = i + 3;
+                i += 2;
+            }
+        }
+        if (start >= 0) {
+            add(nalus, bb, start, limit);
+        }
+        return nalus;
+    }
+
+    private static void add(List<int[]> nalus, ByteBuffer bb, int start, int end) {
+        while (end > start && bb.get(end - 1) == 0) {
+            end--;
+        }
+        if (end > start) {
+            nalus.add(new int[]{start, end - start, bb.get(start) & 0x1f});
+        }
+    }
+
+    private static ByteBuffer heap(byte[] bytes) {
+        return ByteBuffer.wrap(bytes);
+    }
+
+    private static ByteBuffer direct(byte[] bytes) {
+        ByteBuffer bb = ByteBuffer.allocateDirect(bytes.length);
+        bb.put(bytes);
+        bb.clear();
+        return bb;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int size = 0;
+        for (byte[] part : parts) {
+            size += part.length;
+        }
+        byte[] bytes = new byte[size];
+        int pos = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, bytes, pos, part.length);
+            pos += part.length;
+        }
+        return bytes;
+    }
+
+    /** A NAL unit of the type, without zero bytes. */
+    private static byte[] nalu(int type, int size) {
+        byte[] nalu = new byte[size];
+        nalu[0] = (byte) (0x60 | type);
+        for (int i = 1; i < size; i++) {
+            nalu[i] = (byte) (i % 251 + 1);
+        }
+        return nalu;
+    }
+
+    private static void assertScansLikeTheSplitter(ByteBuffer bb, int offset, int limit) {
+        SrsNaluScanner scanner = new SrsNaluScanner();
+        int position = bb.position();
+        int bufferLimit = bb.limit();
+        ByteOrder order = bb.order();
+
+        int count = scanner.scan(bb, offset, limit);
+
+        List<int[]> expected = split(bb, offset, limit);
+        assertEquals(expected.size(), count);
+        assertEquals(count, scanner.count());
+        for (int i = 0; i < count; i++) {
+            assertEquals("offset of " + i, expected.get(i)[0], scanner.offset(i));
+            assertEquals("length of " + i, expected.get(i)[1], scanner.length(i));
+            assertEquals("type of " + i, expected.get(i)[2], scanner.type(i));
+        }
+        assertEquals(position, bb.position());
+        assertEquals(bufferLimit, bb.limit());
+        assertSame(order, bb.order());
+    }
+
+    private static void assertScansLikeTheSplitter(byte[] bytes) {
+        assertScansLikeTheSplitter(heap(bytes), 0, bytes.length);
+        assertScansLikeTheSplitter(direct(bytes), 0, bytes.length);
+    }
+
+    @Test
+    public void splitsAnAccessUnit() {
+        byte[] au = concat(START_CODE_4, nalu(9, 2), START_CODE_3, nalu(6, 30), START_CODE_4, nalu(7, 12),
+            START_CODE_4, nalu(8, 4), START_CODE_3, nalu(5, 1000), START_CODE_3, nalu(5, 777));
+        SrsNaluScanner scanner = new SrsNaluScanner();
+
+        assertEquals(6, scanner.scan(heap(au), 0, au.length));
+        assertEquals(4, scanner.offset(0));
+        assertEquals(2, scanner.length(0));
+        assertEquals(9, scanner.type(0));
+        assertEquals(4 + 2 + 3, scanner.offset(1));
+        assertEquals(30, scanner.length(1));
+        assertEquals(3, scanner.indexOf(8));
+        assertEquals(5, scanner.type(5));
+        assertEquals(777, scanner.length(5));
+        assertEquals(au.length - 777, scanner.offset(5));
+        assertEquals(-1, scanner.indexOf(1));
+        assertScansLikeTheSplitter(au);
+    }
+
+    @Test
+    public void dropsTheTrailingZerosAndTheEmptyUnits() {
+        // trailing_zero_8bits before a start code and at the end, back to back start codes.
+        byte[] au = concat(new byte[]{0, 0}, START_CODE_4, nalu(7, 9), new byte[]{0, 0, 0}, START_CODE_3,
+            START_CODE_4, START_CODE_3, nalu(8, 5), START_CODE_4, nalu(5, 40), new byte[]{0, 0, 0, 0});
+        SrsNaluScanner scanner = new SrsNaluScanner();
+
+        assertEquals(3, scanner.scan(heap(au), 0, au.length));
+        assertEquals(9, scanner.length(0));
+        assertEquals(5, scanner.length(1));
+        assertEquals(40, scanner.length(2));
+        assertScansLikeTheSplitter(au);
+    }
+
+    @Test
+    public void findsNothingWithoutAStartCode() {
+        assertScansLikeTheSplitter(new byte[0]);
+        assertScansLikeTheSplitter(new byte[]{0, 0});
+        assertScansLikeTheSplitter(new byte[]{0, 0, 1});
+        assertScansLikeTheSplitter(nalu(5, 100));
+        // An emulation prevention byte is not a start code.
+        assertScansLikeTheSplitter(concat(START_CODE_4, new byte[]{0x65, 0, 0, 3, 1, 0, 0, 3, 0, 0x11}));
+        assertEquals(0, new SrsNaluScanner().scan(heap(new byte[64]), 0, 64));
+    }
+
+    @Test
+    public void findsTheStartCodesAtEveryWordAlignment() {
+        for (int lead = 0; lead < 16; lead++) {
+            for (int size = 1; size < 20; size++) {
+                byte[] au = concat(nalu(1, lead + 1), START_CODE_3, nalu(1, size), START_CODE_4, nalu(5, size),
+                    START_CODE_3, nalu(1, 1));
+                assertScansLikeTheSplitter(au);
+            }
+        }
+    }
+
+    @Test
+    public void scansBetweenTheOffsetAndTheLimit() {
+        byte[] au = concat(START_CODE_4, nalu(6, 17), START_CODE_4, nalu(5, 300), START_CODE_3, nalu(1, 50));
+        // The start code before the offset and the bytes after the limit are not looked at.
+        for (int offset = 0; offset < 30; offset++) {
+            for (int limit = au.length - 30; limit <= au.length; limit++) {
+                ByteBuffer bb = heap(au);
+                bb.position(offset / 2);
+                bb.limit(limit);
+                assertScansLikeTheSplitter(bb, offset, limit);
+                ByteBuffer db = direct(au);
+                db.order(ByteOrder.LITTLE_ENDIAN);
+                assertScansLikeTheSplitter(db, offset, limit);
+            }
+        }
+    }
+
+    @Test
+    public void growsPastItsInitialCapacity() {
+        byte[][] parts = new byte[200][];
+        for (int i = 0; i < parts.length; i += 2) {
+            parts[i] = i % 4 == 0 ? START_CODE_3 : START_CODE_4;
+            parts[i + 1] = nalu(1, i + 1);
+        }
+        byte[] au = concat(parts);
+        SrsNaluScanner scanner = new SrsNaluScanner();
+
+        assertEquals(100, scanner.scan(heap(au), 0, au.length));
+        assertEquals(199, scanner.length(99));
+        // The arrays are reused by a smaller scan.
+        assertEquals(1, scanner.scan(heap(concat(START_CODE_3, nalu(5, 3))), 0, 6));
+        assertEquals(3, scanner.length(0));
+        assertScansLikeTheSplitter(au);
+    }
+
+    @Test
+    public void scansRandomBytesLikeTheSplitter() {
+        Random random = new Random(20161103);
+        for (int round = 0; round < 2000; round++) {
+            byte[] bytes = new byte[random.nextInt(300)];
+            // Mostly zeros and ones, so that start codes and zero runs are frequent.
+            for (int i = 0; i < bytes.length; i++) {
+                int r = random.nextInt(8);
+                bytes[i] = (byte) (r < 4 ? 0 : r < 6 ? 1 : random.nextInt(256));
+            }
+            int offset = bytes.length == 0 ? 0 : random.nextInt(Math.min(bytes.length, 16));
+            int limit = bytes.length - (bytes.length - offset == 0 ? 0 : random.nextInt(Math.min(bytes.length - offset, 16)));
+            assertScansLikeTheSplitter(heap(bytes), offset, limit);
+            assertScansLikeTheSplitter(direct(bytes), offset, limit);
+        }
+    }
+
+    @Test
+    public void keepsTheResultsOfTheLastScan() {
+        SrsNaluScanner scanner = new SrsNaluScanner();
+        byte[] au = concat(START_CODE_4, nalu(7, 8), START_CODE_4, nalu(8, 4));
+        scanner.scan(heap(au), 0, au.length);
+        scanner.scan(heap(new byte[8]), 0, 8);
+
+        assertEquals(0, scanner.count());
+        assertEquals(-1, scanner.indexOf(7));
+    }
+}
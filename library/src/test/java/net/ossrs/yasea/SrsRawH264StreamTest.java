@@ -0,0 +1,176 @@
+package net.ossrs.yasea;
+
+import android.media.MediaCodec;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Muxes annexb access units into AVCC video tags and checks the tags byte for byte: the
+ * 5 bytes header, then each NAL unit of the picture behind its 4 bytes length, without the
+ * start codes, the trailing zeros, the empty units and the parameter sets.
+ */
+public class SrsRawH264StreamTest {
+
+    // E.4.3.1 VIDEODATA
+    private static final int KEY_FRAME = 1;
+    private static final int INTER_FRAME = 2;
+    private static final int AVC = 7;
+    private static final int NALU = 1;
+
+    private static final byte[] START_CODE_3 = {0, 0, 1};
+    private static final byte[] START_CODE_4 = {0, 0, 0, 1};
+    private static final byte[] AUD = {0x09, (byte) 0xf0};
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0xc0, 0x1f, (byte) 0xda, 0x01};
+    private static final byte[] PPS = {0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+
+    private SrsFlvMuxer.SrsRawH264Stream avc;
+    private SrsNaluScanner scanner;
+
+    @Before
+    public void setUp() {
+        avc = new SrsFlvMuxer(null).new SrsRawH264Stream();
+        scanner = new SrsNaluScanner();
+    }
+
+    /** A NAL unit of the type with the nal_ref_idc, its payload without zero bytes. */
+    private static byte[] nalu(int refIdc, int type, int size, int seed) {
+        byte[] nalu = new byte[size];
+        nalu[0] = (byte) (refIdc << 5 | type);
+        for (int i = 1; i < size; i++) {
+            nalu[i] = (byte) ((i * 7 + seed) % 255 + 1);
+        }
+        return nalu;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static ByteBuffer direct(byte[] bytes) {
+        ByteBuffer bb = ByteBuffer.allocateDirect(bytes.length);
+        bb.put(bytes);
+        bb.clear();
+        return bb;
+    }
+
+    /** The tag header then each NAL unit behind its big endian length. */
+    private static byte[] avccTag(int frameType, int cts, byte[]... nalus) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(frameType << 4 | AVC);
+        out.write(NALU);
+        out.write(cts >> 16);
+        out.write(cts >> 8);
+        out.write(cts);
+        for (byte[] nalu : nalus) {
+            out.write(nalu.length >>> 24);
+            out.write(nalu.length >>> 16);
+            out.write(nalu.length >>> 8);
+            out.write(nalu.length);
+            out.write(nalu, 0, nalu.length);
+        }
+        return out.toByteArray();
+    }
+
+    private byte[] mux(ByteBuffer bb, int offset, int size, int frameType, int dts, int pts) {
+        MediaCodec.BufferInfo bi = new MediaCodec.BufferInfo();
+        bi.offset = offset;
+        bi.size = size;
+        SrsNaluScanner nalus = avc.demuxAnnexb(bb, bi);
+        SrsAllocator.Allocation tag = avc.muxFlvTag(bb, nalus, frameType, dts, pts);
+        return Arrays.copyOf(tag.array(), tag.size());
+    }
+
+    private void assertMuxedInHeapAndDirect(byte[] au, int frameType, byte[] expected) {
+        assertArrayEquals(expected, mux(ByteBuffer.wrap(au), 0, au.length, frameType, 1000, 1000));
+        assertArrayEquals(expected, mux(direct(au), 0, au.length, frameType, 1000, 1000));
+    }
+
+    @Test
+    public void muxesTheSlicesOfAnAccessUnit() {
+        byte[] sei = nalu(0, 6, 23, 1);
+        byte[] slice0 = nalu(2, 1, 700, 2);
+        byte[] slice1 = nalu(2, 1, 1, 3);
+        byte[] slice2 = nalu(2, 1, 5000, 4);
+        byte[] au = concat(START_CODE_4, AUD, START_CODE_3, sei, START_CODE_4, slice0, START_CODE_3, slice1,
+            START_CODE_4, slice2);
+
+        // The access unit delimiter is left out.
+        assertMuxedInHeapAndDirect(au, INTER_FRAME, avccTag(INTER_FRAME, 0, sei, slice0, slice1, slice2));
+    }
+
+    @Test
+    public void leavesTheParameterSetsOutOfAKeyFrame() {
+        byte[] sei = nalu(0, 6, 40, 5);
+        byte[] idr0 = nalu(3, 5, 3000, 6);
+        byte[] idr1 = nalu(3, 5, 2999, 7);
+        byte[] au = concat(START_CODE_3, AUD, START_CODE_4, SPS, START_CODE_4, PPS, START_CODE_3, sei,
+            START_CODE_4, idr0, START_CODE_3, idr1);
+
+        assertMuxedInHeapAndDirect(au, KEY_FRAME, avccTag(KEY_FRAME, 0, sei, idr0, idr1));
+    }
+
+    @Test
+    public void dropsTheTrailingZeros() {
+        byte[] slice0 = nalu(2, 1, 100, 8);
+        byte[] slice1 = nalu(2, 1, 200, 9);
+        // trailing_zero_8bits before the next start code, and at the end of the buffer.
+        byte[] au = concat(START_CODE_4, AUD, new byte[]{0, 0}, START_CODE_4, slice0, new byte[]{0, 0, 0},
+            START_CODE_3, slice1, new byte[]{0, 0, 0, 0});
+
+        assertMuxedInHeapAndDirect(au, INTER_FRAME, avccTag(INTER_FRAME, 0, slice0, slice1));
+    }
+
+    @Test
+    public void skipsTheEmptyUnits() {
+        byte[] slice0 = nalu(2, 1, 64, 10);
+        byte[] slice1 = nalu(2, 1, 65, 11);
+        // Back to back start codes, and one at the end.
+        byte[] au = concat(START_CODE_4, START_CODE_3, slice0, START_CODE_3, START_CODE_4, slice1, START_CODE_4);
+
+        assertMuxedInHeapAndDirect(au, INTER_FRAME, avccTag(INTER_FRAME, 0, slice0, slice1));
+    }
+
+    @Test
+    public void muxesAnAccessUnitAtAnOffset() {
+        byte[] sei = nalu(0, 6, 10, 12);
+        byte[] slice = nalu(2, 1, 333, 13);
+        byte[] au = concat(START_CODE_4, sei, START_CODE_3, slice);
+        // The codec buffer holds other bytes around the access unit, start codes included.
+        byte[] buffer = concat(START_CODE_4, nalu(2, 1, 17, 14), au, START_CODE_4, nalu(2, 1, 9, 15));
+        int offset = 4 + 17;
+        byte[] expected = avccTag(INTER_FRAME, 0, sei, slice);
+
+        ByteBuffer heap = ByteBuffer.wrap(buffer);
+        heap.position(offset);
+        assertArrayEquals(expected, mux(heap, offset, au.length, INTER_FRAME, 1000, 1000));
+        assertEquals(offset, heap.position());
+        assertEquals(buffer.length, heap.limit());
+        ByteBuffer direct = direct(buffer);
+        assertArrayEquals(expected, mux(direct, offset, au.length, INTER_FRAME, 1000, 1000));
+        assertEquals(0, direct.position());
+    }
+
+    @Test
+    public void writesTheCompositionTime() {
+        byte[] slice = nalu(2, 1, 50, 16);
+        byte[] au = concat(START_CODE_4, slice);
+
+        assertArrayEquals(avccTag(INTER_FRAME, 66, slice), mux(ByteBuffer.wrap(au), 0, au.length, INTER_FRAME, 1000, 1066));
+        assertArrayEquals(avccTag(INTER_FRAME, 0x012345, slice),
+            mux(ByteBuffer.wrap(au), 0, au.length, INTER_FRAME, 0, 0x012345));
+        // A frame reordered deeper than expected is presented at its dts.
+        assertArrayEquals(avccTag(INTER_FRAME, 0, slice), mux(ByteBuffer.wrap(au), 0, au.length, INTER_FRAME, 1066, 1000));
+    }
+}
@@ -0,0 +1,128 @@
+package net.ossrs.yasea;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Measures the time from the publication of a frame by the muxer thread to its pickup by the
+ * sender thread, with the ring and with the ConcurrentLinkedQueue and wait/notify handoff it
+ * replaced, and prints the percentiles. The frames are paced so that the consumer is parked
+ * most of the time, as it is between two encoded frames.
+ */
+public class SrsSpscRingBenchmark {
+
+    private static final int WARMUP_FRAMES = 2000;
+    private static final int FRAMES = 10000;
+    private static final long INTERVAL_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private interface Handoff {
+        void offer(long publishNanos);
+
+        /** @return the publication time of the next frame, waiting for it */
+        long take() throws InterruptedException;
+    }
+
+    private static class RingHandoff implements Handoff {
+        private final SrsSpscRing<long[]> ring;
+
+        RingHandoff() {
+            long[][] slots = new long[256][];
+            for (int i = 0; i < slots.length; i++) {
+                slots[i] = new long[1];
+            }
+            ring = new SrsSpscRing<>(slots);
+        }
+
+        @Override
+        public void offer(long publishNanos) {
+            long[] slot = ring.claim();
+            if (slot != null) {
+                slot[0] = publishNanos;
+                ring.publish();
+            }
+        }
+
+        @Override
+        public long take() {
+            long[] slot;
+            while ((slot = ring.peek()) == null) {
+                ring.await(TimeUnit.MILLISECONDS.toNanos(500));
+            }
+            long publishNanos = slot[0];
+            ring.consume();
+            return publishNanos;
+        }
+    }
+
+    private static class QueueHandoff implements Handoff {
+        private final ConcurrentLinkedQueue<Long> queue = new ConcurrentLinkedQueue<>();
+        private final Object lock = new Object();
+
+        @Override
+        public void offer(long publishNanos) {
+            queue.add(publishNanos);
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        }
+
+        @Override
+        public long take() throws InterruptedException {
+            Long publishNanos;
+            while ((publishNanos = queue.poll()) == null) {
+                synchronized (lock) {
+                    if (queue.isEmpty()) {
+                        lock.wait(500);
+                    }
+                }
+            }
+            return publishNanos;
+        }
+    }
+
+    private static long[] run(final Handoff handoff, final int frames) throws InterruptedException {
+        final long[] latencies = new long[frames];
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < frames; i++) {
+                        long publishNanos = handoff.take();
+                        latencies[i] = System.nanoTime() - publishNanos;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        consumer.start();
+        for (int i = 0; i < frames; i++) {
+            LockSupport.parkNanos(INTERVAL_NANOS);
+            handoff.offer(System.nanoTime());
+        }
+        consumer.join(TimeUnit.SECONDS.toMillis(30));
+        assertFalse(consumer.isAlive());
+        return latencies;
+    }
+
+    private static void measure(String name, Handoff handoff) throws InterruptedException {
+        run(handoff, WARMUP_FRAMES);
+        long[] latencies = run(handoff, FRAMES);
+        Arrays.sort(latencies);
+        System.out.println(String.format("%s: p50 %.1fus, p99 %.1fus, p99.9 %.1fus", name,
+            latencies[FRAMES / 2] / 1000.0, latencies[FRAMES * 99 / 100] / 1000.0,
+            latencies[FRAMES * 999 / 1000] / 1000.0));
+    }
+
+    @Test
+    public void handsOffPacedFrames() throws InterruptedException {
+        measure("SrsSpscRing", new RingHandoff());
+        measure("ConcurrentLinkedQueue + wait/notify", new QueueHandoff());
+    }
+}
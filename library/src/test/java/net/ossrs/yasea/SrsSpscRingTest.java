@@ -0,0 +1,155 @@
+package net.ossrs.yasea;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SrsSpscRingTest {
+
+    private static final int CAPACITY = 4;
+
+    /** A slot holding the sequence number written by the producer. */
+    private static class Slot {
+        long value;
+    }
+
+    private static SrsSpscRing<Slot> newRing(int capacity) {
+        Slot[] slots = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Slot();
+        }
+        return new SrsSpscRing<>(slots);
+    }
+
+    private static void offer(SrsSpscRing<Slot> ring, long value) {
+        Slot slot = ring.claim();
+        slot.value = value;
+        ring.publish();
+    }
+
+    @Test
+    public void returnsNullWhenEmpty() {
+        SrsSpscRing<Slot> ring = newRing(CAPACITY);
+
+        assertTrue(ring.isEmpty());
+        assertNull(ring.peek());
+        // Consuming an empty ring is a no-op.
+        ring.consume();
+        assertEquals(0, ring.size());
+        assertNull(ring.peek());
+    }
+
+    @Test
+    public void returnsNullWhenFull() {
+        SrsSpscRing<Slot> ring = newRing(CAPACITY);
+        for (int i = 0; i < CAPACITY; i++) {
+            offer(ring, i);
+        }
+
+        assertEquals(CAPACITY, ring.size());
+        assertNull(ring.claim());
+
+        ring.consume();
+        assertEquals(CAPACITY - 1, ring.size());
+        offer(ring, CAPACITY);
+        assertNull(ring.claim());
+    }
+
+    @Test
+    public void peeksWithoutConsuming() {
+        SrsSpscRing<Slot> ring = newRing(CAPACITY);
+        offer(ring, 10);
+        offer(ring, 11);
+        offer(ring, 12);
+
+        assertEquals(10, ring.peek().value);
+        assertSame(ring.peek(), ring.peek(0));
+        assertEquals(11, ring.peek(1).value);
+        assertEquals(12, ring.peek(2).value);
+        assertNull(ring.peek(3));
+        assertEquals(3, ring.size());
+    }
+
+    @Test
+    public void claimsTheSameSlotUntilPublished() {
+        SrsSpscRing<Slot> ring = newRing(CAPACITY);
+
+        Slot slot = ring.claim();
+        assertSame(slot, ring.claim());
+        assertTrue(ring.isEmpty());
+        slot.value = 1;
+        ring.publish();
+        assertSame(slot, ring.peek());
+    }
+
+    @Test
+    public void keepsTheOrderAcrossTheWraparound() {
+        SrsSpscRing<Slot> ring = newRing(CAPACITY);
+        long produced = 0;
+        long consumed = 0;
+
+        // Keep the ring partly filled so that head and tail wrap at different slots.
+        for (int round = 0; round < 10 * CAPACITY; round++) {
+            while (ring.claim() != null && produced - consumed < CAPACITY - 1) {
+                offer(ring, produced++);
+            }
+            for (int i = 0; i < 2; i++) {
+                Slot slot = ring.peek();
+                assertEquals(consumed++, slot.value);
+                ring.consume();
+            }
+        }
+        while (!ring.isEmpty()) {
+            assertEquals(consumed++, ring.peek().value);
+            ring.consume();
+        }
+        assertEquals(produced, consumed);
+        assertTrue(produced > 4 * CAPACITY);
+    }
+
+    @Test
+    public void reusesTheSlots() {
+        SrsSpscRing<Slot> ring = newRing(CAPACITY);
+        Slot first = ring.claim();
+        for (int i = 0; i < CAPACITY; i++) {
+            offer(ring, i);
+            ring.consume();
+        }
+
+        assertSame(first, ring.claim());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsASizeWhichIsNotAPowerOfTwo() {
+        newRing(3);
+    }
+
+    @Test
+    public void wakesUpTheParkedConsumer() throws InterruptedException {
+        final SrsSpscRing<Slot> ring = newRing(CAPACITY);
+        final long[] waitedNanos = new long[1];
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                while (ring.isEmpty()) {
+                    ring.await(TimeUnit.SECONDS.toNanos(10));
+                }
+                waitedNanos[0] = System.nanoTime() - start;
+            }
+        });
+        consumer.start();
+        Thread.sleep(50);
+        offer(ring, 1);
+        consumer.join(5000);
+
+        assertFalse(consumer.isAlive());
+        assertTrue("waited " + waitedNanos[0] + "ns", waitedNanos[0] < TimeUnit.SECONDS.toNanos(5));
+    }
+}
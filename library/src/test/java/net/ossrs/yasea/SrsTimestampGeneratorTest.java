@@ -0,0 +1,129 @@
+package net.ossrs.yasea;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds the generator with the pts of the frames in the decoding order of common GOP
+ * structures, at 30fps.
+ */
+public class SrsTimestampGeneratorTest {
+
+    private static final long START_US = 1000000;
+    private static final long FRAME_US = 33333;
+
+    // I P B B, the B-frames are not referenced.
+    private static final int[] IPBB = {0, 3, 1, 2, 6, 4, 5, 9, 7, 8, 12, 10, 11};
+    // A B-pyramid of a GOP of 4, the middle B-frame is referenced by the others.
+    private static final int[] PYRAMID = {0, 4, 2, 1, 3, 8, 6, 5, 7, 12, 10, 9, 11};
+
+    private static long pts(int frame) {
+        return START_US + frame * FRAME_US;
+    }
+
+    private static long[] dts(SrsTimestampGenerator generator, int[] order) {
+        long[] dts = new long[order.length];
+        for (int i = 0; i < order.length; i++) {
+            dts[i] = generator.dts(pts(order[i]));
+        }
+        return dts;
+    }
+
+    private static void assertIncreasingAndNotAbovePts(SrsTimestampGenerator generator, int[] order,
+                                                       long[] dts, int from) {
+        for (int i = from; i < order.length; i++) {
+            long pts = generator.pts(pts(order[i]));
+            assertTrue("dts " + dts[i] + " above pts of frame " + order[i], dts[i] <= pts);
+            if (i > 0) {
+                assertTrue("dts not increasing at frame " + order[i], dts[i] > dts[i - 1]);
+            }
+        }
+    }
+
+    @Test
+    public void usesThePtsWithoutBFrames() {
+        int[] order = {0, 1, 2, 3, 4, 5};
+        long[] dts = dts(new SrsTimestampGenerator(0), order);
+
+        for (int i = 0; i < order.length; i++) {
+            assertEquals(pts(order[i]), dts[i]);
+        }
+    }
+
+    @Test
+    public void shiftsThePresentationOrderWithIpbb() {
+        SrsTimestampGenerator generator = new SrsTimestampGenerator(1);
+        long[] dts = dts(generator, IPBB);
+
+        assertIncreasingAndNotAbovePts(generator, IPBB, dts, 0);
+        // Once primed, a P-frame is decoded at the pts of the frame presented before the
+        // B-frames it precedes, and the B-frames at their pts.
+        assertEquals(pts(3) - pts(0), generator.pts(pts(IPBB[1])) - dts[1]);
+        for (int i = 2; i < IPBB.length; i++) {
+            long cts = generator.pts(pts(IPBB[i])) - dts[i];
+            assertEquals(IPBB[i] % 3 == 0 ? 3 * FRAME_US : 0, cts);
+        }
+        assertEquals(1, generator.getReorderDepth());
+    }
+
+    @Test
+    public void shiftsThePresentationOrderWithAPyramid() {
+        SrsTimestampGenerator generator = new SrsTimestampGenerator(2);
+        long[] dts = dts(generator, PYRAMID);
+
+        assertIncreasingAndNotAbovePts(generator, PYRAMID, dts, 0);
+        assertEquals(2, generator.getReorderDepth());
+    }
+
+    @Test
+    public void raisesTheDepthWhenAFrameComesLate() {
+        // The encoder was configured without B-frames but outputs some.
+        SrsTimestampGenerator generator = new SrsTimestampGenerator(0);
+        long[] dts = dts(generator, IPBB);
+
+        assertEquals(1, generator.getReorderDepth());
+        // The late frames are the only ones decoded after their pts, still in order.
+        for (int i = 1; i < IPBB.length; i++) {
+            assertTrue(dts[i] > dts[i - 1]);
+        }
+        assertTrue(dts[2] > generator.pts(pts(IPBB[2])));
+        // The frames after the next P-frame fit in the deeper window.
+        assertIncreasingAndNotAbovePts(generator, IPBB, dts, 5);
+    }
+
+    @Test
+    public void primesInMillisecondsFromAStreamAtZero() {
+        for (int depth = 1; depth <= 2; depth++) {
+            SrsTimestampGenerator generator = new SrsTimestampGenerator(depth);
+            int[] order = depth == 1 ? IPBB : PYRAMID;
+            long lastMs = -1;
+            for (int i = 0; i < order.length; i++) {
+                long pts = order[i] * FRAME_US;
+                long dts = generator.dts(pts);
+                // The muxers send the timestamps in ms, the first dts is not clamped at 0.
+                assertTrue("depth " + depth + " dts not increasing at frame " + order[i],
+                    dts / 1000 > lastMs);
+                assertTrue("depth " + depth + " dts above pts at frame " + order[i],
+                    dts <= generator.pts(pts));
+                lastMs = dts / 1000;
+            }
+        }
+    }
+
+    @Test
+    public void startsOverOnReset() {
+        SrsTimestampGenerator generator = new SrsTimestampGenerator(0);
+        dts(generator, IPBB);
+        generator.reset();
+
+        assertEquals(0, generator.getReorderDepth());
+        assertEquals(pts(0), generator.dts(pts(0)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnInvalidDepth() {
+        new SrsTimestampGenerator(-1);
+    }
+}
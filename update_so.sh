@@ -1,9 +0,0 @@
-#!/bin/sh
-cp library/build/intermediates/ndkBuild/release/obj/local/armeabi-v7a/libenc.so library/src/main/jniLibs/armeabi-v7a/
-cp library/build/intermediates/ndkBuild/release/obj/local/armeabi-v7a/libyuv.so library/src/main/jniLibs/armeabi-v7a/
-cp library/build/intermediates/ndkBuild/release/obj/local/arm64-v8a/libenc.so library/src/main/jniLibs/arm64-v8a/
-cp library/build/intermediates/ndkBuild/release/obj/local/arm64-v8a/libyuv.so library/src/main/jniLibs/arm64-v8a/
-cp library/build/intermediates/ndkBuild/release/obj/local/x86/libenc.so library/src/main/jniLibs/x86/
-cp library/build/intermediates/ndkBuild/release/obj/local/x86/libyuv.so library/src/main/jniLibs/x86/
-cp library/build/intermediates/ndkBuild/release/obj/local/mips/libenc.so library/src/main/jniLibs/mips/
-cp library/build/intermediates/ndkBuild/release/obj/local/mips/libyuv.so library/src/main/jniLibs/mips/